@@ -32,6 +32,7 @@ import mobisocial.musubi.provider.UICacheProvider;
 import mobisocial.musubi.service.MusubiService;
 import mobisocial.musubi.ui.MusubiBaseActivity;
 import mobisocial.musubi.ui.SettingsActivity;
+import mobisocial.musubi.util.BitmapCache;
 import mobisocial.musubi.util.IdentityCache;
 import mobisocial.socialkit.Obj;
 import mobisocial.socialkit.User;
@@ -58,6 +59,7 @@ public class App extends Application implements DBProvider, MusubiProvider, UICa
 
     public final static String TAG = "musubi";
     private IdentityCache mContactCache;
+    private BitmapCache mBitmapCache;
     private ScreenState mScreenState;
 
     private static Uri sCurrentFeedUri;
@@ -193,6 +195,15 @@ public class App extends Application implements DBProvider, MusubiProvider, UICa
 		}
 	}
 
+	public static BitmapCache getBitmapCache(Context c) {
+		Context app_as_context = c.getApplicationContext();
+		if(app_as_context instanceof UICacheProvider) {
+			return ((UICacheProvider)app_as_context).getBitmapCache();
+		} else {
+			throw new RuntimeException("application or mock missing ui cache source");
+		}
+	}
+
 	public static TestSettingsProvider.Settings getTestSettings(Context c) {
 		Context app_as_context = c.getApplicationContext();
 		if(app_as_context instanceof TestSettingsProvider) {
@@ -259,18 +270,29 @@ public class App extends Application implements DBProvider, MusubiProvider, UICa
         return mMusubi;
     }
 
-	public IdentityCache getContactCache() {
+	public synchronized IdentityCache getContactCache() {
 		if (mContactCache == null) {
 			mContactCache = new IdentityCache(this);
 		}
 		return mContactCache;
 	}
 
+	public synchronized BitmapCache getBitmapCache() {
+		if (mBitmapCache == null) {
+			mBitmapCache = new BitmapCache(this);
+		}
+		return mBitmapCache;
+	}
+
 	@Override
 	public void onLowMemory() {
 		Log.d(TAG, "++++ low system memory ++++");
 		if (mContactCache != null) {
 			mContactCache.evictAll();
 		}
+		if (mBitmapCache != null) {
+			Log.d(TAG, mBitmapCache.toString());
+			mBitmapCache.evictAll();
+		}
 	}
 }
@@ -23,6 +23,7 @@ import java.io.InputStreamReader;
 import mobisocial.metrics.UsageMetrics;
 import mobisocial.musubi.model.helpers.DatabaseFile;
 import mobisocial.musubi.model.helpers.EncodedMessageManager;
+import mobisocial.musubi.model.helpers.ObjectManager;
 import mobisocial.musubi.service.AddressBookUpdateHandler;
 import mobisocial.musubi.service.MusubiService;
 import mobisocial.musubi.ui.SettingsActivity;
@@ -359,6 +360,7 @@ public class BootstrapActivity extends FragmentActivity {
     		long startTime = System.currentTimeMillis();
     		SQLiteOpenHelper db = App.getDatabaseSource(getApplicationContext());
     		new EncodedMessageManager(db).deleteProcessedOldItems(7);
+    		new ObjectManager(db).collectBlobGarbage();
     		long totalTime = System.currentTimeMillis() - startTime;
     		Log.d(TAG, String.format("++++ Object truncation took %d ms.", totalTime));
     		return null;
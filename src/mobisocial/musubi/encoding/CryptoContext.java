@@ -0,0 +1,112 @@
+/*
+ * Copyright 2012 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.musubi.encoding;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+
+/**
+ * Per-thread cipher and digest instances for the message encoder and decoder.
+ * Looking up a provider implementation is much more expensive than
+ * reinitializing an existing instance, and the recipient secret blocks
+ * need a fresh cipher for every recipient of every message.
+ * 
+ * The instances returned belong to the calling thread and must not be handed
+ * to another thread or held across calls that may also borrow them.
+ */
+final class CryptoContext {
+	private static final ThreadLocal<CryptoContext> sContexts = new ThreadLocal<CryptoContext>() {
+		@Override
+		protected CryptoContext initialValue() {
+			return new CryptoContext();
+		}
+	};
+	private static final SecureRandom sRandom = new SecureRandom();
+
+	private Cipher mBodyCipher;
+	private Cipher mSecretCipher;
+	private MessageDigest mSha256;
+
+	private CryptoContext() {
+	}
+
+	static CryptoContext get() {
+		return sContexts.get();
+	}
+
+	/**
+	 * The cipher for message bodies.  Since the length of the message is not
+	 * included in the format, it uses a normal padding scheme that preserves length.
+	 * The caller must init it before use.
+	 */
+	Cipher bodyCipher() {
+		if (mBodyCipher == null) {
+			mBodyCipher = newCipher("AES/CBC/PKCS7Padding");
+		}
+		return mBodyCipher;
+	}
+
+	/**
+	 * The cipher for the per-recipient secret blocks.  The caller must init it
+	 * before use.
+	 */
+	Cipher secretCipher() {
+		if (mSecretCipher == null) {
+			//TODO: do random byte padding
+			mSecretCipher = newCipher("AES/CBC/ZeroBytePadding");
+		}
+		return mSecretCipher;
+	}
+
+	/**
+	 * @return a SHA-256 digest that has been reset
+	 */
+	MessageDigest sha256() {
+		if (mSha256 == null) {
+			try {
+				mSha256 = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException("your platform does not support sha256", e);
+			}
+		} else {
+			mSha256.reset();
+		}
+		return mSha256;
+	}
+
+	byte[] sha256(byte[] data) {
+		return sha256().digest(data);
+	}
+
+	/**
+	 * Shared by all threads, SecureRandom is thread safe.
+	 */
+	static SecureRandom random() {
+		return sRandom;
+	}
+
+	private static Cipher newCipher(String transformation) {
+		try {
+			return Cipher.getInstance(transformation);
+		} catch (Exception e) {
+			throw new RuntimeException("AES not supported on this platform", e);
+		}
+	}
+}
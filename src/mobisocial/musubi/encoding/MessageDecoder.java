@@ -19,7 +19,6 @@ package mobisocial.musubi.encoding;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.spec.AlgorithmParameterSpec;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -41,25 +40,18 @@ import mobisocial.musubi.model.MEncodedMessage;
 import mobisocial.musubi.model.MIdentity;
 import mobisocial.musubi.model.MIncomingSecret;
 import mobisocial.musubi.protocol.Message;
+import mobisocial.musubi.protocol.ProtocolCodec;
 import mobisocial.musubi.protocol.Recipient;
 import mobisocial.musubi.protocol.Secret;
 import mobisocial.musubi.protocol.Sender;
 import mobisocial.musubi.util.Util;
 
-import org.codehaus.jackson.map.ObjectMapper;
-
 import android.util.Base64;
-import de.undercouch.bson4jackson.BsonFactory;
-import de.undercouch.bson4jackson.BsonParser.Feature;
 
 public class MessageDecoder {
 	final IBEncryptionScheme mEncryptionScheme;
 	final IBSignatureScheme mSignatureScheme;
 	final TransportDataProvider mTdp;
-	//since we aren't trying to do streaming large object processing, we enforce
-	//the document length.  this lets us easily ignore the data at the end
-	//with increasing the secret block size with a funky padding scheme.
-	ObjectMapper mMapper; // final but lazy
 
 	public MessageDecoder(TransportDataProvider tdp) {
 		mEncryptionScheme = tdp.getEncryptionScheme();
@@ -67,38 +59,28 @@ public class MessageDecoder {
 		mTdp = tdp;
 	}
 
-	private ObjectMapper getObjectMapper() {
-	    if (mMapper == null) {
-	        mMapper = new ObjectMapper(new BsonFactory().enable(Feature.HONOR_DOCUMENT_LENGTH));
-	    }
-	    return mMapper;
-	}
-	Message decodeMessage(byte[] raw) throws Corrupted {
+	//since we aren't trying to do streaming large object processing, the codec
+	//enforces the document length.  this lets us easily ignore the data at the end
+	//with increasing the secret block size with a funky padding scheme.
+	public Message decodeMessage(byte[] raw) throws Corrupted {
 		try {
-			return getObjectMapper().readValue(raw, Message.class);
+			return ProtocolCodec.decodeMessage(raw);
 		} catch (IOException e) {
 			throw new DiscardMessage.Corrupted("Failed to parse BSON of outer message", e);
 		}
 	}
 	Secret decodeSecret(byte[] raw) throws Corrupted {
 		try {
-			return getObjectMapper().readValue(raw, Secret.class);
+			return ProtocolCodec.decodeSecret(raw);
 		} catch (IOException e) {
 			throw new DiscardMessage.Corrupted("Failed to parse BSON of inner recipient secret block", e);
 		}
 	}
 	
 	byte[] decryptBody(byte[] data, byte[] messageKey, byte[] iv) throws Corrupted {
-		Cipher cipher;
+		Cipher cipher = CryptoContext.get().bodyCipher();
 		AlgorithmParameterSpec iv_spec;
 		SecretKeySpec sks;
-		try {
-			//since the length of the message is not included in the format, we have
-			//to use a normal padding scheme that preserves length
-			cipher = Cipher.getInstance("AES/CBC/PKCS7Padding");
-		} catch (Exception e) {
-			throw new RuntimeException("AES not supported on this platform", e);
-		}
 		try {
 			iv_spec = new IvParameterSpec(iv);
 		    sks = new SecretKeySpec(messageKey, "AES");
@@ -113,12 +95,7 @@ public class MessageDecoder {
 		}
 	}
 	void checkBodySignature(byte[] expected, byte[] hash, byte[] app, boolean blind, Recipient[] rs) throws BadSignature {
-		MessageDigest md;
-		try {
-			md = MessageDigest.getInstance("SHA-256");
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException("your platform does not support sha256", e);
-		}
+		MessageDigest md = CryptoContext.get().sha256();
 		md.update(hash);
 		md.update(app);
 		md.update(blind ? (byte)1 : (byte)0);
@@ -147,15 +124,9 @@ public class MessageDecoder {
 		mTdp.receivedSequenceNumber(from, sequenceNumber);
 	}
 	byte[] decryptRecipientSecret(MIncomingSecret secret, byte[] data, byte[] iv) throws Corrupted {
-		Cipher cipher;
+		Cipher cipher = CryptoContext.get().secretCipher();
 		AlgorithmParameterSpec iv_spec;
 		SecretKeySpec sks;
-		try {
-			//TODO: do random byte padding
-			cipher = Cipher.getInstance("AES/CBC/ZeroBytePadding");
-		} catch (Exception e) {
-			throw new RuntimeException("AES not supported on this platform", e);
-		}
 		try {
 			iv_spec = new IvParameterSpec(iv);
 		    sks = new SecretKeySpec(secret.key_, "AES");
@@ -200,12 +171,7 @@ public class MessageDecoder {
 		is.encryptedKey_ = me.k;
 		is.encryptionWhen_ = me_timed.temporalFrame_;
 
-		MessageDigest md;
-		try {
-			md = MessageDigest.getInstance("SHA-256");
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException("your platform does not support sha256", e);
-		}
+		MessageDigest md = CryptoContext.get().sha256();
 		md.update(is.encryptedKey_);
 		ByteBuffer deviceId = ByteBuffer.wrap(new byte[8]);
 		deviceId.putLong(device.deviceName_);
@@ -220,15 +186,25 @@ public class MessageDecoder {
 		return is;	
 	}
 	public IncomingMessage processMessage(MEncodedMessage encoded) throws DiscardMessage, NeedsKey {
+		return processMessage(encoded, null);
+	}
+	/**
+	 * Decodes a message whose outer envelope may have already been parsed
+	 * with {@link #decodeMessage(byte[])}, e.g. to route it by sender.
+	 * If m is null, the envelope is parsed from encoded.
+	 */
+	public IncomingMessage processMessage(MEncodedMessage encoded, Message m) throws DiscardMessage, NeedsKey {
 		try { 
-			return processMessageInternal(encoded);
+			return processMessageInternal(encoded, m);
 		} catch (CorruptIdentity e) {
 			throw new DiscardMessage("corrupt identity data in message", e);
 		}
 	}	
-	private IncomingMessage processMessageInternal(MEncodedMessage encoded) throws DiscardMessage, NeedsKey, CorruptIdentity {
+	private IncomingMessage processMessageInternal(MEncodedMessage encoded, Message m) throws DiscardMessage, NeedsKey, CorruptIdentity {
 		IncomingMessage im = new IncomingMessage();
-		Message m = decodeMessage(encoded.encoded_);
+		if(m == null) {
+			m = decodeMessage(encoded.encoded_);
+		}
 		ArrayList<Recipient> mine = new ArrayList<Recipient>(8);
 		for(Recipient r : m.r) {
 			//TODO: dedupe?
@@ -245,7 +221,7 @@ public class MessageDecoder {
 			throw new DiscardMessage.Blacklist("received message from blacklisted identity " + im.fromIdentity_.id_);
 		}
 		im.fromDevice_ = addDevice(im.fromIdentity_, m.s.d);
-		byte[] raw_hash = Util.sha256(encoded.encoded_);
+		byte[] raw_hash = CryptoContext.get().sha256(encoded.encoded_);
 		checkDuplicate(im.fromDevice_, raw_hash);
 
 		im.app_ = m.a;
@@ -285,7 +261,7 @@ public class MessageDecoder {
 				im.data_ = decryptBody(m.d, secret.k, m.i);
 			}
 			if(im.hash_ == null) {
-				im.hash_ = Util.sha256(im.data_);
+				im.hash_ = CryptoContext.get().sha256(im.data_);
 			}
 			
 			checkBodySignature(secret.h, im.hash_, im.app_, im.blind_, m.r);
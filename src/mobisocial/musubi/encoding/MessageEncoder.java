@@ -18,13 +18,16 @@ package mobisocial.musubi.encoding;
 
 import gnu.trove.map.hash.TLongLongHashMap;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Random;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.crypto.Cipher;
 import javax.crypto.spec.IvParameterSpec;
@@ -40,63 +43,56 @@ import mobisocial.musubi.model.MEncodedMessage;
 import mobisocial.musubi.model.MIdentity;
 import mobisocial.musubi.model.MOutgoingSecret;
 import mobisocial.musubi.protocol.Message;
+import mobisocial.musubi.protocol.ProtocolCodec;
 import mobisocial.musubi.protocol.Recipient;
 import mobisocial.musubi.protocol.Secret;
 import mobisocial.musubi.protocol.Sender;
 import mobisocial.musubi.util.Util;
 
-import org.codehaus.jackson.map.ObjectMapper;
-
-import de.undercouch.bson4jackson.BsonFactory;
-
 //TODO: broadcast flag, app id, signature changes
 public class MessageEncoder {
 	final IBEncryptionScheme mEncryptionScheme;
 	final IBSignatureScheme mSignatureScheme;
 	final long mDeviceName;
 	final TransportDataProvider mTdp;
-	ObjectMapper mMapper; // final but lazy
+
+	/**
+	 * Messages with more recipients than this have their recipient secret
+	 * blocks computed in slices on the recipient executor, if there is one.
+	 */
+	static final int PARALLEL_RECIPIENT_CUTOFF = 20;
+	final ExecutorService mRecipientExecutor;
+	final int mRecipientParallelism;
 	
 	public MessageEncoder(TransportDataProvider tdp) {
+		this(tdp, null, 1);
+	}
+
+	/**
+	 * @param recipientExecutor runs slices of the per-recipient work for messages
+	 * to large feeds, or null to always encode on the calling thread
+	 * @param parallelism the most slices to split the recipients into
+	 */
+	public MessageEncoder(TransportDataProvider tdp, ExecutorService recipientExecutor, int parallelism) {
 		mEncryptionScheme = tdp.getEncryptionScheme();
 		mSignatureScheme = tdp.getSignatureScheme();
 		mDeviceName = tdp.getDeviceName();
 		mTdp = tdp;
-	}
-
-	private ObjectMapper getObjectMapper() {
-	    if (mMapper == null) {
-	        mMapper = new ObjectMapper(new BsonFactory());
-	    }
-	    return mMapper;
+		mRecipientExecutor = recipientExecutor;
+		mRecipientParallelism = Math.max(1, parallelism);
 	}
 
 	byte[] encodeMessage(Message m) throws Corrupted {
-		try {
-			return getObjectMapper().writeValueAsBytes(m);
-		} catch (IOException e) {
-			throw new DiscardMessage.Corrupted("Failed to encode BSON of outer message", e);
-		}
+		return ProtocolCodec.encode(m);
 	}
 	byte[] encodeSecret(Secret s) throws Corrupted {
-		try {
-			return getObjectMapper().writeValueAsBytes(s);
-		} catch (IOException e) {
-			throw new DiscardMessage.Corrupted("Failed to encode BSON of inner recipient secret block", e);
-		}
+		return ProtocolCodec.encode(s);
 	}
 	
 	byte[] encryptBody(byte[] messageKey, byte[] data, byte[] iv) {
-		Cipher cipher;
+		Cipher cipher = CryptoContext.get().bodyCipher();
 		AlgorithmParameterSpec iv_spec;
 		SecretKeySpec sks;
-		try {
-			//since the length of the message is not included in the format, we have
-			//to use a normal padding scheme that preserves length
-			cipher = Cipher.getInstance("AES/CBC/PKCS7Padding");
-		} catch (Exception e) {
-			throw new RuntimeException("AES not supported on this platform", e);
-		}
 		try {
 			iv_spec = new IvParameterSpec(iv);
 		    sks = new SecretKeySpec(messageKey, "AES");
@@ -112,12 +108,7 @@ public class MessageEncoder {
 	}
 	private byte[] computeFullSignature(byte[] hash, byte[] app,
 			boolean blind, Recipient[] rs) {
-		MessageDigest md;
-		try {
-			md = MessageDigest.getInstance("SHA-256");
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException("your platform does not support sha256", e);
-		}
+		MessageDigest md = CryptoContext.get().sha256();
 		md.update(hash);
 		md.update(app);
 		md.update(blind ? (byte)1 : (byte)0);
@@ -130,15 +121,9 @@ public class MessageEncoder {
 	}
 
 	byte[] encryptRecipientSecret(MOutgoingSecret secret, byte[] data, byte[] iv) {
-		Cipher cipher;
+		Cipher cipher = CryptoContext.get().secretCipher();
 		AlgorithmParameterSpec iv_spec;
 		SecretKeySpec sks;
-		try {
-			//TODO: do random byte padding
-			cipher = Cipher.getInstance("AES/CBC/ZeroBytePadding");
-		} catch (Exception e) {
-			throw new RuntimeException("AES not supported on this platform", e);
-		}
 		try {
 			iv_spec = new IvParameterSpec(iv);
 		    sks = new SecretKeySpec(secret.key_, "AES");
@@ -154,8 +139,7 @@ public class MessageEncoder {
 	}
 	byte[] randomSymetricCipherBlock() {
 		byte[] b = new byte[16];
-		Random rand = new Random();
-		rand.nextBytes(b);
+		CryptoContext.random().nextBytes(b);
 		return b;
 	}
 	MOutgoingSecret addOutgoingSecret(MIdentity from, MIdentity to, IBHashedIdentity me, IBHashedIdentity you) throws NeedsKey.Signature {
@@ -174,12 +158,7 @@ public class MessageEncoder {
 		os.encryptedKey_ = ck.encryptedKey_;
 		os.encryptionWhen_ = you.temporalFrame_;
 
-		MessageDigest md;
-		try {
-			md = MessageDigest.getInstance("SHA-256");
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException("your platform does not support sha256", e);
-		}
+		MessageDigest md = CryptoContext.get().sha256();
 		md.update(os.encryptedKey_);
 		ByteBuffer bb = ByteBuffer.wrap(new byte[8]);
 		bb.putLong(mDeviceName);
@@ -197,6 +176,94 @@ public class MessageEncoder {
 		return next;
 	}
 
+	/**
+	 * Fills in the channel secret and encrypted secret block for each recipient,
+	 * splitting the work across the recipient executor for large messages.  Each
+	 * slice writes only its own entries of m.r, so the result is in recipient order.
+	 */
+	void encodeRecipients(final OutgoingMessage om, final Message m, final IBHashedIdentity me,
+			final byte[] fullHash, final byte[] messageKey, final TLongLongHashMap sequenceNumbers)
+			throws DiscardMessage, NeedsKey {
+		int n = om.recipients_.length;
+		int slices = Math.min(mRecipientParallelism, (n + PARALLEL_RECIPIENT_CUTOFF - 1) / PARALLEL_RECIPIENT_CUTOFF);
+		if (mRecipientExecutor == null || slices <= 1) {
+			encodeRecipients(om, m, me, fullHash, messageKey, sequenceNumbers, 0, n);
+			return;
+		}
+		int per = (n + slices - 1) / slices;
+		List<Future<Void>> pending = new ArrayList<Future<Void>>(slices);
+		for (int start = per; start < n; start += per) {
+			final int from = start;
+			final int to = Math.min(n, start + per);
+			pending.add(mRecipientExecutor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					encodeRecipients(om, m, me, fullHash, messageKey, sequenceNumbers, from, to);
+					return null;
+				}
+			}));
+		}
+		//the calling thread does the first slice itself
+		Throwable failure = null;
+		try {
+			encodeRecipients(om, m, me, fullHash, messageKey, sequenceNumbers, 0, Math.min(n, per));
+		} catch (Throwable t) {
+			failure = t;
+		}
+		//wait for every slice, even after a failure, so nothing is still writing to m
+		boolean interrupted = false;
+		for (Future<Void> f : pending) {
+			for (;;) {
+				try {
+					f.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+					continue;
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause();
+					}
+				}
+				break;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (failure instanceof DiscardMessage) {
+			throw (DiscardMessage)failure;
+		} else if (failure instanceof NeedsKey) {
+			throw (NeedsKey)failure;
+		} else if (failure instanceof RuntimeException) {
+			throw (RuntimeException)failure;
+		} else if (failure instanceof Error) {
+			throw (Error)failure;
+		} else if (failure != null) {
+			throw new RuntimeException("recipient encoding failed", failure);
+		}
+	}
+
+	void encodeRecipients(OutgoingMessage om, Message m, IBHashedIdentity me, byte[] fullHash,
+			byte[] messageKey, TLongLongHashMap sequenceNumbers, int from, int to)
+			throws DiscardMessage, NeedsKey {
+		for(int i = from; i < to; ++i) {
+			IBHashedIdentity other;
+			try {
+				other = new IBHashedIdentity(m.r[i].i);
+			} catch (CorruptIdentity e) {
+				throw new RuntimeException("impossible situation on encode", e); 
+			}
+			MOutgoingSecret os = addOutgoingSecret(om.fromIdentity_, om.recipients_[i], me, other);
+			m.r[i].k = os.encryptedKey_;
+			m.r[i].s = os.signature_;
+			Secret s = new Secret();
+			s.h = fullHash;
+			s.k = messageKey;
+			s.q = sequenceNumbers.get(om.recipients_[i].id_);
+			m.r[i].d = encryptRecipientSecret(os, encodeSecret(s), m.i);
+		}
+	}
+
 	public MEncodedMessage processMessage(OutgoingMessage om) throws DiscardMessage, NeedsKey {
 		Message m = new Message();
 
@@ -225,7 +292,7 @@ public class MessageEncoder {
 			m.r[i].i = other.identity_;
 		}
 		
-	    assert(Arrays.equals(om.hash_, Util.sha256(om.data_)));
+	    assert(Arrays.equals(om.hash_, CryptoContext.get().sha256(om.data_)));
 	    byte[] full_hash = computeFullSignature(om.hash_, om.app_, om.blind_, m.r);
 
 	    mTdp.beginTransaction();
@@ -235,26 +302,11 @@ public class MessageEncoder {
 		}
 		mTdp.setTransactionSuccessful();
 		mTdp.endTransaction();
-		for(int i = 0; i < om.recipients_.length; ++i) {
-			IBHashedIdentity other;
-			try {
-				other = new IBHashedIdentity(m.r[i].i);
-			} catch (CorruptIdentity e) {
-				throw new RuntimeException("impossible situation on encode", e); 
-			}
-			MOutgoingSecret os = addOutgoingSecret(om.fromIdentity_, om.recipients_[i], me, other);
-			m.r[i].k = os.encryptedKey_;
-			m.r[i].s = os.signature_;
-			Secret s = new Secret();
-			s.h = full_hash;
-			s.k = message_key;
-			s.q = sequence_numbers.get(om.recipients_[i].id_);
-			m.r[i].d = encryptRecipientSecret(os, encodeSecret(s), m.i);
-		}
+		encodeRecipients(om, m, me, full_hash, message_key, sequence_numbers);
 		m.d = encryptBody(message_key, om.data_, m.i);
 		MEncodedMessage encoded = new MEncodedMessage();
 		encoded.encoded_ = encodeMessage(m);
-		encoded.hash_ = Util.sha256(encoded.encoded_);
+		encoded.hash_ = CryptoContext.get().sha256(encoded.encoded_);
      	encoded.processed_ = false;
 	    //this table is used to decide whetehr or not to bother decoding, and we want to dedupe stuff from ourself
 		encoded.fromIdentityId_ = om.fromIdentity_.id_;
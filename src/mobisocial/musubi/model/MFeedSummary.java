@@ -0,0 +1,49 @@
+/*
+ * Copyright 2012 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.musubi.model;
+
+/**
+ * The latest renderable object of each feed, as shown in the feed list.
+ * Maintained by the object pipeline so the list doesn't have to join
+ * against the objects table or parse json for every row.
+ */
+public class MFeedSummary {
+    public static final String TABLE = "feed_summary";
+
+    /* the feed this row summarizes, also the primary key */
+    public static final String COL_FEED_ID = "feed_id";
+
+    /* the object the summary was built from */
+    public static final String COL_OBJECT_ID = "object_id";
+
+    public static final String COL_TYPE = "type";
+
+    public static final String COL_SENDER_ID = "sender_id";
+
+    /* the text shown for the object, if the type has one */
+    public static final String COL_PREVIEW = "preview";
+
+    /* the object's json, only kept when there is no preview */
+    public static final String COL_JSON = "json";
+
+    public long feedId_;
+    public long objectId_;
+    public String type_;
+    public long senderId_;
+    public String preview_;
+    public String json_;
+}
@@ -75,6 +75,12 @@ public class MObject {
 
 	public static final String COL_PROCESSED = "processed";
 
+	/**
+	 * Reference into the {@link mobisocial.musubi.model.helpers.BlobStore}
+	 * for raw payloads too large to keep in the row.
+	 */
+	public static final String COL_RAW_HASH = "raw_hash";
+
 	public long id_;
 	public long feedId_;
     public long identityId_;
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2012 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.musubi.model;
+
+/**
+ * Full text index over the readable text of objects, an FTS3 table whose
+ * docid is the id of the indexed object.
+ */
+public class MObjectSearch {
+    public static final String TABLE = "object_search";
+
+    /* the object's id */
+    public static final String COL_DOCID = "docid";
+
+    public static final String COL_TEXT = "body";
+
+    /* query parameter holding the FTS match expression */
+    public static final String PARAM_QUERY = "q";
+
+    /* query parameter limiting the number of results */
+    public static final String PARAM_LIMIT = "limit";
+
+    /* result column with the matched text highlighted */
+    public static final String COL_SNIPPET = "snippet";
+
+    /* result column counting the matches in the object, higher is better */
+    public static final String COL_RANK = "rank";
+}
@@ -42,5 +42,7 @@ public class SKObjects {
         new ViewColumn(DbObj.COL_STRING_KEY, DbObj.TABLE),
         new ViewColumn(DbObj.COL_LAST_MODIFIED_TIMESTAMP, DbObj.TABLE),
         new ViewColumn(DbObj.COL_RENDERABLE, DbObj.TABLE),
+        /* set instead of raw when the payload is in the blob store */
+        new ViewColumn(MObject.COL_RAW_HASH, DbObj.TABLE),
     };
 }
@@ -36,7 +36,6 @@ public class AppManager extends ManagerBase {
     SQLiteStatement mSqlInsertApp;
     SQLiteStatement mSqlUpdateApp;
 	SQLiteStatement mSqlInsertAppAction;
-    String mSqlLookupAppByAppId;
 
     static final String[] STANDARD_FIELDS = new String[] { 
         MApp.COL_ID, MApp.COL_APP_ID, MApp.COL_NAME, MApp.COL_ANDROID_PACKAGE, MApp.COL_WEB_APP_URL, MApp.COL_DELETED
@@ -49,6 +48,32 @@ public class AppManager extends ManagerBase {
     final static int webAppUrl = 4;
     final static int deleted = 5;
 
+    static final String SQL_APP_FOR_ID = select(STANDARD_FIELDS, MApp.TABLE, MApp.COL_ID + "=?");
+    static final String SQL_APP_FOR_APP_ID = select(STANDARD_FIELDS, MApp.TABLE, MApp.COL_APP_ID + "=?");
+
+    static final RowMapper<MApp> APP_MAPPER = new RowMapper<MApp>() {
+        @Override
+        public MApp map(Cursor c) {
+            MApp app = new MApp();
+            app.id_ = c.getLong(id);
+
+            if (!c.isNull(appId)) {
+                app.appId_ = c.getString(appId);
+            }
+            if (!c.isNull(name)) {
+                app.name_ = c.getString(name);
+            }
+            if (!c.isNull(androidPackage)) {
+                app.androidPackage_ = c.getString(androidPackage);
+            }
+            if (!c.isNull(webAppUrl)) {
+                app.webAppUrl_ = c.getString(webAppUrl);
+            }
+            app.deleted_ = c.getInt(deleted) != 0;
+            return app;
+        }
+    };
+
     public AppManager(SQLiteDatabase db) {
         super(db);
     }
@@ -180,78 +205,18 @@ public class AppManager extends ManagerBase {
      * null if no such app.
      */
     public MApp lookupApp(long appId) {
-        SQLiteDatabase db = initializeDatabase();
-        String table = MApp.TABLE;
-        String selection = MApp.COL_ID + "=?";
-        String[] selectionArgs = new String[] { Long.toString(appId) };
-        String groupBy = null, having = null, orderBy = null;
-        Cursor c = db.query(table, STANDARD_FIELDS, selection, selectionArgs, groupBy, having, orderBy);
-        try {
-            if (c.moveToFirst()) {
-                // Existing app
-                MApp app = new MApp();
-                app.id_ = appId;
-
-                if (!c.isNull(AppManager.appId)) {
-                    app.appId_ = c.getString(AppManager.appId);
-                }
-                if (!c.isNull(name)) {
-                    app.name_ = c.getString(name);
-                }
-                if (!c.isNull(androidPackage)) {
-                    app.androidPackage_ = c.getString(androidPackage);
-                }
-                if (!c.isNull(webAppUrl)) {
-                    app.webAppUrl_ = c.getString(webAppUrl);
-                }
-                app.deleted_ = c.getInt(deleted) != 0;
-                return app;
-            } else {
-                return null;
-            }
-        } finally {
-            c.close();
+        BoundQuery query = getQuery(SQL_APP_FOR_ID);
+        synchronized (query) {
+            query.bindLong(1, appId);
+            return query.queryOne(initializeDatabase(), APP_MAPPER);
         }
     }
 
     public MApp lookupAppByAppId(String appId) {
-        SQLiteDatabase db = initializeDatabase();
-        if (mSqlLookupAppByAppId == null) {
-        	StringBuilder sql = new StringBuilder(80).append("SELECT ");
-        	for (String f : STANDARD_FIELDS) {
-        		sql.append(f).append(",");
-        	}
-        	sql.setLength(sql.length()-1);
-        	sql.append(" FROM ").append(MApp.TABLE)
-        		.append(" WHERE ").append(MApp.COL_APP_ID).append("=?");
-        	mSqlLookupAppByAppId = sql.toString();
-        }
-        String[] selectionArgs = new String[] { appId };
-        Cursor c = db.rawQuery(mSqlLookupAppByAppId, selectionArgs);
-        try {
-            if (c.moveToFirst()) {
-                MApp app = new MApp();
-                app.id_ = c.getLong(AppManager.id);
-
-                if (!c.isNull(AppManager.appId)) {
-                    app.appId_ = c.getString(AppManager.appId);
-                }
-                if (!c.isNull(name)) {
-                    app.name_ = c.getString(name);
-                }
-                if (!c.isNull(androidPackage)) {
-                    app.androidPackage_ = c.getString(androidPackage);
-                }
-                if (!c.isNull(webAppUrl)) {
-                    app.webAppUrl_ = c.getString(webAppUrl);
-                }
-                app.deleted_ = c.getInt(deleted) != 0;
-                return app;
-            } else {
-                return null;
-            }
-        } finally {
-            c.close();
+        BoundQuery query = getQuery(SQL_APP_FOR_APP_ID);
+        synchronized (query) {
+            query.bindObject(1, appId);
+            return query.queryOne(initializeDatabase(), APP_MAPPER);
         }
     }
 
@@ -381,6 +346,7 @@ public class AppManager extends ManagerBase {
 
     @Override
     public synchronized void close() {
+    	closeCachedStatements();
     	if (mSqlGetId != null) {
     		mSqlGetId.close();
     		mSqlGetId = null;
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2012 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.musubi.model.helpers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Set;
+
+import mobisocial.musubi.util.Util;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+/**
+ * Keeps large object payloads as files outside of the database.  Files are
+ * named by the sha256 of their contents, so the same picture posted to
+ * several feeds is only stored once, and a row only needs to hold the hash.
+ *
+ * The store does not count references itself.  The {@link ObjectManager}
+ * asks it to release a blob once no row refers to it, and
+ * {@link #retainAll(Set)} sweeps up anything that was missed.
+ */
+public class BlobStore {
+	public static final String TAG = "BlobStore";
+
+	/**
+	 * Payloads up to this size stay in the row.  Thumbnails and the like are
+	 * cheaper to read inline than to open a file for.
+	 */
+	public static final int INLINE_LIMIT = 16 * 1024;
+
+	/**
+	 * A blob written this recently may belong to a row that is still being
+	 * inserted, so it is never collected.
+	 */
+	static final long GRACE_PERIOD = 60 * 1000;
+
+	final File mDirectory;
+
+	public BlobStore(File directory) {
+		mDirectory = directory;
+	}
+
+	public File getDirectory() {
+		return mDirectory;
+	}
+
+	/**
+	 * Stores the data if it is not already present and returns its reference.
+	 */
+	public byte[] put(byte[] data) throws IOException {
+		byte[] ref = Util.sha256(data);
+		File file = fileFor(ref);
+		synchronized (this) {
+			if (file.exists()) {
+				//refresh it so a concurrent sweep leaves it alone
+				file.setLastModified(System.currentTimeMillis());
+				return ref;
+			}
+			File parent = file.getParentFile();
+			if (!parent.isDirectory() && !parent.mkdirs()) {
+				throw new IOException("could not create " + parent);
+			}
+			File tmp = new File(parent, file.getName() + ".tmp");
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				out.write(data);
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				throw new IOException("could not store blob " + file);
+			}
+		}
+		return ref;
+	}
+
+	/**
+	 * Reads a whole blob, or returns null if it is missing.
+	 */
+	public byte[] get(byte[] ref) {
+		File file = fileFor(ref);
+		try {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				byte[] data = new byte[(int)file.length()];
+				int read = 0;
+				while (read < data.length) {
+					int r = in.read(data, read, data.length - read);
+					if (r < 0) {
+						throw new IOException("blob truncated " + file);
+					}
+					read += r;
+				}
+				return data;
+			} finally {
+				in.close();
+			}
+		} catch (FileNotFoundException e) {
+			Log.w(TAG, "missing blob " + file);
+			return null;
+		} catch (IOException e) {
+			Log.e(TAG, "failed to read blob " + file, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Opens a blob for streaming, or returns null if it is missing.
+	 */
+	public ParcelFileDescriptor open(byte[] ref) {
+		try {
+			return ParcelFileDescriptor.open(fileFor(ref), ParcelFileDescriptor.MODE_READ_ONLY);
+		} catch (FileNotFoundException e) {
+			Log.w(TAG, "missing blob " + Util.convertToHex(ref));
+			return null;
+		}
+	}
+
+	public boolean contains(byte[] ref) {
+		return fileFor(ref).exists();
+	}
+
+	/**
+	 * Deletes a blob that no row refers to any more.
+	 */
+	public synchronized boolean release(byte[] ref) {
+		File file = fileFor(ref);
+		if (System.currentTimeMillis() - file.lastModified() < GRACE_PERIOD) {
+			return false;
+		}
+		return file.delete();
+	}
+
+	/**
+	 * Deletes every blob whose name is not in the referenced set.
+	 * @return the number of blobs deleted
+	 */
+	public synchronized int retainAll(Set<String> referenced) {
+		int deleted = 0;
+		long now = System.currentTimeMillis();
+		File[] buckets = mDirectory.listFiles();
+		if (buckets == null) {
+			return 0;
+		}
+		for (File bucket : buckets) {
+			File[] files = bucket.listFiles();
+			if (files == null) {
+				continue;
+			}
+			for (File file : files) {
+				if (referenced.contains(file.getName())) {
+					continue;
+				}
+				if (now - file.lastModified() < GRACE_PERIOD) {
+					continue;
+				}
+				if (file.delete()) {
+					deleted++;
+				}
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Copies the blobs in this store that the destination does not have yet.
+	 * Used to carry the store along with database backups.
+	 */
+	public int copyTo(File destination) throws IOException {
+		return copyMissing(mDirectory, destination);
+	}
+
+	/**
+	 * Brings in the blobs from a backed up store that this one does not have.
+	 */
+	public int copyFrom(File source) throws IOException {
+		return copyMissing(source, mDirectory);
+	}
+
+	/**
+	 * Removes the store and everything in it.
+	 */
+	public synchronized void destroy() {
+		File[] buckets = mDirectory.listFiles();
+		if (buckets != null) {
+			for (File bucket : buckets) {
+				File[] files = bucket.listFiles();
+				if (files != null) {
+					for (File file : files) {
+						file.delete();
+					}
+				}
+				bucket.delete();
+			}
+		}
+		mDirectory.delete();
+	}
+
+	public File fileFor(byte[] ref) {
+		String name = Util.convertToHex(ref);
+		return new File(new File(mDirectory, name.substring(0, 2)), name);
+	}
+
+	static int copyMissing(File from, File to) throws IOException {
+		int copied = 0;
+		File[] buckets = from.listFiles();
+		if (buckets == null) {
+			return 0;
+		}
+		for (File bucket : buckets) {
+			File[] files = bucket.listFiles();
+			if (files == null) {
+				continue;
+			}
+			File target = new File(to, bucket.getName());
+			for (File file : files) {
+				File dst = new File(target, file.getName());
+				if (file.getName().endsWith(".tmp") || dst.exists()) {
+					continue;
+				}
+				target.mkdirs();
+				FileInputStream in = new FileInputStream(file);
+				FileOutputStream out = new FileOutputStream(dst);
+				try {
+					Util.copy(in, out);
+				} finally {
+					in.close();
+					out.close();
+				}
+				copied++;
+			}
+		}
+		return copied;
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2012 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.musubi.model.helpers;
+
+import java.util.Arrays;
+
+import mobisocial.musubi.model.MIncomingSecret;
+import mobisocial.musubi.model.MOutgoingSecret;
+import android.support.v4.util.LruCache;
+
+/**
+ * A bounded in-memory cache of channel secrets that sits in front of the
+ * incoming and outgoing secret tables.  Channel secrets are never modified once
+ * they are written, so entries only ever need to be added.
+ * 
+ * Cached secrets are shared between callers and must not be modified.
+ */
+public class ChannelSecretCache {
+	static final int DEFAULT_CAPACITY = 512;
+
+	final LruCache<Key, MOutgoingSecret> mOutgoing;
+	final LruCache<Key, MIncomingSecret> mIncoming;
+	int mOutgoingHits;
+	int mOutgoingMisses;
+	int mIncomingHits;
+	int mIncomingMisses;
+
+	public ChannelSecretCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public ChannelSecretCache(int capacity) {
+		mOutgoing = new LruCache<Key, MOutgoingSecret>(capacity);
+		mIncoming = new LruCache<Key, MIncomingSecret>(capacity);
+	}
+
+	public MOutgoingSecret getOutgoing(long myIdentityId, long otherIdentityId, long encryptionWhen, long signatureWhen) {
+		MOutgoingSecret os = mOutgoing.get(new Key(myIdentityId, otherIdentityId, -1, encryptionWhen, signatureWhen));
+		synchronized (this) {
+			if (os == null) {
+				mOutgoingMisses++;
+			} else {
+				mOutgoingHits++;
+			}
+		}
+		return os;
+	}
+
+	public void putOutgoing(MOutgoingSecret os) {
+		mOutgoing.put(new Key(os.myIdentityId_, os.otherIdentityId_, -1, os.encryptionWhen_, os.signatureWhen_), os);
+	}
+
+	/**
+	 * Returns the cached secret for the channel if it was signed with the given
+	 * signature.  A channel may have several secrets with different signatures,
+	 * but only the most recently used one is kept.
+	 */
+	public MIncomingSecret getIncoming(long myIdentityId, long otherIdentityId, long deviceId,
+			long encryptionWhen, long signatureWhen, byte[] signature) {
+		MIncomingSecret is = mIncoming.get(new Key(myIdentityId, otherIdentityId, deviceId, encryptionWhen, signatureWhen));
+		if (is != null && !Arrays.equals(signature, is.signature_)) {
+			is = null;
+		}
+		synchronized (this) {
+			if (is == null) {
+				mIncomingMisses++;
+			} else {
+				mIncomingHits++;
+			}
+		}
+		return is;
+	}
+
+	public void putIncoming(MIncomingSecret is) {
+		mIncoming.put(new Key(is.myIdentityId_, is.otherIdentityId_, is.deviceId_, is.encryptionWhen_, is.signatureWhen_), is);
+	}
+
+	public void clear() {
+		mOutgoing.evictAll();
+		mIncoming.evictAll();
+	}
+
+	public synchronized int getOutgoingHits() {
+		return mOutgoingHits;
+	}
+
+	public synchronized int getOutgoingMisses() {
+		return mOutgoingMisses;
+	}
+
+	public synchronized int getIncomingHits() {
+		return mIncomingHits;
+	}
+
+	public synchronized int getIncomingMisses() {
+		return mIncomingMisses;
+	}
+
+	private static int percent(int hits, int misses) {
+		int total = hits + misses;
+		return total == 0 ? 0 : (100 * hits / total);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("ChannelSecretCache[outgoing hits=%d,misses=%d,hitRate=%d%%,size=%d; " +
+				"incoming hits=%d,misses=%d,hitRate=%d%%,size=%d]",
+				mOutgoingHits, mOutgoingMisses, percent(mOutgoingHits, mOutgoingMisses), mOutgoing.size(),
+				mIncomingHits, mIncomingMisses, percent(mIncomingHits, mIncomingMisses), mIncoming.size());
+	}
+
+	static final class Key {
+		final long mMyIdentityId;
+		final long mOtherIdentityId;
+		final long mDeviceId;
+		final long mEncryptionWhen;
+		final long mSignatureWhen;
+
+		Key(long myIdentityId, long otherIdentityId, long deviceId, long encryptionWhen, long signatureWhen) {
+			mMyIdentityId = myIdentityId;
+			mOtherIdentityId = otherIdentityId;
+			mDeviceId = deviceId;
+			mEncryptionWhen = encryptionWhen;
+			mSignatureWhen = signatureWhen;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key)o;
+			return mMyIdentityId == k.mMyIdentityId && mOtherIdentityId == k.mOtherIdentityId &&
+					mDeviceId == k.mDeviceId && mEncryptionWhen == k.mEncryptionWhen &&
+					mSignatureWhen == k.mSignatureWhen;
+		}
+
+		@Override
+		public int hashCode() {
+			long h = mMyIdentityId;
+			h = 31 * h + mOtherIdentityId;
+			h = 31 * h + mDeviceId;
+			h = 31 * h + mEncryptionWhen;
+			h = 31 * h + mSignatureWhen;
+			return (int)(h ^ (h >>> 32));
+		}
+	}
+}
@@ -16,6 +16,7 @@
 
 package mobisocial.musubi.model.helpers;
 import java.io.File;
+import java.io.IOException;
 
 import mobisocial.crypto.IBIdentity;
 import mobisocial.musubi.BootstrapActivity;
@@ -35,12 +36,14 @@ import mobisocial.musubi.model.MFeed;
 import mobisocial.musubi.model.MFeed.FeedType;
 import mobisocial.musubi.model.MFeedApp;
 import mobisocial.musubi.model.MFeedMember;
+import mobisocial.musubi.model.MFeedSummary;
 import mobisocial.musubi.model.MIdentity;
 import mobisocial.musubi.model.MIncomingSecret;
 import mobisocial.musubi.model.MMissingMessage;
 import mobisocial.musubi.model.MMyAccount;
 import mobisocial.musubi.model.MMyDeviceName;
 import mobisocial.musubi.model.MObject;
+import mobisocial.musubi.model.MObjectSearch;
 import mobisocial.musubi.model.MOutgoingSecret;
 import mobisocial.musubi.model.MPendingIdentity;
 import mobisocial.musubi.model.MPendingUpload;
@@ -50,9 +53,12 @@ import mobisocial.musubi.model.MSyncState;
 import mobisocial.musubi.model.SKFeedMembers;
 import mobisocial.musubi.model.SKIdentities;
 import mobisocial.musubi.model.SKObjects;
+import mobisocial.musubi.obj.ObjHelpers;
 import mobisocial.musubi.service.WizardStepHandler;
 import mobisocial.musubi.util.Util;
 
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.mobisocial.corral.ContentCorral;
 
 import android.app.AlertDialog;
@@ -81,12 +87,14 @@ public class DatabaseFile extends SQLiteOpenHelper {
 
 	public static final String DEFAULT_DATABASE_NAME = "MUSUBI.db";
 
-	public static final int VERSION = 24;
+	public static final int VERSION = 30;
 	public static final int SIZE_LIMIT = 480 * 1024;
 	private BootstrapActivity mBootstrapActivity = null;
 	private static boolean sDowngradeAlertUp = false;
 	private boolean mDatabaseInitialized;
 	private Context mContext;
+	private final BlobStore mBlobStore;
+	private final boolean mInMemory;
 
 	public DatabaseFile(Context context) {
 		this(context, handleRestore(context, DEFAULT_DATABASE_NAME));
@@ -108,6 +116,9 @@ public class DatabaseFile extends SQLiteOpenHelper {
 		    	}
 		    }, 
 		    VERSION);
+		mContext = context;
+		mBlobStore = new BlobStore(blobDirectory(context, dbName));
+		mInMemory = dbName == null;
 	}
 
 	@Override
@@ -133,8 +144,38 @@ public class DatabaseFile extends SQLiteOpenHelper {
 
 	public DatabaseFile(Context context, String dbName, SQLiteDatabase.CursorFactory factory) {
         super(context, handleRestore(context, dbName), factory, VERSION);
+        mContext = context;
+        mBlobStore = new BlobStore(blobDirectory(context, dbName));
+        mInMemory = dbName == null;
     }
 
+	/**
+	 * Large object payloads for this database live here instead of in
+	 * the objects table.
+	 */
+	public BlobStore getBlobStore() {
+		return mBlobStore;
+	}
+
+	/**
+	 * The blob directory sits next to the database file.  In-memory
+	 * databases get a private directory that is removed when they close.
+	 */
+	public static File blobDirectory(Context context, String dbName) {
+		if (dbName == null) {
+			return new File(context.getCacheDir(), "blobs-" + System.nanoTime());
+		}
+		return new File(context.getDatabasePath(dbName).getPath() + "-blobs");
+	}
+
+	@Override
+	public synchronized void close() {
+		super.close();
+		if (mInMemory) {
+			mBlobStore.destroy();
+		}
+	}
+
 	private static String handleRestore(Context context, String dbName) {
 		if(dbName == null)
 			return dbName;
@@ -370,11 +411,124 @@ public class DatabaseFile extends SQLiteOpenHelper {
         }
 
         if (oldVersion <= 24) {
+        	db.execSQL("ALTER TABLE " + MObject.TABLE + " ADD COLUMN " + MObject.COL_RAW_HASH + " BLOB");
+        	db.execSQL("CREATE INDEX " + MObject.TABLE + "_raw_hash ON " + MObject.TABLE + "(" +
+        			MObject.COL_RAW_HASH + ")");
+        	moveRawToBlobStore(db);
+        }
+
+        if (oldVersion <= 25) {
+        	createFeedSummaryTable(db);
+        	// no previews for the old rows, the feed list falls back to the json
+        	db.execSQL("INSERT INTO " + MFeedSummary.TABLE + "(" +
+        			MFeedSummary.COL_FEED_ID + "," + MFeedSummary.COL_OBJECT_ID + "," +
+        			MFeedSummary.COL_TYPE + "," + MFeedSummary.COL_SENDER_ID + "," +
+        			MFeedSummary.COL_JSON + ") SELECT " +
+        			MFeed.TABLE + "." + MFeed.COL_ID + "," + MObject.TABLE + "." + MObject.COL_ID + "," +
+        			MObject.COL_TYPE + "," + MObject.COL_IDENTITY_ID + "," + MObject.COL_JSON +
+        			" FROM " + MFeed.TABLE + " JOIN " + MObject.TABLE + " ON " +
+        			MFeed.TABLE + "." + MFeed.COL_LATEST_RENDERABLE_OBJ_ID + "=" +
+        			MObject.TABLE + "." + MObject.COL_ID);
+        }
+
+        if (oldVersion <= 26) {
+        	createObjectSearchTable(db);
+        	indexSearchText(db);
+        }
+
+        if (oldVersion <= 27) {
+        	db.execSQL("CREATE INDEX " + MObject.TABLE + "_by_feed ON " + MObject.TABLE + "(" +
+        			MObject.COL_FEED_ID + "," + MObject.COL_RENDERABLE + ")");
+        }
+
+        if (oldVersion <= 28) {
+        	createTopDeletionTracking(db);
+        }
+
+        if (oldVersion <= 29) {
+        	// the objects view carries raw_hash
+        	createSocialKitViews(db);
+        }
+
+        if (oldVersion <= 30) {
         	// etc
         }
         db.setVersion(VERSION);
     }
 
+    /**
+     * Moves large raw payloads out of the objects table.  A failed upgrade
+     * can leave behind blobs that no row points to; the next garbage
+     * collection pass removes them.
+     */
+    private void moveRawToBlobStore(SQLiteDatabase db) {
+    	Cursor c = db.query(MObject.TABLE, new String[] { MObject.COL_ID },
+    			"length(" + MObject.COL_RAW + ") > " + BlobStore.INLINE_LIMIT, null, null, null, null);
+    	long[] ids;
+    	try {
+    		ids = new long[c.getCount()];
+    		for (int i = 0; c.moveToNext(); ++i) {
+    			ids[i] = c.getLong(0);
+    		}
+    	} finally {
+    		c.close();
+    	}
+    	Log.w(TAG, "moving " + ids.length + " raw payloads to " + mBlobStore.getDirectory());
+
+    	ContentValues cv = new ContentValues();
+    	for (long id : ids) {
+    		String[] args = new String[] { Long.toString(id) };
+    		c = db.query(MObject.TABLE, new String[] { MObject.COL_RAW },
+    				MObject.COL_ID + "=?", args, null, null, null);
+    		byte[] raw;
+    		try {
+    			if (!c.moveToFirst()) {
+    				continue;
+    			}
+    			raw = c.getBlob(0);
+    		} finally {
+    			c.close();
+    		}
+    		try {
+    			cv.clear();
+    			cv.putNull(MObject.COL_RAW);
+    			cv.put(MObject.COL_RAW_HASH, mBlobStore.put(raw));
+    			db.update(MObject.TABLE, cv, MObject.COL_ID + "=?", args);
+    		} catch (IOException e) {
+    			//leave it in the row, it can still be read from there
+    			Log.e(TAG, "failed to move raw for object " + id, e);
+    		}
+    	}
+    }
+
+    /**
+     * Fills the search index from the objects already in the database.
+     */
+    private void indexSearchText(SQLiteDatabase db) {
+    	Cursor c = db.query(MObject.TABLE, new String[] { MObject.COL_ID, MObject.COL_TYPE, MObject.COL_JSON },
+    			MObject.COL_RENDERABLE + "=1 AND " + MObject.COL_JSON + " IS NOT NULL", null, null, null, null);
+    	ContentValues cv = new ContentValues();
+    	try {
+    		while (c.moveToNext()) {
+    			String text;
+    			try {
+    				text = ObjHelpers.getSearchText(c.getString(1), new JSONObject(c.getString(2)));
+    			} catch (JSONException e) {
+    				continue;
+    			}
+    			if (text == null) {
+    				continue;
+    			}
+    			cv.clear();
+    			cv.put(MObjectSearch.COL_DOCID, c.getLong(0));
+    			cv.put(MObjectSearch.COL_TEXT, text);
+    			db.insert(MObjectSearch.TABLE, null, cv);
+    		}
+    	} finally {
+    		c.close();
+    	}
+    }
+
     private void createTable(SQLiteDatabase db, String tableName, String... cols){
         assert cols.length % 2 == 0;
         String s = "CREATE TABLE " + tableName + " (";
@@ -518,7 +672,8 @@ public class DatabaseFile extends SQLiteOpenHelper {
                 MObject.COL_ENCODED_ID, "INTEGER",
                 MObject.COL_DELETED, "INTEGER DEFAULT 0",
                 MObject.COL_RENDERABLE, "INTEGER DEFAULT 0",
-                MObject.COL_PROCESSED, "INTEGER NOT NULL");
+                MObject.COL_PROCESSED, "INTEGER NOT NULL",
+                MObject.COL_RAW_HASH, "BLOB");
         
         //query by short universal hash need to be fast
         db.execSQL("CREATE INDEX " + MObject.TABLE + "_lookup ON " + MObject.TABLE + "(" + 
@@ -536,6 +691,12 @@ public class DatabaseFile extends SQLiteOpenHelper {
         // Finding unprocessed objects should be fast
         db.execSQL("CREATE INDEX " + MObject.TABLE + "_processed ON " + MObject.TABLE + "(" +
                 MObject.COL_PROCESSED + ")");
+        // Checking whether anything still refers to a blob should be fast
+        db.execSQL("CREATE INDEX " + MObject.TABLE + "_raw_hash ON " + MObject.TABLE + "(" +
+                MObject.COL_RAW_HASH + ")");
+        // Paging through a feed by object id should not need a sort
+        db.execSQL("CREATE INDEX " + MObject.TABLE + "_by_feed ON " + MObject.TABLE + "(" +
+                MObject.COL_FEED_ID + "," + MObject.COL_RENDERABLE + ")");
 
         createTable(db, MApp.TABLE,
                 MApp.COL_ID, "INTEGER PRIMARY KEY",
@@ -737,6 +898,9 @@ public class DatabaseFile extends SQLiteOpenHelper {
         createUserAttributesTable(db);
         createObjCacheBaseTable(db);
         createLikeCacheBaseTable(db);
+        createFeedSummaryTable(db);
+        createObjectSearchTable(db);
+        createTopDeletionTracking(db);
 
         createSocialKitViews(db);
 
@@ -897,6 +1061,31 @@ public class DatabaseFile extends SQLiteOpenHelper {
         createIndex(db, "INDEX", "obj_cache_latest", DbObjCache.TABLE, DbObjCache.PARENT_OBJ);
     }
 
+	private final void createFeedSummaryTable(SQLiteDatabase db) {
+        createTable(db, MFeedSummary.TABLE,
+                MFeedSummary.COL_FEED_ID, "INTEGER PRIMARY KEY",
+                MFeedSummary.COL_OBJECT_ID, "INTEGER NOT NULL",
+                MFeedSummary.COL_TYPE, "TEXT NOT NULL",
+                MFeedSummary.COL_SENDER_ID, "INTEGER NOT NULL",
+                MFeedSummary.COL_PREVIEW, "TEXT",
+                MFeedSummary.COL_JSON, "TEXT"
+                );
+    }
+
+	private final void createObjectSearchTable(SQLiteDatabase db) {
+		db.execSQL("CREATE VIRTUAL TABLE " + MObjectSearch.TABLE + " USING fts3(" +
+				MObjectSearch.COL_TEXT + ")");
+	}
+
+	private final void createTopDeletionTracking(SQLiteDatabase db) {
+		createTable(db, PendingWorkScanner.DELETIONS_TABLE,
+				PendingWorkScanner.COL_TABLE, "TEXT PRIMARY KEY",
+				PendingWorkScanner.COL_GENERATION, "INTEGER NOT NULL"
+				);
+		PendingWorkScanner.createDeletionTrigger(db, MObject.TABLE, MObject.COL_ID);
+		PendingWorkScanner.createDeletionTrigger(db, MEncodedMessage.TABLE, MEncodedMessage.COL_ID);
+	}
+
 	private final void createLikeCacheBaseTable(SQLiteDatabase db) {
         createTable(db, DbLikeCache.TABLE,
                 DbLikeCache._ID, "INTEGER PRIMARY KEY",
@@ -32,6 +32,29 @@ public class DeviceManager extends ManagerBase {
 	SQLiteStatement sqlGetDeviceId_;
 	Long mMyDeviceName = null;
 
+	static final String[] STANDARD_FIELDS = new String[] {
+		MDevice.COL_ID,
+		MDevice.COL_DEVICE_NAME,
+		MDevice.COL_IDENTITY_ID,
+		MDevice.COL_MAX_SEQUENCE_NUMBER
+	};
+	static final String SQL_DEVICE_FOR_ID = select(STANDARD_FIELDS, MDevice.TABLE,
+			MDevice.COL_ID + "=?");
+	static final String SQL_DEVICE_FOR_NAME = select(STANDARD_FIELDS, MDevice.TABLE,
+			MDevice.COL_IDENTITY_ID + "=? AND " + MDevice.COL_DEVICE_NAME + "=?");
+
+	static final RowMapper<MDevice> DEVICE_MAPPER = new RowMapper<MDevice>() {
+		@Override
+		public MDevice map(Cursor c) {
+			MDevice dev = new MDevice();
+			dev.id_ = c.getLong(0);
+			dev.deviceName_ = c.getLong(1);
+			dev.identityId_ = c.getLong(2);
+			dev.maxSequenceNumber_ = c.getLong(3);
+			return dev;
+		}
+	};
+
     public DeviceManager(SQLiteOpenHelper databaseSource) {
         super(databaseSource);
     }
@@ -59,31 +82,10 @@ public class DeviceManager extends ManagerBase {
 	}
 	
 	public MDevice getDeviceForId(long id) {
-		SQLiteDatabase db = initializeDatabase();
-		Cursor c = db.query(MDevice.TABLE,
-			new String[] {
-				MDevice.COL_DEVICE_NAME,
-				MDevice.COL_IDENTITY_ID,
-				MDevice.COL_MAX_SEQUENCE_NUMBER
-			},
-			MDevice.COL_ID + "=?",
-			new String[] { 
-				String.valueOf(id),
-			},
-			null, null, null
-		);
-		try {
-			while(c.moveToNext()) {
-				MDevice dev = new MDevice();
-				dev.id_ = id;
-				dev.deviceName_ = c.getLong(0);
-				dev.identityId_ = c.getLong(1);
-				dev.maxSequenceNumber_ = c.getLong(2);
-				return dev;
-			}
-			return null;
-		} finally {
-			c.close();
+		BoundQuery query = getQuery(SQL_DEVICE_FOR_ID);
+		synchronized (query) {
+			query.bindLong(1, id);
+			return query.queryOne(initializeDatabase(), DEVICE_MAPPER);
 		}
 	}
 
@@ -121,34 +123,12 @@ public class DeviceManager extends ManagerBase {
     }
 
 	public MDevice getDeviceForName(long identityId, long deviceName) {
-		SQLiteDatabase db = initializeDatabase();
-		Cursor c = db.query(MDevice.TABLE,
-			new String[] {
-				MDevice.COL_ID,
-				MDevice.COL_MAX_SEQUENCE_NUMBER
-			},
-			MDevice.COL_IDENTITY_ID + "=? AND " + MDevice.COL_DEVICE_NAME + "=?",
-			new String[] { 
-				String.valueOf(identityId),
-				String.valueOf(deviceName),
-			},
-			null, null, null
-		);
-		try {
-			c.moveToFirst();
-			if(!c.isAfterLast()) {
-				MDevice dev = new MDevice();
-				dev.id_ = c.getLong(0);
-				dev.deviceName_ = deviceName;
-				dev.identityId_ = identityId;
-				dev.maxSequenceNumber_ = c.getLong(1);
-				return dev;
-			}
-			return null;
-		} finally {
-			c.close();
+		BoundQuery query = getQuery(SQL_DEVICE_FOR_NAME);
+		synchronized (query) {
+			query.bindLong(1, identityId);
+			query.bindLong(2, deviceName);
+			return query.queryOne(initializeDatabase(), DEVICE_MAPPER);
 		}
-		
 	}
 	
 	public void insertDevice(MDevice dev) {
@@ -178,6 +158,7 @@ public class DeviceManager extends ManagerBase {
 
 	@Override
 	public synchronized void close() {
+		closeCachedStatements();
 		if (sqlInsertDevice_ != null) {
 			sqlInsertDevice_.close();
 			sqlInsertDevice_ = null;
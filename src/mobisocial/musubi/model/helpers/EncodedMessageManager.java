@@ -32,9 +32,58 @@ public class EncodedMessageManager extends ManagerBase {
 	SQLiteStatement sqlUpdateEncoded_;
 	SQLiteStatement mSqlGetEncodedIdByHash;
 	SQLiteStatement mSqlGetFeedIdForEncoded;
-	String mSqlGetMetadataById;
+	SQLiteStatement mSqlMarkSent;
 	String mSqlObjectsToDecode;
-	String mSqlGetEncodedDataById;
+
+	/*
+	 * The encoded payload comes last so the metadata lookup can leave it
+	 * out and share the mapper.
+	 */
+	static final String[] STANDARD_FIELDS = new String[] {
+		MEncodedMessage.COL_ID,
+		MEncodedMessage.COL_SENDER,
+		MEncodedMessage.COL_DEVICE_ID,
+		MEncodedMessage.COL_SHORT_HASH,
+		MEncodedMessage.COL_HASH,
+		MEncodedMessage.COL_OUTBOUND,
+		MEncodedMessage.COL_PROCESSED,
+		MEncodedMessage.COL_PROCESSED_TIME,
+		MEncodedMessage.COL_ENCODED
+	};
+	static final String[] METADATA_FIELDS = new String[] {
+		MEncodedMessage.COL_ID,
+		MEncodedMessage.COL_SENDER,
+		MEncodedMessage.COL_DEVICE_ID,
+		MEncodedMessage.COL_SHORT_HASH,
+		MEncodedMessage.COL_HASH,
+		MEncodedMessage.COL_OUTBOUND,
+		MEncodedMessage.COL_PROCESSED,
+		MEncodedMessage.COL_PROCESSED_TIME,
+		"NULL"
+	};
+	static final String SQL_ENCODED_FOR_ID = select(STANDARD_FIELDS, MEncodedMessage.TABLE,
+			MEncodedMessage.COL_ID + "=?");
+	static final String SQL_METADATA_FOR_ID = select(METADATA_FIELDS, MEncodedMessage.TABLE,
+			MEncodedMessage.COL_ID + "=?");
+	static final String SQL_ENCODED_DATA_FOR_ID = select(new String[] { MEncodedMessage.COL_ENCODED },
+			MEncodedMessage.TABLE, MEncodedMessage.COL_ID + "=?");
+
+	static final RowMapper<MEncodedMessage> ENCODED_MAPPER = new RowMapper<MEncodedMessage>() {
+		@Override
+		public MEncodedMessage map(Cursor c) {
+			MEncodedMessage encoded = new MEncodedMessage();
+			encoded.id_ = c.getLong(0);
+			encoded.fromIdentityId_ = c.isNull(1) ? null : c.getLong(1);
+			encoded.fromDevice_ = c.isNull(2) ? null : c.getLong(2);
+			encoded.shortHash_ = c.isNull(3) ? null : c.getLong(3);
+			encoded.hash_ = c.getBlob(4);
+			encoded.outbound_ = c.getInt(5) != 0;
+			encoded.processed_ = c.getInt(6) != 0;
+			encoded.processedTime_ = c.getLong(7);
+			encoded.encoded_ = c.getBlob(8);
+			return encoded;
+		}
+	};
 
     public EncodedMessageManager(SQLiteOpenHelper databaseSource) {
         super(databaseSource);
@@ -141,99 +190,66 @@ public class EncodedMessageManager extends ManagerBase {
 		}
 	}
 
-	public byte[] lookupEncodedDataById(long id) {
-		if (mSqlGetEncodedDataById == null) {
-			StringBuilder sql = new StringBuilder(80);
-			sql.append("SELECT ").append(MEncodedMessage.COL_ENCODED)
-				.append(" FROM ").append(MEncodedMessage.TABLE)
-				.append(" WHERE ").append(MEncodedMessage.COL_ID).append("=?");
-			mSqlGetEncodedDataById = sql.toString();
+	/**
+	 * Marks a run of confirmed outbound messages as processed in a single
+	 * transaction.
+	 */
+	public void markOutboundSent(long[] ids, long processedTime) {
+		if(ids.length == 0) {
+			return;
 		}
 		SQLiteDatabase db = initializeDatabase();
-		Cursor c = db.rawQuery(mSqlGetEncodedDataById, new String[] { Long.toString(id) });
+		if(mSqlMarkSent == null) {
+			synchronized (this) {
+				if(mSqlMarkSent == null) {
+					mSqlMarkSent = db.compileStatement(
+						"UPDATE " + MEncodedMessage.TABLE +
+						" SET " + MEncodedMessage.COL_PROCESSED + "=1," +
+						MEncodedMessage.COL_PROCESSED_TIME + "=? " +
+						" WHERE " + MEncodedMessage.COL_ID + "=? "
+					);
+				}
+			}
+		}
+		db.beginTransaction();
 		try {
-			if (c.moveToFirst()) {
-				return c.getBlob(0);
+			synchronized (mSqlMarkSent) {
+				for(long id : ids) {
+					mSqlMarkSent.bindLong(1, processedTime);
+					mSqlMarkSent.bindLong(2, id);
+					mSqlMarkSent.execute();
+				}
 			}
-			return null;
+			db.setTransactionSuccessful();
 		} finally {
-			c.close();
+			db.endTransaction();
+		}
+	}
+
+	public byte[] lookupEncodedDataById(long id) {
+		BoundQuery query = getQuery(SQL_ENCODED_DATA_FOR_ID);
+		synchronized (query) {
+			query.bindLong(1, id);
+			return query.queryOne(initializeDatabase(), BLOB_MAPPER);
 		}
 	}
 
 	public MEncodedMessage lookupById(long id) {
-	    SQLiteDatabase db = initializeDatabase();
-        String table = MEncodedMessage.TABLE;
-        String[] columns = new String[] {
-                MEncodedMessage.COL_SENDER,
-                MEncodedMessage.COL_ENCODED,
-                MEncodedMessage.COL_DEVICE_ID,
-                MEncodedMessage.COL_SHORT_HASH,
-                MEncodedMessage.COL_HASH,
-                MEncodedMessage.COL_OUTBOUND,
-                MEncodedMessage.COL_PROCESSED,
-                MEncodedMessage.COL_PROCESSED_TIME,
-                };
-        String selection = MEncodedMessage.COL_ID + " = ?";
-        String[] selectionArgs = new String[] { Long.toString(id) };
-        String groupBy = null, having = null, orderBy = null;
-        Cursor c = db.query(table, columns, selection, selectionArgs, groupBy, having, orderBy);
-        if (!c.moveToFirst()) {
-            return null;
-        }
-        MEncodedMessage encoded = new MEncodedMessage();
-        encoded.id_ = id;
-        encoded.fromIdentityId_ = c.isNull(0) ? null : c.getLong(0);
-        encoded.encoded_ = c.getBlob(1);
-        encoded.fromDevice_ = c.isNull(2) ? null : c.getLong(2);
-        encoded.shortHash_ = c.isNull(3) ? null : c.getLong(3);
-        encoded.hash_ = c.getBlob(4);
-        encoded.outbound_ = c.getInt(5) != 0;
-        encoded.processed_ = c.getInt(6) != 0;
-        encoded.processedTime_ = c.getLong(7);
-        try {
-            return encoded;
-        } finally {
-            c.close();
-        }
-    }
+		BoundQuery query = getQuery(SQL_ENCODED_FOR_ID);
+		synchronized (query) {
+			query.bindLong(1, id);
+			return query.queryOne(initializeDatabase(), ENCODED_MAPPER);
+		}
+	}
 
 	public MEncodedMessage lookupMetadataById(long id) {
-	    SQLiteDatabase db = initializeDatabase();
-	    if (mSqlGetMetadataById == null) {
-	    	StringBuilder sql = new StringBuilder(100)
-	    		.append("SELECT ")
-	    		.append(MEncodedMessage.COL_SENDER).append(",")
-	    		.append(MEncodedMessage.COL_DEVICE_ID).append(",")
-	    		.append(MEncodedMessage.COL_SHORT_HASH).append(",")
-	    		.append(MEncodedMessage.COL_HASH).append(",")
-	    		.append(MEncodedMessage.COL_OUTBOUND).append(",")
-	    		.append(MEncodedMessage.COL_PROCESSED).append(",")
-	    		.append(MEncodedMessage.COL_PROCESSED_TIME);
-	    	sql.append(" FROM ").append(MEncodedMessage.TABLE)
-	    		.append(" WHERE ").append(MEncodedMessage.COL_ID).append("=?");
-	    	mSqlGetMetadataById = sql.toString();
-	    }
-        String[] selectionArgs = new String[] { Long.toString(id) };
-        Cursor c = db.rawQuery(mSqlGetMetadataById, selectionArgs);
-        if (!c.moveToFirst()) {
-            return null;
-        }
-        MEncodedMessage encoded = new MEncodedMessage();
-        encoded.id_ = id;
-        encoded.fromIdentityId_ = c.isNull(0) ? null : c.getLong(0);
-        encoded.fromDevice_ = c.isNull(1) ? null : c.getLong(1);
-        encoded.shortHash_ = c.isNull(2) ? null : c.getLong(2);
-        encoded.hash_ = c.getBlob(3);
-        encoded.outbound_ = c.getInt(4) != 0;
-        encoded.processed_ = c.getInt(5) != 0;
-        encoded.processedTime_ = c.getLong(6);
-        try {
-            return encoded;
-        } finally {
-            c.close();
-        }
-    }
+		BoundQuery query = getQuery(SQL_METADATA_FOR_ID);
+		synchronized (query) {
+			query.bindLong(1, id);
+			return query.queryOne(initializeDatabase(), ENCODED_MAPPER);
+		}
+	}
+
 	public boolean delete(long id) {
 	    SQLiteDatabase db = initializeDatabase();
 	    String whereClause = MEncodedMessage.COL_ID + " = ?";
@@ -279,6 +295,14 @@ public class EncodedMessageManager extends ManagerBase {
 		return db.delete(MEncodedMessage.TABLE, whereClause.toString(), whereArgs);
     }
 
+	/**
+	 * Incremental version of {@link #getNonDecodedInboundIds()} for the decoder.
+	 */
+	public PendingWorkScanner newDecodeScanner() {
+		return new PendingWorkScanner(this, MEncodedMessage.TABLE, MEncodedMessage.COL_ID,
+				MEncodedMessage.COL_PROCESSED + "=0 AND " + MEncodedMessage.COL_OUTBOUND + "=0");
+	}
+
 	public long[] getNonDecodedInboundIds() {
 		if (mSqlObjectsToDecode == null) {
 			StringBuilder sql = new StringBuilder(80);
@@ -355,6 +379,7 @@ public class EncodedMessageManager extends ManagerBase {
 
 	@Override
 	public synchronized void close() {
+		closeCachedStatements();
 		if (sqlInsertEncoded_ != null) {
 			sqlInsertEncoded_.close();
 			sqlInsertEncoded_ = null;
@@ -371,5 +396,9 @@ public class EncodedMessageManager extends ManagerBase {
 			mSqlGetFeedIdForEncoded.close();
 			mSqlGetFeedIdForEncoded = null;
 		}
+		if (mSqlMarkSent != null) {
+			mSqlMarkSent.close();
+			mSqlMarkSent = null;
+		}
 	}
 }
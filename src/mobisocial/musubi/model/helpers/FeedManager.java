@@ -35,6 +35,7 @@ import mobisocial.musubi.model.MFeed;
 import mobisocial.musubi.model.MFeed.FeedType;
 import mobisocial.musubi.model.MFeedApp;
 import mobisocial.musubi.model.MFeedMember;
+import mobisocial.musubi.model.MFeedSummary;
 import mobisocial.musubi.model.MIdentity;
 import mobisocial.musubi.model.MMyAccount;
 import mobisocial.musubi.model.MObject;
@@ -79,9 +80,10 @@ public final class FeedManager extends ManagerBase {
 	private SQLiteStatement mSqlDeleteFeedApp;
 	private SQLiteStatement mSqlMembersForObject;
     private SQLiteStatement mSqlGetUnreadMessageCount;
+    private SQLiteStatement mSqlReplaceSummary;
+    private SQLiteStatement mSqlDeleteSummary;
 
 	private String mSqlUnacceptedFeedsWithMember;
-    String mSqlThumbnailForFeed;
 
     static String[] STANDARD_FIELDS = new String[] {
     	MFeed.COL_ID,
@@ -105,6 +107,37 @@ public final class FeedManager extends ManagerBase {
     final int name = 7;
     final int accepted = 8;
 
+    static final String SQL_FEED_FOR_ID = select(STANDARD_FIELDS, MFeed.TABLE, MFeed.COL_ID + "=?");
+    static final String SQL_THUMBNAIL_FOR_FEED = select(new String[] { MFeed.COL_THUMBNAIL },
+            MFeed.TABLE, MFeed.COL_ID + "=?");
+    static final String SQL_FEED_MEMBER_IDS = select(new String[] { MFeedMember.COL_IDENTITY_ID },
+            MFeedMember.TABLE, MFeedMember.COL_FEED_ID + "=?");
+    static final String SQL_FEED_MEMBER_COUNT = select(new String[] { "count(*)" },
+            MFeedMember.TABLE, MFeedMember.COL_FEED_ID + "=?");
+
+    final RowMapper<MFeed> mFeedMapper = new RowMapper<MFeed>() {
+        @Override
+        public MFeed map(Cursor c) {
+            MFeed feed = new MFeed();
+            feed.id_ = c.getLong(_id);
+            feed.type_ = FeedType.values()[c.getInt(type)];
+            if (!c.isNull(capability)) {
+                feed.capability_ = c.getBlob(capability);
+                feed.shortCapability_ = c.getLong(shortCapability);
+            }
+            if (!c.isNull(latestRenderableObjId)) {
+                feed.latestRenderableObjId_ = c.getLong(latestRenderableObjId);
+            }
+            if (!c.isNull(latestRenderableObjTime)) {
+                feed.latestRenderableObjTime_ = c.getLong(latestRenderableObjTime);
+            }
+            feed.numUnread_ = c.getLong(numUnread);
+            feed.name_ = c.getString(name);
+            feed.accepted_ = c.getLong(accepted) != 0;
+            return feed;
+        }
+    };
+
 	private SQLiteStatement mSqlCheckMembership;
 
     public FeedManager(SQLiteOpenHelper databaseSource) {
@@ -367,26 +400,10 @@ public final class FeedManager extends ManagerBase {
     }
 
     public byte[] getFeedThumbnailForId(long feedId) {
-    	if (mSqlThumbnailForFeed == null) {
-    		synchronized(this) {
-    			mSqlThumbnailForFeed = new StringBuilder(100)
-    				.append("SELECT ").append(MFeed.COL_THUMBNAIL)
-    				.append(" FROM ").append(MFeed.TABLE)
-    				.append(" WHERE ").append(MFeed.COL_ID).append("=?")
-    				.toString();
-    		}
-    	}
-    	String[] selectionArgs = new String[] { Long.toString(feedId) };
-    	Cursor c = initializeDatabase().rawQuery(mSqlThumbnailForFeed, selectionArgs);
-    	try {
-    		if (c.moveToFirst()) {
-    			if (!c.isNull(0)) {
-    				return c.getBlob(0);
-    			}
-    		}
-    		return null;
-    	} finally {
-    		c.close();
+    	BoundQuery query = getQuery(SQL_THUMBNAIL_FOR_FEED);
+    	synchronized (query) {
+    		query.bindLong(1, feedId);
+    		return query.queryOne(initializeDatabase(), BLOB_MAPPER);
     	}
     }
 
@@ -490,37 +507,10 @@ public final class FeedManager extends ManagerBase {
     }
     
     public MFeed lookupFeed(long id) {
-        SQLiteDatabase db = initializeDatabase();
-        String table = MFeed.TABLE;
-        String[] columns = STANDARD_FIELDS;
-        String selection = MFeed.COL_ID + " = ?";
-        String[] selectionArgs = new String[] { Long.toString(id) };
-        String groupBy = null, having = null, orderBy = null;
-        Cursor c = db.query(table, columns, selection, selectionArgs, groupBy, having, orderBy);
-        try {
-            if (c.moveToFirst()) {
-                MFeed feed = new MFeed();
-                feed.id_ = id;
-                feed.type_ = FeedType.values()[c.getInt(type)];
-                if (!c.isNull(capability)) {
-                    feed.capability_ = c.getBlob(capability);
-                    feed.shortCapability_ = c.getLong(shortCapability);
-                }
-                if (!c.isNull(latestRenderableObjId)) {
-                    feed.latestRenderableObjId_ = c.getLong(latestRenderableObjId);
-                }
-                if (!c.isNull(latestRenderableObjTime)) {
-                    feed.latestRenderableObjTime_ = c.getLong(latestRenderableObjTime);
-                }
-                feed.numUnread_ = c.getLong(numUnread);
-                feed.name_ = c.getString(name);
-                feed.accepted_ = c.getLong(accepted) != 0;
-                return feed;
-            } else {
-                return null;
-            }
-        } finally {
-            c.close();
+        BoundQuery query = getQuery(SQL_FEED_FOR_ID);
+        synchronized (query) {
+            query.bindLong(1, id);
+            return query.queryOne(initializeDatabase(), mFeedMapper);
         }
     }
 
@@ -698,20 +688,13 @@ public final class FeedManager extends ManagerBase {
         return getIdentitiesManager().getIdentitiesForIds(ids);
     }
 
-    private String feedMemberIdsQuery;
-    private String getFeedMemberIdsQuery() {
-    	if (feedMemberIdsQuery == null) {
-    		feedMemberIdsQuery = new StringBuilder(80)
-    			.append("SELECT ").append(MFeedMember.COL_IDENTITY_ID)
-    			.append(" FROM ").append(MFeedMember.TABLE)
-    			.append(" WHERE ").append(MFeedMember.COL_FEED_ID).append("=?").toString();
-    	}
-    	return feedMemberIdsQuery;
-    }
-
     public long[] getFeedMembers(long feedId) {
-    	SQLiteDatabase db = initializeDatabase();
-        Cursor c = db.rawQuery(getFeedMemberIdsQuery(), new String[] { Long.toString(feedId) });
+        BoundQuery query = getQuery(SQL_FEED_MEMBER_IDS);
+        Cursor c;
+        synchronized (query) {
+            query.bindLong(1, feedId);
+            c = query.query(initializeDatabase());
+        }
         long[] identityIds = new long[c.getCount()];
         int i = 0;
         while (c.moveToNext()) {
@@ -725,21 +708,10 @@ public final class FeedManager extends ManagerBase {
      * Returns the known members of the given feed.
      */
     public int getFeedMemberCount(long feedId) {
-        SQLiteDatabase db = initializeDatabase();
-        String table = MFeedMember.TABLE;
-        String[] columns = new String[] { "count(*)" };
-        String selection = MFeedMember.COL_FEED_ID + " = ?";
-        String[] selectionArgs = new String[] { Long.toString(feedId) };
-        String groupBy = null, having = null, orderBy = null;
-        Cursor c = db.query(table, columns, selection, selectionArgs, groupBy, having, orderBy);
-        try {
-            if (c.moveToFirst()) {
-                return c.getInt(0);
-            } else {
-                return 0;
-            }
-        } finally {
-            c.close();
+        SQLiteStatement statement = getStatement(SQL_FEED_MEMBER_COUNT);
+        synchronized (statement) {
+            statement.bindLong(1, feedId);
+            return (int)statement.simpleQueryForLong();
         }
     }
 
@@ -828,10 +800,74 @@ public final class FeedManager extends ManagerBase {
         String[] whereArgs = new String[] { Long.toString(feed.id_) };
         db.delete(MFeedMember.TABLE, whereClause, whereArgs);
 
+        whereClause = MFeedSummary.COL_FEED_ID + "=?";
+        // whereArgs same as above
+        db.delete(MFeedSummary.TABLE, whereClause, whereArgs);
+
         whereClause = MFeed.COL_ID + "=?";
         // whereArgs same as above
         db.delete(MFeed.TABLE, whereClause, whereArgs);
     }
+
+    /**
+     * Records the object the feed list shows for a feed, replacing
+     * whatever was there before.
+     */
+    public void updateFeedSummary(MFeedSummary summary) {
+        SQLiteDatabase db = initializeDatabase();
+        if (mSqlReplaceSummary == null) {
+            synchronized (this) {
+                if (mSqlReplaceSummary == null) {
+                    String sql = new StringBuilder()
+                        .append("INSERT OR REPLACE INTO ").append(MFeedSummary.TABLE).append("(")
+                        .append(MFeedSummary.COL_FEED_ID).append(",")
+                        .append(MFeedSummary.COL_OBJECT_ID).append(",")
+                        .append(MFeedSummary.COL_TYPE).append(",")
+                        .append(MFeedSummary.COL_SENDER_ID).append(",")
+                        .append(MFeedSummary.COL_PREVIEW).append(",")
+                        .append(MFeedSummary.COL_JSON)
+                        .append(") VALUES (?,?,?,?,?,?)").toString();
+                    mSqlReplaceSummary = db.compileStatement(sql);
+                }
+            }
+        }
+
+        synchronized (mSqlReplaceSummary) {
+            mSqlReplaceSummary.bindLong(1, summary.feedId_);
+            mSqlReplaceSummary.bindLong(2, summary.objectId_);
+            mSqlReplaceSummary.bindString(3, summary.type_);
+            mSqlReplaceSummary.bindLong(4, summary.senderId_);
+            if (summary.preview_ == null) {
+                mSqlReplaceSummary.bindNull(5);
+            } else {
+                mSqlReplaceSummary.bindString(5, summary.preview_);
+            }
+            if (summary.json_ == null) {
+                mSqlReplaceSummary.bindNull(6);
+            } else {
+                mSqlReplaceSummary.bindString(6, summary.json_);
+            }
+            mSqlReplaceSummary.execute();
+        }
+    }
+
+    public void deleteFeedSummary(long feedId) {
+        SQLiteDatabase db = initializeDatabase();
+        if (mSqlDeleteSummary == null) {
+            synchronized (this) {
+                if (mSqlDeleteSummary == null) {
+                    String sql = "DELETE FROM " + MFeedSummary.TABLE +
+                            " WHERE " + MFeedSummary.COL_FEED_ID + "=?";
+                    mSqlDeleteSummary = db.compileStatement(sql);
+                }
+            }
+        }
+
+        synchronized (mSqlDeleteSummary) {
+            mSqlDeleteSummary.bindLong(1, feedId);
+            mSqlDeleteSummary.execute();
+        }
+    }
     
     /**
      * Rename a feed locally
@@ -1082,6 +1118,7 @@ public final class FeedManager extends ManagerBase {
 
 	@Override
     public synchronized void close() {
+    	closeCachedStatements();
     	if (mIdentitiesManager != null) {
     		mIdentitiesManager.close();
     		mIdentitiesManager = null;
@@ -1118,5 +1155,13 @@ public final class FeedManager extends ManagerBase {
     		mSqlGetUnreadMessageCount.close();
     		mSqlGetUnreadMessageCount = null;
     	}
+    	if (mSqlReplaceSummary != null) {
+    		mSqlReplaceSummary.close();
+    		mSqlReplaceSummary = null;
+    	}
+    	if (mSqlDeleteSummary != null) {
+    		mSqlDeleteSummary.close();
+    		mSqlDeleteSummary = null;
+    	}
     }
 }
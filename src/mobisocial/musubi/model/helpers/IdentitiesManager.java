@@ -19,6 +19,7 @@ package mobisocial.musubi.model.helpers;
 import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.map.TLongIntMap;
 import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
 import gnu.trove.procedure.TLongIntProcedure;
 
 import java.math.BigInteger;
@@ -66,8 +67,6 @@ public class IdentitiesManager extends ManagerBase {
 	SQLiteStatement sqlGetMusubiThumbnail_;
 	SQLiteStatement sqlUpdateThumbnail_;
 	SQLiteStatement sqlUpdateMusubiThumnail_;
-	String sqlGetIdentityForId_;
-	String sqlIdentityWithThumbnails_;
 
     /**
      * Mime type that can be used to launch a VIEW intent for an identity.
@@ -143,6 +142,30 @@ public class IdentitiesManager extends ManagerBase {
 	static final int thumbnail = 19;
 	static final int musubiThumbnail = 20;
 
+	static final String SQL_IDENTITY_FOR_ID = select(STANDARD_FIELDS, MIdentity.TABLE,
+			MIdentity.COL_ID + "=?");
+	static final String SQL_IDENTITY_WITH_THUMBNAILS_FOR_ID = select(WITH_THUMBNAILS, MIdentity.TABLE,
+			MIdentity.COL_ID + "=?");
+	static final String SQL_THUMBNAIL_FOR_ID = select(new String[] { MIdentity.COL_THUMBNAIL },
+			MIdentity.TABLE, MIdentity.COL_ID + "=?");
+	static final String SQL_MUSUBI_THUMBNAIL_FOR_ID = select(new String[] { MIdentity.COL_MUSUBI_THUMBNAIL },
+			MIdentity.TABLE, MIdentity.COL_ID + "=?");
+
+	final RowMapper<MIdentity> mIdentityMapper = new RowMapper<MIdentity>() {
+		@Override
+		public MIdentity map(Cursor c) {
+			return fillInStandardFields(c);
+		}
+	};
+	final RowMapper<MIdentity> mIdentityWithThumbnailsMapper = new RowMapper<MIdentity>() {
+		@Override
+		public MIdentity map(Cursor c) {
+			MIdentity ident = fillInStandardFields(c);
+			ident.thumbnail_ = c.getBlob(thumbnail);
+			ident.musubiThumbnail_ = c.getBlob(musubiThumbnail);
+			return ident;
+		}
+	};
 	public List<MIdentity> getOwnedIdentities() {
 		SQLiteDatabase db = initializeDatabase();
 		Cursor c = db.query(MIdentity.TABLE, STANDARD_FIELDS,
@@ -264,30 +287,27 @@ public class IdentitiesManager extends ManagerBase {
 		return getIdentityForId(id);
 	}
 
+	/**
+	 * Returns the identity without its thumbnails, from the shared
+	 * {@link IdentityRowCache} if possible.
+	 */
 	public MIdentity getIdentityForId(long id) {
-	    if (sqlGetIdentityForId_ == null) {
-	        synchronized (this) {
-                StringBuilder sql = new StringBuilder(100).append("SELECT ");
-                for (String c : STANDARD_FIELDS) {
-                    sql.append(c).append(",");
-                }
-                sql.setLength(sql.length() - 1);
-                sql.append(" FROM ").append(MIdentity.TABLE)
-                    .append(" WHERE ").append(MIdentity.COL_ID).append("=?");
-                sqlGetIdentityForId_ = sql.toString();
-            }
-	    }
 		SQLiteDatabase db = initializeDatabase();
-		String[] selectionArgs = new String[] { String.valueOf(id) };
-        Cursor c = db.rawQuery(sqlGetIdentityForId_, selectionArgs);
-        try {
-            if (c.moveToNext()) {
-                return fillInStandardFields(c);
-            }
-            return null;
-        } finally {
-            c.close();
-        }
+		IdentityRowCache cache = IdentityRowCache.forDatabase(db);
+		MIdentity identity = cache.get(id);
+		if (identity != null) {
+			return identity;
+		}
+		long version = cache.getVersion();
+		BoundQuery query = getQuery(SQL_IDENTITY_FOR_ID);
+		synchronized (query) {
+			query.bindLong(1, id);
+			identity = query.queryOne(db, mIdentityMapper);
+		}
+		if (identity != null) {
+			cache.put(identity, version, db.inTransaction());
+		}
+		return identity;
 	}
 	
 	public TLongArrayList getIdentityIdsForAggregateContactId(long id) {
@@ -331,31 +351,64 @@ public class IdentitiesManager extends ManagerBase {
 		
 		return ids;
 	}
+	/**
+	 * Returns the identities that exist for the given ids, in the same order.
+	 * Rows that aren't cached are loaded with a single query, so this also
+	 * serves to prefetch a feed's members before looking them up one by one.
+	 */
 	public MIdentity[] getIdentitiesForIds(long[] identityIds) {
-		StringBuilder subselect = new StringBuilder(identityIds.length * 2 + 2);
-	    for (long id : identityIds) {
-	        subselect.append(",").append(id);
-	    }
-	    subselect.setCharAt(0, '(');
-	    subselect.append(')');
-	    SQLiteDatabase db = initializeDatabase();
-	    String table = MIdentity.TABLE;
-	    String selection = MIdentity.COL_ID + " in " + subselect;
-	    String[] selectionArgs = null;
-	    String having = null, groupBy = null, orderBy = null;
-        Cursor c = db.query(table, STANDARD_FIELDS,
-                selection, selectionArgs, groupBy, having, orderBy);
+		SQLiteDatabase db = initializeDatabase();
+		IdentityRowCache cache = IdentityRowCache.forDatabase(db);
+		MIdentity[] identities = new MIdentity[identityIds.length];
+		StringBuilder missing = null;
+		for (int i = 0; i < identityIds.length; i++) {
+			identities[i] = cache.get(identityIds[i]);
+			if (identities[i] == null) {
+				if (missing == null) {
+					missing = new StringBuilder(identityIds.length * 4);
+				} else {
+					missing.append(",");
+				}
+				missing.append(identityIds[i]);
+			}
+		}
 
-        MIdentity[] identities = new MIdentity[c.getCount()];
-        int i = 0;
-        while(c.moveToNext()) {
-            identities[i++] = fillInStandardFields(c);
-        }
-        try {
-            return identities;
-        } finally {
-            c.close();
-        }
+		int found = identityIds.length;
+		if (missing != null) {
+			long version = cache.getVersion();
+			boolean inTransaction = db.inTransaction();
+			TLongObjectHashMap<MIdentity> loaded = new TLongObjectHashMap<MIdentity>();
+			Cursor c = db.query(MIdentity.TABLE, STANDARD_FIELDS,
+					MIdentity.COL_ID + " IN (" + missing + ")", null, null, null, null);
+			try {
+				while (c.moveToNext()) {
+					MIdentity identity = fillInStandardFields(c);
+					loaded.put(identity.id_, identity);
+					cache.put(identity, version, inTransaction);
+				}
+			} finally {
+				c.close();
+			}
+			for (int i = 0; i < identityIds.length; i++) {
+				if (identities[i] == null) {
+					identities[i] = loaded.get(identityIds[i]);
+					if (identities[i] == null) {
+						found--;
+					}
+				}
+			}
+		}
+		if (found == identityIds.length) {
+			return identities;
+		}
+		MIdentity[] existing = new MIdentity[found];
+		int j = 0;
+		for (MIdentity identity : identities) {
+			if (identity != null) {
+				existing[j++] = identity;
+			}
+		}
+		return existing;
 	}
 
 	public MIdentity[] getIdentitiesForIdsGroupedByVisibleName(long[] identityIds) {
@@ -403,29 +456,10 @@ public class IdentitiesManager extends ManagerBase {
 	}
 
 	public MIdentity getIdentityWithThumbnailsForId(long id) {
-		SQLiteDatabase db = initializeDatabase();
-		if (sqlIdentityWithThumbnails_ == null) {
-			StringBuilder sql = new StringBuilder(50);
-			sql.append("SELECT ");
-			for (String col : WITH_THUMBNAILS) {
-				sql.append(col).append(",");
-			}
-			sql.setLength(sql.length() - 1);
-			sql.append(" FROM ").append(MIdentity.TABLE)
-				.append(" WHERE ").append(MIdentity.COL_ID).append("=?");
-			sqlIdentityWithThumbnails_ = sql.toString();
-		}
-		Cursor c = db.rawQuery(sqlIdentityWithThumbnails_, new String[] { Long.toString(id) });
-		try {
-			if (c.moveToNext()) {
-				MIdentity ident = fillInStandardFields(c);
-				ident.thumbnail_ = c.getBlob(thumbnail);
-				ident.musubiThumbnail_ = c.getBlob(musubiThumbnail);
-				return ident;
-			}
-			return null;
-		} finally {
-			c.close();
+		BoundQuery query = getQuery(SQL_IDENTITY_WITH_THUMBNAILS_FOR_ID);
+		synchronized (query) {
+			query.bindLong(1, id);
+			return query.queryOne(initializeDatabase(), mIdentityWithThumbnailsMapper);
 		}
 	}
 	/** returns 0 if no id matches */
@@ -536,6 +570,7 @@ public class IdentitiesManager extends ManagerBase {
 			sqlUpdateIdentity_.bindLong(whitelisted+1, id.id_);
 			sqlUpdateIdentity_.execute();
 		}
+		IdentityRowCache.forDatabase(db).invalidate(id.id_, db.inTransaction());
 	}
 
 	private static void setAllButThumbnailIdentityColumns(SQLiteStatement statement, MIdentity id) {
@@ -602,6 +637,7 @@ public class IdentitiesManager extends ManagerBase {
 			sqlIncrementSequenceNumber_.bindLong(1, to.id_);
 			sqlIncrementSequenceNumber_.execute();
 		}
+		IdentityRowCache.forDatabase(db).invalidate(to.id_, db.inTransaction());
 		//if they had a valid sequence number before, they still will... otherwise undefined
 		++to.nextSequenceNumber_;
 	}
@@ -682,31 +718,21 @@ public class IdentitiesManager extends ManagerBase {
 		}
 	}
 	public byte[] getThumbnail(MIdentity id) {
-		SQLiteDatabase db = initializeDatabase();
-		Cursor c = db.rawQuery("SELECT " + MIdentity.COL_THUMBNAIL + " FROM " + MIdentity.TABLE + " WHERE " + MIdentity.COL_ID + "=?",
-					new String[] {String.valueOf(id.id_)});
-		try {
-			while(c.moveToNext()) {
-				id.thumbnail_ = c.getBlob(0);
-				return id.thumbnail_;
-			}
-			return null;
-		} finally {
-			c.close();
+		BoundQuery query = getQuery(SQL_THUMBNAIL_FOR_ID);
+		synchronized (query) {
+			query.bindLong(1, id.id_);
+			byte[] thumbnail = query.queryOne(initializeDatabase(), BLOB_MAPPER);
+			id.thumbnail_ = thumbnail;
+			return thumbnail;
 		}
 	}
 	public byte[] getMusubiThumbnail(MIdentity id) {
-		SQLiteDatabase db = initializeDatabase();
-		Cursor c = db.rawQuery("SELECT " + MIdentity.COL_MUSUBI_THUMBNAIL + " FROM " + MIdentity.TABLE + " WHERE " + MIdentity.COL_ID + "=?",
-					new String[] {String.valueOf(id.id_)});
-		try {
-			while(c.moveToNext()) {
-				id.musubiThumbnail_ = c.getBlob(0);
-				return id.musubiThumbnail_;
-			}
-			return null;
-		} finally {
-			c.close();
+		BoundQuery query = getQuery(SQL_MUSUBI_THUMBNAIL_FOR_ID);
+		synchronized (query) {
+			query.bindLong(1, id.id_);
+			byte[] thumbnail = query.queryOne(initializeDatabase(), BLOB_MAPPER);
+			id.musubiThumbnail_ = thumbnail;
+			return thumbnail;
 		}
 	}
 	public void updateThumbnail(MIdentity id) {
@@ -729,6 +755,7 @@ public class IdentitiesManager extends ManagerBase {
 			sqlUpdateThumbnail_.bindLong(2, id.id_);
 			sqlUpdateThumbnail_.execute();
 		}
+		IdentityRowCache.forDatabase(db).invalidate(id.id_, db.inTransaction());
 	}
 	public void updateMusubiThumbnail(MIdentity id) {
 		SQLiteDatabase db = initializeDatabase();
@@ -750,6 +777,7 @@ public class IdentitiesManager extends ManagerBase {
 			sqlUpdateMusubiThumnail_.bindLong(2, id.id_);
 			sqlUpdateMusubiThumnail_.execute();
 		}
+		IdentityRowCache.forDatabase(db).invalidate(id.id_, db.inTransaction());
 	}
 	public static long computeTemporalFrameFromHash(byte[] hashed) {
 	    long offset = new BigInteger(hashed)
@@ -1009,6 +1037,7 @@ public class IdentitiesManager extends ManagerBase {
 
     @Override
     public synchronized void close() {
+    	closeCachedStatements();
     	if (sqlInsertIdentity_ != null) {
     		sqlInsertIdentity_.close();
     		sqlInsertIdentity_ = null;
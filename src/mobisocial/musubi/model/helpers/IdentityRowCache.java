@@ -0,0 +1,182 @@
+/*
+ * Copyright 2012 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.musubi.model.helpers;
+
+import gnu.trove.set.hash.TLongHashSet;
+
+import java.util.WeakHashMap;
+
+import mobisocial.musubi.model.MIdentity;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.v4.util.LruCache;
+
+/**
+ * A bounded cache of identity rows, without their thumbnails, shared by all
+ * of the {@link IdentitiesManager}s open on a database.
+ *
+ * Every write to an identity invalidates its entry and bumps the cache
+ * version.  A reader takes the version before it queries, and its row is only
+ * kept if no write happened in between, so a slow read can't put back a row
+ * that was changed underneath it.  Rows written inside a transaction are not
+ * cached again by that thread until the transaction ends, since it might
+ * still be rolled back.
+ *
+ * Callers always get their own copy of a row.
+ */
+public class IdentityRowCache {
+	static final int DEFAULT_CAPACITY = 512;
+
+	private static final WeakHashMap<SQLiteDatabase, IdentityRowCache> sCaches =
+			new WeakHashMap<SQLiteDatabase, IdentityRowCache>();
+
+	final LruCache<Long, MIdentity> mRows;
+	final ThreadLocal<TLongHashSet> mWrittenInTransaction = new ThreadLocal<TLongHashSet>() {
+		@Override
+		protected TLongHashSet initialValue() {
+			return new TLongHashSet();
+		}
+	};
+	long mVersion;
+	int mHits;
+	int mMisses;
+	int mInvalidations;
+
+	/**
+	 * Returns the cache for the given connection.
+	 */
+	public static IdentityRowCache forDatabase(SQLiteDatabase db) {
+		synchronized (sCaches) {
+			IdentityRowCache cache = sCaches.get(db);
+			if (cache == null) {
+				cache = new IdentityRowCache(DEFAULT_CAPACITY);
+				sCaches.put(db, cache);
+			}
+			return cache;
+		}
+	}
+
+	IdentityRowCache(int capacity) {
+		mRows = new LruCache<Long, MIdentity>(capacity);
+	}
+
+	public synchronized long getVersion() {
+		return mVersion;
+	}
+
+	/**
+	 * Returns a copy of the cached row, or null.
+	 */
+	public MIdentity get(long id) {
+		MIdentity cached = mRows.get(id);
+		synchronized (this) {
+			if (cached == null) {
+				mMisses++;
+				return null;
+			}
+			mHits++;
+		}
+		return copy(cached);
+	}
+
+	/**
+	 * Keeps a row that was read while the cache was at the given version.
+	 */
+	public void put(MIdentity identity, long version, boolean inTransaction) {
+		TLongHashSet written = mWrittenInTransaction.get();
+		if (!inTransaction) {
+			written.clear();
+		} else if (written.contains(identity.id_)) {
+			return;
+		}
+		MIdentity row = copy(identity);
+		row.thumbnail_ = null;
+		row.musubiThumbnail_ = null;
+		synchronized (this) {
+			if (version != mVersion) {
+				return;
+			}
+			mRows.put(row.id_, row);
+		}
+	}
+
+	public void invalidate(long id, boolean inTransaction) {
+		TLongHashSet written = mWrittenInTransaction.get();
+		if (inTransaction) {
+			written.add(id);
+		} else {
+			written.clear();
+		}
+		synchronized (this) {
+			mVersion++;
+			mInvalidations++;
+			mRows.remove(id);
+		}
+	}
+
+	public void invalidate(long[] ids, boolean inTransaction) {
+		for (long id : ids) {
+			invalidate(id, inTransaction);
+		}
+	}
+
+	public synchronized void invalidateAll() {
+		mVersion++;
+		mInvalidations++;
+		mRows.evictAll();
+	}
+
+	public synchronized int getHits() {
+		return mHits;
+	}
+
+	public synchronized int getMisses() {
+		return mMisses;
+	}
+
+	@Override
+	public synchronized String toString() {
+		int total = mHits + mMisses;
+		return String.format("IdentityRowCache[hits=%d,misses=%d,hitRate=%d%%,invalidations=%d,size=%d]",
+				mHits, mMisses, total == 0 ? 0 : 100 * mHits / total, mInvalidations, mRows.size());
+	}
+
+	static MIdentity copy(MIdentity i) {
+		MIdentity c = new MIdentity();
+		c.id_ = i.id_;
+		c.type_ = i.type_;
+		c.principal_ = i.principal_;
+		c.principalHash_ = i.principalHash_ == null ? null : i.principalHash_.clone();
+		c.principalShortHash_ = i.principalShortHash_;
+		c.owned_ = i.owned_;
+		c.claimed_ = i.claimed_;
+		c.blocked_ = i.blocked_;
+		c.receivedProfileVersion_ = i.receivedProfileVersion_;
+		c.sentProfileVersion_ = i.sentProfileVersion_;
+		c.contactId_ = i.contactId_;
+		c.androidAggregatedContactId_ = i.androidAggregatedContactId_;
+		c.nextSequenceNumber_ = i.nextSequenceNumber_;
+		c.thumbnail_ = i.thumbnail_;
+		c.name_ = i.name_;
+		c.musubiThumbnail_ = i.musubiThumbnail_;
+		c.musubiName_ = i.musubiName_;
+		c.createdAt_ = i.createdAt_;
+		c.updatedAt_ = i.updatedAt_;
+		c.hasSentEmail_ = i.hasSentEmail_;
+		c.whitelisted_ = i.whitelisted_;
+		return c;
+	}
+}
@@ -16,14 +16,29 @@
 
 package mobisocial.musubi.model.helpers;
 
+import java.util.HashMap;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteProgram;
+import android.database.sqlite.SQLiteQuery;
 import android.database.sqlite.SQLiteStatement;
 
 public abstract class ManagerBase {
     final SQLiteOpenHelper mDatabase;
     final SQLiteDatabase mDirectDatabase;
 
+    /*
+     * Statements and queries compiled by this manager, dropped whenever the
+     * underlying connection changes.
+     */
+    private SQLiteDatabase mCachedFor;
+    private HashMap<String, SQLiteStatement> mStatements;
+    private HashMap<String, BoundQuery> mQueries;
+
     public ManagerBase(SQLiteOpenHelper databaseSource) {
         mDatabase = databaseSource;
         mDirectDatabase = null;
@@ -61,6 +76,171 @@ public abstract class ManagerBase {
         }
     }
 
+    /**
+     * Maps the current row of a cursor to a model object.
+     */
+    interface RowMapper<T> {
+        T map(Cursor c);
+    }
+
+    static final RowMapper<byte[]> BLOB_MAPPER = new RowMapper<byte[]>() {
+        @Override
+        public byte[] map(Cursor c) {
+            return c.getBlob(0);
+        }
+    };
+
+    /**
+     * A query whose arguments are bound with their own types, rather than
+     * as a String[] of decimal text, just before the cursor is created.
+     * Callers synchronize on the query while binding and running it.
+     */
+    static final class BoundQuery implements SQLiteDatabase.CursorFactory {
+        final String mSql;
+        final long[] mLongs;
+        final Object[] mObjects;
+        final boolean[] mIsLong;
+
+        BoundQuery(String sql) {
+            mSql = sql;
+            int params = 0;
+            for (int i = 0; i < sql.length(); i++) {
+                if (sql.charAt(i) == '?') {
+                    params++;
+                }
+            }
+            mLongs = new long[params];
+            mObjects = new Object[params];
+            mIsLong = new boolean[params];
+        }
+
+        void bindLong(int index, long value) {
+            mLongs[index - 1] = value;
+            mIsLong[index - 1] = true;
+        }
+
+        /**
+         * Binds a String, a byte[] or null.
+         */
+        void bindObject(int index, Object value) {
+            mObjects[index - 1] = value;
+            mIsLong[index - 1] = false;
+        }
+
+        Cursor query(SQLiteDatabase db) {
+            return db.rawQueryWithFactory(this, mSql, null, null);
+        }
+
+        /**
+         * Runs the query and maps its first row, or returns null if there
+         * is none.
+         */
+        <T> T queryOne(SQLiteDatabase db, RowMapper<T> mapper) {
+            Cursor c = query(db);
+            try {
+                if (c.moveToFirst()) {
+                    return mapper.map(c);
+                }
+                return null;
+            } finally {
+                c.close();
+            }
+        }
+
+        @Override
+        public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery,
+                String editTable, SQLiteQuery query) {
+            bindTo(query);
+            return new SQLiteCursor(db, masterQuery, editTable, query);
+        }
+
+        void bindTo(SQLiteProgram program) {
+            for (int i = 0; i < mIsLong.length; i++) {
+                if (mIsLong[i]) {
+                    program.bindLong(i + 1, mLongs[i]);
+                } else if (mObjects[i] == null) {
+                    program.bindNull(i + 1);
+                } else if (mObjects[i] instanceof byte[]) {
+                    program.bindBlob(i + 1, (byte[])mObjects[i]);
+                } else {
+                    program.bindString(i + 1, (String)mObjects[i]);
+                }
+                mObjects[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Builds "SELECT columns FROM table WHERE selection".
+     */
+    static String select(String[] columns, String table, String selection) {
+        StringBuilder sql = new StringBuilder(100).append("SELECT ");
+        for (String c : columns) {
+            sql.append(c).append(",");
+        }
+        sql.setLength(sql.length() - 1);
+        sql.append(" FROM ").append(table).append(" WHERE ").append(selection);
+        return sql.toString();
+    }
+
+    private void checkCacheConnection(SQLiteDatabase db) {
+        if (mCachedFor != db) {
+            closeCachedStatements();
+            mCachedFor = db;
+            mStatements = new HashMap<String, SQLiteStatement>();
+            mQueries = new HashMap<String, BoundQuery>();
+        }
+    }
+
+    /**
+     * Returns a statement for the sql, compiling it the first time it is
+     * asked for on this connection.  Callers synchronize on the statement
+     * while binding and executing it.
+     */
+    SQLiteStatement getStatement(String sql) {
+        SQLiteDatabase db = initializeDatabase();
+        synchronized (this) {
+            checkCacheConnection(db);
+            SQLiteStatement statement = mStatements.get(sql);
+            if (statement == null) {
+                statement = db.compileStatement(sql);
+                mStatements.put(sql, statement);
+            }
+            return statement;
+        }
+    }
+
+    /**
+     * Returns the cached {@link BoundQuery} for the sql.
+     */
+    BoundQuery getQuery(String sql) {
+        SQLiteDatabase db = initializeDatabase();
+        synchronized (this) {
+            checkCacheConnection(db);
+            BoundQuery query = mQueries.get(sql);
+            if (query == null) {
+                query = new BoundQuery(sql);
+                mQueries.put(sql, query);
+            }
+            return query;
+        }
+    }
+
+    /**
+     * Closes the statements handed out by {@link #getStatement(String)}.
+     * Subclasses call this from {@link #close()}.
+     */
+    synchronized void closeCachedStatements() {
+        if (mStatements != null) {
+            for (SQLiteStatement statement : mStatements.values()) {
+                statement.close();
+            }
+            mStatements = null;
+        }
+        mQueries = null;
+        mCachedFor = null;
+    }
+
     /**
      * Closes any compiled statements and other database resources opened by this manager.
      */
@@ -56,6 +56,7 @@ public class MessageTransportManager extends ManagerBase implements TransportDat
 	final long myDeviceName_;
 	final DatabaseManager mDbManager;
 	final UserKeyManager userKeyManager_;
+	final ChannelSecretCache mSecretCache = new ChannelSecretCache();
 	public MessageTransportManager(SQLiteOpenHelper databaseSource, IBEncryptionScheme encryptionScheme, 
 			IBSignatureScheme signatureScheme, long deviceName) 
 	{
@@ -71,6 +72,12 @@ public class MessageTransportManager extends ManagerBase implements TransportDat
 	SQLiteStatement sqlInsertOutgoingSecret_;
 	SQLiteStatement sqlDeleteMissingSequenceNumber_;
 	SQLiteStatement sqlAddSequenceNumber_;
+
+	/**
+	 * Guards the lookup-or-insert operations for identities and devices so that
+	 * several decode workers sharing this provider can't insert the same row twice.
+	 */
+	final Object mEnsureLock = new Object();
 	
 	@Override
 	public IBEncryptionScheme getEncryptionScheme() {
@@ -109,18 +116,35 @@ public class MessageTransportManager extends ManagerBase implements TransportDat
 		return myDeviceName_;
 	}
 
+	static final String SQL_LOOKUP_OUTGOING_SECRET = select(new String[] {
+			MOutgoingSecret.COL_ID, MOutgoingSecret.COL_OUTGOING_ENCRYPTED_KEY,
+			MOutgoingSecret.COL_OUTGOING_KEY, MOutgoingSecret.COL_OUTGOING_SIGNATURE },
+			MOutgoingSecret.TABLE,
+			MOutgoingSecret.COL_MY_IDENTITY_ID + "=? AND " + MOutgoingSecret.COL_OTHER_IDENTITY_ID + "=? AND " + 
+			MOutgoingSecret.COL_OUTGOING_ENCRYPTION_WHEN + "=? AND " + MOutgoingSecret.COL_OUTGOING_SIGNATURE_WHEN + "=?");
+	static final String SQL_LOOKUP_INCOMING_SECRET = select(new String[] {
+			MIncomingSecret.COL_ID, MIncomingSecret.COL_INCOMING_ENCRYPTED_KEY,
+			MIncomingSecret.COL_INCOMING_KEY, MIncomingSecret.COL_INCOMING_SIGNATURE },
+			MIncomingSecret.TABLE,
+			MIncomingSecret.COL_MY_IDENTITY_ID + "=? AND " + MIncomingSecret.COL_OTHER_IDENTITY_ID + "=? AND " + 
+			MIncomingSecret.COL_INCOMING_ENCRYPTION_WHEN + "=? AND " + MIncomingSecret.COL_INCOMING_SIGNATURE_WHEN + "=? AND " +
+			MIncomingSecret.COL_INCOMING_DEVICE_ID + "=?");
+
 	@Override
 	public MOutgoingSecret lookupOutgoingSecret(MIdentity from, MIdentity to, IBHashedIdentity me, IBHashedIdentity you) {
-		SQLiteDatabase db = initializeDatabase();
-		Cursor c = db.query(
-				MOutgoingSecret.TABLE, 
-			new String[] { MOutgoingSecret.COL_ID, MOutgoingSecret.COL_OUTGOING_ENCRYPTED_KEY, MOutgoingSecret.COL_OUTGOING_KEY,
-						MOutgoingSecret.COL_OUTGOING_SIGNATURE}, 
-			MOutgoingSecret.COL_MY_IDENTITY_ID + "=? AND " + MOutgoingSecret.COL_OTHER_IDENTITY_ID + "=? AND " + 
-					MOutgoingSecret.COL_OUTGOING_ENCRYPTION_WHEN + "=? AND " + MOutgoingSecret.COL_OUTGOING_SIGNATURE_WHEN + "=?",
-			new String[] { String.valueOf(from.id_), String.valueOf(to.id_), String.valueOf(you.temporalFrame_), String.valueOf(me.temporalFrame_)}, 
-			null, null, null
-		); 
+		MOutgoingSecret cached = mSecretCache.getOutgoing(from.id_, to.id_, you.temporalFrame_, me.temporalFrame_);
+		if(cached != null) {
+			return cached;
+		}
+		BoundQuery query = getQuery(SQL_LOOKUP_OUTGOING_SECRET);
+		Cursor c;
+		synchronized (query) {
+			query.bindLong(1, from.id_);
+			query.bindLong(2, to.id_);
+			query.bindLong(3, you.temporalFrame_);
+			query.bindLong(4, me.temporalFrame_);
+			c = query.query(initializeDatabase());
+		}
 		try {
 			while(c.moveToNext()) {
 				MOutgoingSecret os = new MOutgoingSecret();
@@ -132,6 +156,7 @@ public class MessageTransportManager extends ManagerBase implements TransportDat
 				os.myIdentityId_ = from.id_;
 				os.otherIdentityId_ = to.id_;
 				os.signature_ = c.getBlob(3);
+				mSecretCache.putOutgoing(os);
 				return os;
 			}
 			return null;
@@ -171,21 +196,25 @@ public class MessageTransportManager extends ManagerBase implements TransportDat
 			sqlInsertOutgoingSecret_.bindBlob(7, os.key_);
 			os.id_ = sqlInsertOutgoingSecret_.executeInsert();
 		}
+		mSecretCache.putOutgoing(os);
 	}
 
 	@Override
 	public MIncomingSecret lookupIncomingSecret(MIdentity from, MDevice fromDevice, MIdentity to, byte[] signature, IBHashedIdentity you, IBHashedIdentity me) {
-		SQLiteDatabase db = initializeDatabase();
-		Cursor c = db.query(
-				MIncomingSecret.TABLE, 
-			new String[] { MIncomingSecret.COL_ID, MIncomingSecret.COL_INCOMING_ENCRYPTED_KEY,
-						MIncomingSecret.COL_INCOMING_KEY, MIncomingSecret.COL_INCOMING_SIGNATURE }, 
-			MIncomingSecret.COL_MY_IDENTITY_ID + "=? AND " + MIncomingSecret.COL_OTHER_IDENTITY_ID + "=? AND " + 
-				MIncomingSecret.COL_INCOMING_ENCRYPTION_WHEN + "=? AND " + MIncomingSecret.COL_INCOMING_SIGNATURE_WHEN + "=? AND " +
-				MIncomingSecret.COL_INCOMING_DEVICE_ID + "=?",
-			new String[] { String.valueOf(to.id_), String.valueOf(from.id_), String.valueOf(me.temporalFrame_), String.valueOf(you.temporalFrame_), String.valueOf(fromDevice.id_)}, 
-			null, null, null
-		); 
+		MIncomingSecret cached = mSecretCache.getIncoming(to.id_, from.id_, fromDevice.id_, me.temporalFrame_, you.temporalFrame_, signature);
+		if(cached != null) {
+			return cached;
+		}
+		BoundQuery query = getQuery(SQL_LOOKUP_INCOMING_SECRET);
+		Cursor c;
+		synchronized (query) {
+			query.bindLong(1, to.id_);
+			query.bindLong(2, from.id_);
+			query.bindLong(3, me.temporalFrame_);
+			query.bindLong(4, you.temporalFrame_);
+			query.bindLong(5, fromDevice.id_);
+			c = query.query(initializeDatabase());
+		}
 		try {
 			while(c.moveToNext()) {
 				byte[] cached_signature = c.getBlob(3);
@@ -202,6 +231,7 @@ public class MessageTransportManager extends ManagerBase implements TransportDat
 				is.myIdentityId_ = to.id_;
 				is.otherIdentityId_ = from.id_;
 				is.signature_ = cached_signature;
+				mSecretCache.putIncoming(is);
 				return is;
 			}
 			return null;
@@ -243,6 +273,14 @@ public class MessageTransportManager extends ManagerBase implements TransportDat
 			sqlInsertIncomingSecret_.bindBlob(8, is.key_);
 			is.id_ = sqlInsertIncomingSecret_.executeInsert();
 		}
+		mSecretCache.putIncoming(is);
+	}
+
+	/**
+	 * @return the cache in front of the channel secret tables, e.g. for its hit rates
+	 */
+	public ChannelSecretCache getSecretCache() {
+		return mSecretCache;
 	}
 
 	@Override
@@ -320,36 +358,42 @@ public class MessageTransportManager extends ManagerBase implements TransportDat
 
 	@Override
 	public MIdentity addClaimedIdentity(IBHashedIdentity hid) {
-		return mDbManager.getIdentitiesManager().ensureClaimedIdentity(hid);
+		synchronized (mEnsureLock) {
+			return mDbManager.getIdentitiesManager().ensureClaimedIdentity(hid);
+		}
 	}
 
 	@Override
 	public MIdentity addUnclaimedIdentity(IBHashedIdentity hid) {
-		MIdentity id = mDbManager.getIdentitiesManager().getIdentityForIBHashedIdentity(hid);
-		if(id != null) {
+		synchronized (mEnsureLock) {
+			MIdentity id = mDbManager.getIdentitiesManager().getIdentityForIBHashedIdentity(hid);
+			if(id != null) {
+				return id;
+			}
+			id = new MIdentity();
+			id.claimed_ = false;
+			id.principalHash_ = hid.hashed_;
+			id.principalShortHash_ = Util.shortHash(hid.hashed_);
+			id.type_ = hid.authority_;
+			id.hasSentEmail_ = false;
+			mDbManager.getIdentitiesManager().insertIdentity(id);
 			return id;
 		}
-		id = new MIdentity();
-		id.claimed_ = false;
-		id.principalHash_ = hid.hashed_;
-		id.principalShortHash_ = Util.shortHash(hid.hashed_);
-		id.type_ = hid.authority_;
-		id.hasSentEmail_ = false;
-		mDbManager.getIdentitiesManager().insertIdentity(id);
-		return id;
 	}
 
 	@Override
 	public MDevice addDevice(MIdentity ident, long deviceId) {
-		MDevice dev = mDbManager.getDeviceManager().getDeviceForName(ident.id_, deviceId);
-		if(dev != null)
+		synchronized (mEnsureLock) {
+			MDevice dev = mDbManager.getDeviceManager().getDeviceForName(ident.id_, deviceId);
+			if(dev != null)
+				return dev;
+			dev = new MDevice();
+			dev.deviceName_ = deviceId;
+			dev.identityId_ = ident.id_;
+			dev.maxSequenceNumber_ = 0;
+			mDbManager.getDeviceManager().insertDevice(dev);
 			return dev;
-		dev = new MDevice();
-		dev.deviceName_ = deviceId;
-		dev.identityId_ = ident.id_;
-		dev.maxSequenceNumber_ = 0;
-		mDbManager.getDeviceManager().insertDevice(dev);
-		return dev;
+		}
 	}
 
 	@Override
@@ -386,6 +430,7 @@ public class MessageTransportManager extends ManagerBase implements TransportDat
 
 	@Override
 	public synchronized void close() {
+		closeCachedStatements();
 		if (sqlInsertIncomingSecret_ != null) {
 			sqlInsertIncomingSecret_.close();
 			sqlInsertIncomingSecret_ = null;
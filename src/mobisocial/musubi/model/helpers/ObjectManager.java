@@ -16,12 +16,15 @@
 
 package mobisocial.musubi.model.helpers;
 
-import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
 
 import mobisocial.musubi.model.DbLikeCache;
 import mobisocial.musubi.model.MDevice;
 import mobisocial.musubi.model.MIdentity;
 import mobisocial.musubi.model.MObject;
+import mobisocial.musubi.model.MObjectSearch;
 import mobisocial.musubi.util.Util;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
@@ -30,19 +33,25 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
+import android.util.Log;
 
 public class ObjectManager extends ManagerBase {
+    public static final String TAG = "ObjectManager";
+
     private SQLiteStatement mSqlInsertObj;
     private SQLiteStatement mSqlUpdateObj;
     private SQLiteStatement mSqlGetObjIdByHash;
 	private SQLiteStatement mSqlObjectCount;
 	private SQLiteStatement mSqlGetLatestRenderableId;
-	private String mSqlQueryObjectForId;
-	private String mSqlQueryObjectWithoutRawForId;
 	private String mSqlGetObjectsToEncode;
 	private SQLiteStatement mSqlLikeCount;
 	private SQLiteStatement mSqlUpdateObjPipelineMetadata;
 	private SQLiteStatement mSqlUpdateObjEncodeMetadata;
+	private SQLiteStatement mSqlBlobRefCount;
+	private SQLiteStatement mSqlInsertSearchText;
+	private SQLiteStatement mSqlDeleteSearchText;
+	private final BlobStore mBlobStore;
+	private final ArrayList<byte[]> mReleasedBlobs = new ArrayList<byte[]>();
 
     static String[] STANDARD_FIELDS = new String[] {
         MObject.COL_ID,
@@ -63,7 +72,8 @@ public class ObjectManager extends ManagerBase {
         MObject.COL_ENCODED_ID,
         MObject.COL_DELETED,
         MObject.COL_RENDERABLE,
-        MObject.COL_PROCESSED
+        MObject.COL_PROCESSED,
+        MObject.COL_RAW_HASH
     };
 
     final int _id = 0;
@@ -85,10 +95,41 @@ public class ObjectManager extends ManagerBase {
     final int deleted = 16;
     final int renderable = 17;
     final int processed = 18;
+    final int rawHash = 19;
+
+    static final String SQL_OBJECT_FOR_ID = select(STANDARD_FIELDS, MObject.TABLE,
+            MObject.COL_ID + "=?");
+    static final String SQL_OBJECT_WITHOUT_RAW_FOR_ID = select(withoutRaw(STANDARD_FIELDS),
+            MObject.TABLE, MObject.COL_ID + "=?");
+    static final String SQL_RAW_FOR_ID = select(new String[] { MObject.COL_RAW, MObject.COL_RAW_HASH },
+            MObject.TABLE, MObject.COL_ID + "=?");
+    static final String SQL_RAW_HASH_FOR_ID = select(new String[] { MObject.COL_RAW_HASH },
+            MObject.TABLE, MObject.COL_ID + "=?");
+
+    final RowMapper<MObject> mObjectMapper = new RowMapper<MObject>() {
+        @Override
+        public MObject map(Cursor c) {
+            return fillInStandardFields(c);
+        }
+    };
 
+    static String[] withoutRaw(String[] fields) {
+        String[] columns = fields.clone();
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equals(MObject.COL_RAW) || columns[i].equals(MObject.COL_RAW_HASH)) {
+                columns[i] = "NULL";
+            }
+        }
+        return columns;
+    }
 
     public ObjectManager(SQLiteOpenHelper databaseSource) {
         super(databaseSource);
+        if (databaseSource instanceof DatabaseFile) {
+            mBlobStore = ((DatabaseFile)databaseSource).getBlobStore();
+        } else {
+            mBlobStore = null;
+        }
     }
 
     public void insertObject(MObject obj) {
@@ -115,15 +156,17 @@ public class ObjectManager extends ManagerBase {
                         .append(MObject.COL_ENCODED_ID).append(",")
                         .append(MObject.COL_DELETED).append(",")
                         .append(MObject.COL_RENDERABLE).append(",")
-                        .append(MObject.COL_PROCESSED)
-                        .append(") VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)").toString();
+                        .append(MObject.COL_PROCESSED).append(",")
+                        .append(MObject.COL_RAW_HASH)
+                        .append(") VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)").toString();
                     mSqlInsertObj = db.compileStatement(sql);
                 }
             }
         }
                 
+        byte[] ref = storeRaw(obj.raw_);
         synchronized (mSqlInsertObj) {
-            bindStandardFields(mSqlInsertObj, obj);
+            bindStandardFields(mSqlInsertObj, obj, ref);
             obj.id_ = mSqlInsertObj.executeInsert();
         }
     }
@@ -152,15 +195,17 @@ public class ObjectManager extends ManagerBase {
                         .append(MObject.COL_ENCODED_ID).append("=?,")
                         .append(MObject.COL_DELETED).append("=?,")
                         .append(MObject.COL_RENDERABLE).append("=?,")
-                        .append(MObject.COL_PROCESSED).append("=?")
+                        .append(MObject.COL_PROCESSED).append("=?,")
+                        .append(MObject.COL_RAW_HASH).append("=?")
                         .append(" WHERE ").append(MObject.COL_ID).append("=?").toString();
                     mSqlUpdateObj = db.compileStatement(sql);
                 }
             }
         }
                 
+        byte[] ref = storeRaw(obj.raw_);
         synchronized (mSqlUpdateObj) {
-            bindStandardFieldsThenId(mSqlUpdateObj, obj);
+            bindStandardFieldsThenId(mSqlUpdateObj, obj, ref);
             mSqlUpdateObj.execute();
         }
     }
@@ -232,50 +277,25 @@ public class ObjectManager extends ManagerBase {
     }
 
     public MObject getObjectForId(long id) {
-        SQLiteDatabase db = initializeDatabase();
-        if (mSqlQueryObjectForId == null) {
-            synchronized (this) {
-                StringBuilder sql = new StringBuilder(100).append("SELECT ");
-                for (String c : STANDARD_FIELDS) {
-                    sql.append(c).append(",");
-                }
-                sql.setLength(sql.length() - 1);
-                sql.append(" FROM ").append(MObject.TABLE)
-                    .append(" WHERE ").append(MObject.COL_ID).append("=?");
-                mSqlQueryObjectForId = sql.toString();
-            }
-        }
-
-        String[] selectionArgs = new String[] { String.valueOf(id) };
-        Cursor c = db.rawQuery(mSqlQueryObjectForId, selectionArgs);
-        try {
-            if (c.moveToNext()) {
-                return fillInStandardFields(c);
-            }
-            return null;
-        } finally {
-            c.close();
+        BoundQuery query = getQuery(SQL_OBJECT_FOR_ID);
+        synchronized (query) {
+            query.bindLong(1, id);
+            return query.queryOne(initializeDatabase(), mObjectMapper);
         }
     }
 
-    String mSqlQueryForRawById;
     public byte[] getRawForId(long id) {
     	SQLiteDatabase db = initializeDatabase();
-    	if (mSqlQueryForRawById == null) {
-    		synchronized (this) {
-    			StringBuilder sql = new StringBuilder(100).append("SELECT ")
-    					.append(MObject.COL_RAW)
-    					.append(" FROM ").append(MObject.TABLE)
-    					.append(" WHERE ").append(MObject.COL_ID).append("=?");
-    			mSqlQueryForRawById = sql.toString();
-    		}
+    	BoundQuery query = getQuery(SQL_RAW_FOR_ID);
+    	Cursor c;
+    	synchronized (query) {
+    		query.bindLong(1, id);
+    		c = query.query(db);
     	}
-
-    	String[] selectionArgs = new String[] { Long.toString(id) };
-    	Cursor c = db.rawQuery(mSqlQueryForRawById, selectionArgs);
     	try {
     		if (c.moveToFirst()) {
     			if (!c.isNull(0)) return c.getBlob(0);
+    			if (!c.isNull(1) && mBlobStore != null) return mBlobStore.get(c.getBlob(1));
     		}
     		return null;
     	} finally {
@@ -284,7 +304,17 @@ public class ObjectManager extends ManagerBase {
     }
 
     SQLiteStatement mSqlGetFdForRaw;
-    public FileDescriptor getFileDescriptorForRaw(long objId) {
+    /**
+     * Opens the raw payload for streaming.  Payloads kept in the blob store
+     * are read straight from their file; ones still in the row need
+     * Honeycomb or later.  The caller owns the returned descriptor and must
+     * close it.
+     */
+    public ParcelFileDescriptor openRaw(long objId) {
+		byte[] ref = getRawHashForId(objId);
+		if (ref != null && mBlobStore != null) {
+			return mBlobStore.open(ref);
+		}
 		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
 			return null;
 		}
@@ -304,53 +334,239 @@ public class ObjectManager extends ManagerBase {
 		synchronized (mSqlGetFdForRaw) {
 			mSqlGetFdForRaw.bindLong(1, objId);
 			try {
-				ParcelFileDescriptor pfd = mSqlGetFdForRaw.simpleQueryForBlobFileDescriptor();
-				if (pfd == null) {
-					return null;
-				}
-				return pfd.getFileDescriptor();
+				return mSqlGetFdForRaw.simpleQueryForBlobFileDescriptor();
 			} catch (SQLiteDoneException e) {
 				return null;
 			}
 		}
 	}
 
+    byte[] getRawHashForId(long id) {
+    	SQLiteDatabase db = initializeDatabase();
+    	BoundQuery query = getQuery(SQL_RAW_HASH_FOR_ID);
+    	Cursor c;
+    	synchronized (query) {
+    		query.bindLong(1, id);
+    		c = query.query(db);
+    	}
+    	try {
+    		if (c.moveToFirst() && !c.isNull(0)) {
+    			return c.getBlob(0);
+    		}
+    		return null;
+    	} finally {
+    		c.close();
+    	}
+    }
+
     public MObject getObjectWithoutRawForId(long id) {
+        BoundQuery query = getQuery(SQL_OBJECT_WITHOUT_RAW_FOR_ID);
+        synchronized (query) {
+            query.bindLong(1, id);
+            return query.queryOne(initializeDatabase(), mObjectMapper);
+        }
+    }
+
+    public boolean delete(long id) {
+        SQLiteDatabase db = initializeDatabase();
+        byte[] ref = mBlobStore == null ? null : getRawHashForId(id);
+        String whereClause = MObject.COL_ID + " = ?";
+        String[] whereArgs = new String[] { Long.toString(id) };
+        boolean deleted = db.delete(MObject.TABLE, whereClause, whereArgs) > 0;
+        if (deleted) {
+            unindexSearchText(id);
+        }
+        if (ref != null) {
+            synchronized (mReleasedBlobs) {
+                mReleasedBlobs.add(ref);
+            }
+        }
+        //a delete inside a transaction could still be rolled back, so the
+        //blob is only released once we are back outside of it
+        if (!db.inTransaction()) {
+            releaseBlobs();
+        }
+        return deleted;
+    }
+
+    /**
+     * Makes an object findable by the given text, replacing anything it
+     * was indexed under before.
+     */
+    public void indexSearchText(long id, String text) {
+        SQLiteDatabase db = initializeDatabase();
+        if (mSqlInsertSearchText == null) {
+            synchronized (this) {
+                if (mSqlInsertSearchText == null) {
+                    String sql = new StringBuilder()
+                        .append("INSERT INTO ").append(MObjectSearch.TABLE).append("(")
+                        .append(MObjectSearch.COL_DOCID).append(",")
+                        .append(MObjectSearch.COL_TEXT)
+                        .append(") VALUES (?,?)").toString();
+                    mSqlInsertSearchText = db.compileStatement(sql);
+                }
+            }
+        }
+        //fts tables don't take INSERT OR REPLACE on older sqlite versions
+        db.beginTransaction();
+        try {
+            unindexSearchText(id);
+            synchronized (mSqlInsertSearchText) {
+                mSqlInsertSearchText.bindLong(1, id);
+                mSqlInsertSearchText.bindString(2, text);
+                mSqlInsertSearchText.execute();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    void unindexSearchText(long id) {
         SQLiteDatabase db = initializeDatabase();
-        if (mSqlQueryObjectWithoutRawForId == null) {
+        if (mSqlDeleteSearchText == null) {
             synchronized (this) {
-                StringBuilder sql = new StringBuilder(100).append("SELECT ");
-                for (String c : STANDARD_FIELDS) {
-                	if (c.equals(MObject.COL_RAW)) {
-                		sql.append("NULL,");
-                	} else {
-                		sql.append(c).append(",");
-                	}
+                if (mSqlDeleteSearchText == null) {
+                    String sql = "DELETE FROM " + MObjectSearch.TABLE +
+                            " WHERE " + MObjectSearch.COL_DOCID + "=?";
+                    mSqlDeleteSearchText = db.compileStatement(sql);
                 }
-                sql.setLength(sql.length() - 1);
-                sql.append(" FROM ").append(MObject.TABLE)
-                    .append(" WHERE ").append(MObject.COL_ID).append("=?");
-                mSqlQueryObjectWithoutRawForId = sql.toString();
             }
         }
+        synchronized (mSqlDeleteSearchText) {
+            mSqlDeleteSearchText.bindLong(1, id);
+            mSqlDeleteSearchText.execute();
+        }
+    }
+
+    /**
+     * Finds the objects whose text matches an FTS query, best matches first
+     * unless a sort order is given.  The rows hold the object's id, feed,
+     * type, sender, last modified time, rank and a highlighted snippet.
+     * Deleted objects are left out.
+     */
+    public Cursor searchObjects(String match, String selection, String[] selectionArgs,
+            String sortOrder, int limit) {
+        String o = MObject.TABLE + ".";
+        String offsets = "offsets(" + MObjectSearch.TABLE + ")";
+        StringBuilder sql = new StringBuilder(400)
+            .append("SELECT ")
+            .append(o).append(MObject.COL_ID).append(",")
+            .append(o).append(MObject.COL_FEED_ID).append(",")
+            .append(o).append(MObject.COL_TYPE).append(",")
+            .append(o).append(MObject.COL_IDENTITY_ID).append(",")
+            .append(o).append(MObject.COL_LAST_MODIFIED_TIMESTAMP).append(",")
+            //offsets() gives four numbers per matched term
+            .append("(length(").append(offsets).append(") - length(replace(").append(offsets)
+                .append(",' ','')) + 1) / 4 AS ").append(MObjectSearch.COL_RANK).append(",")
+            .append("snippet(").append(MObjectSearch.TABLE).append(",'<b>','</b>','...') AS ")
+                .append(MObjectSearch.COL_SNIPPET)
+            .append(" FROM ").append(MObjectSearch.TABLE)
+            .append(" JOIN ").append(MObject.TABLE).append(" ON ")
+                .append(o).append(MObject.COL_ID).append("=")
+                .append(MObjectSearch.TABLE).append(".").append(MObjectSearch.COL_DOCID)
+            .append(" WHERE ").append(MObjectSearch.TABLE).append(" MATCH ? AND ")
+                .append(o).append(MObject.COL_DELETED).append("=0");
+        if (selection != null && selection.length() > 0) {
+            sql.append(" AND (").append(selection).append(")");
+        }
+        if (sortOrder == null) {
+            sortOrder = MObjectSearch.COL_RANK + " DESC," +
+                    MObject.COL_LAST_MODIFIED_TIMESTAMP + " DESC";
+        }
+        sql.append(" ORDER BY ").append(sortOrder);
+        if (limit > 0) {
+            sql.append(" LIMIT ").append(limit);
+        }
 
-        String[] selectionArgs = new String[] { String.valueOf(id) };
-        Cursor c = db.rawQuery(mSqlQueryObjectWithoutRawForId, selectionArgs);
+        int extra = (selectionArgs == null) ? 0 : selectionArgs.length;
+        String[] args = new String[1 + extra];
+        args[0] = match;
+        if (extra > 0) {
+            System.arraycopy(selectionArgs, 0, args, 1, extra);
+        }
+        return initializeDatabase().rawQuery(sql.toString(), args);
+    }
+
+    /**
+     * Drops the blobs of deleted objects that no other object shares.
+     */
+    void releaseBlobs() {
+        byte[][] refs;
+        synchronized (mReleasedBlobs) {
+            if (mReleasedBlobs.isEmpty()) {
+                return;
+            }
+            refs = mReleasedBlobs.toArray(new byte[mReleasedBlobs.size()][]);
+            mReleasedBlobs.clear();
+        }
+        SQLiteDatabase db = initializeDatabase();
+        if (mSqlBlobRefCount == null) {
+            synchronized (this) {
+                if (mSqlBlobRefCount == null) {
+                    String sql = new StringBuilder()
+                        .append("SELECT COUNT(*) FROM ").append(MObject.TABLE)
+                        .append(" WHERE ").append(MObject.COL_RAW_HASH).append("=?").toString();
+                    mSqlBlobRefCount = db.compileStatement(sql);
+                }
+            }
+        }
+        for (byte[] ref : refs) {
+            long count;
+            synchronized (mSqlBlobRefCount) {
+                mSqlBlobRefCount.bindBlob(1, ref);
+                count = mSqlBlobRefCount.simpleQueryForLong();
+            }
+            if (count == 0) {
+                mBlobStore.release(ref);
+            }
+        }
+    }
+
+    /**
+     * Removes every blob that no object refers to.  Catches the blobs of
+     * objects deleted in bulk or inside transactions.
+     * @return the number of blobs removed
+     */
+    public int collectBlobGarbage() {
+        if (mBlobStore == null) {
+            return 0;
+        }
+        SQLiteDatabase db = initializeDatabase();
+        HashSet<String> referenced = new HashSet<String>();
+        Cursor c = db.query(true, MObject.TABLE, new String[] { MObject.COL_RAW_HASH },
+                MObject.COL_RAW_HASH + " IS NOT NULL", null, null, null, null, null);
         try {
-            if (c.moveToNext()) {
-                return fillInStandardFields(c);
+            while (c.moveToNext()) {
+                referenced.add(Util.convertToHex(c.getBlob(0)));
             }
-            return null;
         } finally {
             c.close();
         }
+        synchronized (mReleasedBlobs) {
+            mReleasedBlobs.clear();
+        }
+        int removed = mBlobStore.retainAll(referenced);
+        if (removed > 0) {
+            Log.i(TAG, "collected " + removed + " unreferenced blobs");
+        }
+        return removed;
     }
 
-    public boolean delete(long id) {
-        SQLiteDatabase db = initializeDatabase();
-        String whereClause = MObject.COL_ID + " = ?";
-        String[] whereArgs = new String[] { Long.toString(id) };
-        return db.delete(MObject.TABLE, whereClause, whereArgs) > 0;
+    /**
+     * Moves a large payload into the blob store.
+     * @return the blob reference for the row, or null if the payload stays inline
+     */
+    private byte[] storeRaw(byte[] data) {
+        if (data == null || data.length <= BlobStore.INLINE_LIMIT || mBlobStore == null) {
+            return null;
+        }
+        try {
+            return mBlobStore.put(data);
+        } catch (IOException e) {
+            Log.e(TAG, "failed to store blob, keeping it in the database", e);
+            return null;
+        }
     }
 
     private MObject fillInStandardFields(Cursor c) {
@@ -367,6 +583,9 @@ public class ObjectManager extends ManagerBase {
         obj.type_ = c.getString(type);
         obj.json_ = c.getString(json);
         obj.raw_ = c.getBlob(raw);
+        if (obj.raw_ == null && !c.isNull(rawHash) && mBlobStore != null) {
+            obj.raw_ = mBlobStore.get(c.getBlob(rawHash));
+        }
         obj.intKey_ = c.isNull(intKey) ? null : c.getInt(intKey);
         obj.stringKey_ = c.getString(stringKey);
         obj.lastModifiedTimestamp_ = c.isNull(lastModified) ? null : c.getLong(lastModified);
@@ -377,7 +596,7 @@ public class ObjectManager extends ManagerBase {
         return obj;
     }
 
-    private void bindStandardFields(SQLiteStatement statement, MObject obj) {
+    private void bindStandardFields(SQLiteStatement statement, MObject obj, byte[] ref) {
         assert(obj.type_ != null);
 
         statement.bindLong(feedId, obj.feedId_);
@@ -394,7 +613,7 @@ public class ObjectManager extends ManagerBase {
         statement.bindString(type, obj.type_);
         if (obj.json_ == null) statement.bindNull(json);
             else statement.bindString(json, obj.json_);
-        if (obj.raw_ == null) statement.bindNull(raw);
+        if (obj.raw_ == null || ref != null) statement.bindNull(raw);
         	else statement.bindBlob(raw, obj.raw_);
         if (obj.intKey_ == null) statement.bindNull(intKey);
     		else statement.bindLong(intKey, obj.intKey_);
@@ -406,11 +625,13 @@ public class ObjectManager extends ManagerBase {
         statement.bindLong(deleted, obj.deleted_ ? 1 : 0);
         statement.bindLong(renderable, obj.renderable_ ? 1 : 0);
         statement.bindLong(processed, obj.processed_ ? 1 : 0);
+        if (ref == null) statement.bindNull(rawHash);
+        	else statement.bindBlob(rawHash, ref);
     }
 
-    private void bindStandardFieldsThenId(SQLiteStatement statement, MObject obj) {
-        bindStandardFields(statement, obj);
-        statement.bindLong(processed + 1, obj.id_);
+    private void bindStandardFieldsThenId(SQLiteStatement statement, MObject obj, byte[] ref) {
+        bindStandardFields(statement, obj, ref);
+        statement.bindLong(rawHash + 1, obj.id_);
     }
 
 	public long getObjectIdForHash(byte[] hash) {
@@ -539,6 +760,24 @@ public class ObjectManager extends ManagerBase {
 		}
 	}
 
+    /**
+     * Incremental version of {@link #objectsToEncode()} for the encoder.
+     */
+    public PendingWorkScanner newEncodeScanner() {
+        return new PendingWorkScanner(this, MObject.TABLE, MObject.COL_ID,
+                MObject.COL_ENCODED_ID + " is null");
+    }
+
+    /**
+     * Finds objects the pipeline has not processed yet.  Outbound objects
+     * show up here before they are encoded, and should be rechecked until
+     * they are.
+     */
+    public PendingWorkScanner newPipelineScanner() {
+        return new PendingWorkScanner(this, MObject.TABLE, MObject.COL_ID,
+                MObject.COL_PROCESSED + "=0");
+    }
+
     public long[] objectsToEncode() {
     	if (mSqlGetObjectsToEncode == null) {
     		mSqlGetObjectsToEncode = new StringBuilder(80)
@@ -561,6 +800,7 @@ public class ObjectManager extends ManagerBase {
 
 	@Override
 	public synchronized void close() {
+		closeCachedStatements();
 		if (mSqlInsertObj != null) {
 			mSqlInsertObj.close();
 			mSqlInsertObj = null;
@@ -593,5 +833,17 @@ public class ObjectManager extends ManagerBase {
 			mSqlUpdateObjEncodeMetadata.close();
 			mSqlUpdateObjEncodeMetadata = null;
 		}
+		if (mSqlBlobRefCount != null) {
+			mSqlBlobRefCount.close();
+			mSqlBlobRefCount = null;
+		}
+		if (mSqlInsertSearchText != null) {
+			mSqlInsertSearchText.close();
+			mSqlInsertSearchText = null;
+		}
+		if (mSqlDeleteSearchText != null) {
+			mSqlDeleteSearchText.close();
+			mSqlDeleteSearchText = null;
+		}
 	}
 }
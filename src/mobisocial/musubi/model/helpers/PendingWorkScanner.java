@@ -0,0 +1,180 @@
+/*
+ * Copyright 2012 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.musubi.model.helpers;
+
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.set.hash.TLongHashSet;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Hands a processor the rows of a table that need work without rescanning
+ * the whole backlog on every notification.  Each pass returns the pending
+ * rows inserted since the previous pass, plus any rows the processor asked
+ * to have rechecked that are still pending.  Rows are identified by their
+ * integer primary key, which only grows while the top row survives.
+ * 
+ * A full scan is still done on the first pass, periodically, and whenever
+ * the top of the table was deleted, since sqlite may then hand out the same
+ * ids again.  A trigger counts those deletes, so a delete followed by an
+ * insert that reuses the top id is noticed even though the maximum id looks
+ * unchanged.
+ * 
+ * Not thread safe; it is meant to be driven from a processor's own thread.
+ */
+public class PendingWorkScanner {
+	/**
+	 * How often to fall back to a full scan even if nothing looks amiss.
+	 */
+	public static final long SWEEP_INTERVAL = 10 * 60 * 1000;
+	static final int MAX_IN_CLAUSE = 500;
+
+	/* bumped by a trigger whenever the top row of a scanned table is deleted */
+	static final String DELETIONS_TABLE = "top_row_deletions";
+	static final String COL_TABLE = "table_name";
+	static final String COL_GENERATION = "generation";
+
+	final ManagerBase mManager;
+	final String mTable;
+	final String mIdColumn;
+	final String mSelection;
+
+	long mHighWater = -1;
+	long mGeneration;
+	long mLastSweep;
+	final TLongHashSet mRecheck = new TLongHashSet();
+	int mLastBatchFresh;
+	boolean mLastBatchSweep;
+
+	/**
+	 * @param selection the rows that need work, as a where clause over the table
+	 */
+	PendingWorkScanner(ManagerBase manager, String table, String idColumn, String selection) {
+		mManager = manager;
+		mTable = table;
+		mIdColumn = idColumn;
+		mSelection = selection;
+	}
+
+	/**
+	 * Forces the next pass to scan the whole table.
+	 */
+	public void requestSweep() {
+		mHighWater = -1;
+	}
+
+	/**
+	 * Asks for a row to be looked at again on the next pass if it still
+	 * matches the selection.
+	 */
+	public void recheck(long id) {
+		mRecheck.add(id);
+	}
+
+	public void recheck(long[] ids) {
+		mRecheck.addAll(ids);
+	}
+
+	/**
+	 * @return the ids of the rows to work on this pass, in ascending order
+	 */
+	public long[] nextBatch() {
+		SQLiteDatabase db = mManager.initializeDatabase();
+		long now = System.currentTimeMillis();
+		long top = DatabaseUtils.longForQuery(db,
+				"SELECT max(" + mIdColumn + ") FROM " + mTable, null);
+		long generation = DatabaseUtils.longForQuery(db,
+				"SELECT coalesce(max(" + COL_GENERATION + "),0) FROM " + DELETIONS_TABLE +
+				" WHERE " + COL_TABLE + "=?", new String[] { mTable });
+
+		TLongArrayList ids = new TLongArrayList();
+		if (mHighWater < 0 || top < mHighWater || generation != mGeneration ||
+				now - mLastSweep > SWEEP_INTERVAL) {
+			query(db, mSelection, ids);
+			mRecheck.clear();
+			mLastSweep = now;
+			mLastBatchSweep = true;
+			mLastBatchFresh = ids.size();
+		} else {
+			query(db, "(" + mSelection + ") AND " + mIdColumn + ">" + mHighWater, ids);
+			mLastBatchSweep = false;
+			mLastBatchFresh = ids.size();
+			if (!mRecheck.isEmpty()) {
+				long[] recheck = mRecheck.toArray();
+				mRecheck.clear();
+				for (int i = 0; i < recheck.length; i += MAX_IN_CLAUSE) {
+					StringBuilder in = new StringBuilder(mSelection.length() + 20 + MAX_IN_CLAUSE * 8)
+						.append("(").append(mSelection).append(") AND ")
+						.append(mIdColumn).append(" IN (");
+					int end = Math.min(recheck.length, i + MAX_IN_CLAUSE);
+					for (int j = i; j < end; ++j) {
+						if (j > i)
+							in.append(',');
+						in.append(recheck[j]);
+					}
+					in.append(")");
+					query(db, in.toString(), ids);
+				}
+				ids.sort();
+				//a recheck may also have been inserted since the last pass
+				int w = 0;
+				for (int r = 0; r < ids.size(); ++r) {
+					if (w == 0 || ids.getQuick(r) != ids.getQuick(w - 1)) {
+						ids.setQuick(w++, ids.getQuick(r));
+					}
+				}
+				if (w < ids.size()) {
+					ids.remove(w, ids.size() - w);
+				}
+			}
+		}
+		mHighWater = Math.max(top, ids.isEmpty() ? top : ids.get(ids.size() - 1));
+		mGeneration = generation;
+		return ids.toArray();
+	}
+
+	/**
+	 * Installs the trigger that tells scanners of the given table when its
+	 * top row was deleted.
+	 */
+	static void createDeletionTrigger(SQLiteDatabase db, String table, String idColumn) {
+		db.execSQL("CREATE TRIGGER " + table + "_top_deleted AFTER DELETE ON " + table +
+				" WHEN old." + idColumn + ">coalesce((SELECT max(" + idColumn + ") FROM " + table + "),0)" +
+				" BEGIN INSERT OR REPLACE INTO " + DELETIONS_TABLE + " VALUES ('" + table + "'," +
+				"coalesce((SELECT " + COL_GENERATION + " FROM " + DELETIONS_TABLE +
+				" WHERE " + COL_TABLE + "='" + table + "'),0)+1); END");
+	}
+
+	private void query(SQLiteDatabase db, String selection, TLongArrayList out) {
+		Cursor c = db.query(mTable, new String[] { mIdColumn }, selection,
+				null, null, null, mIdColumn + " ASC");
+		try {
+			while (c.moveToNext()) {
+				out.add(c.getLong(0));
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return mTable + (mLastBatchSweep ? " sweep " : " incremental ") + mLastBatchFresh
+				+ " new, high water " + mHighWater;
+	}
+}
@@ -392,7 +392,7 @@ public final class ObjHelpers {
         icon.setTag(sender.midentity.id_);
         icon.setOnClickListener(sViewProfileAction);
 
-    	icon.setImageBitmap(sender.thumbnail);
+    	icon.setImageBitmap(sender.getThumbnail());
         
         if (objRow.deleted) {
             frame.setBackgroundColor(sDeletedColor);
@@ -572,6 +572,39 @@ public final class ObjHelpers {
         return sDiscardTypes.contains(type);
     };
 
+    /**
+     * The readable text of an object for the search index, or null if
+     * its type has nothing worth searching.
+     */
+    public static String getSearchText(String type, JSONObject json) {
+        if (json == null) {
+            return null;
+        }
+        StringBuilder text = new StringBuilder();
+        if (StatusObj.TYPE.equals(type)) {
+            appendSearchText(text, json, StatusObj.TEXT);
+        } else if (PictureObj.TYPE.equals(type)) {
+            appendSearchText(text, json, PictureObj.TEXT);
+        } else if (FileObj.TYPE.equals(type)) {
+            appendSearchText(text, json, FileObj.OBJ_FILENAME);
+        } else if (StoryObj.TYPE.equals(type)) {
+            appendSearchText(text, json, StoryObj.TITLE);
+            appendSearchText(text, json, StoryObj.TEXT);
+            appendSearchText(text, json, StoryObj.URL);
+        }
+        return (text.length() == 0) ? null : text.toString();
+    }
+
+    private static void appendSearchText(StringBuilder text, JSONObject json, String key) {
+        String value = json.optString(key);
+        if (value.length() > 0) {
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+            text.append(value);
+        }
+    }
+
     public static Uri uriForId(long id) {
         return MusubiContentProvider.uriForItem(Provided.OBJECTS, id);
     }
@@ -34,6 +34,7 @@ import mobisocial.musubi.provider.MusubiContentProvider;
 import mobisocial.musubi.service.WebRenderService;
 import mobisocial.musubi.ui.fragments.FeedListFragment.FeedSummary;
 import mobisocial.musubi.ui.widget.DbObjCursorAdapter.DbObjCursor;
+import mobisocial.musubi.util.BitmapLoader;
 import mobisocial.musubi.util.Util;
 import mobisocial.socialkit.Obj;
 import mobisocial.socialkit.musubi.DbObj;
@@ -147,19 +148,21 @@ public class AppStateObj extends DbEntryHandler implements FeedRenderer, Activat
 	    JSONObject content = obj.getJson();
 	    boolean rendered = false;
 	    AppState ref = new AppState(content);
-	    byte[] raw = ref.getThumbnailPicture();
-	    if (content.has(THUMB_RAW_JPG) && raw != null) {
+	    if (content.has(THUMB_RAW_JPG)) {
 	        rendered = true;
             ImageView imageView = new ImageView(context);
             imageView.setLayoutParams(new LinearLayout.LayoutParams(
                                           LinearLayout.LayoutParams.WRAP_CONTENT,
                                           LinearLayout.LayoutParams.WRAP_CONTENT));
-            //TODO: this is complete BS, pass in thing has a local id which is a perfect hash
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inPurgeable = true;
-            options.inInputShareable = true;
-        	Bitmap b = BitmapFactory.decodeByteArray(raw, 0, raw.length, options);
-            imageView.setImageBitmap(b);
+            //the base64 and jpeg decoding both happen on the loader's thread
+            final String encoded = content.optString(THUMB_RAW_JPG);
+            BitmapLoader.get(context).load(imageView, "appstate:" + obj.objId, new BitmapLoader.Decoder() {
+                @Override
+                public Bitmap decode() {
+                    byte[] raw = Base64.decode(encoded, Base64.DEFAULT);
+                    return BitmapFactory.decodeByteArray(raw, 0, raw.length);
+                }
+            }, BitmapLoader.SET_IMAGE);
             frame.addView(imageView);
 	    }
 
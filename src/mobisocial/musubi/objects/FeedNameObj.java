@@ -24,6 +24,7 @@ import mobisocial.musubi.model.MIdentity;
 import mobisocial.musubi.model.MObject;
 import mobisocial.musubi.model.helpers.FeedManager;
 import mobisocial.musubi.service.MusubiService;
+import mobisocial.musubi.ui.fragments.FeedListFragment.FeedIconCache;
 import mobisocial.musubi.ui.fragments.FeedListFragment.FeedSummary;
 import mobisocial.musubi.ui.util.EmojiSpannableFactory;
 import mobisocial.musubi.ui.widget.DbObjCursorAdapter.DbObjCursor;
@@ -154,6 +155,9 @@ public class FeedNameObj extends DbEntryHandler implements FeedRenderer {
 				feed.thumbnail_ = feedThumbnail;
 			}
 			feedManager.updateFeedDetails(feed.id_, feed.name_, feed.thumbnail_);
+			if (feedThumbnail != null) {
+				FeedIconCache.invalidate(context, feed.id_);
+			}
 			context.getContentResolver().notifyChange(MusubiService.FEED_UPDATED, null);
 		}
     	return true;
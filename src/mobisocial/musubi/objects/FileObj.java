@@ -383,11 +383,14 @@ public class FileObj extends DbEntryHandler implements FeedRenderer, Activator {
 
 	@Override
 	public void getSummaryText(Context context, TextView view, FeedSummary summary) {
-		JSONObject obj = summary.getJson();
+		String filename = summary.preview;
+		if (filename == null) {
+			filename = summary.getJson().optString(FileObj.OBJ_FILENAME);
+		}
 		view.setTypeface(null, Typeface.ITALIC);
 		view.setText(summary.getSender() 
 				  	 + " posted a new file: " 
-					 + obj.optString(FileObj.OBJ_FILENAME));
+					 + filename);
 	}
     
 
@@ -20,7 +20,6 @@ import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.lang.ref.SoftReference;
 
 import mobisocial.musubi.App;
 import mobisocial.musubi.ImageGalleryActivity;
@@ -32,9 +31,11 @@ import mobisocial.musubi.model.DbContactAttributes;
 import mobisocial.musubi.model.MFeed;
 import mobisocial.musubi.model.MIdentity;
 import mobisocial.musubi.model.MObject;
+import mobisocial.musubi.model.helpers.ObjectManager;
 import mobisocial.musubi.ui.MusubiBaseActivity;
 import mobisocial.musubi.ui.fragments.FeedListFragment.FeedSummary;
 import mobisocial.musubi.ui.widget.DbObjCursorAdapter.DbObjCursor;
+import mobisocial.musubi.util.BitmapLoader;
 import mobisocial.musubi.util.CommonLayouts;
 import mobisocial.musubi.util.UriImage;
 import mobisocial.socialkit.musubi.DbObj;
@@ -54,9 +55,10 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Typeface;
-import android.graphics.drawable.BitmapDrawable;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.support.v4.util.LruCache;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.View;
@@ -160,80 +162,149 @@ public class PictureObj extends DbEntryHandler implements FeedRenderer, Activato
     	LinearLayout frame = (LinearLayout)view;
 
     	ImageView imageView = (ImageView)frame.getChildAt(0);
-    	FileDescriptor fd = obj.getFileDescriptorForRaw();
-    	byte[] raw = null;
-    	if (fd == null) {
-    		raw = obj.getRaw();
-    	}
-    	
+    	bindImageToView(context, imageView, obj);
 
-	    bindImageToView(context, imageView, raw, fd);
-    	
     	String text = obj.getJson().optString(TEXT);
     	TextView textView = (TextView)frame.getChildAt(1);
     	textView.setText(text);
 	}
 
     /**
-     * Pass in one of raw or fd as the source of the image.
-     * Not thread safe, only call on the ui thread.
+     * Shows the obj's picture in imageView, decoding it in the background
+     * unless it is already in memory.  Only call on the ui thread.
      */
-    protected static void bindImageToView(Context context, ImageView imageView, byte[] raw, FileDescriptor fd) {
-        // recycle old images (vs. caching in ImageCache)
-        if (imageView.getDrawable() != null) {
-        	BitmapDrawable d = (BitmapDrawable)imageView.getDrawable();
-        	if (d != null && d.getBitmap() != null) {
-        		d.getBitmap().recycle();
-        	}
+    protected static void bindImageToView(Context context, ImageView imageView, DbObjCursor obj) {
+        final int width = getImageWidth(context);
+        final int maxHeight = getMaxImageHeight(context);
+        final ObjectManager objectManager = obj.getDatabaseManager().getObjectManager();
+        final long objId = obj.objId;
+        String key = "obj:" + objId + ":" + width;
+
+        boolean loaded = BitmapLoader.get(context).load(imageView, key, new BitmapLoader.Decoder() {
+            @Override
+            public Bitmap decode() {
+                return decodeSampled(objectManager, objId, width, maxHeight);
+            }
+        }, new SizeToFit(key));
+        if (!loaded) {
+            //hold the space the picture had last time so the row does not jump
+            Integer height = sImageHeights.get(key);
+            imageView.setImageDrawable(null);
+            imageView.getLayoutParams().width = width + 13;
+            imageView.getLayoutParams().height = (height == null ? width * 3 / 4 : height) + 14;
         }
+    }
 
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        if (fd != null) {
-        	BitmapFactory.decodeFileDescriptor(fd, null, options);
-        } else {
-        	BitmapFactory.decodeByteArray(raw, 0, raw.length, options);
+    /**
+     * Heights of recently shown pictures, used for the placeholder once the
+     * bitmap itself has left the cache.
+     */
+    static final LruCache<String, Integer> sImageHeights = new LruCache<String, Integer>(256);
+
+    /**
+     * Sizes the frame to the decoded picture, as the synchronous version
+     * used to before showing it.
+     */
+    static class SizeToFit implements BitmapLoader.Callback {
+        final String mKey;
+
+        SizeToFit(String key) {
+            mKey = key;
         }
-        Resources res = context.getResources();
 
+        @Override
+        public void onBitmap(ImageView imageView, Bitmap bm) {
+            if (bm == null) {
+                imageView.setImageDrawable(null);
+                return;
+            }
+            Context context = imageView.getContext();
+            int width = getImageWidth(context);
+            int height = (int)((float)width / bm.getWidth() * bm.getHeight());
+            int maxHeight = getMaxImageHeight(context);
+            if (height > maxHeight) {
+                width = width * maxHeight / height;
+                height = maxHeight;
+            }
+            sImageHeights.put(mKey, height);
+            imageView.getLayoutParams().width = width + 13;
+            imageView.getLayoutParams().height = height + 14;
+            imageView.setImageBitmap(bm);
+        }
+    }
+
+    static int getImageWidth(Context context) {
+        Resources res = context.getResources();
         float scaleFactor;
         if (res.getBoolean(R.bool.is_tablet)) {
             scaleFactor = 3.0f;
         } else {
             scaleFactor = 2.0f;
         }
-        DisplayMetrics dm = context.getResources().getDisplayMetrics();
+        DisplayMetrics dm = res.getDisplayMetrics();
         int pixels = dm.widthPixels;
         if (dm.heightPixels < pixels) {
             pixels = dm.heightPixels;
         }
-        int width = (int)(pixels / scaleFactor);
-        int height = (int)((float)width / options.outWidth * options.outHeight);
-        int max_height = (int)(AppStateObj.MAX_HEIGHT * dm.density);
-        if(height > max_height) {
-        	width = width * max_height / height;
-        	height = max_height;
-        }
+        return (int)(pixels / scaleFactor);
+    }
 
-        options.inJustDecodeBounds = false;
-        options.inTempStorage = getTempData();
-        options.inSampleSize = 1;
-        //TODO: lame, can just compute
-        while(options.outWidth / (options.inSampleSize + 1) >= width && options.outHeight / (options.inSampleSize + 1) >= height) {
-        	options.inSampleSize++;
-        }
-        options.inPurgeable = true;
-        options.inInputShareable = true;
+    static int getMaxImageHeight(Context context) {
+        return (int)(AppStateObj.MAX_HEIGHT * context.getResources().getDisplayMetrics().density);
+    }
 
-        Bitmap bm;
-        if (fd != null) {
-        	bm = BitmapFactory.decodeFileDescriptor(fd, null, options);
-        } else {
-        	bm = BitmapFactory.decodeByteArray(raw, 0, raw.length, options);
+    /**
+     * Decodes the obj's raw picture at the smallest sample size that still
+     * covers width by height.  Safe to call from any thread.
+     */
+    static Bitmap decodeSampled(ObjectManager objectManager, long objId, int width, int maxHeight) {
+        ParcelFileDescriptor pfd = objectManager.openRaw(objId);
+        try {
+            FileDescriptor fd = null;
+            byte[] raw = null;
+            if (pfd != null) {
+                fd = pfd.getFileDescriptor();
+            } else {
+                raw = objectManager.getRawForId(objId);
+                if (raw == null) {
+                    return null;
+                }
+            }
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            if (fd != null) {
+                BitmapFactory.decodeFileDescriptor(fd, null, options);
+            } else {
+                BitmapFactory.decodeByteArray(raw, 0, raw.length, options);
+            }
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            int height = (int)((float)width / options.outWidth * options.outHeight);
+            if (height > maxHeight) {
+                width = width * maxHeight / height;
+                height = maxHeight;
+            }
+
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = Math.max(1, Math.min(options.outWidth / Math.max(1, width),
+                    options.outHeight / Math.max(1, height)));
+            //not purgeable, that would put the decode back on the ui thread at draw time
+            if (fd != null) {
+                return BitmapFactory.decodeFileDescriptor(fd, null, options);
+            } else {
+                return BitmapFactory.decodeByteArray(raw, 0, raw.length, options);
+            }
+        } finally {
+            if (pfd != null) {
+                try {
+                    pfd.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "failed to close picture for obj " + objId, e);
+                }
+            }
         }
-        imageView.getLayoutParams().width = width + 13;
-        imageView.getLayoutParams().height = height + 14;
-        imageView.setImageBitmap(bm);
     }
 
 	@Override
@@ -265,22 +336,17 @@ public class PictureObj extends DbEntryHandler implements FeedRenderer, Activato
 	    return true;
 	}
 
-	static byte[] mTempData;
-	static byte[] getTempData() {
-		if (mTempData == null) {
-			mTempData = new byte[16*1024];
-		}
-		return mTempData;
-	}
-
 	@Override
 	public void getSummaryText(Context context, TextView view, FeedSummary summary) {
 		view.setTypeface(null, Typeface.ITALIC);
 		
-		JSONObject json = summary.getJson();
-		if (json != null && json.optString(PictureObj.TEXT).length() > 0) {
+		String caption = summary.preview;
+		if (caption == null && summary.getJson() != null) {
+			caption = summary.getJson().optString(PictureObj.TEXT);
+		}
+		if (caption != null && caption.length() > 0) {
 			StringBuilder summaryText = new StringBuilder(50)
-			.append(summary.getSender()).append(" shared a picture with the caption \"" + json.optString(StatusObj.TEXT) + "\"");
+			.append(summary.getSender()).append(" shared a picture with the caption \"" + caption + "\"");
 		view.setText(summaryText.toString());	
 		}
 		else {
@@ -121,12 +121,13 @@ public class StatusObj extends DbEntryHandler implements FeedRenderer, Activator
 
 	@Override
 	public void getSummaryText(Context context, TextView view, FeedSummary summary) {
-		JSONObject json = summary.getJson();
 		String text;
-		if (json == null) {
+		if (summary.preview != null) {
+			text = summary.getSender().name + ": " + summary.preview;
+		} else if (summary.getJson() == null) {
 			text = summary.getSender().name + ": <Empty messsage>";
 		} else {
-			text = summary.getSender().name + ": " + json.optString(StatusObj.TEXT);
+			text = summary.getSender().name + ": " + summary.getJson().optString(StatusObj.TEXT);
 		}
 		Spannable span = EmojiSpannableFactory.getInstance(context).newSpannable(text);
 		view.setText(span, BufferType.SPANNABLE);
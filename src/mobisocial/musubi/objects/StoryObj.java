@@ -249,11 +249,14 @@ public class StoryObj extends DbEntryHandler implements FeedRenderer, Activator
 
 	@Override
 	public void getSummaryText(Context context, TextView view, FeedSummary summary) {
-		JSONObject obj = summary.getJson();
 		view.setTypeface(null, Typeface.ITALIC);
-		String title = obj.optString(URL);
-		if (obj.has(TITLE)) {
-			title = obj.optString(TITLE);
+		String title = summary.preview;
+		if (title == null) {
+			JSONObject obj = summary.getJson();
+			title = obj.optString(URL);
+			if (obj.has(TITLE)) {
+				title = obj.optString(TITLE);
+			}
 		}
 		view.setText(summary.getSender() + " posted a web story: " + title);
 	}
@@ -16,7 +16,6 @@
 
 package mobisocial.musubi.objects;
 import java.io.ByteArrayOutputStream;
-import java.io.FileDescriptor;
 import java.io.IOException;
 
 import mobisocial.musubi.R;
@@ -146,12 +145,7 @@ public class VideoObj extends DbEntryHandler implements FeedRenderer, Activator
     public void render(Context context, View view, DbObjCursor obj, boolean allowInteractions) {
     	LinearLayout inner = (LinearLayout)view;
     	ImageView imageView = (ImageView)inner.getChildAt(0);
-        FileDescriptor fd = obj.getFileDescriptorForRaw();
-        byte[] raw = null;
-        if (fd == null) {
-        	raw = obj.getRaw();
-        }
-        PictureObj.bindImageToView(context, imageView, raw, fd);
+        PictureObj.bindImageToView(context, imageView, obj);
     }
 
     public Pair<JSONObject, byte[]> handleUnprocessed(Context context,
@@ -0,0 +1,631 @@
+/*
+ * Copyright 2012 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.musubi.protocol;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A BSON reader and writer specialized for the fixed schema protocol classes.
+ * The output is byte for byte what bson4jackson's ObjectMapper writes for
+ * these classes: fields in declaration order, ints as int32, longs as int64,
+ * byte arrays as generic binary and null references as BSON null.
+ * 
+ * Reading honors the document length, so anything after the outer document,
+ * such as cipher padding, is ignored.  Unknown fields are skipped.  The only
+ * allocations are the protocol objects and their byte arrays.
+ */
+public final class ProtocolCodec {
+	static final byte TYPE_DOUBLE = 0x01;
+	static final byte TYPE_STRING = 0x02;
+	static final byte TYPE_DOCUMENT = 0x03;
+	static final byte TYPE_ARRAY = 0x04;
+	static final byte TYPE_BINARY = 0x05;
+	static final byte TYPE_BOOLEAN = 0x08;
+	static final byte TYPE_NULL = 0x0a;
+	static final byte TYPE_INT32 = 0x10;
+	static final byte TYPE_INT64 = 0x12;
+	static final byte BINARY_GENERIC = 0x00;
+
+	private ProtocolCodec() {
+	}
+
+	/* ------------------------------------------------------------------ */
+	/* sizes */
+
+	public static int sizeOf(Message m) {
+		int size = 4 + 1;
+		size += 3 + 4; // v
+		size += 3 + (m.s == null ? 0 : sizeOf(m.s));
+		size += 3 + sizeOfBinary(m.i);
+		size += 3 + 1; // l
+		size += 3 + sizeOfBinary(m.a);
+		size += 3;
+		if (m.r != null) {
+			size += 4 + 1;
+			for (int n = 0; n < m.r.length; ++n) {
+				size += 1 + digits(n) + 1 + (m.r[n] == null ? 0 : sizeOf(m.r[n]));
+			}
+		}
+		size += 3 + sizeOfBinary(m.d);
+		return size;
+	}
+
+	public static int sizeOf(Sender s) {
+		return 4 + 1 + 3 + sizeOfBinary(s.i) + 3 + sizeOfBinary(s.d);
+	}
+
+	public static int sizeOf(Recipient r) {
+		return 4 + 1 + 3 + sizeOfBinary(r.i) + 3 + sizeOfBinary(r.k) +
+				3 + sizeOfBinary(r.s) + 3 + sizeOfBinary(r.d);
+	}
+
+	public static int sizeOf(Secret s) {
+		return 4 + 1 + 3 + sizeOfBinary(s.h) + 3 + 8 + 3 + sizeOfBinary(s.k);
+	}
+
+	private static int sizeOfBinary(byte[] b) {
+		return b == null ? 0 : 4 + 1 + b.length;
+	}
+
+	private static int digits(int n) {
+		int d = 1;
+		while (n >= 10) {
+			n /= 10;
+			d++;
+		}
+		return d;
+	}
+
+	/* ------------------------------------------------------------------ */
+	/* writing */
+
+	public static byte[] encode(Message m) {
+		byte[] out = new byte[sizeOf(m)];
+		write(ByteBuffer.wrap(out), m);
+		return out;
+	}
+
+	public static byte[] encode(Secret s) {
+		byte[] out = new byte[sizeOf(s)];
+		write(ByteBuffer.wrap(out), s);
+		return out;
+	}
+
+	/**
+	 * Writes the message at the buffer's position, which must have at least
+	 * {@link #sizeOf(Message)} bytes remaining.
+	 */
+	public static void write(ByteBuffer out, Message m) {
+		ByteOrder order = out.order();
+		out.order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			int start = out.position();
+			out.putInt(0);
+			out.put(TYPE_INT32).put((byte)'v').put((byte)0).putInt(m.v);
+			if (m.s == null) {
+				putNull(out, 's');
+			} else {
+				out.put(TYPE_DOCUMENT).put((byte)'s').put((byte)0);
+				writeSender(out, m.s);
+			}
+			putBinary(out, 'i', m.i);
+			out.put(TYPE_BOOLEAN).put((byte)'l').put((byte)0).put(m.l ? (byte)1 : (byte)0);
+			putBinary(out, 'a', m.a);
+			if (m.r == null) {
+				putNull(out, 'r');
+			} else {
+				out.put(TYPE_ARRAY).put((byte)'r').put((byte)0);
+				int arrayStart = out.position();
+				out.putInt(0);
+				for (int n = 0; n < m.r.length; ++n) {
+					byte type = m.r[n] == null ? TYPE_NULL : TYPE_DOCUMENT;
+					out.put(type);
+					putIndex(out, n);
+					if (m.r[n] != null) {
+						writeRecipient(out, m.r[n]);
+					}
+				}
+				out.put((byte)0);
+				out.putInt(arrayStart, out.position() - arrayStart);
+			}
+			putBinary(out, 'd', m.d);
+			out.put((byte)0);
+			out.putInt(start, out.position() - start);
+		} finally {
+			out.order(order);
+		}
+	}
+
+	/**
+	 * Writes the secret at the buffer's position, which must have at least
+	 * {@link #sizeOf(Secret)} bytes remaining.
+	 */
+	public static void write(ByteBuffer out, Secret s) {
+		ByteOrder order = out.order();
+		out.order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			int start = out.position();
+			out.putInt(0);
+			putBinary(out, 'h', s.h);
+			out.put(TYPE_INT64).put((byte)'q').put((byte)0).putLong(s.q);
+			putBinary(out, 'k', s.k);
+			out.put((byte)0);
+			out.putInt(start, out.position() - start);
+		} finally {
+			out.order(order);
+		}
+	}
+
+	private static void writeSender(ByteBuffer out, Sender s) {
+		int start = out.position();
+		out.putInt(0);
+		putBinary(out, 'i', s.i);
+		putBinary(out, 'd', s.d);
+		out.put((byte)0);
+		out.putInt(start, out.position() - start);
+	}
+
+	private static void writeRecipient(ByteBuffer out, Recipient r) {
+		int start = out.position();
+		out.putInt(0);
+		putBinary(out, 'i', r.i);
+		putBinary(out, 'k', r.k);
+		putBinary(out, 's', r.s);
+		putBinary(out, 'd', r.d);
+		out.put((byte)0);
+		out.putInt(start, out.position() - start);
+	}
+
+	private static void putNull(ByteBuffer out, char name) {
+		out.put(TYPE_NULL).put((byte)name).put((byte)0);
+	}
+
+	private static void putBinary(ByteBuffer out, char name, byte[] value) {
+		if (value == null) {
+			putNull(out, name);
+			return;
+		}
+		out.put(TYPE_BINARY).put((byte)name).put((byte)0);
+		out.putInt(value.length).put(BINARY_GENERIC).put(value);
+	}
+
+	private static void putIndex(ByteBuffer out, int n) {
+		int d = digits(n);
+		int pos = out.position();
+		for (int k = d - 1; k >= 0; --k) {
+			out.put(pos + k, (byte)('0' + n % 10));
+			n /= 10;
+		}
+		out.position(pos + d);
+		out.put((byte)0);
+	}
+
+	/* ------------------------------------------------------------------ */
+	/* reading */
+
+	public static Message decodeMessage(byte[] raw) throws IOException {
+		return readMessage(ByteBuffer.wrap(raw));
+	}
+
+	public static Secret decodeSecret(byte[] raw) throws IOException {
+		return readSecret(ByteBuffer.wrap(raw));
+	}
+
+	/**
+	 * Reads a message starting at the buffer's position.  On return, the
+	 * position is just past the end of the document.
+	 */
+	public static Message readMessage(ByteBuffer in) throws IOException {
+		ByteOrder order = in.order();
+		in.order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			Message m = new Message();
+			int end = beginDocument(in);
+			for (;;) {
+				byte type = in.get();
+				if (type == 0) {
+					break;
+				}
+				int name = readName(in);
+				switch (name) {
+				case 'v':
+					m.v = (int)readInteger(in, type);
+					break;
+				case 's':
+					if (type == TYPE_DOCUMENT) {
+						m.s = readSender(in);
+					} else {
+						expectNull(type);
+					}
+					break;
+				case 'i':
+					m.i = readBinary(in, type);
+					break;
+				case 'l':
+					m.l = readBoolean(in, type);
+					break;
+				case 'a':
+					m.a = readBinary(in, type);
+					break;
+				case 'r':
+					m.r = readRecipients(in, type);
+					break;
+				case 'd':
+					m.d = readBinary(in, type);
+					break;
+				default:
+					skip(in, type);
+				}
+			}
+			endDocument(in, end);
+			return m;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("truncated message document");
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("malformed message document");
+		} catch (IllegalArgumentException e) {
+			throw new IOException("malformed message document");
+		} finally {
+			in.order(order);
+		}
+	}
+
+	/**
+	 * Reads a secret starting at the buffer's position.  On return, the
+	 * position is just past the end of the document.
+	 */
+	public static Secret readSecret(ByteBuffer in) throws IOException {
+		ByteOrder order = in.order();
+		in.order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			Secret s = new Secret();
+			int end = beginDocument(in);
+			for (;;) {
+				byte type = in.get();
+				if (type == 0) {
+					break;
+				}
+				int name = readName(in);
+				switch (name) {
+				case 'h':
+					s.h = readBinary(in, type);
+					break;
+				case 'q':
+					s.q = readInteger(in, type);
+					break;
+				case 'k':
+					s.k = readBinary(in, type);
+					break;
+				default:
+					skip(in, type);
+				}
+			}
+			endDocument(in, end);
+			return s;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("truncated secret document");
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("malformed secret document");
+		} catch (IllegalArgumentException e) {
+			throw new IOException("malformed secret document");
+		} finally {
+			in.order(order);
+		}
+	}
+
+	private static Sender readSender(ByteBuffer in) throws IOException {
+		Sender s = new Sender();
+		int end = beginDocument(in);
+		for (;;) {
+			byte type = in.get();
+			if (type == 0) {
+				break;
+			}
+			switch (readName(in)) {
+			case 'i':
+				s.i = readBinary(in, type);
+				break;
+			case 'd':
+				s.d = readBinary(in, type);
+				break;
+			default:
+				skip(in, type);
+			}
+		}
+		endDocument(in, end);
+		return s;
+	}
+
+	private static Recipient readRecipient(ByteBuffer in) throws IOException {
+		Recipient r = new Recipient();
+		int end = beginDocument(in);
+		for (;;) {
+			byte type = in.get();
+			if (type == 0) {
+				break;
+			}
+			switch (readName(in)) {
+			case 'i':
+				r.i = readBinary(in, type);
+				break;
+			case 'k':
+				r.k = readBinary(in, type);
+				break;
+			case 's':
+				r.s = readBinary(in, type);
+				break;
+			case 'd':
+				r.d = readBinary(in, type);
+				break;
+			default:
+				skip(in, type);
+			}
+		}
+		endDocument(in, end);
+		return r;
+	}
+
+	private static Recipient[] readRecipients(ByteBuffer in, byte type) throws IOException {
+		if (type == TYPE_NULL) {
+			return null;
+		}
+		if (type != TYPE_ARRAY) {
+			throw new IOException("expected recipient array, got type " + type);
+		}
+		//count the elements first so the array is allocated once
+		int start = in.position();
+		int end = beginDocument(in);
+		int count = 0;
+		for (;;) {
+			byte t = in.get();
+			if (t == 0) {
+				break;
+			}
+			skipName(in);
+			skip(in, t);
+			count++;
+		}
+		in.position(start);
+		beginDocument(in);
+		Recipient[] rs = new Recipient[count];
+		for (int n = 0; n < count; ++n) {
+			byte t = in.get();
+			skipName(in);
+			if (t == TYPE_DOCUMENT) {
+				rs[n] = readRecipient(in);
+			} else {
+				expectNull(t);
+			}
+		}
+		if (in.get() != 0) {
+			throw new IOException("malformed recipient array");
+		}
+		endDocument(in, end);
+		return rs;
+	}
+
+	/**
+	 * Pulls out just the recipient identities, r[].i, of an encoded message.
+	 * Everything else, including the body and the per recipient key blocks,
+	 * is stepped over without being copied.  This is all the transport needs
+	 * to pick an exchange.
+	 * 
+	 * @return the identity of each recipient in order, or null if the
+	 * message has no recipient list.  A missing recipient or identity is
+	 * returned as a null entry.
+	 */
+	public static byte[][] readRecipientIdentities(byte[] raw) throws IOException {
+		ByteBuffer in = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			byte[][] ids = null;
+			int end = beginDocument(in);
+			for (;;) {
+				byte type = in.get();
+				if (type == 0) {
+					break;
+				}
+				if (readName(in) == 'r') {
+					ids = readRecipientIdentities(in, type);
+				} else {
+					skip(in, type);
+				}
+			}
+			endDocument(in, end);
+			return ids;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("truncated message document");
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("malformed message document");
+		} catch (IllegalArgumentException e) {
+			throw new IOException("malformed message document");
+		}
+	}
+
+	private static byte[][] readRecipientIdentities(ByteBuffer in, byte type) throws IOException {
+		if (type == TYPE_NULL) {
+			return null;
+		}
+		if (type != TYPE_ARRAY) {
+			throw new IOException("expected recipient array, got type " + type);
+		}
+		int start = in.position();
+		int end = beginDocument(in);
+		int count = 0;
+		for (;;) {
+			byte t = in.get();
+			if (t == 0) {
+				break;
+			}
+			skipName(in);
+			skip(in, t);
+			count++;
+		}
+		in.position(start);
+		beginDocument(in);
+		byte[][] ids = new byte[count][];
+		for (int n = 0; n < count; ++n) {
+			byte t = in.get();
+			skipName(in);
+			if (t != TYPE_DOCUMENT) {
+				expectNull(t);
+				continue;
+			}
+			int recipientEnd = beginDocument(in);
+			for (;;) {
+				byte f = in.get();
+				if (f == 0) {
+					break;
+				}
+				if (readName(in) == 'i') {
+					ids[n] = readBinary(in, f);
+				} else {
+					skip(in, f);
+				}
+			}
+			endDocument(in, recipientEnd);
+		}
+		if (in.get() != 0) {
+			throw new IOException("malformed recipient array");
+		}
+		endDocument(in, end);
+		return ids;
+	}
+
+	/**
+	 * @return the position just past the end of the document
+	 */
+	private static int beginDocument(ByteBuffer in) throws IOException {
+		int start = in.position();
+		int length = in.getInt();
+		if (length < 5 || start + length > in.limit()) {
+			throw new IOException("bad document length " + length);
+		}
+		return start + length;
+	}
+
+	private static void endDocument(ByteBuffer in, int end) throws IOException {
+		if (in.position() != end) {
+			throw new IOException("document length mismatch");
+		}
+	}
+
+	/**
+	 * Reads a field name.  All of the protocol fields have single character
+	 * names, so anything else is returned as -1 without allocating a string.
+	 */
+	private static int readName(ByteBuffer in) {
+		byte first = in.get();
+		if (first == 0) {
+			return -1;
+		}
+		if (in.get() == 0) {
+			return first;
+		}
+		skipName(in);
+		return -1;
+	}
+
+	private static void skipName(ByteBuffer in) {
+		while (in.get() != 0) {
+		}
+	}
+
+	private static void expectNull(byte type) throws IOException {
+		if (type != TYPE_NULL) {
+			throw new IOException("expected document, got type " + type);
+		}
+	}
+
+	private static byte[] readBinary(ByteBuffer in, byte type) throws IOException {
+		if (type == TYPE_NULL) {
+			return null;
+		}
+		if (type != TYPE_BINARY) {
+			throw new IOException("expected binary, got type " + type);
+		}
+		int length = in.getInt();
+		if (length < 0 || length + 1 > in.remaining()) {
+			throw new IOException("bad binary length " + length);
+		}
+		in.get(); // subtype
+		byte[] b = new byte[length];
+		in.get(b);
+		return b;
+	}
+
+	private static long readInteger(ByteBuffer in, byte type) throws IOException {
+		switch (type) {
+		case TYPE_INT32:
+			return in.getInt();
+		case TYPE_INT64:
+			return in.getLong();
+		case TYPE_NULL:
+			return 0;
+		default:
+			throw new IOException("expected integer, got type " + type);
+		}
+	}
+
+	private static boolean readBoolean(ByteBuffer in, byte type) throws IOException {
+		switch (type) {
+		case TYPE_BOOLEAN:
+			return in.get() != 0;
+		case TYPE_NULL:
+			return false;
+		default:
+			throw new IOException("expected boolean, got type " + type);
+		}
+	}
+
+	private static void skip(ByteBuffer in, byte type) throws IOException {
+		switch (type) {
+		case TYPE_DOUBLE:
+		case TYPE_INT64:
+			in.position(in.position() + 8);
+			break;
+		case TYPE_INT32:
+			in.position(in.position() + 4);
+			break;
+		case TYPE_BOOLEAN:
+			in.position(in.position() + 1);
+			break;
+		case TYPE_NULL:
+			break;
+		case TYPE_STRING: {
+			int length = in.getInt();
+			in.position(in.position() + length);
+			break;
+		}
+		case TYPE_BINARY: {
+			int length = in.getInt();
+			in.position(in.position() + 1 + length);
+			break;
+		}
+		case TYPE_DOCUMENT:
+		case TYPE_ARRAY: {
+			int length = in.getInt(in.position());
+			in.position(in.position() + length);
+			break;
+		}
+		default:
+			throw new IOException("unsupported BSON type " + type);
+		}
+	}
+}
@@ -19,6 +19,7 @@ package mobisocial.musubi.provider;
 import java.util.Date;
 import java.util.List;
 
+import mobisocial.musubi.App;
 import mobisocial.musubi.feed.iface.DbEntryHandler;
 import mobisocial.musubi.feed.iface.FeedRenderer;
 import mobisocial.musubi.model.DbRelation;
@@ -30,9 +31,11 @@ import mobisocial.musubi.model.MFeedApp;
 import mobisocial.musubi.model.MFeedMember;
 import mobisocial.musubi.model.MIdentity;
 import mobisocial.musubi.model.MObject;
+import mobisocial.musubi.model.MObjectSearch;
 import mobisocial.musubi.model.SKFeedMembers;
 import mobisocial.musubi.model.SKIdentities;
 import mobisocial.musubi.model.SKObjects;
+import mobisocial.musubi.model.helpers.BlobStore;
 import mobisocial.musubi.model.helpers.DatabaseFile;
 import mobisocial.musubi.model.helpers.DatabaseManager;
 import mobisocial.musubi.model.helpers.DeviceManager;
@@ -59,6 +62,7 @@ import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Handler;
@@ -95,6 +99,18 @@ public class MusubiContentProvider extends ContentProvider {
 		}
 		return mDatabaseManager;
 	}
+
+	/**
+	 * Large payloads live outside the objects table, see {@link BlobStore}.
+	 */
+	private BlobStore getBlobStore() {
+		SQLiteOpenHelper helper = App.getDatabaseSource(getContext());
+		if (helper instanceof DatabaseFile) {
+			return ((DatabaseFile)helper).getBlobStore();
+		}
+		return null;
+	}
+
 	public MusubiContentProvider() {
 		sInstance = this;
 	}
@@ -115,7 +131,7 @@ public class MusubiContentProvider extends ContentProvider {
      *   feed_members-- we auto-join on feeds._id if a query includes a feed_id parameter
      */
     public enum Provided {
-        OBJECTS, OBJS_ID, FEEDS, FEEDS_ID, IDENTITIES, IDENTITIES_ID, FACTS, FEED_MEMBERS_ID;
+        OBJECTS, OBJS_ID, FEEDS, FEEDS_ID, IDENTITIES, IDENTITIES_ID, FACTS, FEED_MEMBERS_ID, SEARCH;
 
         @Override
         public String toString() {
@@ -133,6 +149,8 @@ public class MusubiContentProvider extends ContentProvider {
                     return MFact.TABLE;
                 case FEED_MEMBERS_ID:
                     return MFeedMember.TABLE;
+                case SEARCH:
+                    return "search";
                 default: return null;
             }
         }
@@ -148,6 +166,7 @@ public class MusubiContentProvider extends ContentProvider {
         sUriMatcher.addURI(AUTHORITY, "identities/#", Provided.IDENTITIES_ID.ordinal());
         sUriMatcher.addURI(AUTHORITY, "feed_members/#", Provided.FEED_MEMBERS_ID.ordinal());
         sUriMatcher.addURI(AUTHORITY, "facts", Provided.FACTS.ordinal());
+        sUriMatcher.addURI(AUTHORITY, "search", Provided.SEARCH.ordinal());
     }
 
     public static Uri createUri(String encodedPath) {
@@ -162,6 +181,16 @@ public class MusubiContentProvider extends ContentProvider {
         return CONTENT_URI.buildUpon().appendEncodedPath(path).build();
     }
 
+    /**
+     * A uri searching the text of objects with an FTS match expression,
+     * for example "monkey*" or "\"monkey business\"".
+     * @see MObjectSearch
+     */
+    public static Uri uriForSearch(String match) {
+        return uriForDir(Provided.SEARCH).buildUpon()
+                .appendQueryParameter(MObjectSearch.PARAM_QUERY, match).build();
+    }
+
     public static Uri uriForItem(Provided type, long id) {
         String dir = type.toString();
         if (dir == null) {
@@ -198,6 +227,8 @@ public class MusubiContentProvider extends ContentProvider {
                 return "vnd.android.cursor.item/vnd.mobisocial.membership";
             case FACTS:
                 return "vnd.android.cursor.dir/vnd.mobisocial.fact";
+            case SEARCH:
+                return "vnd.android.cursor.dir/vnd.mobisocial.search";
             default:
                 throw new IllegalStateException("Unmatched-but-known content type");
         }
@@ -230,6 +261,9 @@ public class MusubiContentProvider extends ContentProvider {
             Log.e(TAG, "Unmatched uri " + uri);
             return null;
         }
+        if (Provided.values()[match] == Provided.SEARCH) {
+            return querySearch(uri, realAppId, selection, selectionArgs, sortOrder);
+        }
         selection = selectionFromUri(uri, selection);
         Cursor result = null;
         SQLiteDatabase db = getDatabaseManager().getDatabase();
@@ -279,8 +313,9 @@ public class MusubiContentProvider extends ContentProvider {
                     selection = SQLClauseHelper.andClauses(selection, MObject.COL_APP_ID + " = ?");
                     selectionArgs = SQLClauseHelper.andArguments(selectionArgs, realAppId);
                 }
-                result = db.query(SKObjects.TABLE, projection, selection,
-                        selectionArgs, null, null, sortOrder);
+                result = ObjectRawCursorWrapper.wrap(db.query(SKObjects.TABLE,
+                        ObjectRawCursorWrapper.withRawHash(projection), selection,
+                        selectionArgs, null, null, sortOrder), getBlobStore());
                 break;
             case OBJS_ID:
                 if (!isSuperApp(realAppId)) {
@@ -293,8 +328,9 @@ public class MusubiContentProvider extends ContentProvider {
                 selectionArgs = SQLClauseHelper.andArguments(selectionArgs, new String[] {
                     Long.toString(objId)
                 });
-                result = db.query(MObject.TABLE, projection, selection,
-                        selectionArgs, null, null, sortOrder);
+                result = ObjectRawCursorWrapper.wrap(db.query(MObject.TABLE,
+                        ObjectRawCursorWrapper.withRawHash(projection), selection,
+                        selectionArgs, null, null, sortOrder), getBlobStore());
                 break;
             case FEED_MEMBERS_ID:
                 if (projection == null) {
@@ -339,6 +375,41 @@ public class MusubiContentProvider extends ContentProvider {
         return result;
     }
 
+    /**
+     * Searches object text.  The match expression and an optional row limit
+     * come from the uri's query parameters; selection applies to the
+     * objects table.  The projection is fixed, see
+     * {@link mobisocial.musubi.model.helpers.ObjectManager#searchObjects}.
+     */
+    Cursor querySearch(Uri uri, String realAppId, String selection, String[] selectionArgs,
+            String sortOrder) {
+        String match = uri.getQueryParameter(MObjectSearch.PARAM_QUERY);
+        if (match == null || match.length() == 0) {
+            throw new IllegalArgumentException("Search requires a " + MObjectSearch.PARAM_QUERY +
+                    " parameter");
+        }
+        int limit = 0;
+        String limitParam = uri.getQueryParameter(MObjectSearch.PARAM_LIMIT);
+        if (limitParam != null) {
+            try {
+                limit = Integer.parseInt(limitParam);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad search limit " + limitParam);
+            }
+        }
+        if (!isSuperApp(realAppId)) {
+            selection = SQLClauseHelper.andClauses(selection, MObject.TABLE + "." + MObject.COL_APP_ID +
+                    " IN (SELECT " + MApp.COL_ID + " FROM " + MApp.TABLE + " WHERE " +
+                    MApp.COL_APP_ID + " = ?)");
+            selectionArgs = SQLClauseHelper.andArguments(selectionArgs, realAppId);
+        }
+        Cursor result = getDatabaseManager().getObjectManager().searchObjects(
+                match, selection, selectionArgs, sortOrder, limit);
+        // the index changes along with the objects
+        result.setNotificationUri(getContext().getContentResolver(), uriForDir(Provided.OBJECTS));
+        return result;
+    }
+
     /**
      * Inserts a message locally that has been received from some agent,
      * typically from a remote device.
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2012 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package mobisocial.musubi.provider;
+
+import mobisocial.musubi.model.MObject;
+import mobisocial.musubi.model.helpers.BlobStore;
+import android.database.CrossProcessCursor;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.CursorWrapper;
+import android.util.Log;
+
+/**
+ * Fills in the raw column of object rows whose payload was moved out of the
+ * row and into the {@link BlobStore}.  The cursor must carry raw_hash
+ * alongside raw.
+ */
+public class ObjectRawCursorWrapper extends CursorWrapper implements CrossProcessCursor {
+    static final String TAG = "ObjectRawCursorWrapper";
+
+    final Cursor mCursor;
+    final BlobStore mBlobStore;
+    final int colRaw, colRawHash;
+
+    public ObjectRawCursorWrapper(Cursor cursor, BlobStore blobStore) {
+        super(cursor);
+        mCursor = cursor;
+        mBlobStore = blobStore;
+        colRaw = cursor.getColumnIndex(MObject.COL_RAW);
+        colRawHash = cursor.getColumnIndex(MObject.COL_RAW_HASH);
+    }
+
+    /**
+     * @return the cursor, wrapped if it has payloads that may need resolving
+     */
+    public static Cursor wrap(Cursor cursor, BlobStore blobStore) {
+        if (cursor == null || blobStore == null || cursor.getColumnIndex(MObject.COL_RAW) < 0
+                || cursor.getColumnIndex(MObject.COL_RAW_HASH) < 0) {
+            return cursor;
+        }
+        return new ObjectRawCursorWrapper(cursor, blobStore);
+    }
+
+    /**
+     * Adds raw_hash to a projection that asks for raw, so the payload can be
+     * found when it is not in the row.
+     */
+    public static String[] withRawHash(String[] projection) {
+        if (projection == null) {
+            return null;
+        }
+        boolean raw = false;
+        for (String column : projection) {
+            if (MObject.COL_RAW_HASH.equals(column)) {
+                return projection;
+            }
+            raw |= MObject.COL_RAW.equals(column);
+        }
+        if (!raw) {
+            return projection;
+        }
+        String[] extended = new String[projection.length + 1];
+        System.arraycopy(projection, 0, extended, 0, projection.length);
+        extended[projection.length] = MObject.COL_RAW_HASH;
+        return extended;
+    }
+
+    boolean isStored() {
+        return mCursor.isNull(colRaw) && !mCursor.isNull(colRawHash);
+    }
+
+    @Override
+    public byte[] getBlob(int columnIndex) {
+        if (columnIndex != colRaw || !isStored()) {
+            return super.getBlob(columnIndex);
+        }
+        return mBlobStore.get(mCursor.getBlob(colRawHash));
+    }
+
+    @Override
+    public boolean isNull(int columnIndex) {
+        if (columnIndex != colRaw) {
+            return super.isNull(columnIndex);
+        }
+        return super.isNull(columnIndex) && super.isNull(colRawHash);
+    }
+
+    @Override
+    public CursorWindow getWindow() {
+        return null;
+    }
+
+    @Override
+    public void fillWindow(int position, CursorWindow window) {
+        ((CrossProcessCursor)mCursor).fillWindow(position, window);
+        window.acquireReference();
+        try {
+            int start = window.getStartPosition();
+            int rows = window.getNumRows();
+            for (int row = start; row < start + rows; row++) {
+                if (!window.isNull(row, colRaw) || window.isNull(row, colRawHash)) {
+                    continue;
+                }
+                byte[] raw = mBlobStore.get(window.getBlob(row, colRawHash));
+                if (raw != null && !window.putBlob(raw, row, colRaw)) {
+                    Log.w(TAG, "No room in the window for the payload of row " + row);
+                }
+            }
+        } finally {
+            window.releaseReference();
+        }
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        return true;
+    }
+}
@@ -16,8 +16,10 @@
 
 package mobisocial.musubi.provider;
 
+import mobisocial.musubi.util.BitmapCache;
 import mobisocial.musubi.util.IdentityCache;
 
 public interface UICacheProvider {
     public IdentityCache getContactCache();
+    public BitmapCache getBitmapCache();
 }
@@ -18,14 +18,12 @@ package mobisocial.musubi.service;
 
 
 import gnu.trove.list.linked.TLongLinkedList;
-import gnu.trove.map.hash.TLongLongHashMap;
 import gnu.trove.procedure.TLongProcedure;
 import gnu.trove.set.hash.TLongHashSet;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.List;
 
 import mobisocial.crypto.IBHashedIdentity;
@@ -37,23 +35,23 @@ import mobisocial.musubi.model.helpers.DeviceManager;
 import mobisocial.musubi.model.helpers.EncodedMessageManager;
 import mobisocial.musubi.model.helpers.FeedManager;
 import mobisocial.musubi.model.helpers.IdentitiesManager;
-import mobisocial.musubi.protocol.Message;
+import mobisocial.musubi.protocol.ProtocolCodec;
 import mobisocial.musubi.provider.MusubiContentProvider;
 import mobisocial.musubi.provider.MusubiContentProvider.Provided;
-
-import org.codehaus.jackson.map.ObjectMapper;
+import mobisocial.musubi.service.OutboundPublisher.Route;
+import mobisocial.musubi.util.NotificationCoalescer;
 
 import android.app.Service;
 import android.content.ContentResolver;
 import android.content.Intent;
 import android.database.ContentObserver;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.net.Uri;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Process;
+import android.support.v4.util.LruCache;
 import android.util.Base64;
 import android.util.Log;
 
@@ -67,8 +65,6 @@ import com.rabbitmq.client.Envelope;
 import com.rabbitmq.client.ShutdownListener;
 import com.rabbitmq.client.ShutdownSignalException;
 
-import de.undercouch.bson4jackson.BsonFactory;
-
 //TODO:XXX
 //amqp is not quite perfect so this implementation delivers the routing
 //properties we want but not the security properties.
@@ -90,14 +86,19 @@ public class AMQPService extends Service {
     DeviceManager mDeviceManager;
     EncodedMessageManager mEncodedMessageManager;
     SQLiteOpenHelper mDatabaseSource;
-    //always run the message sender when the service first boots
-    TLongHashSet mMessageWaitingForAck;
-    TLongLongHashMap mMessageWaitingForAckByTag;
+    //tracks published messages until the broker confirms them, one per connection
+    OutboundPublisher mPublisher;
+    //set when sendMessages stops early because the publish window is full
+    volatile boolean mPublishWindowFull;
     Long mNeedAMessageBy;
     Handler mAMQPHandler;
-    ObjectMapper mMapper;
+    //routes of messages we have tried to send but not yet had confirmed,
+    //so that a retry after a dropped connection doesn't rescan the message
+    final LruCache<Long, Route> mRoutes = new LruCache<Long, Route>(ROUTE_CACHE_SIZE);
+    final static int ROUTE_CACHE_SIZE = 256;
+    //how many messages may be published ahead of the broker's confirms
+    final static int PUBLISH_WINDOW = 128;
     
-    HashSet<String> mDeclaredGroups; 
     boolean mConnectionReady = false;
     final static long MIN_DELAY = 10 * 1000;
     final static long MAX_DELAY = 30 * 60 * 1000;
@@ -219,9 +220,7 @@ public class AMQPService extends Service {
     	if(mConnection != null) {
 			Log.i(TAG, "closing connection");
 			mConnectionReady = false;
-			mMessageWaitingForAck = null;
-			mMessageWaitingForAckByTag = null;
-			mDeclaredGroups = null;
+			mPublisher = null;
 			try {
 				mConnection.abort();
 			} catch(Throwable t) {
@@ -252,71 +251,33 @@ public class AMQPService extends Service {
     	}
     	TLongLinkedList potentiallUnsent = mEncodedMessageManager.getUnsentOutboundIdsNotPending();
 
+    	final OutboundPublisher publisher = mPublisher;
+    	mPublishWindowFull = false;
     	potentiallUnsent.forEach(new TLongProcedure() {
 			@Override
 			public boolean execute(long id) {
-				if(mMessageWaitingForAck.contains(id))
+				if(publisher.isInFlight(id))
 					return true;
+				if(!publisher.hasCapacity()) {
+					//the confirm listener picks this back up as acks arrive
+					mPublishWindowFull = true;
+					return false;
+				}
 
 				try {
 					byte[] encodedBytes = mEncodedMessageManager.lookupEncodedDataById(id);
 
-			        byte[] group_exchange_name_bytes;
-			        //TODO: load this from an in memory cache of recently encoded messages
-			        //TODO: major performance gain on sending
-			        IBHashedIdentity[] hid_for_queue;
-					try {
-					    Message m = getObjectMapper().readValue(encodedBytes, Message.class);
-					    MIdentity[] ids = new MIdentity[m.r.length];
-					    hid_for_queue = new IBHashedIdentity[m.r.length];
-					    for(int i = 0; i < ids.length; ++i) {
-					    	hid_for_queue[i] = new IBHashedIdentity(m.r[i].i).at(0);
-					    	ids[i] = new MIdentity();
-					    	ids[i].principalHash_ = hid_for_queue[i].hashed_;
-					    	ids[i].type_ = Authority.values()[hid_for_queue[i].authority_.ordinal()];
-					    }
-					    group_exchange_name_bytes = FeedManager.computeFixedIdentifier(ids);
-					} catch (IOException e) {
-						Log.e(TAG, "failed to compute group exchange name");
-						return true;
-					}
-					
-					String group_exchange_name = encodeAMQPname("ibetgroup-", group_exchange_name_bytes);
-					if(!mDeclaredGroups.contains(group_exchange_name)) {
-						if(DBG) Log.v(TAG, "exchangeDeclare " + group_exchange_name);
-						mOutgoingChannel.exchangeDeclare(group_exchange_name, "fanout", false);
-			            for (IBHashedIdentity recipient : hid_for_queue){
-			                String dest = encodeAMQPname("ibeidentity-", recipient.identity_);
-			                if(DBG) Log.v(TAG, "exchangeDeclarePassive " + dest);
-							try {
-								if(mGroupProbeChannel == null)
-									mGroupProbeChannel = mConnection.createChannel();
-								if(DBG) Log.v(TAG, "exchangeDeclarePassive " + dest);
-								mGroupProbeChannel.exchangeDeclarePassive(dest);
-							} catch(IOException e) {
-								mGroupProbeChannel = null;
-								//TODO: XXX hack
-								//if the user hasn't connected yet, we have to dump their messages
-								//into a specific well known queue, because we don't know what the name
-								//of their device key is
-								if(DBG) Log.v(TAG, "queueDeclare " + "initial-" + dest);
-								mOutgoingChannel.queueDeclare("initial-" + dest, true, false, false, null);                        
-								if(DBG) Log.v(TAG, "exchangeDeclare " + dest);
-				                mOutgoingChannel.exchangeDeclare(dest, "fanout", true);
-				                if(DBG) Log.v(TAG, "queueBind " + "initial-" + dest + " " + dest);
-				                mOutgoingChannel.queueBind("initial-" + dest, dest, "");
-							}
-							if(DBG) Log.v(TAG, "exchangeBind " + dest + " " + group_exchange_name);
-			                mOutgoingChannel.exchangeBind(dest, group_exchange_name, "");
-			            }
-			            mDeclaredGroups.add(group_exchange_name);
+					Route route = mRoutes.get(id);
+					if(route == null) {
+						try {
+							route = computeRoute(encodedBytes);
+						} catch (IOException e) {
+							Log.e(TAG, "failed to compute group exchange name", e);
+							return true;
+						}
+						mRoutes.put(id, route);
 					}
-	
-					if(DBG) Log.v(TAG, "basicPublish => " + group_exchange_name);
-					long delivery_tag = mOutgoingChannel.getNextPublishSeqNo();
-					mOutgoingChannel.basicPublish(group_exchange_name, "", true, false, null, encodedBytes);
-					mMessageWaitingForAck.add(id);
-					mMessageWaitingForAckByTag.put(delivery_tag, id);
+					publisher.publish(id, route, encodedBytes);
 					if(mFailedOperation == FailedOperationType.FailedPublish) {
 						mFailureDelay = MIN_DELAY;
 						mFailedOperation = FailedOperationType.FailedNone;
@@ -330,6 +291,72 @@ public class AMQPService extends Service {
 			}
 		});
     }
+
+    /**
+     * Backs the publisher with the outgoing channel.  Passive declares close
+     * the channel they fail on, so those go over a separate probe channel.
+     */
+    class ChannelBroker implements OutboundPublisher.Broker {
+    	final Channel mChannel;
+    	ChannelBroker(Channel channel) {
+    		mChannel = channel;
+    	}
+		@Override
+		public void exchangeDeclare(String exchange, boolean durable) throws IOException {
+			mChannel.exchangeDeclare(exchange, "fanout", durable);
+		}
+		@Override
+		public boolean exchangeExists(String exchange) throws IOException {
+			try {
+				if(mGroupProbeChannel == null)
+					mGroupProbeChannel = mConnection.createChannel();
+				mGroupProbeChannel.exchangeDeclarePassive(exchange);
+				return true;
+			} catch(IOException e) {
+				mGroupProbeChannel = null;
+				return false;
+			}
+		}
+		@Override
+		public void queueDeclare(String queue) throws IOException {
+			mChannel.queueDeclare(queue, true, false, false, null);
+		}
+		@Override
+		public void queueBind(String queue, String exchange) throws IOException {
+			mChannel.queueBind(queue, exchange, "");
+		}
+		@Override
+		public void exchangeBind(String destination, String source) throws IOException {
+			mChannel.exchangeBind(destination, source, "");
+		}
+		@Override
+		public long publish(String exchange, byte[] body) throws IOException {
+			long delivery_tag = mChannel.getNextPublishSeqNo();
+			mChannel.basicPublish(exchange, "", true, false, null, body);
+			return delivery_tag;
+		}
+    }
+
+    /**
+     * Records a range of confirmed messages as sent with one database
+     * transaction and tells each affected feed once.
+     */
+    void markSent(long[] ids) {
+    	if(ids.length == 0) {
+    		return;
+    	}
+		mEncodedMessageManager.markOutboundSent(ids, new Date().getTime());
+		NotificationCoalescer notifier = MusubiService.getNotifier(getContentResolver());
+		TLongHashSet feeds = new TLongHashSet();
+		for(long id : ids) {
+			mRoutes.remove(id);
+			long feedId = mEncodedMessageManager.getFeedIdForEncoded(id);
+			if (feedId != -1 && feeds.add(feedId)) {
+				notifier.markDirty(MusubiContentProvider.uriForItem(Provided.FEEDS_ID, feedId));
+			}
+		}
+    }
+
     void attachToQueues() throws IOException {
 		Log.i(TAG, "Setting up identity exchange and device queue");
 
@@ -433,48 +460,37 @@ public class AMQPService extends Service {
 				}
 			});
 
-			mDeclaredGroups = new HashSet<String>();
-			mMessageWaitingForAck = new TLongHashSet();
-			mMessageWaitingForAckByTag = new TLongLongHashMap();
-
 			mIncomingChannel = mConnection.createChannel();
 			mIncomingChannel.basicQos(10);
 			attachToQueues();
 			
 			mOutgoingChannel = mConnection.createChannel();
-			//TODO: these callbacks run in another thread, so this is not correct
-			//we need some synchronized or a customized ExecutorService that
-			//posts to the handler (though, that may not be possible if they demand
-			//n threads to run on
+			final OutboundPublisher publisher = new OutboundPublisher(
+					new ChannelBroker(mOutgoingChannel), PUBLISH_WINDOW);
+			mPublisher = publisher;
+			//these callbacks run on the client library's thread.  the publisher
+			//is synchronized, and sending more is posted back to our handler.
 			mOutgoingChannel.addConfirmListener(new ConfirmListener() {
 				@Override
 				public void handleNack(long deliveryTag, boolean multiple) throws IOException {
 					//don't immediately try to resend, just flag it, it will be rescanned later
 					//this probably only happens if the server is temporarily out of space
-					long encoded_id = mMessageWaitingForAckByTag.get(deliveryTag);
-					mMessageWaitingForAckByTag.remove(deliveryTag);
-					mMessageWaitingForAck.remove(encoded_id);
+					publisher.confirm(deliveryTag, multiple);
 				}
 				
 				@Override
 				public void handleAck(long deliveryTag, boolean multiple) throws IOException {
                     //delivered!
-					long encoded_id = mMessageWaitingForAckByTag.get(deliveryTag);
-					
-					//mark the db entry as processed
-					MEncodedMessage encoded = mEncodedMessageManager.lookupMetadataById(encoded_id);
-					assert(encoded.outbound_);
-					encoded.processed_ = true;
-					encoded.processedTime_ = new Date().getTime();
-					mEncodedMessageManager.updateEncodedMetadata(encoded);
-					
-					mMessageWaitingForAckByTag.remove(deliveryTag);
-					mMessageWaitingForAck.remove(encoded_id);
-
-					long feedId = mEncodedMessageManager.getFeedIdForEncoded(encoded_id);
-					if (feedId != -1) {
-						Uri feedUri = MusubiContentProvider.uriForItem(Provided.FEEDS_ID, feedId);
-						getContentResolver().notifyChange(feedUri, null);
+					markSent(publisher.confirm(deliveryTag, multiple));
+					if(mPublishWindowFull) {
+						mPublishWindowFull = false;
+						mAMQPHandler.post(new Runnable() {
+							@Override
+							public void run() {
+								if(mPublisher == publisher)
+									sendMessages();
+							}
+						});
 					}
 				}
 			});
@@ -497,11 +513,29 @@ public class AMQPService extends Service {
 		sendMessages();
 	}
 
-    private ObjectMapper getObjectMapper() {
-        if (mMapper == null) {
-            mMapper = new ObjectMapper(new BsonFactory());
-        }
-        return mMapper;
+    /**
+     * Works out the exchanges for an outbound message from just the recipient
+     * identities in its header.  The encrypted body is never parsed.
+     */
+    Route computeRoute(byte[] encodedBytes) throws IOException {
+    	byte[][] recipients = ProtocolCodec.readRecipientIdentities(encodedBytes);
+    	if(recipients == null) {
+    		throw new IOException("message has no recipients");
+    	}
+	    MIdentity[] ids = new MIdentity[recipients.length];
+	    String[] identity_exchanges = new String[recipients.length];
+	    for(int i = 0; i < ids.length; ++i) {
+	    	if(recipients[i] == null) {
+	    		throw new IOException("missing recipient identity");
+	    	}
+	    	IBHashedIdentity hid = new IBHashedIdentity(recipients[i]).at(0);
+	    	identity_exchanges[i] = encodeAMQPname("ibeidentity-", hid.identity_);
+	    	ids[i] = new MIdentity();
+	    	ids[i].principalHash_ = hid.hashed_;
+	    	ids[i].type_ = Authority.values()[hid.authority_.ordinal()];
+	    }
+	    byte[] group_exchange_name_bytes = FeedManager.computeFixedIdentifier(ids);
+	    return new Route(encodeAMQPname("ibetgroup-", group_exchange_name_bytes), identity_exchanges);
     }
     
     public boolean isConnectionReady() {
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2012 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.musubi.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import mobisocial.musubi.encoding.DiscardMessage;
+import mobisocial.musubi.encoding.MessageDecoder;
+import mobisocial.musubi.encoding.TransportDataProvider;
+import mobisocial.musubi.model.MEncodedMessage;
+import mobisocial.musubi.model.helpers.EncodedMessageManager;
+import mobisocial.musubi.protocol.Message;
+import mobisocial.musubi.service.MessageDecodeProcessor.DecodedMessage;
+import mobisocial.musubi.service.MessageDecodeProcessor.MessageDecoderProcedure;
+import android.util.Log;
+
+/**
+ * Splits inbound message decoding into a parallel stage that does the
+ * parsing and cryptography and a serial stage that writes the results.
+ * 
+ * Messages are assigned to a worker lane by sending device, so messages
+ * from one sender are always decoded one at a time in id order.  This keeps
+ * the incoming secret and duplicate checks behaving as they do on a single
+ * thread.  Results are handed to the writer strictly in id order on the calling
+ * thread.
+ */
+class MessageDecodePipeline {
+    private static final String TAG = "MessageDecodePipeline";
+
+    /**
+     * The number of messages decoded ahead of the persisting thread.  Bounds the
+     * amount of decrypted data held in memory during a large backlog.
+     */
+    static final int MESSAGES_PER_LANE_IN_FLIGHT = 32;
+
+    final MessageDecodeProcessor mProcessor;
+    final EncodedMessageManager mEncodedMessageManager;
+    final ExecutorService[] mLanes;
+    final MessageDecoder[] mDecoders;
+    /* parses envelopes for lane assignment on the dispatching thread */
+    final MessageDecoder mEnvelopeDecoder;
+
+    MessageDecodePipeline(MessageDecodeProcessor processor, EncodedMessageManager encodedMessageManager,
+            TransportDataProvider tdp, int workers) {
+        mProcessor = processor;
+        mEncodedMessageManager = encodedMessageManager;
+        mLanes = new ExecutorService[workers];
+        mDecoders = new MessageDecoder[workers];
+        for (int i = 0; i < workers; ++i) {
+            final String name = "MessageDecodeWorker" + i;
+            mLanes[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, name);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+            //each lane, and the dispatcher, has its own decoder so nothing in a decoder is shared
+            mDecoders[i] = new MessageDecoder(tdp);
+        }
+        mEnvelopeDecoder = new MessageDecoder(tdp);
+    }
+
+    /**
+     * Decodes and persists the given encoded message ids.  Must be called from
+     * the thread that owns the writer.
+     */
+    void run(long[] ids, MessageDecoderProcedure writer) {
+        int window = mLanes.length * MESSAGES_PER_LANE_IN_FLIGHT;
+        List<Future<DecodedMessage>> pending = new ArrayList<Future<DecodedMessage>>(
+                Math.min(window, ids.length));
+        for (int start = 0; start < ids.length; start += window) {
+            int end = Math.min(ids.length, start + window);
+            for (int i = start; i < end; ++i) {
+                final MEncodedMessage encoded = mEncodedMessageManager.lookupById(ids[i]);
+                if (encoded == null) {
+                    continue;
+                }
+                //a corrupt envelope is rejected again by the decoder, so it can go anywhere
+                Message envelope = null;
+                int lane = 0;
+                try {
+                    envelope = mEnvelopeDecoder.decodeMessage(encoded.encoded_);
+                    lane = laneFor(envelope);
+                } catch (DiscardMessage.Corrupted e) {
+                }
+                final Message parsed = envelope;
+                final MessageDecoder decoder = mDecoders[lane];
+                pending.add(mLanes[lane].submit(new Callable<DecodedMessage>() {
+                    @Override
+                    public DecodedMessage call() {
+                        return mProcessor.decode(decoder, encoded, parsed);
+                    }
+                }));
+            }
+            for (Future<DecodedMessage> f : pending) {
+                DecodedMessage decoded;
+                try {
+                    decoded = await(f, writer);
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "interrupted while decoding", e);
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    //leave it unprocessed, it will be picked up by the next scan
+                    Log.e(TAG, "decode worker failed", e.getCause());
+                    continue;
+                }
+                writer.submit(decoded);
+            }
+            pending.clear();
+        }
+    }
+
+    /**
+     * Waits for a decode to finish, writing out the writer's buffered results
+     * if they come due in the meantime.  The writer must never hold its
+     * transaction open while waiting, since the workers need the database.
+     */
+    DecodedMessage await(Future<DecodedMessage> f, MessageDecoderProcedure writer)
+            throws InterruptedException, ExecutionException {
+        for (;;) {
+            long wait = writer.millisUntilFlush();
+            if (wait < 0) {
+                return f.get();
+            }
+            try {
+                return f.get(wait, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                writer.flush();
+            }
+        }
+    }
+
+    int laneFor(Message envelope) {
+        if (envelope.s == null) {
+            return 0;
+        }
+        int hash = 31 * Arrays.hashCode(envelope.s.i) + Arrays.hashCode(envelope.s.d);
+        return (hash & Integer.MAX_VALUE) % mLanes.length;
+    }
+
+    void shutdown() {
+        for (ExecutorService lane : mLanes) {
+            lane.shutdownNow();
+        }
+    }
+}
@@ -19,6 +19,7 @@ package mobisocial.musubi.service;
 import gnu.trove.procedure.TLongProcedure;
 import gnu.trove.set.hash.TLongHashSet;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 
@@ -30,7 +31,6 @@ import mobisocial.musubi.encoding.MessageDecoder;
 import mobisocial.musubi.encoding.NeedsKey;
 import mobisocial.musubi.encoding.ObjEncoder;
 import mobisocial.musubi.encoding.ObjFormat;
-import mobisocial.musubi.encoding.TransportDataProvider;
 import mobisocial.musubi.identity.IdentityProvider;
 import mobisocial.musubi.identity.IdentityProviderException;
 import mobisocial.musubi.model.MApp;
@@ -51,12 +51,16 @@ import mobisocial.musubi.model.helpers.IdentitiesManager;
 import mobisocial.musubi.model.helpers.MessageTransportManager;
 import mobisocial.musubi.model.helpers.MyAccountManager;
 import mobisocial.musubi.model.helpers.ObjectManager;
+import mobisocial.musubi.model.helpers.PendingWorkScanner;
 import mobisocial.musubi.model.helpers.UserKeyManager;
 import mobisocial.musubi.objects.ProfileObj;
+import mobisocial.musubi.protocol.Message;
 import mobisocial.musubi.provider.MusubiContentProvider;
 import mobisocial.musubi.provider.MusubiContentProvider.Provided;
 import mobisocial.musubi.provider.TestSettingsProvider;
 import mobisocial.musubi.util.IdentityCache;
+import mobisocial.musubi.util.NotificationCoalescer;
+import mobisocial.musubi.util.ThroughputCounter;
 import mobisocial.musubi.util.Util;
 import mobisocial.socialkit.Obj;
 
@@ -76,6 +80,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.util.Log;
 
@@ -90,6 +95,7 @@ public class MessageDecodeProcessor extends ContentObserver {
     private static boolean DBG = true;
 	private final String TAG = getClass().getSimpleName();
     private MessageDecoder mMessageDecoder;
+    private MessageTransportManager mTransportManager;
     private final Context mContext;
     private final SQLiteOpenHelper mDatabaseSource;
     private final AppManager mAppManager;
@@ -105,6 +111,28 @@ public class MessageDecodeProcessor extends ContentObserver {
     final IdentityProvider mIdentityProvider;
 	HandlerThread mThread;
 
+	/**
+	 * The number of threads that decrypt and parse inbound messages.  With a
+	 * single worker, messages are decoded directly on the processor thread.
+	 */
+	static final int DECODE_WORKERS = Math.max(1, Runtime.getRuntime().availableProcessors());
+	MessageDecodePipeline mDecodePipeline;
+	/**
+	 * Finds new inbound messages without rescanning the whole backlog.
+	 */
+	final PendingWorkScanner mWork;
+	final NotificationCoalescer mNotifier;
+	final ThroughputCounter mThroughput = new ThroughputCounter("MessageDecode");
+
+	/**
+	 * The most decoded messages written in a single transaction.
+	 */
+	static final int GROUP_COMMIT_MAX_MESSAGES = 64;
+	/**
+	 * The longest a decoded message waits to be written while its group fills up.
+	 */
+	static final long GROUP_COMMIT_MAX_DELAY_MS = 250;
+
     public static MessageDecodeProcessor newInstance(Context context, SQLiteOpenHelper dbh, KeyUpdateHandler keyUpdateService, IdentityProvider identityProvider) {
         HandlerThread thread = new HandlerThread("MessageDecodeThread");
         thread.setPriority(Thread.MIN_PRIORITY);
@@ -124,6 +152,8 @@ public class MessageDecodeProcessor extends ContentObserver {
         mIdentityManager = new IdentitiesManager(mDatabaseSource);
         mObjectManager = new ObjectManager(mDatabaseSource);
         mDeviceManager = new DeviceManager(mDatabaseSource);
+        mWork = mEncodedMessageManager.newDecodeScanner();
+        mNotifier = MusubiService.getNotifier(context.getContentResolver());
     	mContactThumbnailCache = App.getContactCache(context);
     	mIdentityProvider = identityProvider;
 
@@ -138,9 +168,13 @@ public class MessageDecodeProcessor extends ContentObserver {
 			@Override
 			public void run() {
 		        long myDevice = mDeviceManager.getLocalDeviceName();
-		        TransportDataProvider tdp = new MessageTransportManager(
+		        mTransportManager = new MessageTransportManager(
 		                mDatabaseSource, mIdentityProvider.getEncryptionScheme(), mIdentityProvider.getSignatureScheme(), myDevice);
-		        mMessageDecoder = new MessageDecoder(tdp);
+		        mMessageDecoder = new MessageDecoder(mTransportManager);
+		        if (DECODE_WORKERS > 1) {
+		            mDecodePipeline = new MessageDecodePipeline(MessageDecodeProcessor.this,
+		                    mEncodedMessageManager, mTransportManager, DECODE_WORKERS);
+		        }
 			}
 		});
     }
@@ -149,36 +183,27 @@ public class MessageDecodeProcessor extends ContentObserver {
     public void onChange(boolean selfChange) {
         if (DBG) Log.d(TAG, "MessageDecodeProcessor noticed change");
         SQLiteDatabase db = mDatabaseSource.getWritableDatabase();
-        long[] ids = objsToDecode();
+        long[] ids = mWork.nextBatch();
+        if (DBG) Log.d(TAG, mWork.toString());
         if (ids.length == 0) {
             return;
         }
 
-        TLongHashSet dirtyFeeds = new TLongHashSet();
-        MessageDecoderProcedure decoder = new MessageDecoderProcedure(db, dirtyFeeds);
-        for (long id : ids) {
-        	decoder.execute(id);
-        }
-
-		final ContentResolver resolver = mContext.getContentResolver();
-        if (decoder.mSomethingChanged) {
-            resolver.notifyChange(MusubiService.APP_OBJ_READY, this);
-            requestAddressBookSync();
-        }
-        if (decoder.mRunProfilePush) {
-            resolver.notifyChange(MusubiService.PROFILE_SYNC_REQUESTED, this);
-        }
-
-        if (dirtyFeeds.size() > 0) {
-            resolver.notifyChange(MusubiContentProvider.uriForDir(Provided.FEEDS), null);
-            dirtyFeeds.forEach(new TLongProcedure() {
-                @Override
-                public boolean execute(long id) {
-                    resolver.notifyChange(MusubiContentProvider.uriForItem(Provided.FEEDS, id), null);
-                    return true;
-                }
-            });
+        MessageDecoderProcedure decoder = new MessageDecoderProcedure(db);
+        long start = System.nanoTime();
+        if (mDecodePipeline != null) {
+            mDecodePipeline.run(ids, decoder);
+        } else {
+            for (long id : ids) {
+            	decoder.execute(id);
+            }
         }
+        decoder.flush();
+        //anything waiting on a key is still unprocessed and will be picked up again
+        mWork.recheck(ids);
+        mThroughput.record(decoder.mDecodeCount, start);
+        if (DBG) Log.d(TAG, mThroughput.toString() + ", " + decoder.mCommitCount + " commits");
+        if (DBG) Log.d(TAG, mTransportManager.getSecretCache().toString());
     }
 
     private void requestAddressBookSync() {
@@ -188,7 +213,7 @@ public class MessageDecodeProcessor extends ContentObserver {
 		ContentResolver.requestSync(account, ContactsContract.AUTHORITY, new Bundle());
 	}
 
-	boolean handleProfileUpdate(MIdentity owner, ObjFormat object) {
+	boolean handleProfileUpdate(MIdentity owner, ObjFormat object, MessageDecoderProcedure batch) {
         if (!ProfileObj.TYPE.equals(object.type)) {
             return false;
         }
@@ -260,13 +285,9 @@ public class MessageDecodeProcessor extends ContentObserver {
             if (updateRequired) {
         		mIdentityManager.updateIdentity(owner);
             } 
-            if(redrawRequired) {
-        	    mContext.getContentResolver().notifyChange(MusubiService.PRIMARY_CONTENT_CHANGED, this);
-            }
-            if (syncRequested) {
-                mContext.getContentResolver().notifyChange(MusubiService.PROFILE_SYNC_REQUESTED,
-                        this);
-            }
+            //the notifications are sent once the batch is committed
+            batch.mRedrawRequested |= redrawRequired;
+            batch.mRunProfilePush |= syncRequested;
         } catch (JSONException e) {
             Log.e(TAG, "Failed to decode profile", e);
             return true;
@@ -335,6 +356,8 @@ public class MessageDecodeProcessor extends ContentObserver {
 		}
     	ExpandMembersProcedure expand = new ExpandMembersProcedure(provisional_account, whitelist_account, feed, personas);
         if (participants.size() > 0) {
+            //load the new members in one query rather than one at a time
+            mIdentityManager.getIdentitiesForIds(participants.toArray());
             participants.forEach(expand);
         }
         return Pair.with(participants.size() > 0, expand.mRunProfilePush);
@@ -347,88 +370,263 @@ public class MessageDecodeProcessor extends ContentObserver {
         App.getMusubi(mContext).getFeed(feedUri).postObj(profile_request);
 	}
 
+	/**
+	 * The outcome of decoding one encoded message, handed from the decode
+	 * workers to the thread that persists the results.
+	 */
+	static class DecodedMessage {
+		final MEncodedMessage mEncoded;
+		IncomingMessage mIncoming;
+		ObjFormat mObj;
+		/* the encoded row should just be deleted */
+		boolean mDiscard;
+
+		DecodedMessage(MEncodedMessage encoded) {
+			mEncoded = encoded;
+		}
+	}
+
+	/**
+	 * Runs the cryptographic and parsing part of the decode for one message.
+	 * This is safe to call from several threads at once as long as messages
+	 * from the same sender device are never decoded concurrently.
+	 *
+	 * @param envelope the already parsed outer message, or null
+	 * @return the decoded message, or null if it must be retried later
+	 */
+	DecodedMessage decode(MessageDecoder messageDecoder, MEncodedMessage encoded, Message envelope) {
+        DecodedMessage decoded = new DecodedMessage(encoded);
+        IncomingMessage im = null;
+        try {
+            try {
+                im = messageDecoder.processMessage(encoded, envelope);
+            } catch(NeedsKey.Encryption e) {
+            	if(!mSynchronousKeyFetch) {
+            		throw e;
+            	}
+            	try
+            	{
+                	MIdentity to = mIdentityManager.getIdentityForIBHashedIdentity(e.identity_);
+                   	UserKeyManager ukm = new UserKeyManager(
+                   	        mIdentityProvider.getEncryptionScheme(),
+                   	        mIdentityProvider.getSignatureScheme(), mDatabaseSource);
+                   	MEncryptionUserKey suk = new MEncryptionUserKey();
+                   	suk.identityId_ = to.id_;
+                   	suk.when_ = e.identity_.temporalFrame_;
+                   	suk.userKey_ = mIdentityProvider.syncGetEncryptionKey(e.identity_).key_;
+                   	ukm.insertEncryptionUserKey(suk);
+                    im = messageDecoder.processMessage(encoded, envelope);
+            	} catch (IdentityProviderException exn) {
+            		Log.i(TAG, "Failed to get a user key to decode " + encoded.id_, exn);
+            		return null;
+            	}
+            }
+        } catch (NeedsKey e) {
+            Log.i(TAG, "Failed to decode obj beause a user key was required. " + encoded.id_, e);
+            if(mKeyUpdateHandler != null) {
+                if (DBG) Log.i(TAG, "Updating key for identity #" + e.identity_, e);
+            	mKeyUpdateHandler.requestEncryptionKey(e.identity_);
+            }
+            return null;
+        } catch (DiscardMessage.Duplicate e) {
+        	//RabbitMQ does not support the "no desliver to self" routing policy.
+    		//don't log self-routed device duplicates, everything else we want to know about
+        	if(e.mFrom.deviceName_ != mDeviceManager.getLocalDeviceName()) {
+                Log.e(TAG, "Failed to decode message", e);
+        	}
+        	decoded.mDiscard = true;
+            return decoded;
+        } catch (DiscardMessage e) {
+            Log.e(TAG, "Failed to decode message", e);
+            decoded.mDiscard = true;
+            return decoded;
+        }
+
+        // Decode the app data
+        try {
+            decoded.mObj = ObjEncoder.decode(im.data_);
+        } catch (DiscardMessage e) {
+            Log.e(TAG, "Failed to decode " + im.sequenceNumber_ + " from " + im.fromDevice_, e);
+            decoded.mDiscard = true;
+            return decoded;
+        }
+        decoded.mIncoming = im;
+        return decoded;
+	}
+
+	/**
+	 * Persists decoded messages.  Results are buffered and written in groups of up
+	 * to {@link #GROUP_COMMIT_MAX_MESSAGES} in one transaction, or sooner once the oldest
+	 * buffered result is {@link #GROUP_COMMIT_MAX_DELAY_MS} old.  Change notifications
+	 * are sent once per committed group.
+	 */
 	public class MessageDecoderProcedure implements TLongProcedure {
     	SQLiteDatabase mDB;
     	boolean mSomethingChanged = false;
-    	TLongHashSet mDirtyFeeds;
-		private boolean mRunProfilePush;
-
-    	public MessageDecoderProcedure(SQLiteDatabase db, TLongHashSet dirtyFeeds) {
+    	final TLongHashSet mDirtyFeeds = new TLongHashSet();
+		boolean mRunProfilePush;
+		boolean mRedrawRequested;
+		int mDecodeCount;
+		int mCommitCount;
+		final ArrayList<DecodedMessage> mPending = new ArrayList<DecodedMessage>(GROUP_COMMIT_MAX_MESSAGES);
+		long mOldestPending;
+
+    	public MessageDecoderProcedure(SQLiteDatabase db) {
     		mDB = db;
-    		mDirtyFeeds = dirtyFeeds;
     	}
 
 		public boolean execute(long id) {
             // Get the encoded data for processing
             MEncodedMessage encoded = mEncodedMessageManager.lookupById(id);
             assert(encoded != null);
+            submit(decode(mMessageDecoder, encoded, null));
+            return true;
+		}
 
-            // Decode the message
-            IncomingMessage im = null;
+		/**
+		 * Queues a decoded message to be written with the next group.
+		 */
+		void submit(DecodedMessage decoded) {
+			if (decoded == null) {
+				return;
+			}
+			if (mPending.isEmpty()) {
+				mOldestPending = SystemClock.elapsedRealtime();
+			}
+			mPending.add(decoded);
+			if (mPending.size() >= GROUP_COMMIT_MAX_MESSAGES || millisUntilFlush() == 0) {
+				flush();
+			}
+		}
+
+		/**
+		 * @return how long the buffered results may wait before they must be written,
+		 * or -1 if nothing is buffered.
+		 */
+		long millisUntilFlush() {
+			if (mPending.isEmpty()) {
+				return -1;
+			}
+			long age = SystemClock.elapsedRealtime() - mOldestPending;
+			return Math.max(0, GROUP_COMMIT_MAX_DELAY_MS - age);
+		}
+
+		/**
+		 * Writes all buffered results in a single transaction and sends the
+		 * notifications for them.
+		 */
+		void flush() {
+			if (mPending.isEmpty()) {
+				return;
+			}
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            	mDB.beginTransactionNonExclusive();
+            } else {
+                mDB.beginTransaction();
+            }
+            boolean committed = false;
             try {
-                try {
-                    im = mMessageDecoder.processMessage(encoded);
-                } catch(NeedsKey.Encryption e) {
-                	if(!mSynchronousKeyFetch) {
-                		throw e;
-                	}
-                	try
-                	{
-                    	MIdentity to = mIdentityManager.getIdentityForIBHashedIdentity(e.identity_);
-	                   	UserKeyManager ukm = new UserKeyManager(
-	                   	        mIdentityProvider.getEncryptionScheme(),
-	                   	        mIdentityProvider.getSignatureScheme(), mDatabaseSource);
-	                   	MEncryptionUserKey suk = new MEncryptionUserKey();
-	                   	suk.identityId_ = to.id_;
-	                   	suk.when_ = e.identity_.temporalFrame_;
-	                   	suk.userKey_ = mIdentityProvider.syncGetEncryptionKey(e.identity_).key_;
-	                   	ukm.insertEncryptionUserKey(suk);
-	                    im = mMessageDecoder.processMessage(encoded);
-                	} catch (IdentityProviderException exn) {
-                		Log.i(TAG, "Failed to get a user key to decode " + encoded.id_, exn);
-                		return true;
-                	}
-                }
-            } catch (NeedsKey e) {
-                Log.i(TAG, "Failed to decode obj beause a user key was required. " + encoded.id_, e);
-                if(mKeyUpdateHandler != null) {
-                    if (DBG) Log.i(TAG, "Updating key for identity #" + e.identity_, e);
-                	mKeyUpdateHandler.requestEncryptionKey(e.identity_);
-                }
-                return true;
-            } catch (DiscardMessage.Duplicate e) {
-            	//RabbitMQ does not support the "no desliver to self" routing policy.
-        		//don't log self-routed device duplicates, everything else we want to know about
-            	if(e.mFrom.deviceName_ != mDeviceManager.getLocalDeviceName()) {
-                    Log.e(TAG, "Failed to decode message", e);
+            	try {
+            		for (DecodedMessage decoded : mPending) {
+            			persist(decoded);
+            		}
+            		mDB.setTransactionSuccessful();
+            		committed = true;
+            	} catch (RuntimeException e) {
+            		Log.e(TAG, "Group commit of " + mPending.size() + " messages failed, retrying one by one", e);
+            	} finally {
+            		mDB.endTransaction();
             	}
-                mEncodedMessageManager.delete(encoded.id_);
-                return true;
-            } catch (DiscardMessage e) {
-                Log.e(TAG, "Failed to decode message", e);
-                mEncodedMessageManager.delete(encoded.id_);
-                return true;
+            	if (!committed) {
+            		//isolate the bad message so the rest of the group still goes through
+            		mDecodeCount -= mPending.size();
+            		for (DecodedMessage decoded : mPending) {
+            			persistAlone(decoded);
+            		}
+            	}
+            	mCommitCount++;
+            } finally {
+            	//whatever happened, none of these may be written a second time
+            	mPending.clear();
             }
+            notifyCommitted();
+		}
 
-            // Decode the app data
+		/**
+		 * Writes one result in its own transaction.  A message that cannot be
+		 * written is logged and left unprocessed for a later scan.
+		 */
+		void persistAlone(DecodedMessage decoded) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            	mDB.beginTransactionNonExclusive();
+            } else {
+                mDB.beginTransaction();
+            }
+            try {
+            	persist(decoded);
+            	mDB.setTransactionSuccessful();
+            } catch (RuntimeException e) {
+            	mDecodeCount--;
+            	Log.e(TAG, "Skipping encoded message " + decoded.mEncoded.id_ + " that could not be written", e);
+            } finally {
+            	mDB.endTransaction();
+            }
+		}
+
+		void notifyCommitted() {
+			final NotificationCoalescer notifier = mNotifier;
+	        if (mSomethingChanged) {
+	            notifier.markDirty(MusubiService.APP_OBJ_READY, MessageDecodeProcessor.this);
+	            requestAddressBookSync();
+	        }
+	        if (mRedrawRequested) {
+	            notifier.markDirty(MusubiService.PRIMARY_CONTENT_CHANGED, MessageDecodeProcessor.this);
+	        }
+	        if (mRunProfilePush) {
+	            notifier.markDirty(MusubiService.PROFILE_SYNC_REQUESTED, MessageDecodeProcessor.this);
+	        }
+	        if (mDirtyFeeds.size() > 0) {
+	            notifier.markDirty(MusubiContentProvider.uriForDir(Provided.FEEDS));
+	            mDirtyFeeds.forEach(new TLongProcedure() {
+	                @Override
+	                public boolean execute(long id) {
+	                    notifier.markDirty(MusubiContentProvider.uriForItem(Provided.FEEDS, id));
+	                    return true;
+	                }
+	            });
+	        }
+	        mSomethingChanged = false;
+	        mRedrawRequested = false;
+	        mRunProfilePush = false;
+	        mDirtyFeeds.clear();
+		}
+
+		/**
+		 * Writes out the result of {@link MessageDecodeProcessor#decode}.  This is
+		 * the part of the work that must run on a single thread, in id order.
+		 */
+		void persist(DecodedMessage decoded) {
+			if (decoded == null) {
+				return;
+			}
+			mDecodeCount++;
+			MEncodedMessage encoded = decoded.mEncoded;
+			if (decoded.mDiscard) {
+                mEncodedMessageManager.delete(encoded.id_);
+                return;
+			}
+            IncomingMessage im = decoded.mIncoming;
+            ObjFormat obj = decoded.mObj;
             MDevice device = im.fromDevice_;
             MIdentity sender = mIdentityManager.getIdentityForId(encoded.fromIdentityId_);
             boolean whitelisted = (sender.owned_ || sender.whitelisted_);
-            ObjFormat obj;
-            try {
-                obj = ObjEncoder.decode(im.data_);
-            } catch (DiscardMessage e) {
-                Log.e(TAG, "Failed to decode " + im.sequenceNumber_ + " from " + im.fromDevice_, e);
-                mEncodedMessageManager.delete(encoded.id_);
-                return true;
-            }
 
             // Look for profile updates, which don't require whitelisting
-            if (handleProfileUpdate(sender, obj)) {
+            if (handleProfileUpdate(sender, obj, this)) {
             	//TODO: this may be a lame way of handling this
                 Log.d(TAG, "Found profile update from " + sender.musubiName_);
                 mEncodedMessageManager.delete(encoded.id_);
-                return true;
+                return;
             }
 
             // Handle feed details
@@ -438,7 +636,7 @@ public class MessageDecodeProcessor extends ContentObserver {
                 if (!Arrays.equals(computedCap, obj.feedCapability)) {
                     Log.e(TAG, "Capability mismatch");
                     mEncodedMessageManager.delete(encoded.id_);
-                    return true;
+                    return;
                 }
             }
 
@@ -553,7 +751,6 @@ public class MessageDecodeProcessor extends ContentObserver {
             } finally {
                 mDB.endTransaction();
             }
-            return true;
 		}
 	}
 }
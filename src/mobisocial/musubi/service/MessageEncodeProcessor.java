@@ -26,6 +26,9 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import mobisocial.crypto.IBHashedIdentity.Authority;
 import mobisocial.musubi.App;
@@ -48,11 +51,13 @@ import mobisocial.musubi.model.MPendingUpload;
 import mobisocial.musubi.model.MSignatureUserKey;
 import mobisocial.musubi.model.helpers.DatabaseManager;
 import mobisocial.musubi.model.helpers.MessageTransportManager;
+import mobisocial.musubi.model.helpers.PendingWorkScanner;
 import mobisocial.musubi.model.helpers.UserKeyManager;
 import mobisocial.musubi.objects.DeleteObj;
 import mobisocial.musubi.objects.LikeObj;
 import mobisocial.musubi.objects.PictureObj;
 import mobisocial.musubi.provider.TestSettingsProvider;
+import mobisocial.musubi.util.NotificationCoalescer;
 import mobisocial.musubi.util.Util;
 
 import org.json.JSONException;
@@ -60,7 +65,6 @@ import org.json.JSONObject;
 import org.mobisocial.corral.CorralDownloadClient;
 import org.mobisocial.corral.CryptUtil;
 
-import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.ContentObserver;
@@ -100,8 +104,20 @@ public class MessageEncodeProcessor extends ContentObserver {
 	HandlerThread mThread;
 
 	final List<ProcessorThread> mProcessorThreads;
+
+	/**
+	 * Computes recipient secret blocks for objects going to large feeds.
+	 */
+	final ExecutorService mRecipientExecutor;
+	static final int RECIPIENT_WORKERS = Runtime.getRuntime().availableProcessors();
 	final TLongSet mObjectsPendingProcessing = new TLongHashSet();
     final TLongArrayList mFinishedProcessing = new TLongArrayList();
+    /**
+     * Finds new objects to encode without rescanning the whole backlog.
+     * Only touched on the scanning thread.
+     */
+    final PendingWorkScanner mWork;
+    final NotificationCoalescer mNotifier;
 	private final SQLiteOpenHelper mDatabaseSource;
 
     public static MessageEncodeProcessor newInstance(Context context, SQLiteOpenHelper dbh, KeyUpdateHandler keyUpdateService, IdentityProvider identityProvider) {
@@ -119,6 +135,8 @@ public class MessageEncodeProcessor extends ContentObserver {
         mContext = context;
         mHelper = dbh;
         mDatabaseManager = new DatabaseManager(mContext);
+        mWork = mDatabaseManager.getObjectManager().newEncodeScanner();
+        mNotifier = MusubiService.getNotifier(context.getContentResolver());
 
         TestSettingsProvider.Settings settings = App.getTestSettings(context);
         if(settings != null) {
@@ -136,6 +154,19 @@ public class MessageEncodeProcessor extends ContentObserver {
         for (ProcessorThread proc : mProcessorThreads) {
             proc.start();
         }
+        if (RECIPIENT_WORKERS > 1) {
+            mRecipientExecutor = Executors.newFixedThreadPool(RECIPIENT_WORKERS, new ThreadFactory() {
+                int mCount;
+                @Override
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "EncoderRecipients" + mCount++);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+        } else {
+            mRecipientExecutor = null;
+        }
         
         //do the part that hits the db on a background thread
         new Handler(thread.getLooper()).post(new Runnable() {
@@ -144,7 +175,7 @@ public class MessageEncodeProcessor extends ContentObserver {
 		        long myDevice = mDatabaseManager.getDeviceManager().getLocalDeviceName();
 		        TransportDataProvider tdp = new MessageTransportManager(
 		                mHelper, mIdentityProvider.getEncryptionScheme(), mIdentityProvider.getSignatureScheme(), myDevice);
-		        mMessageEncoder = new MessageEncoder(tdp);
+		        mMessageEncoder = new MessageEncoder(tdp, mRecipientExecutor, RECIPIENT_WORKERS);
 			}
     	});
     }
@@ -177,6 +208,8 @@ public class MessageEncodeProcessor extends ContentObserver {
 				@Override
 				public boolean execute(long objId) {
 		            mObjectsPendingProcessing.remove(objId);
+		            //if it still isn't encoded, e.g. waiting on a key, look again next pass
+		            mWork.recheck(objId);
 					return true;
 				}
 			});
@@ -189,8 +222,9 @@ public class MessageEncodeProcessor extends ContentObserver {
         //now compute the objects that we need to process.
         //we know these won't be deleted because we kick off
         //the job that deletes them
-        long[] ids = mDatabaseManager.getObjectManager().objectsToEncode();
+        long[] ids = mWork.nextBatch();
         db.endTransaction();
+        if (DBG) Log.d(TAG, mWork.toString());
 
         if (DBG) Log.d(TAG, "MessageEncoder looping over " + ids.length + " objects...");
         for (long objId : ids) {
@@ -265,14 +299,13 @@ public class MessageEncodeProcessor extends ContentObserver {
                         case NOTIFY:
                             if (successSinceLastNotify) {
                                 if (DBG) Log.d(tag, "Notifying encoded available...");
-                                ContentResolver resolver = mContext.getContentResolver();
-                                resolver.notifyChange(MusubiService.APP_OBJ_READY,
+                                mNotifier.markDirty(MusubiService.APP_OBJ_READY,
                                         MessageEncodeProcessor.this);
-                                resolver.notifyChange(MusubiService.PREPARED_ENCODED,
+                                mNotifier.markDirty(MusubiService.PREPARED_ENCODED,
                                         MessageEncodeProcessor.this);
                                 successSinceLastNotify = false;
                                 if (pendingUploadSinceLastNotify) {
-                                    resolver.notifyChange(MusubiService.UPLOAD_AVAILABLE,
+                                    mNotifier.markDirty(MusubiService.UPLOAD_AVAILABLE,
                                             MessageEncodeProcessor.this);
                                     pendingUploadSinceLastNotify = false;
                                 }
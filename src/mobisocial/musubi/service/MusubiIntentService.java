@@ -20,6 +20,7 @@ import mobisocial.musubi.App;
 import mobisocial.musubi.model.MFeed;
 import mobisocial.musubi.model.MObject;
 import mobisocial.musubi.model.helpers.EncodedMessageManager;
+import mobisocial.musubi.model.helpers.ObjectManager;
 import mobisocial.musubi.ui.SettingsActivity;
 import mobisocial.musubi.ui.fragments.SettingsFragment;
 import android.app.IntentService;
@@ -92,6 +93,9 @@ public class MusubiIntentService extends IntentService {
 			// delete encoded
 			final EncodedMessageManager emm = new EncodedMessageManager(db);
 			emm.deleteProcessedOldItems(sinceDays);
+
+			// drop the payloads of the deleted objects
+			new ObjectManager(App.getDatabaseSource(context.getApplicationContext())).collectBlobGarbage();
 		}
 	}
 }
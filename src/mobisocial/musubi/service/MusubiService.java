@@ -24,8 +24,10 @@ import mobisocial.musubi.provider.MusubiContentProvider;
 import mobisocial.musubi.provider.TestSettingsProvider.Settings;
 import mobisocial.musubi.service.MessageEncodeProcessor.ProcessorThread;
 import mobisocial.musubi.syncadapter.SyncService;
+import mobisocial.musubi.util.NotificationCoalescer;
 
 import org.mobisocial.corral.ContentCorral;
+import org.mobisocial.corral.CorralDownloadHandler;
 
 import android.app.AlarmManager;
 import android.app.NotificationManager;
@@ -255,6 +257,20 @@ public class MusubiService extends Service {
 	public static final Uri DOWNLOAD_REQUESTED = MusubiContentProvider.createUri("download-request");
 
 	public static final String EXTRA_OBSERVER = "mobisocial.musubi.service.OBSERVER";
+
+	/**
+	 * Returns the coalescer the processors post their notifications through.
+	 * The uris that wake up other processors go out on the next flush; the
+	 * rest wait out the default window so the ui requeries once per burst.
+	 */
+	static NotificationCoalescer getNotifier(ContentResolver resolver) {
+		NotificationCoalescer notifier = NotificationCoalescer.forResolver(resolver);
+		notifier.setDebounce(APP_OBJ_READY, 0);
+		notifier.setDebounce(PREPARED_ENCODED, 0);
+		notifier.setDebounce(UPLOAD_AVAILABLE, 0);
+		notifier.setDebounce(PROFILE_SYNC_REQUESTED, 0);
+		return notifier;
+	}
 	
     @Override
     public void onCreate() {
@@ -431,6 +447,13 @@ public class MusubiService extends Service {
                     mCorralUploadProcessor.dispatchChange(false);
                 }
             }, ++ticks * ms);
+	        process_starter.postDelayed(new Runnable() {
+	            @Override
+	            public void run() {
+	                //pick up downloads the last process was killed in the middle of
+	                CorralDownloadHandler.resumePendingDownloads(MusubiService.this);
+	            }
+	        }, ++ticks * ms);
 	        process_starter.postDelayed(new Runnable() {
 	            @Override
 	            public void run() {
@@ -469,12 +492,18 @@ public class MusubiService extends Service {
                     t.join();
                 } catch (InterruptedException e) {}
     		}
+    		if (mMessageEncodeProcessor.mRecipientExecutor != null) {
+    			mMessageEncodeProcessor.mRecipientExecutor.shutdownNow();
+    		}
     	}
     	if(mMessageDecodeProcessor != null && mMessageDecodeProcessor.mThread != null) {
     		mMessageDecodeProcessor.mThread.getLooper().quit();
     		try {
 	    		mMessageDecodeProcessor.mThread.join();
 			} catch (InterruptedException e) {}
+    		if (mMessageDecodeProcessor.mDecodePipeline != null) {
+    			mMessageDecodeProcessor.mDecodePipeline.shutdown();
+    		}
     	}
     	if(mPipelineProcessor != null && mPipelineProcessor.mThread != null) {
     		mPipelineProcessor.mThread.getLooper().quit();
@@ -31,15 +31,22 @@ import mobisocial.musubi.model.DbRelation;
 import mobisocial.musubi.model.MApp;
 import mobisocial.musubi.model.MFeed;
 import mobisocial.musubi.model.MFeed.FeedType;
+import mobisocial.musubi.model.MFeedSummary;
 import mobisocial.musubi.model.MIdentity;
 import mobisocial.musubi.model.MObject;
 import mobisocial.musubi.model.helpers.DatabaseManager;
+import mobisocial.musubi.model.helpers.PendingWorkScanner;
 import mobisocial.musubi.obj.ObjHelpers;
 import mobisocial.musubi.obj.handler.NotificationHandler;
 import mobisocial.musubi.obj.handler.ProfileScanningObjHandler;
 import mobisocial.musubi.objects.AppObj;
+import mobisocial.musubi.objects.FileObj;
+import mobisocial.musubi.objects.PictureObj;
+import mobisocial.musubi.objects.StatusObj;
+import mobisocial.musubi.objects.StoryObj;
 import mobisocial.musubi.provider.MusubiContentProvider;
 import mobisocial.musubi.provider.MusubiContentProvider.Provided;
+import mobisocial.musubi.util.NotificationCoalescer;
 import mobisocial.musubi.util.Util;
 import mobisocial.socialkit.musubi.DbObj;
 import mobisocial.socialkit.musubi.Musubi;
@@ -47,7 +54,6 @@ import mobisocial.socialkit.musubi.Musubi;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.ContentObserver;
@@ -74,6 +80,11 @@ class ObjPipelineProcessor extends ContentObserver {
     private final ProfileScanningObjHandler mProfileScanner;
     private final Musubi mMusubi;
     final HandlerThread mThread;
+    /**
+     * Finds new unprocessed objects without rescanning the whole backlog.
+     */
+    final PendingWorkScanner mWork;
+    final NotificationCoalescer mNotifier;
 
     public static ObjPipelineProcessor newInstance(Context context) {
         HandlerThread thread = new HandlerThread("ObjPipelineThread");
@@ -91,13 +102,16 @@ class ObjPipelineProcessor extends ContentObserver {
         mPendingParentHashes = new HashSet<String>();
         mNotificationHandler = new NotificationHandler(context);
         mProfileScanner = new ProfileScanningObjHandler();
+        mWork = mDatabaseManager.getObjectManager().newPipelineScanner();
+        mNotifier = MusubiService.getNotifier(context.getContentResolver());
     }
 
     @Override
     public void onChange(boolean selfChange) {
-        final ContentResolver resolver = mContext.getContentResolver();
         SQLiteDatabase db = mDatabaseManager.getDatabase();
-        long[] ids = getUnprocessedObjs();
+        long[] ids = mWork.nextBatch();
+        //objects waiting to be encoded or on a parent stay unprocessed and get looked at again
+        mWork.recheck(ids);
         TLongHashSet feedsToNotify = new TLongHashSet(ids.length);
 
         for (long id : ids) {
@@ -107,6 +121,9 @@ class ObjPipelineProcessor extends ContentObserver {
             //object can be null, because the delete obj might take it away from us
             if(object == null)
             	continue;
+            //outbound objects are not ready until the encoder has run
+            if(object.encodedId_ == null)
+                continue;
         	try {
 	            MIdentity sender = mDatabaseManager.getIdentitiesManager().getIdentityForId(object.identityId_);
 	            boolean keepObject = true;
@@ -195,6 +212,7 @@ class ObjPipelineProcessor extends ContentObserver {
 	            db.beginTransaction();
 	            try {
 		            MFeed feed = mDatabaseManager.getFeedManager().lookupFeed(object.feedId_);
+		            Long latestBefore = feed.latestRenderableObjId_;
 		            if (helper.isRenderable(obj)) {
 		                object.renderable_ = true;
 		                feed.latestRenderableObjId_ = object.id_;
@@ -217,9 +235,20 @@ class ObjPipelineProcessor extends ContentObserver {
 	                    mDatabaseManager.getFeedManager().deleteFeedAndMembers(feed);
 	                } else {
 	                    mDatabaseManager.getFeedManager().updateFeed(feed);
+	                    if (object.renderable_) {
+	                        updateFeedSummary(feed, object, json);
+	                    } else if (!equal(latestBefore, feed.latestRenderableObjId_)) {
+	                        // a delete moved the feed on to another object
+	                        refreshFeedSummary(feed);
+	                    }
 	                }
 	                if (keepObject) {
 	                    mDatabaseManager.getObjectManager().updateObjectPipelineMetadata(object);   
+	                    String searchText = object.renderable_ ?
+	                            ObjHelpers.getSearchText(object.type_, json) : null;
+	                    if (searchText != null) {
+	                        mDatabaseManager.getObjectManager().indexSearchText(object.id_, searchText);
+	                    }
 	                } else {
 	                    mDatabaseManager.getObjectManager().delete(object.id_);
 	                }
@@ -232,10 +261,10 @@ class ObjPipelineProcessor extends ContentObserver {
 	            String hashString = Util.convertToHex(object.universalHash_);
                 if (mPendingParentHashes.contains(hashString)) {
                     mPendingParentHashes.remove(hashString);
-                    resolver.notifyChange(MusubiService.APP_OBJ_READY, this);
+                    mNotifier.markDirty(MusubiService.APP_OBJ_READY, this);
                 }
 
-	            resolver.notifyChange(MusubiContentProvider.uriForItem(Provided.OBJECTS, id), this);
+	            mNotifier.markDirty(MusubiContentProvider.uriForItem(Provided.OBJECTS, id), this);
 	            mNotificationHandler.handle(helper, sender.owned_, obj);
         	} catch(Exception e) {
         	    Log.e(TAG, "Error processing object " + object.id_ + ": " + object.type_, e);
@@ -245,11 +274,11 @@ class ObjPipelineProcessor extends ContentObserver {
         }
 
         if (feedsToNotify.size() > 0) {
-            resolver.notifyChange(MusubiContentProvider.uriForDir(Provided.FEEDS), this);
+            mNotifier.markDirty(MusubiContentProvider.uriForDir(Provided.FEEDS), this);
             feedsToNotify.forEach(new TLongProcedure() {
                 @Override
                 public boolean execute(long id) {
-                    resolver.notifyChange(MusubiContentProvider.uriForItem(Provided.FEEDS, id),
+                    mNotifier.markDirty(MusubiContentProvider.uriForItem(Provided.FEEDS, id),
                             ObjPipelineProcessor.this);
                     return true;
                 }
@@ -257,6 +286,71 @@ class ObjPipelineProcessor extends ContentObserver {
         }
     }
 
+    /**
+     * Writes the row the feed list shows for this feed, with the preview
+     * text pulled out of the json here so the list never has to parse it.
+     */
+    void updateFeedSummary(MFeed feed, MObject object, JSONObject json) {
+        MFeedSummary summary = new MFeedSummary();
+        summary.feedId_ = feed.id_;
+        summary.objectId_ = object.id_;
+        summary.type_ = object.type_;
+        summary.senderId_ = object.identityId_;
+        summary.preview_ = summaryPreview(object.type_, json);
+        if (summary.preview_ == null) {
+            summary.json_ = object.json_;
+        }
+        mDatabaseManager.getFeedManager().updateFeedSummary(summary);
+    }
+
+    void refreshFeedSummary(MFeed feed) {
+        MObject latest = null;
+        if (feed.latestRenderableObjId_ != null) {
+            latest = mDatabaseManager.getObjectManager().getObjectWithoutRawForId(
+                    feed.latestRenderableObjId_);
+        }
+        if (latest == null) {
+            mDatabaseManager.getFeedManager().deleteFeedSummary(feed.id_);
+            return;
+        }
+        JSONObject json = null;
+        if (latest.json_ != null) {
+            try {
+                json = new JSONObject(latest.json_);
+            } catch (JSONException e) {
+                Log.w(TAG, "bad json in latest object " + latest.id_);
+            }
+        }
+        updateFeedSummary(feed, latest, json);
+    }
+
+    /**
+     * The text the feed list shows for an object, or null if its
+     * renderer needs the whole json.
+     */
+    static String summaryPreview(String type, JSONObject json) {
+        if (json == null) {
+            return null;
+        }
+        if (StatusObj.TYPE.equals(type)) {
+            return json.optString(StatusObj.TEXT);
+        }
+        if (PictureObj.TYPE.equals(type)) {
+            return json.optString(PictureObj.TEXT);
+        }
+        if (FileObj.TYPE.equals(type)) {
+            return json.optString(FileObj.OBJ_FILENAME);
+        }
+        if (StoryObj.TYPE.equals(type)) {
+            return json.has(StoryObj.TITLE) ? json.optString(StoryObj.TITLE) : json.optString(StoryObj.URL);
+        }
+        return null;
+    }
+
+    static boolean equal(Long a, Long b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
     DbObj getDbObj(MObject object, JSONObject json) throws JSONException {
         String appId = mDatabaseManager.getAppManager().getAppIdentifier(object.appId_);
         String type = object.type_;
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2012 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.musubi.service;
+
+import gnu.trove.set.hash.TLongHashSet;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import android.util.Log;
+
+/**
+ * Keeps a bounded window of published but unconfirmed messages for one
+ * broker connection.  Exchanges and queues are declared the first time a
+ * message needs them and remembered for the life of the connection, and
+ * publisher confirms are resolved a whole range at a time when the broker
+ * acks with the multiple flag.
+ * 
+ * Publishing happens on the AMQP thread while confirms arrive on the
+ * client library's thread, so the bookkeeping is synchronized.
+ */
+class OutboundPublisher {
+	public static boolean DBG = false;
+	public static final String TAG = OutboundPublisher.class.getName();
+
+	/**
+	 * The handful of broker operations the publisher needs.  The service
+	 * backs this with an AMQP channel, tests with an in memory stand in.
+	 */
+	interface Broker {
+		void exchangeDeclare(String exchange, boolean durable) throws IOException;
+		/**
+		 * @return false if the exchange does not exist on the broker
+		 */
+		boolean exchangeExists(String exchange) throws IOException;
+		void queueDeclare(String queue) throws IOException;
+		void queueBind(String queue, String exchange) throws IOException;
+		void exchangeBind(String destination, String source) throws IOException;
+		/**
+		 * @return the delivery tag the broker will confirm this message with
+		 */
+		long publish(String exchange, byte[] body) throws IOException;
+	}
+
+	/**
+	 * Where an outbound message goes: the fanout exchange for its recipient
+	 * set, and the identity exchanges that fanout is bound to.
+	 */
+	static class Route {
+		final String mGroupExchange;
+		final String[] mIdentityExchanges;
+		Route(String groupExchange, String[] identityExchanges) {
+			mGroupExchange = groupExchange;
+			mIdentityExchanges = identityExchanges;
+		}
+	}
+
+	final Broker mBroker;
+	final int mWindow;
+	final HashSet<String> mDeclaredGroups = new HashSet<String>();
+	final HashSet<String> mKnownIdentities = new HashSet<String>();
+	//delivery tag => encoded message id, ordered for multiple acks
+	final TreeMap<Long, Long> mInFlight = new TreeMap<Long, Long>();
+	final TLongHashSet mInFlightIds = new TLongHashSet();
+
+	OutboundPublisher(Broker broker, int window) {
+		mBroker = broker;
+		mWindow = window;
+	}
+
+	synchronized boolean isInFlight(long id) {
+		return mInFlightIds.contains(id);
+	}
+
+	synchronized boolean hasCapacity() {
+		return mInFlight.size() < mWindow;
+	}
+
+	synchronized int inFlight() {
+		return mInFlight.size();
+	}
+
+	/**
+	 * Declares whatever the route still needs on this connection and
+	 * publishes the message.  The caller should check {@link #hasCapacity()}
+	 * first; the window is not enforced here.
+	 */
+	void publish(long id, Route route, byte[] body) throws IOException {
+		declare(route);
+		if(DBG) Log.v(TAG, "basicPublish => " + route.mGroupExchange);
+		synchronized (this) {
+			//recorded under the lock so a fast confirm can't beat the bookkeeping
+			long tag = mBroker.publish(route.mGroupExchange, body);
+			mInFlight.put(tag, id);
+			mInFlightIds.add(id);
+		}
+	}
+
+	void declare(Route route) throws IOException {
+		String group = route.mGroupExchange;
+		if(mDeclaredGroups.contains(group)) {
+			return;
+		}
+		if(DBG) Log.v(TAG, "exchangeDeclare " + group);
+		mBroker.exchangeDeclare(group, false);
+		for(String dest : route.mIdentityExchanges) {
+			if(!mKnownIdentities.contains(dest)) {
+				if(DBG) Log.v(TAG, "exchangeDeclarePassive " + dest);
+				if(!mBroker.exchangeExists(dest)) {
+					//TODO: XXX hack
+					//if the user hasn't connected yet, we have to dump their messages
+					//into a specific well known queue, because we don't know what the name
+					//of their device key is
+					if(DBG) Log.v(TAG, "queueDeclare " + "initial-" + dest);
+					mBroker.queueDeclare("initial-" + dest);
+					if(DBG) Log.v(TAG, "exchangeDeclare " + dest);
+					mBroker.exchangeDeclare(dest, true);
+					if(DBG) Log.v(TAG, "queueBind " + "initial-" + dest + " " + dest);
+					mBroker.queueBind("initial-" + dest, dest);
+				}
+				mKnownIdentities.add(dest);
+			}
+			if(DBG) Log.v(TAG, "exchangeBind " + dest + " " + group);
+			mBroker.exchangeBind(dest, group);
+		}
+		mDeclaredGroups.add(group);
+	}
+
+	/**
+	 * Resolves a broker ack or nack.
+	 * @return the encoded message ids covered by the confirm, in publish order
+	 */
+	synchronized long[] confirm(long deliveryTag, boolean multiple) {
+		if(!multiple) {
+			Long id = mInFlight.remove(deliveryTag);
+			if(id == null) {
+				return new long[0];
+			}
+			mInFlightIds.remove(id);
+			return new long[] { id };
+		}
+		SortedMap<Long, Long> range = mInFlight.headMap(deliveryTag + 1);
+		long[] ids = new long[range.size()];
+		int i = 0;
+		for(Iterator<Map.Entry<Long, Long>> it = range.entrySet().iterator(); it.hasNext(); ) {
+			long id = it.next().getValue();
+			mInFlightIds.remove(id);
+			ids[i++] = id;
+			it.remove();
+		}
+		return ids;
+	}
+}
@@ -28,6 +28,7 @@ import mobisocial.musubi.model.MIdentity;
 import mobisocial.musubi.model.MMyAccount;
 import mobisocial.musubi.model.helpers.FeedManager;
 import mobisocial.musubi.model.helpers.IdentitiesManager;
+import mobisocial.musubi.model.helpers.IdentityRowCache;
 import mobisocial.musubi.model.helpers.MyAccountManager;
 import mobisocial.musubi.objects.ProfileObj;
 import mobisocial.musubi.provider.MusubiContentProvider;
@@ -315,6 +316,7 @@ public class ProfilePushProcessor extends ContentObserver {
             db.setTransactionSuccessful();
         	db.endTransaction();
         }
+        IdentityRowCache.forDatabase(db).invalidate(identityIds, db.inTransaction());
         long time = System.currentTimeMillis() - start;
         if (DBG) Log.d(TAG, "Synced " + identityIds.length + " profiles in " + time);
     }
@@ -336,6 +338,7 @@ public class ProfilePushProcessor extends ContentObserver {
     	ContentValues values = new ContentValues();
     	values.put(MIdentity.COL_SENT_PROFILE_VERSION, profileVersion);
     	int count = db.update(MIdentity.TABLE, values, sql.toString(), null);
+        IdentityRowCache.forDatabase(db).invalidate(identityIds, db.inTransaction());
 
         Log.d(TAG, "marked " + count + " profiles as synced");
         long time = System.currentTimeMillis() - start;
@@ -16,15 +16,14 @@
 
 package mobisocial.musubi.service;
 
-import gnu.trove.list.array.TByteArrayList;
-
-import java.lang.ref.SoftReference;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.Random;
 
+import mobisocial.musubi.App;
 import mobisocial.musubi.R;
 import mobisocial.musubi.objects.AppStateObj;
+import mobisocial.musubi.util.BitmapCache;
 import mobisocial.musubi.util.Util;
 import android.app.Service;
 import android.content.ComponentName;
@@ -37,7 +36,6 @@ import android.graphics.Canvas;
 import android.graphics.Picture;
 import android.os.Binder;
 import android.os.IBinder;
-import android.support.v4.util.LruCache;
 import android.util.DisplayMetrics;
 import android.view.View.MeasureSpec;
 import android.webkit.WebView;
@@ -59,10 +57,9 @@ public class WebRenderService extends Service {
 	WebView mWebView;
 	RenderWebViewClient mWebViewClient;
 	static WebRenderService sService = null;
-	//this is a cheap way to workaround the fact that our current system is calling bind view twice
-	//per object when it loads.  we would like to cache these rendered images offline, but for now
-	//i would like to avoid additional sources of space usage.
-	LruCache<TByteArrayList, SoftReference<Bitmap>> mWebViewCache = new LruCache<TByteArrayList, SoftReference<Bitmap>>(8);
+	//renders are kept in the shared bitmap cache, and on disk since they are slow to redo.
+	//bind view is also called twice per object when it loads.
+	static final String KEY_PREFIX = "web:";
 
 	public static class WebRenderRequest {
 	    // input
@@ -95,7 +92,10 @@ public class WebRenderService extends Service {
 					Canvas canvas = new Canvas(bitmap);
 					canvas.scale(scale, scale);
 					picture.draw(canvas);
-					mWebViewCache.put(new TByteArrayList(Util.sha256(mCurrent.mHtml.getBytes())), new SoftReference<Bitmap>(bitmap));
+					String name = renderName(mCurrent.mHtml);
+					BitmapCache cache = App.getBitmapCache(WebRenderService.this);
+					cache.put(KEY_PREFIX + name, bitmap);
+					cache.putOnDisk(name, bitmap);
 					if(mCurrent.mDestionationView != null) {
 				        setImageViewBitmapAndLayout(mCurrent.mDestionationView, bitmap);
 					}
@@ -174,16 +174,21 @@ public class WebRenderService extends Service {
 
 	public static ImageView newLazyImageWeb(Context context, String html, int targetWidth, int targetHeight) {
 		ImageView iv = new ImageView(context);
-		//try the short cache
+		//try the cache
 		if(sService != null)  {
-			SoftReference<Bitmap> srb = sService.mWebViewCache.get(new TByteArrayList(Util.sha256(html.getBytes())));
-			if(srb != null) {
-				Bitmap b = srb.get();
+			String name = renderName(html);
+			BitmapCache cache = App.getBitmapCache(context);
+			Bitmap b = cache.get(KEY_PREFIX + name);
+			if(b == null) {
+				b = cache.getFromDisk(name);
 				if(b != null) {
-					sService.setImageViewBitmapAndLayout(iv, b);
-					return iv;
+					cache.put(KEY_PREFIX + name, b);
 				}
 			}
+			if(b != null) {
+				sService.setImageViewBitmapAndLayout(iv, b);
+				return iv;
+			}
 		}
 		//set a default?
 		iv.setImageBitmap(Bitmap.createBitmap(1, 1, Config.RGB_565));
@@ -200,6 +205,10 @@ public class WebRenderService extends Service {
 		return iv;
 	}
 
+	static String renderName(String html) {
+		return "web-" + Util.convertToHex(Util.sha256(html.getBytes()));
+	}
+
 	public void measureAndLayout() {
 		//fake pump the layout
 		mWebView.measure(
@@ -37,6 +37,7 @@ import mobisocial.musubi.R;
 import mobisocial.musubi.feed.iface.FeedRenderer;
 import mobisocial.musubi.model.MFeed;
 import mobisocial.musubi.model.MFeedMember;
+import mobisocial.musubi.model.MFeedSummary;
 import mobisocial.musubi.model.MIdentity;
 import mobisocial.musubi.model.MObject;
 import mobisocial.musubi.model.helpers.DatabaseManager;
@@ -62,6 +63,7 @@ import mobisocial.musubi.ui.widget.CompositeImageView;
 import mobisocial.musubi.ui.widget.MultiIdentitySelector;
 import mobisocial.musubi.ui.widget.MultiIdentitySelector.OnIdentitiesUpdatedListener;
 import mobisocial.musubi.ui.widget.MultiIdentitySelector.OnRequestAddIdentityListener;
+import mobisocial.musubi.util.BitmapCache;
 import mobisocial.musubi.util.IdentityCache;
 import mobisocial.musubi.util.IdentityCache.CachedIdentity;
 import mobisocial.musubi.util.RelativeDate;
@@ -81,12 +83,12 @@ import android.content.Intent;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Color;
-import android.graphics.Matrix;
 import android.graphics.Typeface;
 import android.net.Uri;
 import android.os.AsyncTask;
@@ -101,7 +103,6 @@ import android.support.v4.app.LoaderManager;
 import android.support.v4.app.SupportActivity;
 import android.support.v4.content.AsyncTaskLoader;
 import android.support.v4.content.Loader;
-import android.support.v4.util.LruCache;
 import android.support.v4.view.Menu;
 import android.support.v4.view.MenuItem;
 import android.text.Editable;
@@ -126,7 +127,7 @@ import com.android.contacts.widget.SingleTopPinnedHeaderListAdapter;
  * Displays a list of all user-accessible threads (feeds).
  *
  */
-public class FeedListFragment extends ListFragment implements LoaderManager.LoaderCallbacks<Cursor> {
+public class FeedListFragment extends ListFragment implements LoaderManager.LoaderCallbacks<Cursor[]> {
     private static final String TAG = "FeedListFragment";
     private static final boolean DBG = MusubiBaseActivity.DBG;
 	private static final int REQUEST_ADD_CONTACT = 1;
@@ -170,7 +171,11 @@ public class FeedListFragment extends ListFragment implements LoaderManager.Load
         		if(mFeeds.isEmpty() || !isAdded()) {
         			return;
                 }
-        		initLoaders(true);
+        		// same query, so let the loader keep the sections that didn't change
+        		Loader<Cursor[]> loader = getLoaderManager().getLoader(0);
+        		if (loader != null) {
+        			loader.onContentChanged();
+        		}
         	}
 		};
     }
@@ -324,7 +329,7 @@ public class FeedListFragment extends ListFragment implements LoaderManager.Load
             SQLiteOpenHelper helper = App.getDatabaseSource(context);
             mmDatabaseManager = new DatabaseManager(helper);
             mmIdentityCache = App.getContactCache(context);
-            mmFeedIconCache = new FeedIconCache(context, mmDatabaseManager, 30, 160);
+            mmFeedIconCache = new FeedIconCache(context, mmDatabaseManager, 160);
         }
 
         @Override
@@ -442,42 +447,35 @@ public class FeedListFragment extends ListFragment implements LoaderManager.Load
 		};
     }
 
-    static class FeedIconCache extends LruCache<Long, Bitmap> {
+    /**
+     * Feed icons, scaled to fit the list and kept in the shared {@link BitmapCache}.
+     */
+    public static class FeedIconCache {
+    	static final String KEY_PREFIX = "feed:";
     	final int mImageSize;
     	final DatabaseManager mDatabaseManager;
-    	final Matrix mScaleMatrix;
+    	final BitmapCache mBitmaps;
 
-    	public FeedIconCache(Context context, DatabaseManager databaseManager, int maxCount, int imageSize) {
-			super(maxCount);
+    	public FeedIconCache(Context context, DatabaseManager databaseManager, int imageSize) {
 			mImageSize = imageSize;
 			mDatabaseManager = databaseManager;
-			mScaleMatrix = new Matrix();
+			mBitmaps = App.getBitmapCache(context);
 		}
 
-		@Override
-    	protected Bitmap create(Long feedId) {
+    	public Bitmap get(long feedId) {
+    		Bitmap bm = mBitmaps.get(KEY_PREFIX + feedId);
+    		if (bm != null) {
+    			return bm;
+    		}
 			byte[] thumbnailBytes = mDatabaseManager.getFeedManager().getFeedThumbnailForId(feedId);
-        	if (thumbnailBytes != null) {
-        		Bitmap bm = UiUtil.decodeSampledBitmapFromByteArray(thumbnailBytes, mImageSize, mImageSize);
-        		int bw = bm.getWidth();
-        		int bh = bm.getHeight();
-        		float dx = 0, dy = 0;
-        		if (bw > mImageSize || bh > mImageSize) {
-        			float scale;
-        			if (bw > bh) {
-        				scale = (float) mImageSize / (float) bw;
-        				dx = (mImageSize - bw * scale) * 0.5f;
-        			} else {
-        				scale = (float) mImageSize / (float) bh;
-        				dy = (mImageSize - bh * scale) * 0.5f;
-        			}
-        			mScaleMatrix.reset();
-        			mScaleMatrix.setScale(scale, scale);
-        			mScaleMatrix.postTranslate((int) (dx + 0.5f), (int) (dy + 0.5f));
-        			return Bitmap.createBitmap(bm, 0, 0, bw, bh, mScaleMatrix, true);
-        		}
-        	}
-        	return null;
+			return mBitmaps.load(KEY_PREFIX + feedId, thumbnailBytes, mImageSize);
+    	}
+
+    	/**
+    	 * Drops the icon for a feed whose thumbnail has changed.
+    	 */
+    	public static void invalidate(Context context, long feedId) {
+    		App.getBitmapCache(context).remove(KEY_PREFIX + feedId);
     	}
     }
 
@@ -707,55 +705,19 @@ public class FeedListFragment extends ListFragment implements LoaderManager.Load
 
     void initLoaders(boolean restart) {
     	LoaderManager lm = getLoaderManager();
-    	Calendar cal = Calendar.getInstance();
-    	cal.set(Calendar.HOUR_OF_DAY, 0);
-    	cal.set(Calendar.MINUTE, 0);
-
-    	Bundle args = new Bundle();
-    	args.putLong("start", cal.getTimeInMillis());
     	if (restart) {
-    		lm.restartLoader(0, args, this);
+    		lm.restartLoader(0, null, this);
     	} else {
-    		lm.initLoader(0, args, this);
-    	}
-    	cal.add(Calendar.DAY_OF_MONTH, -1);
-    	for (int i = 1; i < DAYS_TO_SHOW; i++) {
-    		long time = cal.getTimeInMillis();
-    		args = new Bundle();
-    		args.putLong("start", time);
-    		args.putLong("end", time + ONE_DAY);
-    		if (restart) {
-        		lm.restartLoader(i, args, this);
-        	} else {
-        		lm.initLoader(i, args, this);
-        	}
-    		cal.add(Calendar.DAY_OF_MONTH, -1);
-    	}
-    	args = new Bundle();
-    	args.putLong("end", cal.getTimeInMillis() + ONE_DAY);
-    	if (restart) {
-    		lm.restartLoader(DAYS_TO_SHOW, args, this);
-    	} else {
-    		lm.initLoader(DAYS_TO_SHOW, args, this);
+    		lm.initLoader(0, null, this);
     	}
     }
 
     @Override
-    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+    public Loader<Cursor[]> onCreateLoader(int id, Bundle args) {
     	Set<MIdentity> ids = mPeople.getSelectedIdentities();
     	String filterText = mPeople.getText().toString();
     	StringBuilder constraints = new StringBuilder(100);
     	constraints.append("1=1");
-    	if (args != null) {
-        	if (args.containsKey("start")) {
-        		constraints.append(" AND ").append(MFeed.COL_LATEST_RENDERABLE_OBJ_TIME)
-        			.append(">").append(args.getLong("start"));
-        	}
-        	if (args.containsKey("end")) {
-        		constraints.append(" AND ").append(MFeed.COL_LATEST_RENDERABLE_OBJ_TIME)
-        			.append("<=").append(args.getLong("end"));
-        	}
-        }
     	if (filterText.length() > 0) {
     		if (ids.size() > 0) {
     			for (MIdentity p : ids) {
@@ -770,15 +732,18 @@ public class FeedListFragment extends ListFragment implements LoaderManager.Load
         		DatabaseUtils.appendEscapedSQLString(constraints, "%" + filterText + "%");
     		}
     	}
-        FeedSummaryLoader cl = new FeedSummaryLoader(getActivity(),
-        		constraints.toString());
+        FeedSectionsLoader cl = new FeedSectionsLoader(getActivity(),
+        		constraints.toString(), DAYS_TO_SHOW + 1);
         cl.setUpdateThrottle(1000);
         return cl;
     }
 
     @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
-        mFeeds.changeCursor(loader.getId(), cursor);
+    public void onLoadFinished(Loader<Cursor[]> loader, Cursor[] sections) {
+    	// unchanged sections come back as the same cursor and are left alone
+    	for (int i = 0; i < sections.length; i++) {
+    		mFeeds.changeCursor(i, sections[i]);
+    	}
         /*if (cursor.moveToFirst()) {
             long feedId = cursor.getLong(cursor.getColumnIndexOrThrow(MFeed.COL_ID));
             final Uri feedUri = MusubiContentProvider.uriForItem(Provided.FEEDS, feedId);
@@ -794,7 +759,7 @@ public class FeedListFragment extends ListFragment implements LoaderManager.Load
     }
 
     @Override
-    public void onLoaderReset(Loader<Cursor> arg0) {
+    public void onLoaderReset(Loader<Cursor[]> arg0) {
     }
 
     void selectFeed(int position, Uri feedUri) {
@@ -1001,39 +966,199 @@ public class FeedListFragment extends ListFragment implements LoaderManager.Load
         }
 
         Cursor initCursor() {
-    		Cursor c = mDb.rawQuery(getFeedSummariesQuery(), null);
+    		Cursor c = mDb.rawQuery(getFeedSummariesQuery(mConstraints), null);
     		c.setNotificationUri(getContext().getContentResolver(),
     				MusubiContentProvider.uriForDir(Provided.FEEDS));
     		return c;
         }
 
-        String getFeedSummariesQuery() {
+        static String getFeedSummariesQuery(String constraints) {
         	StringBuilder sql = new StringBuilder(100);
         	sql.append("SELECT ")
 	        		.append(MFeed.TABLE).append(".").append(MFeed.COL_ID).append(",")
 	        		.append(MFeed.TABLE).append(".").append(MFeed.COL_NAME).append(",")
 	        		.append(MFeed.TABLE).append(".").append(MFeed.COL_NUM_UNREAD).append(",")
 	        		.append(MFeed.TABLE).append(".").append(MFeed.COL_LATEST_RENDERABLE_OBJ_TIME).append(",")
-	        		.append(MObject.TABLE).append(".").append(MObject.COL_TYPE).append(",")
-	        		.append(MObject.TABLE).append(".").append(MObject.COL_JSON).append(",")
-	        		.append(MObject.TABLE).append(".").append(MObject.COL_IDENTITY_ID).append(",")
-	        		.append(MFeed.TABLE).append(".").append(MFeed.COL_THUMBNAIL).append(" IS NOT NULL AS feed_thumbnail")
+	        		.append(MFeedSummary.TABLE).append(".").append(MFeedSummary.COL_TYPE).append(",")
+	        		.append(MFeedSummary.TABLE).append(".").append(MFeedSummary.COL_JSON).append(",")
+	        		.append(MFeedSummary.TABLE).append(".").append(MFeedSummary.COL_SENDER_ID).append(",")
+	        		.append(MFeed.TABLE).append(".").append(MFeed.COL_THUMBNAIL).append(" IS NOT NULL AS feed_thumbnail,")
+	        		.append(MFeedSummary.TABLE).append(".").append(MFeedSummary.COL_PREVIEW)
         		.append(" FROM ").append(MFeed.TABLE)
-        		.append(" LEFT JOIN ").append(MObject.TABLE)
-        			.append(" ON ").append(MFeed.TABLE).append(".").append(MFeed.COL_LATEST_RENDERABLE_OBJ_ID)
-        			.append("=").append(MObject.TABLE).append(".").append(MObject.COL_ID)
-    			//.append(" LEFT JOIN ").append(MIdentity.TABLE)
-    			//	.append(" ON ").append(MObject.TABLE).append(".").append(MObject.COL_IDENTITY_ID)
-    			//	.append("=").append(MIdentity.TABLE).append(".").append(MIdentity.COL_ID)
+        		.append(" LEFT JOIN ").append(MFeedSummary.TABLE)
+        			.append(" ON ").append(MFeed.TABLE).append(".").append(MFeed.COL_ID)
+        			.append("=").append(MFeedSummary.TABLE).append(".").append(MFeedSummary.COL_FEED_ID)
         		.append(" WHERE ").append(FeedManager.VISIBLE_FEED_SELECTION);
-            if (mConstraints != null && mConstraints.length() > 0) {
-            	sql.append(" AND ").append(mConstraints);
+            if (constraints != null && constraints.length() > 0) {
+            	sql.append(" AND ").append(constraints);
             }
             sql.append(" ORDER BY ").append(sFeedSortOrder);
             return sql.toString();
         }
     }
 
+    /**
+     * Loads the feed summaries with a single query and splits them into
+     * sections by day, today first and everything older than
+     * {@link #DAYS_TO_SHOW} days in the last one.  The rows are copied out
+     * of the database cursor, so a reload can hand back the previous
+     * cursor for any section whose feeds did not change and the list only
+     * rebinds the sections that did.
+     */
+    public static class FeedSectionsLoader extends AsyncTaskLoader<Cursor[]> {
+    	static final String TAG = "FeedSectionsLoader";
+    	static final String[] COLUMNS = new String[] {
+    		MFeed.COL_ID, MFeed.COL_NAME, MFeed.COL_NUM_UNREAD, MFeed.COL_LATEST_RENDERABLE_OBJ_TIME,
+    		MFeedSummary.COL_TYPE, MFeedSummary.COL_JSON, MFeedSummary.COL_SENDER_ID, "feed_thumbnail",
+    		MFeedSummary.COL_PREVIEW
+    	};
+
+        final ForceLoadContentObserver mObserver;
+        final SQLiteDatabase mDb;
+        final String mConstraints;
+        final int mSectionCount;
+        boolean mObserving;
+
+        /* the rows behind each delivered section, to compare against */
+        ArrayList<ArrayList<Object[]>> mRows;
+        Cursor[] mSections;
+
+        public FeedSectionsLoader(Context context, String constraints, int sectionCount) {
+            super(context);
+            mConstraints = constraints;
+            mSectionCount = sectionCount;
+            mDb = App.getDatabaseSource(context).getReadableDatabase();
+            mObserver = new ForceLoadContentObserver();
+        }
+
+        /* Runs on a worker thread */
+        @Override
+        public Cursor[] loadInBackground() {
+        	long[] starts = sectionStarts(mSectionCount);
+        	ArrayList<ArrayList<Object[]>> rows = new ArrayList<ArrayList<Object[]>>(mSectionCount);
+        	for (int i = 0; i < mSectionCount; i++) {
+        		rows.add(new ArrayList<Object[]>());
+        	}
+
+        	Cursor c = mDb.rawQuery(FeedSummaryLoader.getFeedSummariesQuery(mConstraints), null);
+        	try {
+        		// newest first, so the sections come out in order
+        		int section = 0;
+        		while (c.moveToNext()) {
+        			long time = c.getLong(3);
+        			while (section < mSectionCount - 1 && time <= starts[section]) {
+        				section++;
+        			}
+        			rows.get(section).add(new Object[] {
+        				c.getLong(0),
+        				c.isNull(1) ? null : c.getString(1),
+        				c.getInt(2),
+        				time,
+        				c.isNull(4) ? null : c.getString(4),
+        				c.isNull(5) ? null : c.getString(5),
+        				c.isNull(6) ? null : c.getLong(6),
+        				c.getInt(7),
+        				c.isNull(8) ? null : c.getString(8)
+        			});
+        		}
+        	} finally {
+        		c.close();
+        	}
+
+        	Cursor[] sections = new Cursor[mSectionCount];
+        	synchronized (this) {
+	        	for (int i = 0; i < mSectionCount; i++) {
+	        		if (mSections != null && sameRows(mRows.get(i), rows.get(i))) {
+	        			sections[i] = mSections[i];
+	        			continue;
+	        		}
+	        		MatrixCursor section = new MatrixCursor(COLUMNS, rows.get(i).size());
+	        		for (Object[] row : rows.get(i)) {
+	        			section.addRow(row);
+	        		}
+	        		sections[i] = section;
+	        	}
+	        	mRows = rows;
+	        	mSections = sections;
+        	}
+        	return sections;
+        }
+
+        /**
+         * The start of each day section; a summary belongs to the first
+         * section whose start it is newer than.
+         */
+        static long[] sectionStarts(int sectionCount) {
+        	Calendar cal = Calendar.getInstance();
+        	cal.set(Calendar.HOUR_OF_DAY, 0);
+        	cal.set(Calendar.MINUTE, 0);
+        	cal.set(Calendar.SECOND, 0);
+        	cal.set(Calendar.MILLISECOND, 0);
+        	long[] starts = new long[sectionCount - 1];
+        	for (int i = 0; i < starts.length; i++) {
+        		starts[i] = cal.getTimeInMillis();
+        		cal.add(Calendar.DAY_OF_MONTH, -1);
+        	}
+        	return starts;
+        }
+
+        static boolean sameRows(ArrayList<Object[]> a, ArrayList<Object[]> b) {
+        	if (a.size() != b.size()) {
+        		return false;
+        	}
+        	for (int i = 0; i < a.size(); i++) {
+        		if (!Arrays.equals(a.get(i), b.get(i))) {
+        			return false;
+        		}
+        	}
+        	return true;
+        }
+
+        /**
+         * Must be called from the UI thread
+         */
+        @Override
+        protected void onStartLoading() {
+        	if (!mObserving) {
+        		getContext().getContentResolver().registerContentObserver(
+        				MusubiContentProvider.uriForDir(Provided.FEEDS), true, mObserver);
+        		mObserving = true;
+        	}
+            if (mSections != null) {
+                deliverResult(mSections);
+            }
+            if (takeContentChanged() || mSections == null) {
+                forceLoad();
+            }
+        }
+
+        /**
+         * Must be called from the UI thread
+         */
+        @Override
+        protected void onStopLoading() {
+            // Attempt to cancel the current load task if possible.
+            cancelLoad();
+        }
+
+        @Override
+        protected void onReset() {
+            super.onReset();
+
+            // Ensure the loader is stopped
+            onStopLoading();
+
+            if (mObserving) {
+            	getContext().getContentResolver().unregisterContentObserver(mObserver);
+            	mObserving = false;
+            }
+            synchronized (this) {
+            	mRows = null;
+            	mSections = null;
+            }
+        }
+    }
+
     public static class FeedSummary {
     	final Context mContext;
 
@@ -1045,6 +1170,8 @@ public class FeedListFragment extends ListFragment implements LoaderManager.Load
     	public String objJsonSrc;
     	public long identityId;
     	public boolean hasThumbnail;
+    	/* the text to show for the object, or null to read it from the json */
+    	public String preview;
 
     	private JSONObject mJson;
 
@@ -1061,6 +1188,7 @@ public class FeedListFragment extends ListFragment implements LoaderManager.Load
     		objJsonSrc = (c.isNull(5)) ? null : c.getString(5);
     		identityId = c.getLong(6);
     		hasThumbnail = c.getInt(7) != 0;
+    		preview = (c.isNull(8)) ? null : c.getString(8);
     		mJson = null;
     	}
 
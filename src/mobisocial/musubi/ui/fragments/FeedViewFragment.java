@@ -45,6 +45,8 @@ import mobisocial.musubi.ui.FeedDetailsActivity;
 import mobisocial.musubi.ui.MusubiBaseActivity;
 import mobisocial.musubi.ui.util.EmojiSpannableFactory;
 import mobisocial.musubi.ui.widget.DbObjCursorAdapter;
+import mobisocial.musubi.ui.widget.DbObjCursorAdapter.FeedObjectsCursorLoader;
+import mobisocial.musubi.util.BitmapLoader;
 import mobisocial.musubi.util.InstrumentedActivity;
 import mobisocial.musubi.util.ObjFactory;
 import mobisocial.socialkit.Obj;
@@ -89,6 +91,7 @@ import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.AbsListView;
 import android.widget.AbsListView.OnScrollListener;
+import android.widget.AbsListView.RecyclerListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.AdapterView.OnItemLongClickListener;
@@ -172,6 +175,13 @@ public class FeedViewFragment extends ListFragment implements OnScrollListener,
         mListView.setOnItemClickListener(mItemClickListener);
         mListView.setOnItemLongClickListener(mItemLongClickListener);
         mListView.setOnScrollListener(this);
+        mListView.setRecyclerListener(new RecyclerListener() {
+            @Override
+            public void onMovedToScrapHeap(View view) {
+                //rows that scrolled away no longer need their pictures
+                BitmapLoader.get(mActivity).cancelAll(view);
+            }
+        });
         mListView.setFocusable(true);
 
         RelativeLayout.LayoutParams params = new RelativeLayout.LayoutParams(0, RelativeLayout.LayoutParams.FILL_PARENT);
@@ -392,7 +402,11 @@ public class FeedViewFragment extends ListFragment implements OnScrollListener,
         		}
 
         		if (DBG) Log.d(TAG, "-- contentObserver observed change");
-        		getLoaderManager().restartLoader(0, getLoaderArgs(mTotal), FeedViewFragment.this);
+        		// the loader refreshes just the newest objects
+        		Loader<Cursor> loader = getLoaderManager().getLoader(0);
+        		if (loader != null) {
+        			loader.onContentChanged();
+        		}
         	}
 		};
 
@@ -549,7 +563,8 @@ public class FeedViewFragment extends ListFragment implements OnScrollListener,
 		boolean loadMore = (firstVisible == 0 && mResumeToPosition == -1 && mPreviousTotal != mTotal);
     	if (loadMore) {
     		mResumeToPosition = mTotal;
-    		getLoaderManager().restartLoader(0, getLoaderArgs(totalCount + BATCH_SIZE), this);
+    		FeedObjectsCursorLoader loader = (FeedObjectsCursorLoader)getLoaderManager().<Cursor>getLoader(0);
+    		loader.loadOlder(BATCH_SIZE);
     	}
 	}
 
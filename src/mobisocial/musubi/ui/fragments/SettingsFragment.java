@@ -593,6 +593,11 @@ public class SettingsFragment extends Fragment {
 					so_far += len;
 					publishProgress((int) (100 * so_far / (file_size + 1)));
 				}
+				SQLiteOpenHelper helper = App.getDatabaseSource(mActivity);
+				if (helper instanceof DatabaseFile) {
+					File backupBlobs = new File(extStorageDirectory, DatabaseFile.DEFAULT_DATABASE_NAME + "-blobs");
+					((DatabaseFile)helper).getBlobStore().copyTo(backupBlobs);
+				}
 				return null;
 			} catch (Exception e) {
 				Log.e(TAG, "Failure backing up to SD card", e);
@@ -673,6 +678,11 @@ public class SettingsFragment extends Fragment {
 				}
 				in.close();
 				out.close();
+				//blobs are content addressed, so the backed up ones can go straight in
+				File backupBlobs = new File(extStorageDirectory, DatabaseFile.DEFAULT_DATABASE_NAME + "-blobs");
+				if (helper_ instanceof DatabaseFile) {
+					((DatabaseFile)helper_).getBlobStore().copyFrom(backupBlobs);
+				}
 				//kill because the process so that it restarts and finishes the restore
 				
 				SharedPreferences settings = mActivity.getSharedPreferences(WizardStepHandler.WIZARD_PREFS_NAME, 0);
@@ -149,7 +149,7 @@ public class UiUtil {
 			IdentitiesManager identitiesManager, MIdentity sender) {
 		IdentityCache cache = App.getContactCache(context);
 	    CachedIdentity cached = cache.get(sender.id_);
-    	return (cached == null) ? null : cached.thumbnail;
+    	return (cached == null) ? null : cached.getThumbnail();
 	}
 
 	public static Bitmap safeGetContactThumbnailWithoutCache(IdentitiesManager identitiesManager, long senderId) {
@@ -307,7 +307,7 @@ public class UiUtil {
 					noNames = false;
 				}
 				name.append(cached.name);
-				thumbnails.add(cached.thumbnail);
+				thumbnails.add(cached.getThumbnail());
 			}
 		}
 
@@ -315,7 +315,7 @@ public class UiUtil {
 			// no thumbnail, just use first guy
 			CachedIdentity cached = identityCache.get(identityIds[0]);
 			name.append(cached.name);
-			thumbnails.add(cached.thumbnail);
+			thumbnails.add(cached.getThumbnail());
 			unownedidentities++;
 		}
 
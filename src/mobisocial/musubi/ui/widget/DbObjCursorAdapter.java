@@ -16,7 +16,7 @@
 
 package mobisocial.musubi.ui.widget;
 
-import java.io.FileDescriptor;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -39,8 +39,12 @@ import org.json.JSONObject;
 import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DataSetObserver;
+import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.support.v4.content.AsyncTaskLoader;
 import android.support.v4.content.Loader;
 import android.util.Log;
@@ -177,8 +181,8 @@ public class DbObjCursorAdapter extends CursorAdapter {
     	return objectMainView;
     }
 
-    public static Loader<Cursor> getLoaderForFeed(Context context, long feedId, int maxCount) {
-    	return new FeedObjectsCursorLoader(context, feedId, maxCount);
+    public static Loader<Cursor> getLoaderForFeed(Context context, long feedId, int firstPageSize) {
+    	return new FeedObjectsCursorLoader(context, feedId, firstPageSize);
     }
 
     /**
@@ -300,8 +304,11 @@ public class DbObjCursorAdapter extends CursorAdapter {
 			return getObject().raw_;
 		}
 
-		public FileDescriptor getFileDescriptorForRaw() {
-			return mDbManager.getObjectManager().getFileDescriptorForRaw(objId);
+		/**
+		 * Opens the raw payload for streaming; the caller must close it.
+		 */
+		public ParcelFileDescriptor openRaw() {
+			return mDbManager.getObjectManager().openRaw(objId);
 		}
 
 		@Override
@@ -323,40 +330,229 @@ public class DbObjCursorAdapter extends CursorAdapter {
     }
 
     /**
-     * Static library support version of the framework's {@link android.content.CursorLoader}.
-     * Used to write apps that run on platforms prior to Android 3.0.  When running
-     * on Android 3.0 or above, this implementation is still used; it does not try
-     * to switch to the framework's implementation.  See the framework SDK
-     * documentation for a class overview.
+     * Loads a feed a page at a time, newest first.  Pages are fetched by
+     * their (last modified, id) key rather than by offset, so opening a feed
+     * and scrolling back through it costs the same no matter how long the
+     * feed is.  Content changes only requery the newest page; older pages are
+     * kept as they are unless rows went missing from underneath them.
+     *
+     * The delivered cursor is a {@link MergeCursor} over the pages.  The
+     * loader owns the pages and closes them itself once a replacement has
+     * been delivered.
      */
-    static class FeedObjectsCursorLoader extends AsyncTaskLoader<Cursor> {
+    public static class FeedObjectsCursorLoader extends AsyncTaskLoader<Cursor> {
     	static final String TAG = "FeedObjectsCursorLoader";
+    	/**
+    	 * If more than this many objects arrive between refreshes the window
+    	 * starts over from the newest page.
+    	 */
+    	static final int HEAD_LIMIT = 500;
+
+    	static final int COLUMN_ID = 0;
+    	static final int COLUMN_LAST_MODIFIED = 11;
+
+    	/**
+    	 * A page of rows and the key of its oldest row.  The key is read
+    	 * before the page is handed out, since the list moves the cursor
+    	 * around on the UI thread afterwards.
+    	 */
+    	static class Page {
+    		final Cursor mCursor;
+    		final int mCount;
+    		final long mOldestTime;
+    		final long mOldestId;
+
+    		Page(Cursor cursor) {
+    			mCursor = cursor;
+    			mCount = cursor.getCount();
+    			if (cursor.moveToLast()) {
+    				mOldestTime = cursor.getLong(COLUMN_LAST_MODIFIED);
+    				mOldestId = cursor.getLong(COLUMN_ID);
+    			} else {
+    				mOldestTime = 0;
+    				mOldestId = 0;
+    			}
+    		}
+    	}
+
         final ForceLoadContentObserver mObserver;
 
         final SQLiteDatabase mDb;
-        long mFeedId;
-        int mMaxCount;
+        final long mFeedId;
+        final int mFirstPageSize;
+
+        /* newest first, only touched from loadInBackground and onReset */
+        final ArrayList<Page> mPages = new ArrayList<Page>();
+        /* pages that were replaced but may still be in use by the list */
+        final ArrayList<Cursor> mRetired = new ArrayList<Cursor>();
+        volatile boolean mHeadStale;
+        int mRequestedOlder;
+        volatile boolean mExhausted;
 
         Cursor mCursor;
 
         /* Runs on a worker thread */
         @Override
         public Cursor loadInBackground() {
-            Cursor cursor = initCursor();
-            if (cursor != null) {
-                // Ensure the cursor window is filled
-                cursor.getCount();
-                registerContentObserver(cursor, mObserver);
-            }
-            return cursor;
+        	int older;
+        	synchronized (this) {
+        		older = mRequestedOlder;
+        		mRequestedOlder = 0;
+        	}
+        	synchronized (mPages) {
+	        	if (mPages.isEmpty()) {
+	        		mHeadStale = false;
+	        		Page head = queryNewest(mFirstPageSize);
+	        		mExhausted = head.mCount < mFirstPageSize;
+	        		setHead(head);
+	        	} else if (mHeadStale) {
+	        		mHeadStale = false;
+	        		refreshHead();
+	        	}
+	        	if (older > 0 && !mExhausted) {
+	        		Page oldest = mPages.get(mPages.size() - 1);
+	        		if (oldest.mCount == 0) {
+	        			mExhausted = true;
+	        		} else {
+	        			appendOlder(oldest.mOldestTime, oldest.mOldestId, older);
+	        		}
+	        	}
+
+	        	Cursor[] pages = new Cursor[mPages.size()];
+	        	for (int i = 0; i < pages.length; ++i) {
+	        		pages[i] = new PageCursor(mPages.get(i).mCursor);
+	        	}
+	        	Cursor cursor = new MergeCursor(pages);
+	        	// Ensure the cursor window is filled
+	        	cursor.getCount();
+	        	return cursor;
+        	}
+        }
+
+        /**
+         * Asks for a batch of older objects to be appended to the window.
+         *
+         * Must be called from the UI thread
+         */
+        public void loadOlder(int count) {
+        	synchronized (this) {
+        		mRequestedOlder += count;
+        	}
+        	forceLoad();
+        }
+
+        @Override
+        public void onContentChanged() {
+        	mHeadStale = true;
+        	super.onContentChanged();
+        }
+
+        void setHead(Page head) {
+        	// only the head needs to hear about new objects in this feed
+        	head.mCursor.setNotificationUri(getContext().getContentResolver(),
+    				MusubiContentProvider.uriForItem(Provided.FEEDS_ID, mFeedId));
+        	head.mCursor.registerContentObserver(mObserver);
+        	if (mPages.isEmpty()) {
+        		mPages.add(head);
+        	} else {
+        		Page old = mPages.set(0, head);
+        		old.mCursor.unregisterContentObserver(mObserver);
+        		retire(old);
+        	}
+        }
+
+        void retire(Page page) {
+        	synchronized (mRetired) {
+        		mRetired.add(page.mCursor);
+        	}
+        }
+
+        void retireTail() {
+        	while (mPages.size() > 1) {
+        		retire(mPages.remove(mPages.size() - 1));
+        	}
+        	mExhausted = false;
         }
 
         /**
-         * Registers an observer to get notifications from the content provider
-         * when the cursor needs to be refreshed.
+         * Requeries everything from the oldest object of the head page up to
+         * the newest one, which picks up new arrivals and changes to recent
+         * objects.
          */
-        void registerContentObserver(Cursor cursor, ContentObserver observer) {
-            cursor.registerContentObserver(observer);
+        void refreshHead() {
+        	Page oldHead = mPages.get(0);
+        	if (oldHead.mCount == 0) {
+        		Page head = queryNewest(mFirstPageSize);
+        		mExhausted = head.mCount < mFirstPageSize;
+        		setHead(head);
+        		return;
+        	}
+        	long boundaryTime = oldHead.mOldestTime;
+        	long boundaryId = oldHead.mOldestId;
+
+        	Page head = new Page(mDb.rawQuery(getFeedObjectsQuery(" AND " + atOrAfter()), new String[] {
+        			Long.toString(mFeedId), Long.toString(boundaryTime), Long.toString(boundaryTime),
+        			Long.toString(boundaryId), Integer.toString(HEAD_LIMIT) }));
+        	if (head.mCount >= HEAD_LIMIT) {
+        		// too much changed to stitch together, start over from here
+        		Log.i(TAG, "starting over, more than " + HEAD_LIMIT + " new objects");
+        		retireTail();
+        		setHead(head);
+        		return;
+        	}
+        	setHead(head);
+
+        	int tailRows = 0;
+        	for (int i = 1; i < mPages.size(); ++i) {
+        		tailRows += mPages.get(i).mCount;
+        	}
+        	if (tailRows == 0) {
+        		return;
+        	}
+        	// rows deleted from the tail, or objects bumped out of it to the
+        	// head, mean the tail is stale too
+        	Page oldest = mPages.get(mPages.size() - 1);
+        	if (countBetween(oldest.mOldestTime, oldest.mOldestId, boundaryTime, boundaryId) == tailRows) {
+        		return;
+        	}
+        	Log.i(TAG, "tail changed, reloading " + tailRows + " older objects");
+        	retireTail();
+        	appendOlder(boundaryTime, boundaryId, tailRows);
+        }
+
+        void appendOlder(long time, long id, int count) {
+        	Page page = new Page(mDb.rawQuery(getFeedObjectsQuery(" AND " + before()), new String[] {
+        			Long.toString(mFeedId), Long.toString(time), Long.toString(time),
+        			Long.toString(id), Integer.toString(count) }));
+        	if (page.mCount < count) {
+        		mExhausted = true;
+        	}
+        	if (page.mCount == 0) {
+        		page.mCursor.close();
+        		return;
+        	}
+        	mPages.add(page);
+        }
+
+        Page queryNewest(int count) {
+        	return new Page(mDb.rawQuery(getFeedObjectsQuery(""), new String[] {
+        			Long.toString(mFeedId), Integer.toString(count) }));
+        }
+
+        int countBetween(long fromTime, long fromId, long toTime, long toId) {
+        	String sql = new StringBuilder(100)
+        		.append("SELECT COUNT(*) FROM ").append(MObject.TABLE)
+        		.append(" WHERE ").append(renderableInFeed())
+        		.append(" AND ").append(atOrAfter())
+        		.append(" AND ").append(before()).toString();
+        	Cursor c = mDb.rawQuery(sql, new String[] { Long.toString(mFeedId),
+        			Long.toString(fromTime), Long.toString(fromTime), Long.toString(fromId),
+        			Long.toString(toTime), Long.toString(toTime), Long.toString(toId) });
+        	try {
+        		return c.moveToFirst() ? c.getInt(0) : 0;
+        	} finally {
+        		c.close();
+        	}
         }
 
         /* Runs on the UI thread */
@@ -374,6 +570,8 @@ public class DbObjCursorAdapter extends CursorAdapter {
 
             if (isStarted()) {
                 super.deliverResult(cursor);
+                // nothing is looking at the replaced pages any more
+                closeRetired();
             }
 
             if (oldCursor != null && oldCursor != cursor && !oldCursor.isClosed()) {
@@ -381,16 +579,20 @@ public class DbObjCursorAdapter extends CursorAdapter {
             }
         }
 
-        /**
-         * Creates an empty unspecified CursorLoader.  You must follow this with
-         * calls to {@link #setUri(Uri)}, {@link #setSelection(String)}, etc
-         * to specify the query to perform.
-         */
-        public FeedObjectsCursorLoader(Context context, long feedId, int maxCount) {
+        void closeRetired() {
+        	synchronized (mRetired) {
+        		for (Cursor page : mRetired) {
+        			page.close();
+        		}
+        		mRetired.clear();
+        	}
+        }
+
+        public FeedObjectsCursorLoader(Context context, long feedId, int firstPageSize) {
             super(context);
             mDb = App.getDatabaseSource(context).getReadableDatabase();
             mFeedId = feedId;
-            mMaxCount = maxCount;
+            mFirstPageSize = firstPageSize;
             mObserver = new ForceLoadContentObserver();
         }
 
@@ -438,18 +640,42 @@ public class DbObjCursorAdapter extends CursorAdapter {
                 mCursor.close();
             }
             mCursor = null;
+            synchronized (mPages) {
+            	if (!mPages.isEmpty()) {
+            		mPages.get(0).mCursor.unregisterContentObserver(mObserver);
+            	}
+            	for (Page page : mPages) {
+            		page.mCursor.close();
+            	}
+            	mPages.clear();
+            	closeRetired();
+            	mExhausted = false;
+            }
         }
 
-        Cursor initCursor() {
-	        String[] selectionArgs = new String[] { Long.toString(mFeedId), Integer.toString(mMaxCount) };
-    		Cursor c = mDb.rawQuery(getFeedObjectsQuery(), selectionArgs);
-    		c.setNotificationUri(getContext().getContentResolver(),
-    				MusubiContentProvider.uriForItem(Provided.FEEDS_ID, mFeedId));
-    		return c;
+        static String renderableInFeed() {
+        	return new StringBuilder(100)
+				.append(MObject.TABLE).append(".").append(MObject.COL_RENDERABLE).append("=1 AND ")
+                .append(MObject.TABLE).append(".").append(MObject.COL_PARENT_ID).append(" is null AND ")
+                .append(MObject.TABLE).append(".").append(MObject.COL_FEED_ID).append(" =?").toString();
+        }
+
+        /* (last modified, id) >= (?, ?), written so the index range applies */
+        static String atOrAfter() {
+        	String time = MObject.TABLE + "." + MObject.COL_LAST_MODIFIED_TIMESTAMP;
+        	String id = MObject.TABLE + "." + MObject.COL_ID;
+        	return time + ">=? AND (" + time + ">? OR " + id + ">=?)";
+        }
+
+        /* (last modified, id) < (?, ?) */
+        static String before() {
+        	String time = MObject.TABLE + "." + MObject.COL_LAST_MODIFIED_TIMESTAMP;
+        	String id = MObject.TABLE + "." + MObject.COL_ID;
+        	return time + "<=? AND (" + time + "<? OR " + id + "<?)";
         }
 
         static String sFeedObjectsQuery;
-        String getFeedObjectsQuery() {
+        static String getFeedObjectsQuery(String keyRange) {
         	if (sFeedObjectsQuery == null) {
         		sFeedObjectsQuery = new StringBuilder(100)
         		.append("SELECT ")
@@ -463,7 +689,8 @@ public class DbObjCursorAdapter extends CursorAdapter {
         			.append(MApp.TABLE).append(".").append(MApp.COL_APP_ID).append(",")
         			.append(MApp.TABLE).append(".").append(MApp.COL_NAME).append(",")
         			.append(DbLikeCache.TABLE).append(".").append(DbLikeCache.COUNT).append(",")
-        			.append(DbLikeCache.TABLE).append(".").append(DbLikeCache.LOCAL_LIKE)
+        			.append(DbLikeCache.TABLE).append(".").append(DbLikeCache.LOCAL_LIKE).append(",")
+        			.append(MObject.TABLE).append(".").append(MObject.COL_LAST_MODIFIED_TIMESTAMP)
         		.append(" FROM ")
         			.append(MObject.TABLE)
         			.append(" LEFT JOIN ").append(MEncodedMessage.TABLE).append(" ON ")
@@ -475,14 +702,40 @@ public class DbObjCursorAdapter extends CursorAdapter {
         			.append(" LEFT JOIN ").append(DbLikeCache.TABLE).append(" ON ")
         				.append(MObject.TABLE).append(".").append(MObject.COL_ID).append("=")
         				.append(DbLikeCache.TABLE).append(".").append(DbLikeCache.PARENT_OBJ)
-    			.append(" WHERE ")
-    				.append(MObject.TABLE).append(".").append(MObject.COL_RENDERABLE).append("=1 AND ")
-	                .append(MObject.TABLE).append(".").append(MObject.COL_PARENT_ID).append(" is null AND ")
-	                .append(MObject.TABLE).append(".").append(MObject.COL_FEED_ID).append(" =?")
-				.append(" ORDER BY ").append(MObject.COL_LAST_MODIFIED_TIMESTAMP).append(" DESC LIMIT ?")
+    			.append(" WHERE ").append(renderableInFeed())
 				.toString();
         	}
-        	return sFeedObjectsQuery;
+        	StringBuilder sql = new StringBuilder(sFeedObjectsQuery.length() + 200)
+        		.append(sFeedObjectsQuery).append(keyRange)
+        		.append(" ORDER BY ")
+        			.append(MObject.TABLE).append(".").append(MObject.COL_LAST_MODIFIED_TIMESTAMP).append(" DESC,")
+        			.append(MObject.TABLE).append(".").append(MObject.COL_ID).append(" DESC")
+        		.append(" LIMIT ?");
+        	return sql.toString();
         }
     }
+
+    /**
+     * A view of one page that leaves the page itself alone when the merged
+     * cursor around it is closed.  Data set observers stay with the wrapper,
+     * so merged cursors that are thrown away don't pile up on the page.
+     */
+    static class PageCursor extends CursorWrapper {
+    	public PageCursor(Cursor page) {
+    		super(page);
+    	}
+
+    	@Override
+    	public void close() {
+    		// owned by the loader
+    	}
+
+    	@Override
+    	public void registerDataSetObserver(DataSetObserver observer) {
+    	}
+
+    	@Override
+    	public void unregisterDataSetObserver(DataSetObserver observer) {
+    	}
+    }
 }
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2012 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.musubi.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+
+import mobisocial.musubi.ui.util.UiUtil;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+/**
+ * The bitmap cache shared by contact thumbnails, feed icons and web renders.
+ *
+ * The memory tier is bounded by the bytes held in bitmaps and sized from the
+ * device's memory class.  Behind it is a disk tier of pre-scaled thumbnails,
+ * named by a hash of the image they were made from, so they never go stale
+ * and never need to be invalidated.  The disk tier is trimmed least recently
+ * used first.
+ *
+ * The memory tier and the counters are guarded by the cache's monitor, which
+ * {@link #get} takes on the ui thread, so nothing that touches the disk may
+ * hold it.  Disk accounting and trimming have a lock of their own.
+ */
+public class BitmapCache {
+	public static final String TAG = "BitmapCache";
+
+	/** The share of the memory class given to the memory tier */
+	static final int MEMORY_CLASS_DIVISOR = 8;
+	static final long DEFAULT_DISK_BYTES = 8 * 1024 * 1024;
+
+	final Memory mMemory;
+	final File mDiskDir;
+	final long mMaxDiskBytes;
+	/* guards mDiskBytes and the listing and trimming of the disk tier */
+	final Object mDiskLock = new Object();
+	volatile long mDiskBytes = -1;
+
+	int mHits;
+	int mMisses;
+	int mDiskHits;
+	int mDiskWrites;
+	int mEvictions;
+
+	public BitmapCache(Context context) {
+		this(new File(context.getCacheDir(), "thumbnails"), memoryBudget(context), DEFAULT_DISK_BYTES);
+	}
+
+	BitmapCache(File diskDir, int maxMemoryBytes, long maxDiskBytes) {
+		mMemory = new Memory(maxMemoryBytes);
+		mDiskDir = diskDir;
+		mMaxDiskBytes = maxDiskBytes;
+	}
+
+	static int memoryBudget(Context context) {
+		ActivityManager am = (ActivityManager)context.getSystemService(Context.ACTIVITY_SERVICE);
+		return am.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_DIVISOR;
+	}
+
+	class Memory extends LruCache<String, Bitmap> {
+		Memory(int maxBytes) {
+			super(maxBytes);
+		}
+
+		@Override
+		protected int sizeOf(String key, Bitmap value) {
+			return value.getRowBytes() * value.getHeight();
+		}
+
+		@Override
+		protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+			if (evicted) {
+				synchronized (BitmapCache.this) {
+					mEvictions++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the bitmap for the key if it is in memory.
+	 */
+	public Bitmap get(String key) {
+		Bitmap bitmap = mMemory.get(key);
+		synchronized (this) {
+			if (bitmap == null) {
+				mMisses++;
+			} else {
+				mHits++;
+			}
+		}
+		return bitmap;
+	}
+
+	public void put(String key, Bitmap bitmap) {
+		mMemory.put(key, bitmap);
+	}
+
+	/**
+	 * Makes the bitmap for a key that missed in memory from its encoded image.
+	 * The image is scaled down to fit in a square of the given size, and the
+	 * scaled copy is kept on disk so it needn't be decoded again.
+	 * @return null if there is no image or it can't be decoded
+	 */
+	public Bitmap load(String key, byte[] image, int size) {
+		if (image == null) {
+			return null;
+		}
+		Bitmap bitmap;
+		String name = Util.convertToHex(Util.sha256(image)) + "-" + size;
+		bitmap = getFromDisk(name);
+		if (bitmap == null) {
+			bitmap = decodeScaled(image, size);
+			if (bitmap == null) {
+				return null;
+			}
+			putOnDisk(name, bitmap);
+		}
+		put(key, bitmap);
+		return bitmap;
+	}
+
+	static Bitmap decodeScaled(byte[] image, int size) {
+		Bitmap bitmap = UiUtil.decodeSampledBitmapFromByteArray(image, size, size);
+		if (bitmap == null) {
+			return null;
+		}
+		int w = bitmap.getWidth();
+		int h = bitmap.getHeight();
+		if (w <= size && h <= size) {
+			return bitmap;
+		}
+		float scale = (float)size / Math.max(w, h);
+		Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(w * scale)),
+				Math.max(1, Math.round(h * scale)), true);
+		if (scaled != bitmap) {
+			bitmap.recycle();
+		}
+		return scaled;
+	}
+
+	/**
+	 * Returns a bitmap kept on disk under the given name, or null.
+	 */
+	public Bitmap getFromDisk(String name) {
+		File file = new File(mDiskDir, name);
+		if (!file.exists()) {
+			return null;
+		}
+		Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+		if (bitmap == null) {
+			synchronized (mDiskLock) {
+				if (mDiskBytes >= 0) {
+					mDiskBytes -= file.length();
+				}
+			}
+			file.delete();
+			return null;
+		}
+		file.setLastModified(System.currentTimeMillis());
+		synchronized (this) {
+			mDiskHits++;
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Keeps a bitmap on disk under the given name, trimming the oldest files
+	 * if the disk tier is over its budget.
+	 */
+	public void putOnDisk(String name, Bitmap bitmap) {
+		if (!mDiskDir.exists() && !mDiskDir.mkdirs()) {
+			return;
+		}
+		File file = new File(mDiskDir, name);
+		File tmp = new File(mDiskDir, name + ".tmp");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(tmp);
+			bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				return;
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "failed to write thumbnail " + name, e);
+			tmp.delete();
+			return;
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {}
+			}
+		}
+		synchronized (this) {
+			mDiskWrites++;
+		}
+		synchronized (mDiskLock) {
+			if (mDiskBytes < 0) {
+				mDiskBytes = measureDisk();
+			} else {
+				mDiskBytes += file.length();
+			}
+			if (mDiskBytes > mMaxDiskBytes) {
+				trimDisk(mMaxDiskBytes * 3 / 4);
+			}
+		}
+	}
+
+	private long measureDisk() {
+		long total = 0;
+		File[] files = mDiskDir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				total += f.length();
+			}
+		}
+		return total;
+	}
+
+	private void trimDisk(long target) {
+		File[] files = mDiskDir.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long d = a.lastModified() - b.lastModified();
+				return d < 0 ? -1 : (d > 0 ? 1 : 0);
+			}
+		});
+		for (File f : files) {
+			if (mDiskBytes <= target) {
+				break;
+			}
+			long length = f.length();
+			if (f.delete()) {
+				mDiskBytes -= length;
+			}
+		}
+	}
+
+	public void remove(String key) {
+		mMemory.remove(key);
+	}
+
+	/**
+	 * Drops every bitmap in memory whose key starts with the prefix.
+	 */
+	public void removeAll(String prefix) {
+		Map<String, Bitmap> snapshot = mMemory.snapshot();
+		for (String key : snapshot.keySet()) {
+			if (key.startsWith(prefix)) {
+				mMemory.remove(key);
+			}
+		}
+	}
+
+	public void evictAll() {
+		mMemory.evictAll();
+	}
+
+	public int maxSize() {
+		return mMemory.maxSize();
+	}
+
+	public int size() {
+		return mMemory.size();
+	}
+
+	public synchronized int getHits() {
+		return mHits;
+	}
+
+	public synchronized int getMisses() {
+		return mMisses;
+	}
+
+	public synchronized int getDiskHits() {
+		return mDiskHits;
+	}
+
+	public synchronized int getEvictions() {
+		return mEvictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		int total = mHits + mMisses;
+		return String.format("BitmapCache[hits=%d,misses=%d,hitRate=%d%%,diskHits=%d,diskWrites=%d," +
+				"evictions=%d,bytes=%d/%d,diskBytes=%d/%d]",
+				mHits, mMisses, total == 0 ? 0 : 100 * mHits / total, mDiskHits, mDiskWrites,
+				mEvictions, mMemory.size(), mMemory.maxSize(), mDiskBytes, mMaxDiskBytes);
+	}
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2012 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.musubi.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import mobisocial.musubi.App;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+
+/**
+ * Decodes images for list rows off the ui thread.
+ *
+ * Every request names the {@link ImageView} it is for.  Binding a view to a
+ * new image cancels whatever it was waiting on before, so rows that are
+ * recycled during a fling drop their queued decodes instead of working through
+ * them.  Requests for the same key share one decode, and the most recently
+ * bound rows, the ones on screen, are decoded first.  Results go into the
+ * memory tier of the {@link BitmapCache} and are handed to the requester's
+ * {@link Callback} on the ui thread.
+ */
+public class BitmapLoader {
+	public static final String TAG = "BitmapLoader";
+
+	static final int DEFAULT_WORKERS = 2;
+
+	private static final WeakHashMap<BitmapCache, BitmapLoader> sInstances =
+			new WeakHashMap<BitmapCache, BitmapLoader>();
+
+	/**
+	 * @return the loader in front of the application's bitmap cache
+	 */
+	public static BitmapLoader get(Context context) {
+		BitmapCache cache = App.getBitmapCache(context);
+		synchronized (sInstances) {
+			BitmapLoader loader = sInstances.get(cache);
+			if (loader == null) {
+				loader = new BitmapLoader(cache, DEFAULT_WORKERS);
+				sInstances.put(cache, loader);
+			}
+			return loader;
+		}
+	}
+
+	/**
+	 * Produces the bitmap for a request.  Runs on a worker thread, so it
+	 * must not touch the views or anything else that belongs to the ui
+	 * thread, including a recycled cursor row.
+	 */
+	public interface Decoder {
+		public Bitmap decode();
+	}
+
+	/**
+	 * Receives a finished decode on the ui thread, or right away from
+	 * {@link BitmapLoader#load} if the bitmap was already in memory.  The
+	 * bitmap is null if the decode failed.
+	 */
+	public interface Callback {
+		public void onBitmap(ImageView view, Bitmap bitmap);
+	}
+
+	public static final Callback SET_IMAGE = new Callback() {
+		@Override
+		public void onBitmap(ImageView view, Bitmap bitmap) {
+			view.setImageBitmap(bitmap);
+		}
+	};
+
+	final BitmapCache mCache;
+	final Handler mHandler;
+	final ThreadPoolExecutor mExecutor;
+
+	/* guarded by this */
+	final Map<String, Job> mInFlight = new HashMap<String, Job>();
+	final WeakHashMap<ImageView, Job> mTargets = new WeakHashMap<ImageView, Job>();
+	long mSequence;
+	int mDecodes;
+	int mShared;
+	int mCancels;
+
+	BitmapLoader(BitmapCache cache, int workers) {
+		mCache = cache;
+		mHandler = new Handler(Looper.getMainLooper());
+		mExecutor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+			int mCount;
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "BitmapLoader" + mCount++);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Shows the bitmap for key in view, decoding it in the background if it
+	 * is not already in memory.  Call from the ui thread.
+	 *
+	 * @return true if the callback has already run, false if it will run once
+	 * the decode finishes and the caller should show a placeholder meanwhile
+	 */
+	public boolean load(ImageView view, String key, Decoder decoder, Callback callback) {
+		Bitmap cached = mCache.get(key);
+		synchronized (this) {
+			Job previous = mTargets.get(view);
+			if (previous != null && (cached != null || !previous.mKey.equals(key))) {
+				detach(view, previous);
+			}
+			if (cached == null) {
+				Job job = mInFlight.get(key);
+				if (job == null) {
+					job = new Job(key, decoder);
+					job.mOrder = ++mSequence;
+					mInFlight.put(key, job);
+					mExecutor.execute(job);
+				} else {
+					if (job != previous) {
+						mShared++;
+					}
+					//still queued, so move it ahead of everything bound before it
+					if (mExecutor.remove(job)) {
+						job.mOrder = ++mSequence;
+						mExecutor.execute(job);
+					}
+				}
+				job.mTargets.put(view, callback);
+				mTargets.put(view, job);
+				return false;
+			}
+		}
+		callback.onBitmap(view, cached);
+		return true;
+	}
+
+	/**
+	 * Drops the view's pending request, if it has one.  The decode itself is
+	 * only cancelled once no view is waiting on it.
+	 */
+	public synchronized void cancel(ImageView view) {
+		Job job = mTargets.get(view);
+		if (job != null) {
+			detach(view, job);
+		}
+	}
+
+	/**
+	 * Cancels the requests of every image view under view, for rows that are
+	 * being moved to the recycler.
+	 */
+	public void cancelAll(View view) {
+		if (view instanceof ImageView) {
+			cancel((ImageView)view);
+		} else if (view instanceof ViewGroup) {
+			ViewGroup group = (ViewGroup)view;
+			for (int i = 0; i < group.getChildCount(); ++i) {
+				cancelAll(group.getChildAt(i));
+			}
+		}
+	}
+
+	private void detach(ImageView view, Job job) {
+		mTargets.remove(view);
+		job.mTargets.remove(view);
+		if (job.mTargets.isEmpty()) {
+			job.mCancelled = true;
+			if (mExecutor.remove(job)) {
+				mCancels++;
+			}
+			if (mInFlight.get(job.mKey) == job) {
+				mInFlight.remove(job.mKey);
+			}
+		}
+	}
+
+	void finished(Job job, Bitmap bitmap) {
+		if (bitmap != null) {
+			mCache.put(job.mKey, bitmap);
+		}
+		ArrayList<ImageView> views = new ArrayList<ImageView>(2);
+		ArrayList<Callback> callbacks = new ArrayList<Callback>(2);
+		synchronized (this) {
+			if (mInFlight.get(job.mKey) == job) {
+				mInFlight.remove(job.mKey);
+			}
+			for (Map.Entry<ImageView, Callback> e : job.mTargets.entrySet()) {
+				if (mTargets.get(e.getKey()) == job) {
+					mTargets.remove(e.getKey());
+					views.add(e.getKey());
+					callbacks.add(e.getValue());
+				}
+			}
+			job.mTargets.clear();
+		}
+		for (int i = 0; i < views.size(); ++i) {
+			callbacks.get(i).onBitmap(views.get(i), bitmap);
+		}
+	}
+
+	class Job implements Runnable, Comparable<Job> {
+		final String mKey;
+		final Decoder mDecoder;
+		/* guarded by the loader */
+		final WeakHashMap<ImageView, Callback> mTargets = new WeakHashMap<ImageView, Callback>(2);
+		long mOrder;
+		volatile boolean mCancelled;
+
+		Job(String key, Decoder decoder) {
+			mKey = key;
+			mDecoder = decoder;
+		}
+
+		@Override
+		public void run() {
+			if (mCancelled) {
+				return;
+			}
+			Bitmap decoded = null;
+			try {
+				decoded = mDecoder.decode();
+			} catch (Exception e) {
+				Log.w(TAG, "failed to decode " + mKey, e);
+			} catch (OutOfMemoryError e) {
+				Log.w(TAG, "out of memory decoding " + mKey, e);
+			}
+			synchronized (BitmapLoader.this) {
+				mDecodes++;
+			}
+			final Bitmap bitmap = decoded;
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					finished(Job.this, bitmap);
+				}
+			});
+		}
+
+		/**
+		 * Newest first, so the rows bound last, which are the ones on screen,
+		 * are decoded before rows that have already scrolled by.
+		 */
+		@Override
+		public int compareTo(Job another) {
+			return mOrder > another.mOrder ? -1 : (mOrder == another.mOrder ? 0 : 1);
+		}
+	}
+
+	public synchronized int getDecodes() {
+		return mDecodes;
+	}
+
+	public synchronized int getShared() {
+		return mShared;
+	}
+
+	public synchronized int getCancels() {
+		return mCancels;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "BitmapLoader decodes=" + mDecodes + " shared=" + mShared + " cancels=" + mCancels +
+				" in flight=" + mInFlight.size();
+	}
+}
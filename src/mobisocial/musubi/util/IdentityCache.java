@@ -23,27 +23,41 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.support.v4.util.LruCache;
 
-//TODO: Old one supported a default that wouldn't count against the cache size
-//TODO: is background loading it even helpful?
+/**
+ * Caches the display name and details of identities.  Their thumbnails
+ * live in the shared {@link BitmapCache}, which bounds them by size, so
+ * this cache can hold far more people than fit on a screen.
+ */
 public class IdentityCache extends LruCache<Long, IdentityCache.CachedIdentity>{
 	
 	final Context mContext;
 	final IdentitiesManager mIdentitiesManager;
-	final int mCapacity;
-	static final int DEFAULT_CAPACITY = 30;
+	final BitmapCache mBitmaps;
+	final int mThumbnailSize;
+	Bitmap mDefaultThumbnail;
+	static final int DEFAULT_CAPACITY = 500;
+	static final int THUMBNAIL_DIP = 80;
+	static final String KEY_PREFIX = "identity:";
 
 	public IdentityCache(Context context) {
+		this(context, new IdentitiesManager(App.getDatabaseSource(context)), App.getBitmapCache(context));
+	}
+
+	public IdentityCache(Context context, IdentitiesManager identitiesManager, BitmapCache bitmaps) {
 		super(DEFAULT_CAPACITY);
-		mCapacity = DEFAULT_CAPACITY;
 		mContext = context.getApplicationContext();
-		mIdentitiesManager = new IdentitiesManager(App.getDatabaseSource(mContext));
+		mIdentitiesManager = identitiesManager;
+		mBitmaps = bitmaps;
+		mThumbnailSize = (int)(THUMBNAIL_DIP * context.getResources().getDisplayMetrics().density + 0.5f);
 	}
 
     public synchronized void invalidate(long id){
     	remove(id);
+    	mBitmaps.remove(KEY_PREFIX + id);
     }
     public synchronized void invalidateAll(){
     	evictAll();
+    	mBitmaps.removeAll(KEY_PREFIX);
     }
 
     /**
@@ -57,38 +71,64 @@ public class IdentityCache extends LruCache<Long, IdentityCache.CachedIdentity>{
 			return null;
 		}
 		String name = UiUtil.safeNameForIdentity(mident);
-		Bitmap thumbnail = UiUtil.safeGetContactThumbnailWithoutCache(mIdentitiesManager, id);
-		boolean hasThumb = (thumbnail != null);
-		if (!hasThumb) {
-			thumbnail = UiUtil.getDefaultContactThumbnail(mContext);
-		}
+		byte[] image = (mident.musubiThumbnail_ != null) ? mident.musubiThumbnail_ : mident.thumbnail_;
+		boolean hasThumb = mBitmaps.get(KEY_PREFIX + id) != null ||
+				mBitmaps.load(KEY_PREFIX + id, image, mThumbnailSize) != null;
 		// these blob fields have been processed and cached.
 		mident.thumbnail_ = null;
 		mident.musubiThumbnail_ = null;
-		return new CachedIdentity(name, hasThumb, thumbnail, mident);
+		return new CachedIdentity(this, name, hasThumb, mident);
 	}
 
-    @Override
-    protected void entryRemoved(boolean evicted, Long key,
-    		CachedIdentity oldValue, CachedIdentity newValue) {
-    	if (oldValue.thumbnail != null) {
-    		//oldValue.thumbnail.recycle();
+    /**
+     * Returns the identity's thumbnail, reading it back from the database
+     * if the bitmap cache has let it go, or the default contact picture.
+     */
+    Bitmap getThumbnail(CachedIdentity cached) {
+    	long id = cached.midentity.id_;
+    	if (cached.hasThumbnail) {
+    		Bitmap thumbnail = mBitmaps.get(KEY_PREFIX + id);
+    		if (thumbnail != null) {
+    			return thumbnail;
+    		}
+    		//don't touch the shared row
+    		MIdentity row = new MIdentity();
+    		row.id_ = id;
+    		byte[] image = mIdentitiesManager.getMusubiThumbnail(row);
+    		if (image == null) {
+    			image = mIdentitiesManager.getThumbnail(row);
+    		}
+    		thumbnail = mBitmaps.load(KEY_PREFIX + id, image, mThumbnailSize);
+    		if (thumbnail != null) {
+    			return thumbnail;
+    		}
+    		cached.hasThumbnail = false;
+    	}
+    	synchronized (this) {
+    		if (mDefaultThumbnail == null) {
+    			mDefaultThumbnail = UiUtil.getDefaultContactThumbnail(mContext);
+    		}
+    		return mDefaultThumbnail;
     	}
     }
 
 	public static final class CachedIdentity {
 		public final String name;
 		public boolean hasThumbnail;
-		public final Bitmap thumbnail;
 		public final MIdentity midentity;
+		final IdentityCache mCache;
 
-		public CachedIdentity(String name, boolean hasThumbnail, Bitmap thumbnail, MIdentity ident) {
+		CachedIdentity(IdentityCache cache, String name, boolean hasThumbnail, MIdentity ident) {
+			this.mCache = cache;
 			this.name = name;
 			this.hasThumbnail = hasThumbnail;
-			this.thumbnail = thumbnail;
 			this.midentity = ident;
 		}
 
+		public Bitmap getThumbnail() {
+			return mCache.getThumbnail(this);
+		}
+
 		@Override
 		public String toString() {
 			return name;
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2012 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.musubi.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Collects content change notifications and delivers each dirty uri once
+ * per debounce window instead of once per change.  A sync that touches
+ * hundreds of objects in a feed then wakes that feed's loaders a handful
+ * of times rather than hundreds.
+ * 
+ * Uris are debounced individually.  The first change to a clean uri starts
+ * its window, further changes inside the window are folded into it, and
+ * everything that is due is delivered together on the coalescer's thread.
+ * Uris that are used to kick off background processing rather than to
+ * refresh the ui can be given a shorter window, or zero, which still folds
+ * together changes made before the next flush.
+ */
+public class NotificationCoalescer {
+	public static final String TAG = "NotificationCoalescer";
+	public static boolean DBG = false;
+
+	/**
+	 * How long a change to a uri waits for more changes, unless the uri has
+	 * its own setting.
+	 */
+	public static final long DEFAULT_DEBOUNCE_MS = 250;
+
+	private static final WeakHashMap<ContentResolver, NotificationCoalescer> sInstances =
+			new WeakHashMap<ContentResolver, NotificationCoalescer>();
+	private static HandlerThread sThread;
+
+	/**
+	 * @return the coalescer shared by everything posting to this resolver
+	 */
+	public static synchronized NotificationCoalescer forResolver(ContentResolver resolver) {
+		NotificationCoalescer c = sInstances.get(resolver);
+		if (c == null) {
+			if (sThread == null) {
+				sThread = new HandlerThread("NotificationCoalescer", Process.THREAD_PRIORITY_BACKGROUND);
+				sThread.start();
+			}
+			c = new NotificationCoalescer(resolver, new Handler(sThread.getLooper()));
+			sInstances.put(resolver, c);
+		}
+		return c;
+	}
+
+	static class Pending {
+		long mDue;
+		ContentObserver mOrigin;
+		Pending(long due, ContentObserver origin) {
+			mDue = due;
+			mOrigin = origin;
+		}
+	}
+
+	final ContentResolver mResolver;
+	final Handler mHandler;
+	final HashMap<Uri, Pending> mDirty = new HashMap<Uri, Pending>();
+	final HashMap<Uri, Long> mDebounce = new HashMap<Uri, Long>();
+	long mScheduledFor = Long.MAX_VALUE;
+
+	long mRequested;
+	long mDelivered;
+	long mFlushes;
+
+	final Runnable mFlushDue = new Runnable() {
+		@Override
+		public void run() {
+			dispatch(false);
+		}
+	};
+
+	NotificationCoalescer(ContentResolver resolver, Handler handler) {
+		mResolver = resolver;
+		mHandler = handler;
+	}
+
+	/**
+	 * Sets the debounce window for one uri.  Zero delivers on the next flush.
+	 */
+	public synchronized void setDebounce(Uri uri, long millis) {
+		mDebounce.put(uri, millis);
+	}
+
+	/**
+	 * Marks a uri as changed.  The change is delivered once the uri's window
+	 * closes, along with any other changes to it in the meantime.
+	 * 
+	 * @param origin as for {@link ContentResolver#notifyChange(Uri, ContentObserver)}.
+	 * If different observers mark the same uri in one window, none is excluded.
+	 */
+	public void markDirty(Uri uri, ContentObserver origin) {
+		long now = SystemClock.uptimeMillis();
+		synchronized (this) {
+			mRequested++;
+			Pending p = mDirty.get(uri);
+			if (p != null) {
+				if (p.mOrigin != origin) {
+					p.mOrigin = null;
+				}
+				return;
+			}
+			Long debounce = mDebounce.get(uri);
+			long due = now + (debounce == null ? DEFAULT_DEBOUNCE_MS : debounce);
+			mDirty.put(uri, new Pending(due, origin));
+			if (due < mScheduledFor) {
+				mScheduledFor = due;
+				mHandler.removeCallbacks(mFlushDue);
+				mHandler.postAtTime(mFlushDue, due);
+			}
+		}
+	}
+
+	public void markDirty(Uri uri) {
+		markDirty(uri, null);
+	}
+
+	/**
+	 * Delivers every dirty uri now, whether or not its window has closed.
+	 * Call this when a batch of work is finished and nothing more is coming.
+	 */
+	public void flush() {
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				dispatch(true);
+			}
+		});
+	}
+
+	void dispatch(boolean all) {
+		ArrayList<Uri> uris = new ArrayList<Uri>();
+		ArrayList<ContentObserver> origins = new ArrayList<ContentObserver>();
+		synchronized (this) {
+			long now = SystemClock.uptimeMillis();
+			long next = Long.MAX_VALUE;
+			for (Iterator<Map.Entry<Uri, Pending>> it = mDirty.entrySet().iterator(); it.hasNext(); ) {
+				Map.Entry<Uri, Pending> e = it.next();
+				Pending p = e.getValue();
+				if (all || p.mDue <= now) {
+					uris.add(e.getKey());
+					origins.add(p.mOrigin);
+					it.remove();
+				} else {
+					next = Math.min(next, p.mDue);
+				}
+			}
+			mHandler.removeCallbacks(mFlushDue);
+			mScheduledFor = next;
+			if (next != Long.MAX_VALUE) {
+				mHandler.postAtTime(mFlushDue, next);
+			}
+			mDelivered += uris.size();
+			if (!uris.isEmpty()) {
+				mFlushes++;
+			}
+		}
+		//deliver outside the lock, observers may mark more changes
+		for (int i = 0; i < uris.size(); ++i) {
+			mResolver.notifyChange(uris.get(i), origins.get(i));
+		}
+		if (DBG && !uris.isEmpty()) Log.d(TAG, toString());
+	}
+
+	/**
+	 * @return how many changes were marked
+	 */
+	public synchronized long getRequestedCount() {
+		return mRequested;
+	}
+
+	/**
+	 * @return how many notifications were actually sent to the resolver
+	 */
+	public synchronized long getDeliveredCount() {
+		return mDelivered;
+	}
+
+	/**
+	 * @return how many changes were folded into another notification
+	 */
+	public synchronized long getSuppressedCount() {
+		return mRequested - mDelivered - mDirty.size();
+	}
+
+	public synchronized long getFlushCount() {
+		return mFlushes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "notifications: " + mRequested + " requested, " + mDelivered + " delivered in "
+				+ mFlushes + " flushes, " + getSuppressedCount() + " suppressed, "
+				+ mDirty.size() + " pending";
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2012 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.musubi.util;
+
+/**
+ * Accumulates item counts and elapsed time over a series of timed runs
+ * so that different processing strategies can be compared by rate.
+ */
+public class ThroughputCounter {
+	private final String mName;
+	private long mItems;
+	private long mRuns;
+	private long mElapsedNanos;
+	private long mLastItems;
+	private long mLastElapsedNanos;
+
+	public ThroughputCounter(String name) {
+		mName = name;
+	}
+
+	/**
+	 * Records one run that handled the given number of items.
+	 * @param startNanos the value of {@link System#nanoTime()} when the run began
+	 */
+	public synchronized void record(long items, long startNanos) {
+		long elapsed = System.nanoTime() - startNanos;
+		mItems += items;
+		mRuns++;
+		mElapsedNanos += elapsed;
+		mLastItems = items;
+		mLastElapsedNanos = elapsed;
+	}
+
+	public synchronized long getItems() {
+		return mItems;
+	}
+
+	public synchronized long getRuns() {
+		return mRuns;
+	}
+
+	/**
+	 * @return the number of items per second over all recorded runs
+	 */
+	public synchronized double getRate() {
+		return rate(mItems, mElapsedNanos);
+	}
+
+	/**
+	 * @return the number of items per second for the most recent run
+	 */
+	public synchronized double getLastRate() {
+		return rate(mLastItems, mLastElapsedNanos);
+	}
+
+	public synchronized void reset() {
+		mItems = 0;
+		mRuns = 0;
+		mElapsedNanos = 0;
+		mLastItems = 0;
+		mLastElapsedNanos = 0;
+	}
+
+	private static double rate(long items, long nanos) {
+		if (nanos <= 0) {
+			return 0;
+		}
+		return items * 1000000000.0 / nanos;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%s: %d items in %d ms (%.1f/s), last run %d items (%.1f/s)",
+				mName, mItems, mElapsedNanos / 1000000, getRate(), mLastItems, getLastRate());
+	}
+}
@@ -23,6 +23,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.SoftReference;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpResponse;
@@ -34,7 +35,11 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
 import android.net.Uri;
 import android.provider.MediaStore.Images;
 import android.text.TextUtils;
@@ -183,7 +188,29 @@ public class UriImage {
         return mHeight;
     }
    
-    private static final int NUMBER_OF_RESIZE_ATTEMPTS = 4;
+    /**
+     * JPEG size at each quality from MINIMUM_IMAGE_COMPRESSION_QUALITY up to
+     * IMAGE_COMPRESSION_QUALITY in steps of QUALITY_STEP, relative to the size
+     * at IMAGE_COMPRESSION_QUALITY, for typical photos.
+     */
+    private static final int[] RELATIVE_JPEG_SIZE = { 62, 67, 72, 78, 84, 91, 100 };
+    private static final int QUALITY_STEP = 5;
+    /**
+     * Aim this far under the byte limit so a slightly optimistic prediction
+     * still fits.
+     */
+    private static final float BYTE_LIMIT_MARGIN = 0.9f;
+
+    /**
+     * Resizes are serialised so only one decoded photo is in memory at a time.
+     * The lock also guards the scratch buffers below, which are reused from
+     * one resize to the next.
+     */
+    private static final Object sResizeLock = new Object();
+    private static final byte[] sTempStorage = new byte[16 * 1024];
+    private static final ByteArrayOutputStream sOutput = new ByteArrayOutputStream(64 * 1024);
+    private static final Paint sFilterPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private static SoftReference<Bitmap> sTarget;
 
     public byte[] getResizedImageData(int widthLimit, int heightLimit, int byteLimit) throws IOException {
         return getResizedImageData(widthLimit, heightLimit, byteLimit, false);
@@ -192,178 +219,219 @@ public class UriImage {
     /**
      * Returns the bytes for this UriImage. If the uri for the image is remote,
      * then this code must not be run on the main thread.
+     *
+     * The image is decoded once, at the power of two sample size closest
+     * above the target, then cropped, scaled and rotated in a single draw and
+     * encoded once at a quality predicted from the byte limit.  A limit of
+     * zero or less leaves that dimension unbounded.
      */
     public byte[] getResizedImageData(int widthLimit, int heightLimit, int byteLimit, boolean square) throws IOException {
         if (!mDecodedBounds) {
             decodeBoundsInfo();
             mDecodedBounds = true;
         }
-        InputStream input = null;
-        try {
-	        int inDensity = 0;
-	        int targetDensity = 0;
-	        BitmapFactory.Options read_options = new BitmapFactory.Options();
-	        read_options.inJustDecodeBounds = true;
-	        input = openInputStream(mUri);
-	        BitmapFactory.decodeStream(input, null, read_options);
-	        if (read_options.outWidth > widthLimit || read_options.outHeight > heightLimit) {
-	        	//we need to scale
-	        	if(read_options.outWidth / widthLimit > read_options.outHeight / heightLimit) {
-	        		//width is the large edge
-	            	if(read_options.outWidth * heightLimit > widthLimit * read_options.outHeight) {
-	            		//incoming image is wider than target
-	            		inDensity = read_options.outWidth;
-	            		targetDensity = widthLimit;
-	            	} else {
-	            		//incoming image is taller than target
-	            		inDensity = read_options.outHeight;
-	            		targetDensity = heightLimit;
-	            		
-	            	}
-	        	} else {
-	        		//height is the long edge, swap the limits
-	            	if(read_options.outWidth * widthLimit > heightLimit * read_options.outHeight) {
-	            		//incoming image is wider than target
-	            		inDensity = read_options.outWidth;
-	            		targetDensity = heightLimit;
-	            	} else {
-	            		//incoming image is taller than target
-	            		inDensity = read_options.outHeight;
-	            		targetDensity = widthLimit;
-	            		
-	            	}
-	        	}
-	        } else {
-	        	//no scale
-	        	if(read_options.outWidth > read_options.outHeight) {
-	        		inDensity = targetDensity = read_options.outWidth;
-	        	} else {
-	        		inDensity = targetDensity = read_options.outHeight;
-	        	}
-	        }
-	
-        	if (Log.isLoggable(TAG, Log.VERBOSE)) {
-            Log.v(TAG, "getResizedImageData: wlimit=" + widthLimit +
-                    ", hlimit=" + heightLimit + ", sizeLimit=" + byteLimit +
-                    ", mWidth=" + mWidth + ", mHeight=" + mHeight +
-                    ", initialRatio=" + targetDensity + "/" + inDensity);
-        	}
-
-            ByteArrayOutputStream os = null;
-            int attempts = 1;
-
+        if (mWidth <= 0 || mHeight <= 0) {
+            return null;
+        }
+        synchronized (sResizeLock) {
             int lowMemoryReduce = 1;
-            do {
-                BitmapFactory.Options options = new BitmapFactory.Options();
-            	options.inDensity = inDensity;
-            	options.inSampleSize = lowMemoryReduce;
-            	options.inScaled = lowMemoryReduce == 1;
-            	options.inTargetDensity = targetDensity;
-            	//no purgeable because we are only trying to resave this
-            	if(input != null)
-            		input.close();
-                input = openInputStream(mUri);
-                int quality = IMAGE_COMPRESSION_QUALITY;
+            while (true) {
                 try {
-                    Bitmap b = BitmapFactory.decodeStream(input, null, options);
-                    if (b == null) {
+                    return resize(widthLimit, heightLimit, byteLimit, square, lowMemoryReduce);
+                } catch (OutOfMemoryError e) {
+                    sTarget = null;
+                    if (lowMemoryReduce > 1) {
+                        Log.e(TAG, "getResizedImageData - image too big (OutOfMemoryError)", e);
                         return null;
                     }
-                    if (options.outWidth > widthLimit+1 || options.outHeight > heightLimit+1) {
-                        // The decoder does not support the inSampleSize option.
-                        // Scale the bitmap using Bitmap library.
-                        int scaledWidth;
-                        int scaledHeight;
-                    	scaledWidth = options.outWidth * targetDensity / inDensity;
-                    	scaledHeight = options.outHeight * targetDensity / inDensity; 
-
-                        if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                            Log.v(TAG, "getResizedImageData: retry scaling using " +
-                                    "Bitmap.createScaledBitmap: w=" + scaledWidth +
-                                    ", h=" + scaledHeight);
-                        }
-
-                        if (square) {
-                        	int w = b.getWidth();
-                        	int h = b.getHeight();
-                            int dim = Math.min(w, h);
-                            b = Bitmap.createBitmap(b, (w - dim) / 2, (h - dim) / 2, dim, dim);
-                            scaledWidth = dim;
-                            scaledHeight = dim;
-                        }
-                        Bitmap b2 = Bitmap.createScaledBitmap(b, scaledWidth,
-                                scaledHeight, false);
-                        b.recycle();
-                        b = b2;
-                        if (b == null) {
-                            return null;
-                        }
-                    }
+                    Log.w(TAG, "getResizedImageData - image too big (OutOfMemoryError), " +
+                            "trying once more at half the resolution", e);
+                    lowMemoryReduce = 2;
+                } catch (Throwable t) {
+                    Log.e(TAG, t.getMessage(), t);
+                    return null;
+                }
+            }
+        }
+    }
 
-                    Matrix matrix = new Matrix();  
-                    if (mRotation != 0f) {
-                        matrix.preRotate(mRotation);     
-                    }
+    private byte[] resize(int widthLimit, int heightLimit, int byteLimit, boolean square,
+            int lowMemoryReduce) throws IOException {
+        int cropWidth = mWidth;
+        int cropHeight = mHeight;
+        if (square) {
+            cropWidth = cropHeight = Math.min(mWidth, mHeight);
+        }
+        float scale = fitScale(cropWidth, cropHeight, widthLimit, heightLimit);
+        int outWidth = Math.max(1, Math.round(cropWidth * scale));
+        int outHeight = Math.max(1, Math.round(cropHeight * scale));
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize(cropWidth, cropHeight, outWidth, outHeight) * lowMemoryReduce;
+        options.inTempStorage = sTempStorage;
+        //no purgeable because we are only trying to resave this
+        Bitmap decoded;
+        InputStream input = openInputStream(mUri);
+        try {
+            decoded = BitmapFactory.decodeStream(input, null, options);
+        } finally {
+            input.close();
+        }
+        if (decoded == null) {
+            return null;
+        }
 
-                    Bitmap old = b;
-                    b = Bitmap.createBitmap(old, 0, 0, old.getWidth(), old.getHeight(), matrix, true);
-                    
-                    // Compress the image into a JPG. Start with MessageUtils.IMAGE_COMPRESSION_QUALITY.
-                    // In case that the image byte size is still too large reduce the quality in
-                    // proportion to the desired byte size. Should the quality fall below
-                    // MINIMUM_IMAGE_COMPRESSION_QUALITY skip a compression attempt and we will enter
-                    // the next round with a smaller image to start with.
-                    os = new ByteArrayOutputStream();
-                    b.compress(CompressFormat.JPEG, quality, os);
-                    int jpgFileSize = os.size();
-                    if (jpgFileSize > byteLimit) {
-                        int reducedQuality = quality * byteLimit / jpgFileSize;
-                        //always try to squish it before computing the new size
-                        if (reducedQuality < MINIMUM_IMAGE_COMPRESSION_QUALITY) {
-                        	reducedQuality = MINIMUM_IMAGE_COMPRESSION_QUALITY;
-                        }
-                        quality = reducedQuality;
-
-                        if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                            Log.v(TAG, "getResizedImageData: compress(2) w/ quality=" + quality);
-                        }
-
-                        os = new ByteArrayOutputStream();
-                        b.compress(CompressFormat.JPEG, quality, os);
-                    }
-                    b.recycle();        // done with the bitmap, release the memory
-                } catch (java.lang.OutOfMemoryError e) {
-                    Log.w(TAG, "getResizedImageData - image too big (OutOfMemoryError), will try "
-                            + " with smaller scale factor, cur scale factor", e);
-                    lowMemoryReduce *= 2;
-                    // fall through and keep trying with a smaller scale factor.
-                }
-                if (true || Log.isLoggable(TAG, Log.VERBOSE)) {
-                    Log.v(TAG, "attempt=" + attempts
-                            + " size=" + (os == null ? 0 : os.size())
-                            + " width=" + options.outWidth
-                            + " height=" + options.outHeight
-                            + " Ratio=" + targetDensity + "/" + inDensity
-                            + " quality=" + quality);
+        try {
+            Bitmap out = render(decoded, outWidth, outHeight, square);
+            int quality = IMAGE_COMPRESSION_QUALITY;
+            if (byteLimit > 0) {
+                float bytesPerPixel = probeBytesPerPixel(out);
+                long pixels = (long)outWidth * outHeight;
+                quality = predictQuality(bytesPerPixel * pixels, byteLimit * BYTE_LIMIT_MARGIN);
+                if (quality < 0) {
+                    //even the lowest quality is too big, so give up resolution instead
+                    quality = MINIMUM_IMAGE_COMPRESSION_QUALITY;
+                    float shrink = (float)Math.sqrt(byteLimit * BYTE_LIMIT_MARGIN /
+                            (bytesPerPixel * pixels * relativeSize(quality)));
+                    outWidth = Math.max(1, (int)(outWidth * shrink));
+                    outHeight = Math.max(1, (int)(outHeight * shrink));
+                    out = render(decoded, outWidth, outHeight, square);
                 }
-                //move halfway to the target
-            	targetDensity = (os == null) ? (int) (targetDensity * .8) : (targetDensity * byteLimit / os.size() + targetDensity) / 2;
-                attempts++;
-            } while ((os == null || os.size() > byteLimit) && attempts < NUMBER_OF_RESIZE_ATTEMPTS);
-
-            return os == null ? null : os.toByteArray();
-        } catch (Throwable t) {
-            Log.e(TAG, t.getMessage(), t);
-            return null;
-		} finally {
-            if (input != null) {
-                try {
-                    input.close();
-                } catch (IOException e) {
-                    Log.e(TAG, e.getMessage(), e);
+            }
+
+            sOutput.reset();
+            out.compress(CompressFormat.JPEG, quality, sOutput);
+            while (byteLimit > 0 && sOutput.size() > byteLimit) {
+                //the prediction was off, correct it from the real size until it fits
+                if (outWidth == 1 && outHeight == 1) {
+                    Log.e(TAG, "getResizedImageData: can't fit in " + byteLimit + " bytes");
+                    return null;
                 }
+                float shrink = (float)Math.sqrt((float)byteLimit / sOutput.size()) * BYTE_LIMIT_MARGIN;
+                Log.w(TAG, "getResizedImageData: " + sOutput.size() + " bytes at quality " + quality +
+                        " is over " + byteLimit + ", shrinking by " + shrink);
+                //always lose at least a pixel, so this ends
+                outWidth = Math.max(1, Math.min(outWidth - 1, (int)(outWidth * shrink)));
+                outHeight = Math.max(1, Math.min(outHeight - 1, (int)(outHeight * shrink)));
+                out = render(decoded, outWidth, outHeight, square);
+                sOutput.reset();
+                out.compress(CompressFormat.JPEG, quality, sOutput);
+            }
+
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "getResizedImageData: source=" + mWidth + "x" + mHeight +
+                        " sample=" + options.inSampleSize + " out=" + out.getWidth() + "x" + out.getHeight() +
+                        " quality=" + quality + " size=" + sOutput.size() + " limit=" + byteLimit);
+            }
+            return sOutput.toByteArray();
+        } finally {
+            decoded.recycle();
+        }
+    }
+
+    /**
+     * Scale that fits the long edge of the image to the larger limit and the
+     * short edge to the smaller one, never enlarging.
+     */
+    static float fitScale(int width, int height, int widthLimit, int heightLimit) {
+        if (widthLimit <= 0 || heightLimit <= 0) {
+            return 1f;
+        }
+        float scale = Math.min((float)Math.max(widthLimit, heightLimit) / Math.max(width, height),
+                (float)Math.min(widthLimit, heightLimit) / Math.min(width, height));
+        return Math.min(1f, scale);
+    }
+
+    /**
+     * @return the largest power of two that still decodes at least the
+     * target size
+     */
+    static int sampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sample = 1;
+        while (width / (sample * 2) >= targetWidth && height / (sample * 2) >= targetHeight) {
+            sample *= 2;
+        }
+        return sample;
+    }
+
+    static float relativeSize(int quality) {
+        int step = (quality - MINIMUM_IMAGE_COMPRESSION_QUALITY) / QUALITY_STEP;
+        step = Math.max(0, Math.min(RELATIVE_JPEG_SIZE.length - 1, step));
+        return RELATIVE_JPEG_SIZE[step] / 100f;
+    }
+
+    /**
+     * @param bytesAtDefault predicted size at IMAGE_COMPRESSION_QUALITY
+     * @return the highest quality predicted to fit in budget, or -1 if even
+     * MINIMUM_IMAGE_COMPRESSION_QUALITY will not
+     */
+    static int predictQuality(float bytesAtDefault, float budget) {
+        for (int quality = IMAGE_COMPRESSION_QUALITY; quality >= MINIMUM_IMAGE_COMPRESSION_QUALITY;
+                quality -= QUALITY_STEP) {
+            if (bytesAtDefault * relativeSize(quality) <= budget) {
+                return quality;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Measures how well the image compresses by encoding a full width band
+     * from its middle, an eighth of its height, at IMAGE_COMPRESSION_QUALITY.
+     */
+    private static float probeBytesPerPixel(Bitmap image) {
+        int bandHeight = Math.min(image.getHeight(), Math.max(16, image.getHeight() / 8 / 16 * 16));
+        Bitmap band = Bitmap.createBitmap(image, 0, (image.getHeight() - bandHeight) / 2,
+                image.getWidth(), bandHeight);
+        try {
+            sOutput.reset();
+            band.compress(CompressFormat.JPEG, IMAGE_COMPRESSION_QUALITY, sOutput);
+            return (float)sOutput.size() / (image.getWidth() * bandHeight);
+        } finally {
+            if (band != image) {
+                band.recycle();
+            }
+        }
+    }
+
+    /**
+     * Crops, scales and rotates the decoded image into the reused target
+     * bitmap in one pass.
+     */
+    private Bitmap render(Bitmap decoded, int outWidth, int outHeight, boolean square) {
+        float cropWidth = decoded.getWidth();
+        float cropHeight = decoded.getHeight();
+        if (square) {
+            cropWidth = cropHeight = Math.min(cropWidth, cropHeight);
+        }
+        Matrix matrix = new Matrix();
+        matrix.setTranslate(-(decoded.getWidth() - cropWidth) / 2, -(decoded.getHeight() - cropHeight) / 2);
+        matrix.postScale(outWidth / cropWidth, outHeight / cropHeight);
+
+        int width = outWidth;
+        int height = outHeight;
+        if (mRotation != 0f) {
+            RectF bounds = new RectF(0, 0, outWidth, outHeight);
+            Matrix rotation = new Matrix();
+            rotation.setRotate(mRotation);
+            rotation.mapRect(bounds);
+            matrix.postRotate(mRotation);
+            matrix.postTranslate(-bounds.left, -bounds.top);
+            width = Math.round(bounds.width());
+            height = Math.round(bounds.height());
+        }
+
+        Bitmap target = sTarget == null ? null : sTarget.get();
+        if (target == null || target.isRecycled() || target.getWidth() != width || target.getHeight() != height) {
+            if (target != null) {
+                target.recycle();
             }
+            target = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            sTarget = new SoftReference<Bitmap>(target);
         }
+        target.eraseColor(Color.BLACK);
+        new Canvas(target).drawBitmap(decoded, matrix, sFilterPaint);
+        return target;
     }
 
     private InputStream openInputStream(Uri uri) throws IOException {
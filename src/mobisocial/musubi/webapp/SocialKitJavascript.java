@@ -107,6 +107,30 @@ class SocialKitJavascript {
         }
     }
 
+    /**
+     * Finds this app's objects in a feed whose text matches a full text
+     * search expression, best matches first.
+     */
+    public String _searchFeed(String feedId, String match) {
+        Log.d(TAG, "searching " + feedId + ", " + match);
+        Uri uri = MusubiContentProvider.uriForSearch(match);
+        String selection = MObject.TABLE + "." + MObject.COL_FEED_ID + "=? AND " +
+                MObject.TABLE + "." + MObject.COL_APP_ID + " IN (SELECT " + MApp.COL_ID +
+                " FROM " + MApp.TABLE + " WHERE " + MApp.COL_APP_ID + "=?)";
+        String[] selectionArgs = new String[] { feedId, mAppId };
+        Cursor c = mContext.getContentResolver().query(uri, null, selection, selectionArgs, null);
+
+        JSONArray results = new JSONArray();
+        try {
+            while (c.moveToNext()) {
+                results.put(new SKDbObj(mMusubi.objForId(c.getLong(0))).toJson());
+            }
+            return results.toString();
+        } finally {
+            c.close();
+        }
+    }
+
     public String _querySubfeed(String objId, String query, String sortOrder) {
         Log.d(TAG, "querying subfeed " + objId + ", " + query);
         Uri uri = MusubiContentProvider.uriForDir(Provided.OBJECTS);
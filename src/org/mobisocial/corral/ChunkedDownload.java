@@ -0,0 +1,555 @@
+/*
+ * Copyright 2012 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mobisocial.corral;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import mobisocial.musubi.util.Base64;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.mobisocial.corral.CorralDownloadHandler.CorralDownloadFuture;
+import org.mobisocial.corral.CorralHelper.DownloadProgressCallback;
+import org.mobisocial.corral.CorralHelper.DownloadProgressCallback.DownloadChannel;
+import org.mobisocial.corral.CorralHelper.DownloadProgressCallback.DownloadState;
+
+import android.util.Log;
+
+/**
+ * Fetches an object a chunk at a time with ranged requests, so a dropped
+ * connection retries only the chunk it was on and a killed process picks up
+ * where it left off.
+ *
+ * The content fetched so far is kept in destination.tmp and the offset it is
+ * good up to is committed to destination.part after each chunk.  Encrypted
+ * objects are decrypted as they arrive.  CBC only needs the previous
+ * ciphertext block to carry on from a block boundary, so every chunk after
+ * the first is requested from one block early and that block is used as the
+ * IV.  The PKCS5 padding is stripped once the last chunk is in.  Because the
+ * plaintext and ciphertext offsets agree up to the last block, a partial
+ * fetch over the LAN can be finished from the server and the other way round.
+ *
+ * Downloads of the same object from different sources share a {@link Race}.
+ * The first to get an answer takes the partial files and aborts the others,
+ * and gives them up again if it fails.
+ */
+class ChunkedDownload {
+    private static final String TAG = "ChunkedDownload";
+
+    static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    static final int DEFAULT_ATTEMPTS_PER_CHUNK = 3;
+    private static final int BLOCK_SIZE = CryptUtil.BLOCK_SIZE;
+
+    final String mUrl;
+    final Map<String, String> mHeaders = new HashMap<String, String>();
+    final File mDestination;
+    final File mPartial;
+    final File mState;
+    final byte[] mKey;
+    final DownloadChannel mChannel;
+    int mChunkSize = DEFAULT_CHUNK_SIZE;
+    int mAttemptsPerChunk = DEFAULT_ATTEMPTS_PER_CHUNK;
+
+    /* content committed to the partial file */
+    long mOffset;
+    /* length of the object on the server, -1 until known */
+    long mLength = -1;
+    int mProgress = -1;
+
+    Race mRace;
+    /* open once this download holds the partial files */
+    RandomAccessFile mOut;
+    volatile HttpGet mRequest;
+    volatile boolean mAborted;
+
+    /**
+     * @param key the base64 preshared key the object is encrypted with, or
+     * null if it is fetched in the clear
+     */
+    ChunkedDownload(String url, File destination, String key, DownloadChannel channel) {
+        mUrl = url;
+        mDestination = destination;
+        mPartial = new File(destination.getAbsolutePath() + ".tmp");
+        mState = new File(destination.getAbsolutePath() + ".part");
+        mKey = key == null ? null : Base64.decode(key);
+        mChannel = channel;
+    }
+
+    void setHeader(String name, String value) {
+        mHeaders.put(name, value);
+    }
+
+    /**
+     * Fetches whatever is still missing and moves the finished content to
+     * the destination.  On failure the committed chunks are kept for the
+     * next attempt, unless the download was cancelled.
+     */
+    File run(CorralDownloadFuture future, DownloadProgressCallback callback)
+            throws IOException, GeneralSecurityException {
+        if (mDestination.exists()) {
+            return mDestination;
+        }
+        mDestination.getParentFile().mkdirs();
+        if (mRace == null && future != null) {
+            mRace = future.mRace;
+        }
+        if (mRace != null) {
+            mRace.enter(this);
+        }
+        try {
+            restoreState();
+            HttpClient http = new DefaultHttpClient();
+            boolean done = false;
+            while (!done) {
+                int attempt = 0;
+                while (true) {
+                    checkCancelled(future);
+                    try {
+                        done = fetchChunk(http, future, callback);
+                        break;
+                    } catch (IOException e) {
+                        if (mAborted) {
+                            throw new LostRaceException(mUrl);
+                        }
+                        if (mOut == null) {
+                            throw e;
+                        }
+                        //throw away whatever part of the chunk made it
+                        mOut.setLength(mOffset);
+                        if (++attempt >= mAttemptsPerChunk || isCancelled(future)) {
+                            throw e;
+                        }
+                        Log.w(TAG, "retrying chunk at " + mOffset + " of " + mUrl, e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (isCancelled(future) && mOut != null) {
+                discard();
+            }
+            throw e;
+        } finally {
+            if (mOut != null) {
+                mOut.close();
+            }
+            if (mRace != null) {
+                mRace.leave(this);
+            }
+        }
+
+        if (mOut == null) {
+            //another source finished it
+            return mDestination;
+        }
+        if (!mPartial.renameTo(mDestination)) {
+            throw new IOException("failed to move " + mPartial + " into place");
+        }
+        mState.delete();
+        return mDestination;
+    }
+
+    /**
+     * Fetches the chunk at mOffset and commits it.
+     *
+     * @return true once the whole object is in
+     */
+    boolean fetchChunk(HttpClient http, CorralDownloadFuture future,
+            DownloadProgressCallback callback) throws IOException, GeneralSecurityException {
+        long requested = mOffset;
+        //encrypted chunks start a block early to pick up the iv
+        long ivOffset = (mKey != null && mOffset > 0) ? BLOCK_SIZE : 0;
+        long start = mOffset - ivOffset;
+        long end = start + ivOffset + mChunkSize - 1;
+        if (mLength >= 0) {
+            end = Math.min(end, mLength - 1);
+        }
+        HttpGet get = new HttpGet(mUrl);
+        for (Map.Entry<String, String> header : mHeaders.entrySet()) {
+            get.addHeader(header.getKey(), header.getValue());
+        }
+        get.addHeader("Range", "bytes=" + start + "-" + end);
+        mRequest = get;
+        if (mAborted) {
+            throw new LostRaceException(mUrl);
+        }
+        HttpResponse response = http.execute(get);
+        HttpEntity entity = response.getEntity();
+        try {
+            int status = response.getStatusLine().getStatusCode();
+            if (status >= 400 && status != HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                throw new IOException("bad response " + status + " for " + mUrl);
+            }
+            claim(callback);
+            if (mOffset != requested) {
+                //someone else moved the download on, ask again from there
+                return false;
+            }
+            RandomAccessFile out = mOut;
+            boolean last;
+            if (status == HttpStatus.SC_PARTIAL_CONTENT) {
+                long[] range = parseContentRange(response.getFirstHeader("Content-Range"));
+                if (range[0] != start) {
+                    throw new IOException("asked for " + start + " but got " + range[0]);
+                }
+                if (mLength >= 0 && range[2] != mLength) {
+                    //the object is not the one we started on
+                    Log.w(TAG, mUrl + " changed length, starting over");
+                    restart(out);
+                    return false;
+                }
+                mLength = range[2];
+                last = range[1] == mLength - 1;
+            } else if (status == HttpStatus.SC_OK) {
+                //no range support, so everything from the top
+                if (mOffset > 0) {
+                    Log.w(TAG, mUrl + " does not take ranges, starting over");
+                    out.setLength(0);
+                    mOffset = 0;
+                }
+                start = 0;
+                ivOffset = 0;
+                mLength = entity.getContentLength();
+                last = true;
+            } else if (status == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                if (mOffset == 0) {
+                    if (mKey != null) {
+                        throw new IOException("encrypted content of " + mUrl + " is empty");
+                    }
+                    return true;
+                }
+                Log.w(TAG, "partial content of " + mUrl + " is past its end, starting over");
+                restart(out);
+                return false;
+            } else {
+                throw new IOException("bad response " + status + " for " + mUrl);
+            }
+
+            InputStream in = entity.getContent();
+            Cipher cipher = null;
+            byte[] iv = new byte[BLOCK_SIZE];
+            if (ivOffset > 0) {
+                readFully(in, iv);
+            }
+            if (mKey != null) {
+                cipher = Cipher.getInstance("AES/CBC/NoPadding", "BC");
+                cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(mKey, "AES"), new IvParameterSpec(iv));
+            }
+
+            out.seek(mOffset);
+            byte[] buf = new byte[65536];
+            long position = mOffset;
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                checkCancelled(future);
+                if (mAborted) {
+                    throw new LostRaceException(mUrl);
+                }
+                if (cipher != null) {
+                    byte[] plain = cipher.update(buf, 0, len);
+                    if (plain != null) {
+                        out.write(plain);
+                    }
+                } else {
+                    out.write(buf, 0, len);
+                }
+                position += len;
+                reportProgress(callback, position);
+            }
+            if (last && mLength >= 0 && position != mLength) {
+                throw new IOException("got " + position + " of " + mLength + " bytes of " + mUrl);
+            }
+            if (!last && position != end + 1) {
+                throw new IOException("chunk of " + mUrl + " ended early at " + position);
+            }
+            if (cipher != null) {
+                byte[] plain = cipher.doFinal();
+                if (plain != null && plain.length > 0) {
+                    out.write(plain);
+                }
+                if (last) {
+                    stripPadding(out);
+                }
+            }
+            out.getFD().sync();
+            mOffset = last ? out.length() : position;
+            if (!last) {
+                saveState();
+            }
+            return last;
+        } finally {
+            if (entity != null) {
+                entity.consumeContent();
+            }
+        }
+    }
+
+    /**
+     * Takes the partial files ahead of any other source in the race and picks
+     * up the offset they were left at.
+     */
+    void claim(DownloadProgressCallback callback) throws IOException {
+        if (mOut != null) {
+            return;
+        }
+        if (mRace != null && !mRace.claim(this)) {
+            throw new LostRaceException(mUrl);
+        }
+        restoreState();
+        mOut = new RandomAccessFile(mPartial, "rw");
+        mOut.setLength(mOffset);
+        callback.onProgress(DownloadState.TRANSFER_IN_PROGRESS, mChannel, 0);
+    }
+
+    /**
+     * Stops this download from another thread, including one stuck
+     * connecting to a peer that has gone away.
+     */
+    void abort() {
+        mAborted = true;
+        HttpGet request = mRequest;
+        if (request != null) {
+            request.abort();
+        }
+    }
+
+    void stripPadding(RandomAccessFile out) throws IOException {
+        long length = out.length();
+        if (length < BLOCK_SIZE) {
+            throw new IOException("encrypted content too short");
+        }
+        out.seek(length - 1);
+        int pad = out.read();
+        if (pad < 1 || pad > BLOCK_SIZE) {
+            throw new IOException("bad padding on " + mUrl);
+        }
+        byte[] padding = new byte[pad];
+        out.seek(length - pad);
+        out.readFully(padding);
+        for (byte b : padding) {
+            if (b != pad) {
+                throw new IOException("bad padding on " + mUrl);
+            }
+        }
+        out.setLength(length - pad);
+    }
+
+    void reportProgress(DownloadProgressCallback callback, long position) {
+        if (mLength <= 0) {
+            return;
+        }
+        int progress = Math.round(100f * position / mLength);
+        if (progress != mProgress) {
+            mProgress = progress;
+            callback.onProgress(DownloadState.TRANSFER_IN_PROGRESS, mChannel, progress);
+        }
+    }
+
+    void restart(RandomAccessFile out) throws IOException {
+        out.setLength(0);
+        mOffset = 0;
+        mLength = -1;
+        mState.delete();
+    }
+
+    void discard() {
+        mPartial.delete();
+        mState.delete();
+    }
+
+    void restoreState() {
+        mOffset = 0;
+        if (!mState.exists() || !mPartial.exists()) {
+            return;
+        }
+        try {
+            JSONObject state = new JSONObject(FileUtils.readFileToString(mState, "UTF-8"));
+            long offset = state.getLong("offset");
+            //only whole blocks can be carried on from
+            if (offset % BLOCK_SIZE == 0 && offset <= mPartial.length()) {
+                mOffset = offset;
+                Log.d(TAG, "resuming " + mUrl + " at " + mOffset);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "failed to read download state", e);
+        } catch (JSONException e) {
+            Log.w(TAG, "bad download state", e);
+        }
+    }
+
+    void saveState() throws IOException {
+        File tmp = new File(mState.getAbsolutePath() + ".new");
+        try {
+            JSONObject state = new JSONObject();
+            state.put("offset", mOffset);
+            state.put("length", mLength);
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(state.toString().getBytes("UTF-8"));
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        if (!tmp.renameTo(mState)) {
+            throw new IOException("failed to save download state");
+        }
+    }
+
+    /**
+     * @return first byte, last byte and total length from a Content-Range
+     * header of the form "bytes a-b/total"
+     */
+    static long[] parseContentRange(Header header) throws IOException {
+        if (header == null) {
+            throw new IOException("partial content without a range");
+        }
+        String value = header.getValue().trim();
+        try {
+            int space = value.indexOf(' ');
+            int dash = value.indexOf('-', space);
+            int slash = value.indexOf('/', dash);
+            return new long[] {
+                Long.parseLong(value.substring(space + 1, dash)),
+                Long.parseLong(value.substring(dash + 1, slash)),
+                Long.parseLong(value.substring(slash + 1))
+            };
+        } catch (RuntimeException e) {
+            throw new IOException("bad content range " + value);
+        }
+    }
+
+    static void readFully(InputStream in, byte[] buf) throws IOException {
+        int read = 0;
+        while (read < buf.length) {
+            int r = in.read(buf, read, buf.length - read);
+            if (r < 0) {
+                throw new IOException("stream ended early");
+            }
+            read += r;
+        }
+    }
+
+    /**
+     * Sources fetching the same object.  Only one at a time writes the
+     * partial files; the first to get a response wins and the rest are
+     * aborted.
+     */
+    static class Race {
+        final Set<ChunkedDownload> mRunning = new HashSet<ChunkedDownload>();
+        ChunkedDownload mHolder;
+
+        synchronized void enter(ChunkedDownload download) throws IOException {
+            if (mHolder != null) {
+                throw new LostRaceException(download.mUrl);
+            }
+            mRunning.add(download);
+        }
+
+        synchronized void leave(ChunkedDownload download) {
+            mRunning.remove(download);
+            if (mHolder == download) {
+                mHolder = null;
+            }
+        }
+
+        synchronized boolean isHeld() {
+            return mHolder != null;
+        }
+
+        boolean claim(ChunkedDownload download) {
+            List<ChunkedDownload> losers;
+            synchronized (this) {
+                if (mHolder != null) {
+                    return mHolder == download;
+                }
+                mHolder = download;
+                losers = new ArrayList<ChunkedDownload>(mRunning);
+            }
+            for (ChunkedDownload loser : losers) {
+                if (loser != download) {
+                    loser.abort();
+                }
+            }
+            return true;
+        }
+
+        void abortAll() {
+            List<ChunkedDownload> running;
+            synchronized (this) {
+                running = new ArrayList<ChunkedDownload>(mRunning);
+            }
+            for (ChunkedDownload download : running) {
+                download.abort();
+            }
+        }
+    }
+
+    /**
+     * Thrown by a source that was beaten to the object by another.
+     */
+    static class LostRaceException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        LostRaceException(String url) {
+            super("another source is fetching " + url);
+        }
+
+        static boolean causedBy(Throwable e) {
+            for (; e != null; e = e.getCause()) {
+                if (e instanceof LostRaceException) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static boolean isCancelled(CorralDownloadFuture future) {
+        return future != null && future.isCancelled();
+    }
+
+    static void checkCancelled(CorralDownloadFuture future) throws IOException {
+        if (isCancelled(future)) {
+            throw new IOException("User cancelled download");
+        }
+    }
+}
@@ -17,14 +17,17 @@
 package org.mobisocial.corral;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.math.BigInteger;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
@@ -33,21 +36,29 @@ import java.net.NetworkInterface;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.SecureRandom;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import mobisocial.comm.BluetoothDuplexSocket;
 import mobisocial.comm.DuplexSocket;
-import mobisocial.comm.StreamDuplexSocket;
 import mobisocial.musubi.App;
 import mobisocial.musubi.model.MIdentity;
 import mobisocial.musubi.model.MObject;
@@ -76,9 +87,13 @@ import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.UriMatcher;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -91,9 +106,37 @@ public class ContentCorral {
     private static final String TAG = "ContentCorral";
     private static final boolean DBG = false;
 
+    /* connections served at once; more wait in line, then are turned away */
+    static final int MAX_HTTP_WORKERS = 4;
+    static final int MAX_QUEUED_CONNECTIONS = 32;
+    /* how long an idle keep-alive connection may hold a worker */
+    static final int KEEP_ALIVE_TIMEOUT = 5000;
+    /* how often an idle keep-alive connection checks for queued connections */
+    static final int KEEP_ALIVE_POLL = 100;
+    static final int MAX_REQUESTS_PER_CONNECTION = 100;
+    static final int MAX_HEADER_LENGTH = 8192;
+    /* objects per page of the json api */
+    static final int DEFAULT_PAGE_SIZE = 50;
+    static final int MAX_PAGE_SIZE = 500;
+
+    /* a page of a feed's renderable objects after a given id */
+    static final String SQL_OBJECT_PAGE = "SELECT " + MObject.COL_ID + "," + MObject.COL_TYPE + "," +
+            MObject.COL_IDENTITY_ID + "," + MObject.COL_TIMESTAMP + "," +
+            MObject.COL_LAST_MODIFIED_TIMESTAMP + "," + MObject.COL_JSON +
+            " FROM " + MObject.TABLE + " WHERE " + MObject.COL_FEED_ID + "=? AND " +
+            MObject.COL_RENDERABLE + "=1 AND " + MObject.COL_ID + ">?" +
+            " ORDER BY " + MObject.COL_ID + " LIMIT ?";
+    /* what the etag of the same page is made from */
+    static final String SQL_OBJECT_PAGE_TAG = "SELECT count(*),max(" + MObject.COL_ID + "),max(" +
+            MObject.COL_LAST_MODIFIED_TIMESTAMP + ") FROM (SELECT " + MObject.COL_ID + "," +
+            MObject.COL_LAST_MODIFIED_TIMESTAMP + " FROM " + MObject.TABLE +
+            " WHERE " + MObject.COL_FEED_ID + "=? AND " + MObject.COL_RENDERABLE + "=1 AND " +
+            MObject.COL_ID + ">? ORDER BY " + MObject.COL_ID + " LIMIT ?)";
+
     private BluetoothAcceptThread mBluetoothAcceptThread;
     private HttpAcceptThread mHttpAcceptThread;
     private Context mContext;
+    private final int mPort;
 
     /** 
      * A token generated for this corral instance.
@@ -118,7 +161,15 @@ public class ContentCorral {
 	public static final String APPS_SUBFOLDER = "Musubi/Apps";
 
     public ContentCorral(Context context) {
+        this(context, SERVER_PORT);
+    }
+
+    /**
+     * @param port for the http server, or 0 for any free one
+     */
+    ContentCorral(Context context, int port) {
         mContext = context;
+        mPort = port;
     }
 
     public void start() {
@@ -142,7 +193,7 @@ public class ContentCorral {
     /**
      * Starts the simple image server
      */
-    private synchronized void startHttpServer() {
+    synchronized void startHttpServer() {
         if (mHttpAcceptThread != null)
             return;
 
@@ -151,10 +202,14 @@ public class ContentCorral {
             Log.w(TAG, "No wifi ip address; corral not loaded.");
             return;
         }*/
-        mHttpAcceptThread = new HttpAcceptThread(SERVER_PORT, true);
+        mHttpAcceptThread = new HttpAcceptThread(mPort, true);
         mHttpAcceptThread.start();
     }
 
+    synchronized int getHttpPort() {
+        return mHttpAcceptThread == null ? -1 : mHttpAcceptThread.getPort();
+    }
+
     public synchronized void stop() {
         if (mHttpAcceptThread != null) {
             mHttpAcceptThread.cancel();
@@ -282,23 +337,39 @@ public class ContentCorral {
     private class HttpAcceptThread extends Thread {
         // The local server socket
         private final ServerSocket mmServerSocket;
+        private final ThreadPoolExecutor mmWorkers;
 
         public HttpAcceptThread(int port, boolean allowRemote) {
             ServerSocket tmp = null;
 
             // Create a new listening server socket
             try {
-                tmp = new ServerSocket(port);
-                if (!allowRemote) {
-                    tmp.bind(new InetSocketAddress("127.0.0.1", port));
-                } else {
-                    tmp.bind(new InetSocketAddress("0.0.0.0", port));
-                }
+                tmp = new ServerSocket();
+                tmp.setReuseAddress(true);
+                tmp.bind(new InetSocketAddress(allowRemote ? "0.0.0.0" : "127.0.0.1", port));
             } catch (IOException e) {
-                System.err.println("Could not open server socket");
-                e.printStackTrace(System.err);
+                Log.e(TAG, "Could not open server socket", e);
+                if (tmp != null) {
+                    try {
+                        tmp.close();
+                    } catch (IOException e2) {}
+                    tmp = null;
+                }
             }
             mmServerSocket = tmp;
+            mmWorkers = new ThreadPoolExecutor(MAX_HTTP_WORKERS, MAX_HTTP_WORKERS,
+                    KEEP_ALIVE_TIMEOUT, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(MAX_QUEUED_CONNECTIONS), new ThreadFactory() {
+                        int mCount;
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, "CorralHttpWorker-" + (++mCount));
+                        }
+                    });
+        }
+
+        int getPort() {
+            return mmServerSocket == null ? -1 : mmServerSocket.getLocalPort();
         }
 
         public void run() {
@@ -308,10 +379,10 @@ public class ContentCorral {
 
             // Log.d(TAG, "BEGIN mAcceptThread" + this);
             setName("AcceptThread");
-            Socket socket = null;
 
             // Listen to the server socket always
             while (true) {
+                Socket socket;
                 try {
                     // This is a blocking call and will only return on a
                     // successful connection or an exception
@@ -320,9 +391,6 @@ public class ContentCorral {
                     socket = mmServerSocket.accept();
                     if (DBG)
                         Log.d(TAG, "corral client connected!");
-                } catch (SocketException e) {
-                    Log.e(TAG, "accept() failed", e);
-                    break;
                 } catch (IOException e) {
                     Log.e(TAG, "accept() failed", e);
                     break;
@@ -333,27 +401,35 @@ public class ContentCorral {
                     break;
                 }
 
-                DuplexSocket duplex;
                 try {
-                    duplex = new StreamDuplexSocket(socket.getInputStream(),
-                            socket.getOutputStream());
-                } catch (IOException e) {
-                    Log.e(TAG, "Failed to connect to socket", e);
-                    return;
+                    mmWorkers.execute(new HttpConnection(socket, mmWorkers));
+                } catch (RejectedExecutionException e) {
+                    Log.w(TAG, "too many corral connections, turning one away");
+                    try {
+                        socket.getOutputStream().write(header(
+                                "HTTP/1.1 503 SERVICE UNAVAILABLE\r\nContent-Length: 0\r\nConnection: close\r\n"));
+                    } catch (IOException e2) {
+                    }
+                    try {
+                        socket.close();
+                    } catch (IOException e2) {
+                    }
                 }
-                HttpConnectedThread conThread = new HttpConnectedThread(socket, duplex);
-                conThread.start();
             }
+            mmWorkers.shutdownNow();
             Log.d(TAG, "END mAcceptThread");
         }
 
         public void cancel() {
             Log.d(TAG, "cancel " + this);
             try {
-                mmServerSocket.close();
+                if (mmServerSocket != null) {
+                    mmServerSocket.close();
+                }
             } catch (IOException e) {
                 Log.e(TAG, "close() of server failed", e);
             }
+            mmWorkers.shutdownNow();
         }
     }
 
@@ -434,95 +510,120 @@ public class ContentCorral {
     }
 
     /**
-     * This thread runs during a connection with a remote device. It supports
-     * incoming and outgoing transmissions over HTTP.
+     * Serves the requests that arrive on one connection with a remote device,
+     * for as long as the client keeps it open and other connections are not
+     * waiting for a worker.
      */
-    private class HttpConnectedThread extends Thread {
-        private final DuplexSocket mmDuplexSocket;
+    private class HttpConnection implements Runnable {
         private final Socket mmRealSocket;
+        private final WritableByteChannel mmChannel;
+        private final ThreadPoolExecutor mmWorkers;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
-        private final int BUFFER_LENGTH = 1024;
 
-        public HttpConnectedThread(Socket socket, DuplexSocket streams) {
+        /* state of the request being answered */
+        CorralHttpRequest mmRequest;
+        boolean mmKeepAlive;
+        boolean mmResponded;
+
+        public HttpConnection(Socket socket, ThreadPoolExecutor workers) {
             // Log.d(TAG, "create ConnectedThread");
             mmRealSocket = socket;
-            mmDuplexSocket = streams;
+            mmWorkers = workers;
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
+            WritableByteChannel tmpChannel = null;
 
             try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
+                tmpIn = new BufferedInputStream(socket.getInputStream(), 8192);
+                tmpOut = new BufferedOutputStream(socket.getOutputStream(), 8192);
+                tmpChannel = Channels.newChannel(socket.getOutputStream());
             } catch (IOException e) {
                 Log.e(TAG, "temp sockets not created", e);
             }
 
             mmInStream = tmpIn;
             mmOutStream = tmpOut;
+            mmChannel = tmpChannel;
         }
 
         public void run() {
-            Log.d(TAG, "BEGIN mConnectedThread");
-            byte[] buffer = new byte[BUFFER_LENGTH];
-            int bytes;
-
-            if (mmInStream == null || mmOutStream == null)
+            if (DBG) Log.d(TAG, "BEGIN HttpConnection");
+            if (mmInStream == null || mmOutStream == null) {
+                cancel();
                 return;
+            }
 
-            // Read header information, determine connection type
             try {
-                bytes = mmInStream.read(buffer);
-                if (DBG) Log.d(TAG, "read " + bytes + " header bytes");
-                String header = new String(buffer, 0, bytes);
-                if (DBG) Log.d(TAG, header);
-                // determine request type
-                if (header.startsWith("GET ")) {
-                    doGetRequest(header);
+                mmRealSocket.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+                for (int served = 1; served <= MAX_REQUESTS_PER_CONNECTION; served++) {
+                    if (served > 1 && !awaitNextRequest()) {
+                        break;
+                    }
+                    mmRequest = CorralHttpRequest.read(mmInStream);
+                    if (mmRequest == null) {
+                        break;
+                    }
+                    if (DBG) Log.d(TAG, mmRequest.mMethod + " " + mmRequest.mPath);
+                    // hand the worker over if someone else is waiting for one
+                    mmKeepAlive = mmRequest.isKeepAlive() && served < MAX_REQUESTS_PER_CONNECTION
+                            && mmWorkers.getQueue().isEmpty();
+                    mmResponded = false;
+                    if ("GET".equals(mmRequest.mMethod)) {
+                        doGetRequest(mmRequest);
+                    } else {
+                        mmKeepAlive = false;
+                        sendStatus("405 METHOD NOT ALLOWED");
+                    }
+                    if (!mmResponded) {
+                        sendStatus("404 NOT FOUND");
+                    }
+                    mmOutStream.flush();
+                    if (!mmKeepAlive) {
+                        break;
+                    }
                 }
+            } catch (SocketTimeoutException e) {
+                if (DBG) Log.d(TAG, "idle corral connection closed");
             } catch (Exception e) {
-                Log.e(TAG, "Error reading connection header", e);
+                Log.e(TAG, "Error serving corral connection", e);
             }
 
             // No longer listening.
             cancel();
         }
 
-        class CorralHttpRequest {
-            final String mRequest;
-            final Map<String, String> mHeaders = new HashMap<String, String>();
-            String mMethod;
-            String mPath;
-
-            public CorralHttpRequest(String httpRequest) {
-                mRequest = httpRequest;
-                parseRequest();
-            }
-
-            void parseRequest() {
-                String[] headers = mRequest.split("\r\n");
-                if (headers.length == 0) {
-                    throw new IllegalArgumentException("Bad http request");
-                }
-                for (int i = 1; i < headers.length; i++) {
-                    String h = headers[i];
-                    int col = h.indexOf(':');
-                    if (col > -1) {
-                        String v = h.substring(col+1).trim();
-                        mHeaders.put(h.substring(0, col).trim().toLowerCase(), v);
+        /**
+         * Waits for the first byte of a follow-up request.  Gives up early
+         * if other connections are queued for a worker, so an idle client
+         * never holds one for the whole keep-alive timeout.
+         */
+        boolean awaitNextRequest() throws IOException {
+            long deadline = SystemClock.uptimeMillis() + KEEP_ALIVE_TIMEOUT;
+            mmRealSocket.setSoTimeout(KEEP_ALIVE_POLL);
+            try {
+                while (true) {
+                    mmInStream.mark(1);
+                    try {
+                        if (mmInStream.read() < 0) {
+                            return false;
+                        }
+                        mmInStream.reset();
+                        return true;
+                    } catch (SocketTimeoutException e) {
+                        if (!mmWorkers.getQueue().isEmpty()
+                                || SystemClock.uptimeMillis() >= deadline) {
+                            if (DBG) Log.d(TAG, "idle corral connection closed");
+                            return false;
+                        }
                     }
                 }
-
-                String[] request = headers[0].split(" ");
-                if (request.length == 0) {
-                    throw new IllegalArgumentException("No method");
-                }
-                mMethod = request[0];
-                mPath = request[1];
+            } finally {
+                mmRealSocket.setSoTimeout(KEEP_ALIVE_TIMEOUT);
             }
         }
 
-        void handleRaw(Uri targetUri) {
+        void handleRaw(Uri targetUri) throws IOException {
         	long objId = Long.parseLong(targetUri.getLastPathSegment());
             String ticket = targetUri.getQueryParameter("ticket"); 
             if (ticket == null) {
@@ -545,42 +646,52 @@ public class ContentCorral {
                     projection, selection, selectionArgs, sortOrder);
             try {
                 if (obj.moveToFirst()) {
+                    String type = "application/octet";
+                    String jsonSrc = obj.getString(1);
                     try {
-                        String type = "application/octet";
-                        byte[] bytes = obj.getBlob(0);
-                        String jsonSrc = obj.getString(1);
-                        try {
-                            JSONObject json = new JSONObject(jsonSrc);
-                            if (json.has(CorralDownloadClient.OBJ_MIME_TYPE)) {
-                                type = json.getString(CorralDownloadClient.OBJ_MIME_TYPE);
-                            }
-                        } catch (JSONException e) {
+                        JSONObject json = new JSONObject(jsonSrc);
+                        if (json.has(CorralDownloadClient.OBJ_MIME_TYPE)) {
+                            type = json.getString(CorralDownloadClient.OBJ_MIME_TYPE);
                         }
+                    } catch (JSONException e) {
+                    }
 
-                        sendRaw(type, bytes);
-                        mmOutStream.close();
-                    } catch(IOException e) {
-                        if (DBG) Log.w(TAG, "corral http", e);
+                    byte[] bytes = obj.getBlob(0);
+                    if (bytes != null) {
+                        sendBytes(type, bytes);
+                        return;
                     }
-                } else {
+                    //large payloads are kept out of the row, so send them from the file
+                    ParcelFileDescriptor pfd = new ObjectManager(App.getDatabaseSource(mContext))
+                            .openRaw(objId);
+                    if (pfd == null) {
+                        sendStatus("404 NOT FOUND");
+                        return;
+                    }
+                    //closing the stream closes the descriptor as well
+                    FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
                     try {
-                        mmOutStream.write(header("HTTP/1.1 404 NOT FOUND"));
-                        mmOutStream.close();
-                    } catch (IOException e) {
-                        if (DBG) Log.w(TAG, "corral http", e);
+                        FileChannel channel = in.getChannel();
+                        sendFile(type, channel, 0, channel.size());
+                    } finally {
+                        in.close();
                     }
+                } else {
+                    sendStatus("404 NOT FOUND");
                 }
             } finally {
                 obj.close();
             }
-            return;
         }
 
-        void handleNews(Uri targetUri) {
+        boolean isLocal() {
+            return "/127.0.0.1".equals(mmRealSocket.getLocalAddress().toString());
+        }
+
+        void handleNews(Uri targetUri) throws IOException {
         	if (DBG) Log.d(TAG, "reading the news");
-            PrintWriter pw = new PrintWriter(mmOutStream);
-            if (!"/127.0.0.1".equals(mmRealSocket.getLocalAddress().toString())) {
-                pw.append("HTTP/1.1 403 FORBIDDEN\r\n\r\n");
+            if (!isLocal()) {
+                sendStatus("403 FORBIDDEN");
                 return;
             }
 
@@ -592,41 +703,143 @@ public class ContentCorral {
             Cursor c = mContext.getContentResolver().query(
                     uri, projection, selection, selectionArgs, sortOrder);
             try {
-                PulseFeed pulse = new PulseFeed(mContext, c);
-                String news = pulse.toJson().toString();
-                if (DBG) Log.d(TAG, "News feed: " + news);
-
-                pw.append("HTTP/1.1 200 OK\r\n");
-                pw.append("Content-Type: application/json\r\n");
-                pw.append("Content-Length: " + news.getBytes().length + "\r\n");
-                pw.append("\r\n");
-                pw.append(news); // TODO: memory management; streaming interface
-                pw.close();
-                mmOutStream.close();
-            } catch (IOException e) {
-                if (DBG) Log.d(TAG, "io", e);
+                Writer out = startChunked("application/json", null);
+                new PulseFeed(mContext, c).writeTo(out);
+                out.close();
+            } catch (JSONException e) {
+                throw new IOException(e);
             } finally {
                 c.close();
             }
+        }
 
-            /*Log.d(TAG, "mocking pulse data");
-            String PULSE_ASSET = "pulse.txt";
+        /**
+         * Pages through the renderable objects of a feed in id order, for
+         * LAN peers and web apps.  /json/[feed id]?after=[obj id]&limit=[n]
+         * answers {"feed":..,"objs":[..],"next":..} where next is the path
+         * of the following page, if there may be one.  Each page is found
+         * through the index from where the last one ended, so the cost does
+         * not grow with how far into the feed it is.  The ETag covers the
+         * ids and modification times on the page, so a client polling an
+         * unchanged page gets a 304.
+         */
+        void handleObjects(Uri targetUri) throws IOException {
+            long feedId;
+            long after;
+            int limit;
             try {
-                String content = IOUtils.toString(mContext.getResources().getAssets().open(PULSE_ASSET));
-                pw.append("HTTP/1.1 200 OK\r\n");
-                pw.append("Content-Type: application/json\r\n");
-                pw.append("Content-Length: " + content.getBytes().length);
-                pw.append("\r\n\r\n");
-                pw.append(content);
-                pw.close();
-                mmOutStream.close();
-            } catch (IOException e) {
-                Log.e(TAG, "failed to pulse", e);
-            }*/
+                feedId = Long.parseLong(targetUri.getLastPathSegment());
+                String param = targetUri.getQueryParameter("after");
+                after = param == null ? 0 : Long.parseLong(param);
+                param = targetUri.getQueryParameter("limit");
+                limit = param == null ? DEFAULT_PAGE_SIZE :
+                    Math.max(1, Math.min(MAX_PAGE_SIZE, Integer.parseInt(param)));
+            } catch (NumberFormatException e) {
+                sendStatus("400 BAD REQUEST");
+                return;
+            }
+            String ticket = targetUri.getQueryParameter("ticket");
+            if (!isLocal() && !ticketCoversFeed(ticket, feedId)) {
+                notAuthorized();
+                return;
+            }
+
+            SQLiteDatabase db = App.getDatabaseSource(mContext).getReadableDatabase();
+            String[] args = new String[] {
+                    Long.toString(feedId), Long.toString(after), Integer.toString(limit) };
+            int count;
+            long lastId;
+            String etag;
+            Cursor c = db.rawQuery(SQL_OBJECT_PAGE_TAG, args);
+            try {
+                c.moveToFirst();
+                count = c.getInt(0);
+                lastId = c.getLong(1);
+                etag = "\"" + feedId + "-" + after + "-" + count + "-" + lastId + "-" + c.getLong(2) + "\"";
+            } finally {
+                c.close();
+            }
+            String headers = "ETag: " + etag + "\r\nCache-Control: no-cache\r\n";
+            if (matchesETag(mmRequest.mHeaders.get("if-none-match"), etag)) {
+                sendHeaders("304 NOT MODIFIED", null, 0, headers);
+                return;
+            }
+
+            c = db.rawQuery(SQL_OBJECT_PAGE, args);
+            try {
+                Writer out = startChunked("application/json", headers);
+                out.write("{\"feed\":");
+                out.write(Long.toString(feedId));
+                out.write(",\"objs\":[");
+                while (c.moveToNext()) {
+                    if (!c.isFirst()) {
+                        out.write(',');
+                    }
+                    out.write("{\"id\":");
+                    out.write(Long.toString(c.getLong(0)));
+                    out.write(",\"type\":");
+                    out.write(JSONObject.quote(c.getString(1)));
+                    out.write(",\"sender\":");
+                    out.write(Long.toString(c.getLong(2)));
+                    out.write(",\"timestamp\":");
+                    out.write(Long.toString(c.getLong(3)));
+                    out.write(",\"last_modified\":");
+                    out.write(Long.toString(c.getLong(4)));
+                    out.write(",\"json\":");
+                    out.write(jsonValue(c.getString(5)));
+                    out.write('}');
+                }
+                out.write(']');
+                if (count == limit) {
+                    String next = "/json/" + feedId + "?after=" + lastId + "&limit=" + limit;
+                    if (ticket != null) {
+                        next += "&ticket=" + Uri.encode(ticket);
+                    }
+                    out.write(",\"next\":");
+                    out.write(JSONObject.quote(next));
+                }
+                out.write('}');
+                out.close();
+            } finally {
+                c.close();
+            }
+        }
+
+        /**
+         * The stored json column as a value for the page.  A column that
+         * does not parse is sent as a string rather than breaking the page.
+         */
+        String jsonValue(String json) {
+            if (json == null) {
+                return "null";
+            }
+            try {
+                return new JSONObject(json).toString();
+            } catch (JSONException e) {
+                Log.w(TAG, "sending malformed obj json as a string");
+                return JSONObject.quote(json);
+            }
         }
 
-        void handleApp(Uri targetUri) {
+        /**
+         * Remote peers see a feed's objects only with a ticket for one of them.
+         */
+        boolean ticketCoversFeed(String ticket, long feedId) {
+            if (ticket == null) {
+                return false;
+            }
+            AccessScope scope = sAppTokens.get(ticket);
+            if (scope == null) {
+                return false;
+            }
+            MObject obj = new ObjectManager(App.getDatabaseSource(mContext))
+                    .getObjectWithoutRawForId(scope.objId);
+            return obj != null && obj.feedId_ == feedId;
+        }
+
+        void handleApp(Uri targetUri) throws IOException {
         	if (targetUri.getPath().contains("..")) {
+        		sendStatus("403 FORBIDDEN");
         		return;
         	}
         	File appFolder = new File(Environment.getExternalStorageDirectory(), APPS_SUBFOLDER);
@@ -637,15 +850,22 @@ public class ContentCorral {
         		filePath = targetUri.getPath();
         		filePath = filePath.replaceFirst("/app", "");
         	}
+        	File file = new File(appFolder, filePath);
+        	if (!file.isFile()) {
+        		sendStatus("404 NOT FOUND");
+        		return;
+        	}
+        	String type = null;
+        	int p = filePath.lastIndexOf('.');
+        	if (p > 0) {
+        		type = CorralDownloadClient.typeForExtension(filePath.substring(p + 1));
+        	}
+        	FileInputStream in = new FileInputStream(file);
         	try {
-            	FileInputStream fileInputStream = new FileInputStream(new File(appFolder, filePath));
-            	mmOutStream.write(header("HTTP/1.1 200 OK"));
-                //mmOutStream.write(header("Content-Type: " + type));
-                mmOutStream.write(header("Content-Length: " + fileInputStream.available()));
-                mmOutStream.write(header(""));
-            	IOUtils.copy(fileInputStream, mmOutStream);
-        	} catch (IOException e) {
-        		Log.e(TAG, "Error sending app file", e);
+        		FileChannel channel = in.getChannel();
+        		sendFile(type, channel, 0, channel.size());
+        	} finally {
+        		in.close();
         	}
         }
 
@@ -653,12 +873,7 @@ public class ContentCorral {
          * Handles an HTTP GET request for objects, raw content,
          * and Corral images.
          */
-        private void doGetRequest(String httpRequest) {
-            CorralHttpRequest request = new CorralHttpRequest(httpRequest);
-            if (!"GET".equals(request.mMethod)) {
-                throw new IllegalArgumentException();
-            }
-
+        private void doGetRequest(CorralHttpRequest request) throws IOException {
             Uri targetUri = Uri.parse("content://" + MOCK + request.mPath);
 
             int match = sMatcher.match(targetUri);
@@ -670,6 +885,9 @@ public class ContentCorral {
                 case NEWS:
                 	handleNews(targetUri);
                     break;
+                case JSON:
+                    handleObjects(targetUri);
+                    break;
                 default:
             		handled = false;
             }
@@ -686,11 +904,7 @@ public class ContentCorral {
             // Old-School:
 
             if (targetUri.getQueryParameter("content") == null) {
-                try {
-                    mmOutStream.write(header("HTTP/1.1 404 NOT FOUND\r\n\r\n"));
-                    mmOutStream.close();
-                } catch (IOException e) {
-                }
+                sendStatus("404 NOT FOUND");
                 return;
             }
 
@@ -707,11 +921,7 @@ public class ContentCorral {
             ObjectManager om = new ObjectManager(App.getDatabaseSource(mContext));
             long objId = om.getObjectIdForHash(universalHashBytes);
             if (objId == -1) {
-                try {
-                    mmOutStream.write(header("HTTP/1.1 410 GONE\r\n\r\n"));
-                    mmOutStream.close();
-                } catch (IOException e) {
-                }
+                sendStatus("410 GONE");
                 return;
             }
 
@@ -730,11 +940,7 @@ public class ContentCorral {
 
             String localPath = json.optString(CorralDownloadClient.OBJ_LOCAL_URI);
             if (!contentPath.equals(localPath)) {
-                try {
-                    mmOutStream.write(header("HTTP/1.1 400 BAD REQUEST\r\n\r\n"));
-                    mmOutStream.close();
-                } catch (IOException e) {
-                }
+                sendStatus("400 BAD REQUEST");
                 return;
             }
 
@@ -759,29 +965,29 @@ public class ContentCorral {
 
         class PulseFeed {
             final IdentitiesManager mIdentityManager;
-            final JSONArray mEntries;
+            final Cursor mCursor;
 
             public PulseFeed(Context context, Cursor c){
                 mIdentityManager = new IdentitiesManager(App.getDatabaseSource(context));
-                mEntries = new JSONArray();
-
-                try {
-                    while (c.moveToNext()) {
-                        mEntries.put(getEntry(c.getLong(0)));
-                    }
-                } catch (JSONException e) {
-                    throw new IllegalArgumentException(e);
-                }
+                mCursor = c;
             }
 
-            public JSONObject toJson() {
-                try {
-                    JSONObject pulse = new JSONObject();
-                    pulse.put("responseData", getResponse());
-                    return pulse;
-                } catch (JSONException e) {
-                    throw new RuntimeException(e);
+            /**
+             * Writes the feed out an entry at a time as the cursor is walked.
+             */
+            public void writeTo(Writer out) throws IOException, JSONException {
+                out.write("{\"responseData\":{\"feed\":");
+                //everything but the entries, left open to add them
+                String feed = getFeed().toString();
+                out.write(feed, 0, feed.length() - 1);
+                out.write(",\"entries\":[");
+                while (mCursor.moveToNext()) {
+                    if (!mCursor.isFirst()) {
+                        out.write(',');
+                    }
+                    out.write(getEntry(mCursor.getLong(0)).toString());
                 }
+                out.write("]}}}");
             }
 
             JSONObject getEntry(long id) throws JSONException {
@@ -806,12 +1012,6 @@ public class ContentCorral {
                 return entry;
             }
 
-            JSONObject getResponse() throws JSONException {
-                JSONObject response = new JSONObject();
-                response.put("feed", getFeed());
-                return response;
-            }
-
             JSONObject getFeed() throws JSONException {
                 JSONObject feed = new JSONObject();
                 feed.put("feedUrl", "content://org.musubi.db/news");
@@ -820,221 +1020,349 @@ public class ContentCorral {
                 feed.put("author", "Stanford");
                 feed.put("description", "Stories from Friends");
                 feed.put("type", "rss20");
-                feed.put("entries", getEntries());
                 return feed;
             }
+        }
 
-            JSONArray getEntries() {
-                return mEntries;
+        void notAuthorized() throws IOException {
+            sendStatus("401 UNAUTHORIZED");
+        }
+
+        /**
+         * Writes the status line and headers.  A negative length sends the
+         * body with chunked transfer encoding.
+         */
+        void sendHeaders(String status, String type, long length, String extra) throws IOException {
+            mmResponded = true;
+            StringBuilder headers = new StringBuilder(256)
+                .append("HTTP/1.1 ").append(status).append("\r\n");
+            if (type != null) {
+                headers.append("Content-Type: ").append(type).append("\r\n");
+            }
+            if (length >= 0) {
+                headers.append("Content-Length: ").append(length).append("\r\n");
+            } else {
+                headers.append("Transfer-Encoding: chunked\r\n");
             }
+            if (extra != null) {
+                headers.append(extra);
+            }
+            headers.append("Connection: ").append(mmKeepAlive ? "keep-alive" : "close").append("\r\n");
+            mmOutStream.write(header(headers.toString()));
         }
 
-        void notAuthorized() {
-            try {
-                mmOutStream.write(header("HTTP/1.1 401 UNAUTHORIZED\r\n\r\n"));
-                mmOutStream.close();
-            } catch (IOException e) {
+        void sendStatus(String status) throws IOException {
+            sendHeaders(status, null, 0, null);
+        }
+
+        /**
+         * Answers with the part of a body of the given length that the
+         * request asked for.
+         *
+         * @return the first byte and the number of bytes to send, or null if
+         * the range could not be met and the answer has already been sent
+         */
+        long[] startBody(String type, long length) throws IOException {
+            long[] range = parseRange(mmRequest.mHeaders.get("range"), length);
+            if (range == null) {
+                sendHeaders("200 OK", type, length, "Accept-Ranges: bytes\r\n");
+                return new long[] { 0, length };
+            }
+            if (range.length == 0) {
+                sendHeaders("416 REQUESTED RANGE NOT SATISFIABLE", null, 0,
+                        "Content-Range: bytes */" + length + "\r\n");
+                return null;
             }
+            sendHeaders("206 PARTIAL CONTENT", type, range[1], "Content-Range: bytes " + range[0] + "-" +
+                    (range[0] + range[1] - 1) + "/" + length + "\r\n");
+            return range;
         }
 
-        void sendRaw(String type, byte[] bytes) throws IOException {
-            mmOutStream.write(header("HTTP/1.1 200 OK"));
-            mmOutStream.write(header("Content-Type: " + type));
-            mmOutStream.write(header("Content-Length: " + bytes.length));
-            mmOutStream.write(header(""));
+        void sendBytes(String type, byte[] bytes) throws IOException {
+            long[] range = startBody(type, bytes.length);
+            if (range != null) {
+                mmOutStream.write(bytes, (int)range[0], (int)range[1]);
+            }
+        }
 
-            InputStream in = new ByteArrayInputStream(bytes);
-            byte[] buf = new byte[1024];
+        /**
+         * Sends length bytes of a file starting at offset.  The channel maps
+         * the file rather than copying it through a buffer of our own.
+         */
+        void sendFile(String type, FileChannel file, long offset, long length) throws IOException {
+            long[] range = startBody(type, length);
+            if (range == null) {
+                return;
+            }
+            mmOutStream.flush();
+            long position = offset + range[0];
+            long remaining = range[1];
+            while (remaining > 0) {
+                long sent = file.transferTo(position, remaining, mmChannel);
+                if (sent <= 0) {
+                    //the file is shorter than it claimed, so the response is broken
+                    throw new IOException("content ended " + remaining + " bytes early");
+                }
+                position += sent;
+                remaining -= sent;
+            }
+        }
+
+        /**
+         * Sends content whose length is not known up front.
+         */
+        void sendStream(String type, InputStream in) throws IOException {
+            sendHeaders("200 OK", type, -1, null);
+            OutputStream out = new ChunkedOutputStream(mmOutStream);
+            byte[] buffer = new byte[8192];
             int r;
-            while ((r = in.read(buf)) > 0) {
-                mmOutStream.write(buf, 0, r);
-            };
+            while ((r = in.read(buffer)) > 0) {
+                out.write(buffer, 0, r);
+            }
+            out.close();
+        }
+
+        /**
+         * Starts a 200 response whose body is written as it is produced.
+         * Closing the writer ends the body.
+         */
+        Writer startChunked(String type, String extra) throws IOException {
+            sendHeaders("200 OK", type, -1, extra);
+            return new BufferedWriter(new OutputStreamWriter(new ChunkedOutputStream(mmOutStream), "UTF-8"), 8192);
         }
 
-        private void sendContent(Uri requestPath) {
-            InputStream in;
+        private void sendContent(Uri requestPath) throws IOException {
+            String type = mContext.getContentResolver().getType(requestPath);
+            if (type == null) {
+                int p = requestPath.toString().lastIndexOf(".");
+                if (p > 0) {
+                    String ext = requestPath.toString().substring(p + 1);
+                    type = CorralDownloadClient.typeForExtension(ext);
+                }
+            }
+
+            AssetFileDescriptor afd;
             try {
                 // img = Uri.withAppendedPath(Images.Media.EXTERNAL_CONTENT_URI,
                 // imgId);
-                in = mContext.getContentResolver().openInputStream(requestPath);
+                afd = mContext.getContentResolver().openAssetFileDescriptor(requestPath, "r");
             } catch (Exception e) {
                 Log.d(TAG, "Error opening file", e);
+                afd = null;
+            }
+            if (afd == null) {
+                sendStatus("404 NOT FOUND");
                 return;
             }
 
             try {
-                byte[] buffer = new byte[4096];
-                int r = 0;
-
-                // Gross way to get length. What's the right way??
-                int size = 0;
-                while ((r = in.read(buffer)) > 0) {
-                    size += r;
-                }
-                String type = mContext.getContentResolver().getType(requestPath);
-                if (type == null) {
-                    int p = requestPath.toString().lastIndexOf(".");
-                    if (p > 0) {
-                        String ext = requestPath.toString().substring(p + 1);
-                        type = CorralDownloadClient.typeForExtension(ext);
-                    }
-                }
-                in = mContext.getContentResolver().openInputStream(requestPath);
-                mmOutStream.write(header("HTTP/1.1 200 OK"));
-                if (type != null) {
-                    mmOutStream.write(header("Content-Type: " + type));
-                }
-                mmOutStream.write(header("Content-Length: " + size));
-                // mmOutStream.write(header("Content-Disposition: attachment; filename=\""+filename+"\""));
-                mmOutStream.write(header(""));
-
-                while ((r = in.read(buffer)) > 0) {
-                    mmOutStream.write(buffer, 0, r);
+                long length = contentLength(afd);
+                if (length < 0) {
+                    sendStream(type, afd.createInputStream());
+                    return;
                 }
-
-            } catch (Exception e) {
-                Log.e(TAG, "Error sending file", e);
+                FileInputStream in = new FileInputStream(afd.getFileDescriptor());
+                sendFile(type, in.getChannel(), afd.getStartOffset(), length);
             } finally {
-                try {
-                    mmOutStream.close();
-                } catch (IOException e) {
-                }
+                afd.close();
             }
         }
 
-        private void sendObj(Uri requestPath, int objIndex) {
-            InputStream in;
-            byte[] bytes;
+        public void cancel() {
             try {
-                Uri uri;
-                try {
-                    uri = DbFeed.uriForId(Long.parseLong(requestPath.getPath().substring(1)));
-                } catch (NumberFormatException e) {
-                    return;
-                }
-                String[] projection = new String[] {
-                        DbObj.COL_ID, MObject.COL_JSON
-                };
-                String selection = MObject.COL_RENDERABLE + " = 1";
-                String[] selectionArgs = null;
-                String sortOrder = DbObj.COL_ID + " ASC";
-                Cursor cursor = mContext.getContentResolver().query(uri, projection, selection,
-                        selectionArgs, sortOrder);
-                try {
+                mmRealSocket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
 
-                    if (!cursor.moveToPosition(objIndex)) {
-                        Log.d(TAG, "No obj found for " + uri);
-                        return;
-                    }
-                    String jsonStr = cursor.getString(1);
-                    bytes = jsonStr.getBytes();
-                    in = new ByteArrayInputStream(bytes);
-                } finally {
-                    cursor.close();
+    /**
+     * A request line and its headers, read a line at a time so that the
+     * body of one request and the start of the next are left in the stream.
+     */
+    static class CorralHttpRequest {
+        final Map<String, String> mHeaders = new HashMap<String, String>();
+        String mMethod;
+        String mPath;
+        String mVersion;
+
+        /**
+         * @return the next request on the connection, or null if the client
+         * closed it
+         */
+        static CorralHttpRequest read(InputStream in) throws IOException {
+            String line = readLine(in);
+            while (line != null && line.length() == 0) {
+                //stray line breaks between requests are allowed
+                line = readLine(in);
+            }
+            if (line == null) {
+                return null;
+            }
+            CorralHttpRequest request = new CorralHttpRequest();
+            String[] parts = line.split(" ");
+            if (parts.length < 2) {
+                throw new IOException("Bad http request " + line);
+            }
+            request.mMethod = parts[0];
+            request.mPath = parts[1];
+            request.mVersion = parts.length > 2 ? parts[2] : "HTTP/1.0";
+            int read = line.length();
+            while ((line = readLine(in)) != null && line.length() > 0) {
+                read += line.length();
+                if (read > MAX_HEADER_LENGTH) {
+                    throw new IOException("http request headers too long");
                 }
-            } catch (Exception e) {
-                Log.d(TAG, "Error opening obj", e);
-                return;
+                int col = line.indexOf(':');
+                if (col > -1) {
+                    request.mHeaders.put(line.substring(0, col).trim().toLowerCase(),
+                            line.substring(col + 1).trim());
+                }
+            }
+            if (line == null) {
+                throw new IOException("connection closed in the middle of a request");
             }
+            return request;
+        }
 
-            try {
-                byte[] buffer = new byte[4096];
-                int r = 0;
-
-                mmOutStream.write(header("HTTP/1.1 200 OK"));
-                mmOutStream.write(header("Content-Type: text/plain"));
-                mmOutStream.write(header("Content-Length: " + bytes.length));
-                // mmOutStream.write(header("Content-Disposition: attachment; filename=\""+filename+"\""));
-                mmOutStream.write(header(""));
-
-                while ((r = in.read(buffer)) > 0) {
-                    Log.d(TAG, "sending: " + new String(buffer));
-                    mmOutStream.write(buffer, 0, r);
-                }
+        boolean isKeepAlive() {
+            String connection = mHeaders.get("connection");
+            if ("HTTP/1.1".equals(mVersion)) {
+                return !"close".equalsIgnoreCase(connection);
+            }
+            return "keep-alive".equalsIgnoreCase(connection);
+        }
 
-            } catch (Exception e) {
-                Log.e(TAG, "Error sending file", e);
-            } finally {
-                try {
-                    mmOutStream.close();
-                } catch (IOException e) {
+        static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    return line.toString();
+                }
+                if (c != '\r') {
+                    line.append((char)c);
+                }
+                if (line.length() > MAX_HEADER_LENGTH) {
+                    throw new IOException("http request line too long");
                 }
             }
+            return line.length() == 0 ? null : line.toString();
+        }
+    }
+
+    /**
+     * Frames what is written to it as http chunks.  Closing it ends the body
+     * but leaves the connection open.
+     */
+    static class ChunkedOutputStream extends OutputStream {
+        final OutputStream mOut;
+        boolean mClosed;
+
+        ChunkedOutputStream(OutputStream out) {
+            mOut = out;
         }
 
-        private void sendObjs(Uri requestPath) {
-            // TODO: hard-coded limit of 30 in place.
-            InputStream in;
-            byte[] bytes;
-            StringBuilder jsonArrayBuilder = new StringBuilder("[");
-            try {
-                Uri uri;
-                try {
-                    uri = DbFeed.uriForId(Long.parseLong(requestPath.getPath().substring(1)));
-                } catch (NumberFormatException e) {
-                    return;
-                }
-                String[] projection = new String[] {
-                        DbObj.COL_ID, MObject.COL_JSON
-                };
-                String selection = MObject.COL_RENDERABLE + " = 1";
-                String[] selectionArgs = null;
-                String sortOrder = DbObj.COL_ID + " ASC LIMIT 30";
-                Cursor cursor = mContext.getContentResolver().query(uri, projection, selection,
-                        selectionArgs, sortOrder);
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
 
-                try {
-                    if (!cursor.moveToFirst()) {
-                        Log.d(TAG, "No objs found for " + uri);
-                        return;
-                    }
-                    jsonArrayBuilder.append(cursor.getString(1));
-                    while (!cursor.isLast()) {
-                        cursor.moveToNext();
-                        String jsonStr = cursor.getString(1);
-                        jsonArrayBuilder.append(",").append(jsonStr);
-                    }
-                } finally {
-                    cursor.close();
-                }
-            } catch (Exception e) {
-                Log.d(TAG, "Error opening obj", e);
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
                 return;
             }
+            mOut.write((Integer.toHexString(len) + "\r\n").getBytes());
+            mOut.write(b, off, len);
+            mOut.write('\r');
+            mOut.write('\n');
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mOut.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!mClosed) {
+                mClosed = true;
+                mOut.write("0\r\n\r\n".getBytes());
+                mOut.flush();
+            }
+        }
+    }
 
-            bytes = jsonArrayBuilder.append("]").toString().getBytes();
-            in = new ByteArrayInputStream(bytes);
-            try {
-                byte[] buffer = new byte[4096];
-                int r = 0;
-
-                mmOutStream.write(header("HTTP/1.1 200 OK"));
-                mmOutStream.write(header("Content-Type: text/plain"));
-                mmOutStream.write(header("Content-Length: " + bytes.length));
-                // mmOutStream.write(header("Content-Disposition: attachment; filename=\""+filename+"\""));
-                mmOutStream.write(header(""));
-
-                while ((r = in.read(buffer)) > 0) {
-                    Log.d(TAG, "sending: " + new String(buffer));
-                    mmOutStream.write(buffer, 0, r);
-                }
+    static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-            } catch (Exception e) {
-                Log.e(TAG, "Error sending file", e);
-            } finally {
-                try {
-                    mmOutStream.close();
-                } catch (IOException e) {
+    /**
+     * Reads a single "bytes=a-b", "bytes=a-" or "bytes=-n" range against a
+     * body of the given length.
+     *
+     * @return the first byte and the number of bytes, null if the whole body
+     * should be sent, or an empty array if the range starts past the end
+     */
+    static long[] parseRange(String header, long length) {
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') != -1) {
+            return null;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            long first, last;
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix <= 0) {
+                    return new long[0];
                 }
+                first = Math.max(0, length - suffix);
+                last = length - 1;
+            } else {
+                first = Long.parseLong(spec.substring(0, dash));
+                last = dash == spec.length() - 1 ? length - 1 :
+                    Math.min(length - 1, Long.parseLong(spec.substring(dash + 1)));
+                if (last < first && first < length) {
+                    return null;
+                }
+            }
+            if (first >= length) {
+                return new long[0];
             }
+            return new long[] { first, last - first + 1 };
+        } catch (NumberFormatException e) {
+            return null;
         }
+    }
 
-        public void cancel() {
-            try {
-                mmDuplexSocket.close();
-            } catch (IOException e) {
-            }
+    /**
+     * The length of the content behind a descriptor, from its metadata,
+     * or -1 if it can only be found by reading it.
+     */
+    static long contentLength(AssetFileDescriptor afd) {
+        long length = afd.getLength();
+        if (length != AssetFileDescriptor.UNKNOWN_LENGTH) {
+            return length;
         }
+        long size = afd.getParcelFileDescriptor().getStatSize();
+        return size < 0 ? -1 : size - afd.getStartOffset();
     }
 
     private byte[] header(String str) {
@@ -19,14 +19,24 @@ package org.mobisocial.corral;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import mobisocial.musubi.App;
 import mobisocial.musubi.model.DbContactAttributes;
@@ -37,10 +47,6 @@ import mobisocial.socialkit.SignedObj;
 import mobisocial.socialkit.musubi.DbIdentity;
 import mobisocial.socialkit.musubi.DbObj;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.mobisocial.corral.CorralDownloadHandler.CorralDownloadFuture;
@@ -56,6 +62,7 @@ import android.media.MediaScannerConnection;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.util.Base64;
 import android.util.Log;
 
@@ -67,6 +74,10 @@ public class CorralDownloadClient {
     public static final String OBJ_LOCAL_URI = "localUri";
     public static final String OBJ_PRESHARED_KEY = "sharedkey";
 
+    /* how long one source has to start sending before the next is tried too */
+    static final long HEDGE_DELAY = 1500;
+    private static final ExecutorService sFetchExecutor = Executors.newCachedThreadPool();
+
     private final Context mContext;
 	private ObjectManager mObjectManager;
 
@@ -118,7 +129,7 @@ public class CorralDownloadClient {
      * is available locally, or it has been determined that the file cannot
      * currently be fetched.
      */
-    Uri fetchContent(DbObj obj, CorralDownloadFuture future,
+    Uri fetchContent(final DbObj obj, final CorralDownloadFuture future,
             DownloadProgressCallback callback) throws IOException {
         if (obj.getJson() == null || !obj.getJson().has(OBJ_LOCAL_URI)) {
             if (DBG) {
@@ -139,28 +150,34 @@ public class CorralDownloadClient {
             }            
         }
 
-        DbIdentity user = obj.getSender();
+        final DbIdentity user = obj.getSender();
         if (user == null) {
             throw new IOException("Null user in corral");
         }
-        File localFile = localFileForContent(obj, false);
+        final File localFile = localFileForContent(obj, false);
         if (localFile.exists()) {
             return Uri.fromFile(localFile);
         }
 
-        try {
-            if (userAvailableOnLan(user)) {
-                return doMediaScan(getFileOverLan(user, obj, future, callback));
-            }
-        } catch (IOException e) {
-            if (DBG) Log.d(TAG, "Failed to pull LAN file", e);
+        List<Source> sources = new ArrayList<Source>();
+        if (userAvailableOnLan(user)) {
+            sources.add(new Source(DownloadChannel.LAN, callback) {
+                @Override
+                Uri fetch(DownloadProgressCallback progress) throws IOException {
+                    return getFileOverLan(user, obj, future, progress);
+                }
+            });
         }
-
-        try {
-            return doMediaScan(CorralHelper.downloadContent(mContext,
-                    localFile, obj, future, callback));
-        } catch (IOException e) {
-            if (DBG) Log.d(TAG, "Failed to pull Corral file", e);
+        sources.add(new Source(DownloadChannel.SERVER, callback) {
+            @Override
+            Uri fetch(DownloadProgressCallback progress) throws IOException {
+                return CorralHelper.downloadContent(mContext, localFile, obj, future, progress);
+            }
+        });
+        Source winner = fetchFirst(sources, future.mRace, future, HEDGE_DELAY);
+        if (winner != null) {
+            callback.onProgress(DownloadState.TRANSFER_COMPLETE, winner.mChannel, DownloadProgressCallback.SUCCESS);
+            return doMediaScan(winner.mResult);
         }
 
         try {
@@ -177,6 +194,90 @@ public class CorralDownloadClient {
         return doMediaScan(Uri.fromFile(localFile));
     }
 
+    /**
+     * One way of fetching an object, run alongside the others by
+     * {@link CorralDownloadClient#fetchFirst}.  Progress is passed on except
+     * for the end of the transfer, which is reported once the race is over.
+     */
+    static abstract class Source implements Callable<Source>, DownloadProgressCallback {
+        final DownloadChannel mChannel;
+        final DownloadProgressCallback mCallback;
+        Uri mResult;
+
+        Source(DownloadChannel channel, DownloadProgressCallback callback) {
+            mChannel = channel;
+            mCallback = callback;
+        }
+
+        abstract Uri fetch(DownloadProgressCallback progress) throws IOException;
+
+        @Override
+        public Source call() throws IOException {
+            mResult = fetch(this);
+            return this;
+        }
+
+        @Override
+        public void onProgress(DownloadState state, DownloadChannel channel, int progress) {
+            if (state != DownloadState.TRANSFER_COMPLETE) {
+                mCallback.onProgress(state, channel, progress);
+            }
+        }
+    }
+
+    /**
+     * Starts the sources in order, each one hedgeDelay after the last unless
+     * one of them has already started sending.  The first to get an answer
+     * takes the download and the others are aborted.  If it fails part way,
+     * the next source carries on from its last complete chunk.
+     *
+     * @return the source that delivered the content, or null if none could
+     */
+    static Source fetchFirst(List<Source> sources, ChunkedDownload.Race race,
+            CorralDownloadFuture future, long hedgeDelay) {
+        CompletionService<Source> completion = new ExecutorCompletionService<Source>(sFetchExecutor);
+        LinkedList<Source> waiting = new LinkedList<Source>(sources);
+        Map<Future<Source>, Source> running = new HashMap<Future<Source>, Source>();
+        long hedgeAt = 0;
+        try {
+            while (!waiting.isEmpty() || !running.isEmpty()) {
+                if (future != null && future.isCancelled()) {
+                    return null;
+                }
+                long now = SystemClock.uptimeMillis();
+                if (!waiting.isEmpty() && (running.isEmpty() || (!race.isHeld() && now >= hedgeAt))) {
+                    Source next = waiting.removeFirst();
+                    if (DBG) Log.d(TAG, "fetching from " + next.mChannel);
+                    running.put(completion.submit(next), next);
+                    hedgeAt = now + hedgeDelay;
+                }
+                long wait = (waiting.isEmpty() || race.isHeld()) ? hedgeDelay : Math.max(1, hedgeAt - now);
+                Future<Source> done = completion.poll(wait, TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    continue;
+                }
+                Source source = running.remove(done);
+                try {
+                    if (done.get().mResult != null) {
+                        return source;
+                    }
+                } catch (ExecutionException e) {
+                    if (ChunkedDownload.LostRaceException.causedBy(e)) {
+                        //beaten to it, but may yet have to take over
+                        waiting.addFirst(source);
+                    } else if (DBG) {
+                        Log.d(TAG, "Failed to pull file from " + source.mChannel, e.getCause());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "interrupted fetching content", e);
+        } finally {
+            race.abortAll();
+        }
+        return null;
+    }
+
     Uri doMediaScan(Uri content) {
         String[] paths = new String[] { content.getPath() };
         MediaScannerConnection.scanFile(mContext, paths, null, null);
@@ -226,74 +327,25 @@ public class CorralDownloadClient {
             DownloadProgressCallback callback) throws IOException {
         DownloadChannel channel = DownloadChannel.LAN;
         callback.onProgress(DownloadState.PREPARING_CONNECTION, channel, 0);
-        InputStream in = null;
-        OutputStream out = null;
-        try {
-            // Remote
-            String ip = getUserLanIp(mContext, user);
-            Uri remoteUri = uriForLanContent(ip, obj);
-
-            if (DBG) {
-                Log.d(TAG, "Attempting to pull lan file " + remoteUri);
-            }
+        // Remote
+        String ip = getUserLanIp(mContext, user);
+        Uri remoteUri = uriForLanContent(ip, obj);
 
-            HttpClient http = new DefaultHttpClient();
-            HttpGet get = new HttpGet(remoteUri.toString());
-            HttpResponse response = http.execute(get);
-            long contentLength = response.getEntity().getContentLength();
-
-            File localFile = localFileForContent(obj, false);
-            if (!localFile.exists()) {
-                if (future.isCancelled()) {
-                    throw new IOException("User error");
-                }
-                localFile.getParentFile().mkdirs();
-                try {
-                    in = response.getEntity().getContent();
-                    out = new FileOutputStream(localFile);
-                    byte[] buf = new byte[1024];
-                    int len;
-
-                    callback.onProgress(DownloadState.TRANSFER_IN_PROGRESS, channel, 0);
-                    int read = 0;
-                    int progress = 0;
-                    while (!future.isCancelled() && (len = in.read(buf)) > 0) {
-                        read += len;
-                        if (contentLength > 0) {
-                            int newProgress = Math.round(100f * read / contentLength);
-                            if (progress != newProgress) {
-                                progress = newProgress;
-                                callback.onProgress(DownloadState.TRANSFER_IN_PROGRESS, channel, progress);
-                            }
-                        }
-                        out.write(buf, 0, len);
-                    }
-                    if (future.isCancelled()) {
-                        throw new IOException("user cancelled");
-                    }
-                    if (DBG) Log.d(TAG, "successfully fetched content over lan");
-                    callback.onProgress(DownloadState.TRANSFER_COMPLETE, channel, DownloadProgressCallback.SUCCESS);
-                } catch (IOException e) {
-                	if (DBG) Log.d(TAG, "failed to get content from lan");
-                    callback.onProgress(DownloadState.TRANSFER_COMPLETE, channel, DownloadProgressCallback.FAILURE);
-                    if (localFile.exists()) {
-                        localFile.delete();
-                    }
-                    throw e;
-                }
-            }
+        if (DBG) {
+            Log.d(TAG, "Attempting to pull lan file " + remoteUri);
+        }
 
-            return Uri.fromFile(localFile);
+        File localFile = localFileForContent(obj, false);
+        try {
+            new ChunkedDownload(remoteUri.toString(), localFile, null, channel).run(future, callback);
+            if (DBG) Log.d(TAG, "successfully fetched content over lan");
+            callback.onProgress(DownloadState.TRANSFER_COMPLETE, channel, DownloadProgressCallback.SUCCESS);
         } catch (Exception e) {
+            if (DBG) Log.d(TAG, "failed to get content from lan");
+            callback.onProgress(DownloadState.TRANSFER_COMPLETE, channel, DownloadProgressCallback.FAILURE);
             throw new IOException(e);
-        } finally {
-        	try {
-				if(in != null) in.close();
-				if(out != null) out.close();
-			} catch (IOException e) {
-				Log.e(TAG, "failed to close handle on get corral content", e);
-			}
         }
+        return Uri.fromFile(localFile);
     }
 
     private boolean userAvailableOnLan(DbIdentity user) {
@@ -34,9 +34,12 @@ import android.content.Context;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.util.Log;
 
 public class CorralDownloadHandler {
     private static final String TAG = "DownloadProcessor";
+    private static final String PREFS_NAME = "corral_downloads";
+    private static final String PREF_PENDING = "pending";
 
     final int NOTIFICATION_ID = 1024;
     final Context mContext;
@@ -86,6 +89,7 @@ public class CorralDownloadHandler {
         final CorralDownloadFuture future = new CorralDownloadFuture(objId);
         synchronized (mPendingDownloads) {
             mPendingDownloads.put(objId, future);
+            markPending(objId, true);
         }
 
         mHandler.post(new Runnable() {
@@ -96,16 +100,80 @@ public class CorralDownloadHandler {
                     future.setResult(corral.fetchContent(obj, future, future.mParentCallback));
                 } catch (IOException e) {
                     future.setResult(null);
+                } finally {
+                    synchronized (mPendingDownloads) {
+                        markPending(future.mObjId, false);
+                    }
                 }
             }
         });
         return future;
     }
 
+    /**
+     * Restarts the downloads that were running when the process last went
+     * away.  Their partial content is kept on disk, so each one carries on
+     * from its last complete chunk.
+     */
+    public static void resumePendingDownloads(Context context) {
+        CorralDownloadHandler handler = getInstance(context);
+        Set<Long> pending;
+        synchronized (handler.mPendingDownloads) {
+            pending = handler.readPending();
+        }
+        for (long objId : pending) {
+            DbObj obj = handler.mMusubi.objForId(objId);
+            if (obj == null) {
+                synchronized (handler.mPendingDownloads) {
+                    handler.markPending(objId, false);
+                }
+                continue;
+            }
+            Log.d(TAG, "resuming download of obj " + objId);
+            CorralDownloadFuture future = handler.startOrFetchDownload(obj);
+            future.registerCallback(new DownloadProgressNotificationCallback(context, objId));
+        }
+    }
+
+    /**
+     * Records which downloads are in flight, so they can be resumed after
+     * the process is killed.  Callers hold mPendingDownloads.
+     */
+    void markPending(long objId, boolean pending) {
+        Set<Long> ids = readPending();
+        if (pending ? !ids.add(objId) : !ids.remove(objId)) {
+            return;
+        }
+        StringBuilder value = new StringBuilder();
+        for (long id : ids) {
+            if (value.length() > 0) {
+                value.append(',');
+            }
+            value.append(id);
+        }
+        mContext.getSharedPreferences(PREFS_NAME, 0).edit()
+                .putString(PREF_PENDING, value.toString()).commit();
+    }
+
+    Set<Long> readPending() {
+        Set<Long> ids = new HashSet<Long>();
+        String value = mContext.getSharedPreferences(PREFS_NAME, 0).getString(PREF_PENDING, "");
+        for (String id : value.split(",")) {
+            if (id.length() > 0) {
+                try {
+                    ids.add(Long.parseLong(id));
+                } catch (NumberFormatException e) {
+                }
+            }
+        }
+        return ids;
+    }
+
     public class CorralDownloadFuture {
         final long mObjId;
         final Set<DownloadProgressCallback> mCallbacks = new HashSet<DownloadProgressCallback>();
         final DownloadProgressCallback mParentCallback;
+        final ChunkedDownload.Race mRace = new ChunkedDownload.Race();
         Object mLock = new Object();
         Uri mResult = null;
         boolean mFinished = false;
@@ -146,6 +214,7 @@ public class CorralDownloadHandler {
                 mFinished = mCancelled = true;
                 mLock.notify();
             }
+            mRace.abortAll();
         }
 
         public boolean isCancelled() {
@@ -17,24 +17,12 @@
 package org.mobisocial.corral;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
 import java.security.GeneralSecurityException;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
-import java.util.Date;
 import java.util.List;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.ShortBufferException;
-
 import mobisocial.musubi.App;
 import mobisocial.musubi.model.MIdentity;
 import mobisocial.musubi.model.helpers.IdentitiesManager;
@@ -48,9 +36,9 @@ import org.mobisocial.corral.CorralHelper.DownloadProgressCallback.DownloadChann
 import org.mobisocial.corral.CorralHelper.DownloadProgressCallback.DownloadState;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
-import android.os.Environment;
 import android.util.Log;
 
 public class CorralHelper {
@@ -149,9 +137,9 @@ public class CorralHelper {
             mykey   = jso.getString(CorralDownloadClient.OBJ_PRESHARED_KEY);
             mime_type = jso.getString(CorralDownloadClient.OBJ_MIME_TYPE);
 			
-	    	EncRslt rslt = encryptData(dataUri, context, mykey, callback);
+	    	EncRslt rslt = prepareUpload(dataUri, context, mykey);
 	    	if(rslt == null){
-	    		Log.e(TAG, "failed to encrypt");
+	    		Log.e(TAG, "failed to open content for upload");
 				return false;
 	    	}
 			String objName = obj.getUniversalHashString();
@@ -159,12 +147,14 @@ public class CorralHelper {
 			// We cannot use URLEncode and Base64 because they generate "/" and "%2f"
 			// which are not allowed to use inside URLs for Tomcat Server...
 			// So, hex encoded value of the strings will be sent.
+			// The content is encrypted as it is sent, so there is no md5 to sign
+			// up front; it is checked against the stored object's ETag instead.
 			CorralTicketProvider ctp = new CorralTicketProvider(context);
 			String ticket = ctp.getUploadTicket(
 					objName,
 					bin2hex(mime_type.getBytes()),
 					String.valueOf(rslt.length),
-					bin2hex(rslt.md5.getBytes()));
+					"");
 			String datestr = ctp.getDatestr();
 			if(ticket==null){
 	    		Log.e(TAG, "failed to get ticket for upload");
@@ -174,6 +164,7 @@ public class CorralHelper {
 			CorralS3Connector s3cn = new CorralS3Connector(context);
 			s3cn.uploadToServer(ticket, rslt, datestr, objName, callback);
 			
+			// only share it once the server has the intact ciphertext
 			ctp.putACL(objName, buddies);
 			return true;
 			
@@ -187,79 +178,66 @@ public class CorralHelper {
 		
 	}
 	
-	private static EncRslt encryptData(Uri uri, Context context, String mykey,
-	        UploadProgressCallback callback) {
+	/**
+	 * Works out the ciphertext length for the content at uri without
+	 * encrypting anything.  The content is encrypted as it is uploaded.
+	 */
+	static EncRslt prepareUpload(Uri uri, Context context, String mykey) {
 		try {
 			EncRslt rslt = new EncRslt();
-			CryptUtil cu = new CryptUtil(mykey);
-			cu.InitCiphers();
-			rslt.key = cu.getKey();
-			InputStream is = context.getContentResolver().openInputStream(uri);
-			File dst = getFileForCrypt(String.valueOf(rslt.key.hashCode()), context);
-			FileOutputStream fos = new FileOutputStream(dst);
-			cu.encrypt(is, fos, callback);
-			rslt.length = cu.getLength();
-			rslt.md5 = cu.getMd5();
-			rslt.uri = Uri.fromFile(dst);
-			is.close();
-			fos.close();
+			rslt.uri = uri;
+			rslt.key = mykey;
+			long plaintextLength = plaintextLength(context, uri);
+			if (plaintextLength < 0) {
+				return null;
+			}
+			rslt.length = CryptUtil.encryptedLength(plaintextLength);
 			return rslt;
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-			return null;
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-			return null;
-		} catch (ShortBufferException e) {
-			e.printStackTrace();
-			return null;
-		} catch (IllegalBlockSizeException e) {
-			e.printStackTrace();
-			return null;
-		} catch (BadPaddingException e) {
-			e.printStackTrace();
-			return null;
 		} catch (IOException e) {
 			e.printStackTrace();
 			return null;
-		} catch (InvalidKeyException e) {
-			e.printStackTrace();
-			return null;
-		} catch (NoSuchProviderException e) {
-			e.printStackTrace();
-			return null;
-		} catch (NoSuchPaddingException e) {
-			e.printStackTrace();
-			return null;
-		} catch (InvalidAlgorithmParameterException e) {
-			e.printStackTrace();
-			return null;
 		}
 	}
 
-	public static File getFileForCrypt(String hash, Context context){
-		File externalCacheDir = new File(new File(new File(new File(Environment.getExternalStorageDirectory(), "Android"), "data"), context.getPackageName()), "cypher");
-		externalCacheDir.mkdirs();
-		
-		// clear old items
-		String[] files = externalCacheDir.list();
-		long th = new Date().getTime() - 24*60*60*1000; // expire one day
-		for(int i=0; i<files.length;i++){
-			File tmp = new File(externalCacheDir, files[i]);
-			if(tmp.lastModified()<th){
-				tmp.delete();
+	/**
+	 * @return the size of the content at uri, counting through it only if
+	 * the provider does not say
+	 */
+	static long plaintextLength(Context context, Uri uri) throws IOException {
+		AssetFileDescriptor afd = context.getContentResolver().openAssetFileDescriptor(uri, "r");
+		if (afd == null) {
+			return -1;
+		}
+		try {
+			long length = afd.getLength();
+			if (length == AssetFileDescriptor.UNKNOWN_LENGTH) {
+				length = afd.getParcelFileDescriptor().getStatSize();
 			}
+			if (length >= 0) {
+				return length;
+			}
+		} finally {
+			afd.close();
 		}
-		
-		// add new file
-		File dst = new File(externalCacheDir, hash+".tmp");
-		if(dst.exists()){
-			dst.delete();
+		InputStream is = context.getContentResolver().openInputStream(uri);
+		try {
+			byte[] buf = new byte[65536];
+			long length = 0;
+			int len;
+			while ((len = is.read(buf)) != -1) {
+				length += len;
+			}
+			return length;
+		} finally {
+			is.close();
 		}
-//		dst.deleteOnExit();
-		return dst;
 	}
 	
+    /**
+     * Content to be encrypted on its way to the server.  length is the
+     * length of the ciphertext, known up front from the plaintext length.
+     * md5 is the base64 md5 of the ciphertext, filled in as it is sent.
+     */
     public static class EncRslt {
     	public Uri uri;
     	public String key;
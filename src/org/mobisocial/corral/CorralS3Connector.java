@@ -16,25 +16,27 @@
 
 package org.mobisocial.corral;
 
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
-import org.apache.http.HttpEntity;
+import mobisocial.musubi.util.Base64;
+
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.mobisocial.corral.CorralDownloadHandler.CorralDownloadFuture;
 import org.mobisocial.corral.CorralHelper.DownloadProgressCallback;
+import org.mobisocial.corral.CorralHelper.DownloadProgressCallback.DownloadChannel;
 import org.mobisocial.corral.CorralHelper.EncRslt;
 import org.mobisocial.corral.CorralHelper.UploadProgressCallback;
 import org.mobisocial.corral.CorralHelper.UploadProgressCallback.UploadState;
@@ -50,10 +52,23 @@ public class CorralS3Connector {
 	private Context mContext;
 	private static final String SERVER_URL = "http://corral-1.s3.amazonaws.com/";
 
+	private final String mServerUrl;
+
 	public CorralS3Connector(Context context){
+        this(context, SERVER_URL);
+	}
+
+	CorralS3Connector(Context context, String serverUrl){
         mContext = context;
+        mServerUrl = serverUrl;
 	}
 	
+	/**
+	 * Encrypts the content and sends it in one pass.  The ciphertext length
+	 * is known up front, so the request still goes out with a fixed length,
+	 * and its md5 is worked out as it is sent and checked against the ETag
+	 * the server reports for the stored object.
+	 */
 	public void uploadToServer(String ticket, final EncRslt rslt, String datestr, String objName,
 	        final UploadProgressCallback callback) throws ClientProtocolException, IOException {
 	    callback.onProgress(UploadState.PREPARING_UPLOAD, 0);
@@ -61,94 +76,78 @@ public class CorralS3Connector {
 		Log.d(TAG, "URI: "+rslt.uri.toString());
 		Log.d(TAG, "length: "+rslt.length);
 		Log.d(TAG, "ticket: "+ticket);
-		Log.d(TAG, SERVER_URL+objName);
+		Log.d(TAG, mServerUrl+objName);
 		Log.d(TAG, "Authorization: AWS "+ticket);
-		Log.d(TAG, "Content-Md5: "+rslt.md5);
 		Log.d(TAG, "Content-Type: "+CONTENT_TYPE);
 		Log.d(TAG, "Date: "+datestr);
-		
-		InputStream in = mContext.getContentResolver().openInputStream(rslt.uri);
-		final int contentLength = in.available();
 
 		HttpClient http = new DefaultHttpClient();
-		HttpPut put = new HttpPut(SERVER_URL + objName);
+		HttpPut put = new HttpPut(mServerUrl + objName);
 
 		put.setHeader("Authorization", "AWS "+ticket);
-		put.setHeader("Content-Md5", rslt.md5);
 		put.setHeader("Content-Type", CONTENT_TYPE);
         put.setHeader("Date", datestr);
 
-        HttpEntity progress = new ProgressEntity(callback, rslt, contentLength);
+        ProgressEntity progress = new ProgressEntity(callback, rslt);
         
         put.setEntity(progress);
 		HttpResponse response = http.execute(put);
 		final int responseCode = response.getStatusLine().getStatusCode();
+		Header etag = response.getFirstHeader("ETag");
+		if (response.getEntity() != null) {
+			response.getEntity().consumeContent();
+		}
 		
 		// FOR DEBUG
 		if(responseCode != HttpURLConnection.HTTP_OK){
     		throw new RuntimeException("invalid response code, " + responseCode);
 		}
+		Log.d(TAG, "Content-Md5: "+rslt.md5);
+		if (etag == null) {
+			Log.w(TAG, "no ETag to check the upload against");
+			return;
+		}
+		String expected = CorralHelper.bin2hex(Base64.decode(rslt.md5));
+		String stored = etag.getValue().replace("\"", "");
+		if (!expected.equalsIgnoreCase(stored)) {
+			throw new IOException("upload of " + objName + " was corrupted, sent " + expected +
+					" but server has " + stored);
+		}
 	}
 	
 	Uri downloadAndDecrypt(String ticket, String datestr, String objName,
 			File cachefile, String mykey,
 	        CorralDownloadFuture future, DownloadProgressCallback callback) throws IOException, GeneralSecurityException {
 		Log.d(TAG, "-----DOWNLOAD+DECRYPT START-----"+(String.valueOf(System.currentTimeMillis())));
-		Log.d(TAG, SERVER_URL+objName);
+		Log.d(TAG, mServerUrl+objName);
 		Log.d(TAG, "Authorization: AWS "+ticket);
 		Log.d(TAG, "Date: "+datestr);
 
-		HttpClient http = new DefaultHttpClient();
-		HttpGet get = new HttpGet(SERVER_URL+objName);
-		get.addHeader("Authorization", "AWS " + ticket);
-		get.addHeader("Date", datestr);
-		HttpResponse response = http.execute(get);
-
-        DataInputStream is = new DataInputStream(response.getEntity().getContent());  
-        long contentLength = response.getEntity().getContentLength();
-
-	    if (!cachefile.exists()) {
-			File tmpFile = new File(cachefile.getAbsoluteFile() + ".tmp");
-            tmpFile.getParentFile().mkdirs();
-			try {
-		        CryptUtil cu = new CryptUtil(mykey);
-		        cu.InitCiphers();
-		        FileOutputStream fos = new FileOutputStream(tmpFile);
-		        cu.decrypt(is, fos, contentLength, callback);
-		        try {
-			        is.close();
-		        } catch (IOException e) {}
-		        try {
-		            fos.close();
-		        } catch (IOException e) {}
-		        
-				tmpFile.renameTo(cachefile);
-
-            } catch (IOException e) {
-                if (tmpFile.exists()) {
-                    tmpFile.delete();
-                }
-                throw e;
-			} catch (GeneralSecurityException e) {
-                throw e;
-            }
-        }
+		ChunkedDownload download = new ChunkedDownload(mServerUrl + objName, cachefile,
+				mykey, DownloadChannel.SERVER);
+		download.setHeader("Authorization", "AWS " + ticket);
+		download.setHeader("Date", datestr);
+		download.run(future, callback);
         return cachefile.exists() ? Uri.fromFile(cachefile) : null;
 	}
 
+	/**
+	 * Reads the plaintext, encrypts it and writes the ciphertext to the
+	 * request, hashing it on the way.  Encryption is deterministic for a
+	 * given key, so the entity can be written again if the request is
+	 * retried.
+	 */
 	class ProgressEntity extends AbstractHttpEntity {
-        int uploaded = 0;
+        long uploaded = 0;
         int progress = 0;
         final UploadProgressCallback callback;
         final EncRslt rslt;
-        final int contentLength;
 
         long mLastCheckedForCancellation = 0;
         
-        public ProgressEntity(UploadProgressCallback callback, EncRslt encoding, int contentLength) {
+        public ProgressEntity(UploadProgressCallback callback, EncRslt encoding) {
             this.callback = callback;
             this.rslt = encoding;
-            this.contentLength = contentLength;
         }
 
         @Override
@@ -159,17 +158,25 @@ public class CorralS3Connector {
             }
 
             checkUserCancellation();
+            MessageDigest md;
+            try {
+                md = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("no md5", e);
+            }
+            uploaded = 0;
             InputStream instream = getContent();
             try {
                 checkUserCancellation();
-                byte[] tmp = new byte[4096];
+                byte[] tmp = new byte[65536];
                 int l;
                 while ((l = instream.read(tmp)) != -1) {
                     checkUserCancellation();
                     outstream.write(tmp, 0, l);
+                    md.update(tmp, 0, l);
                     uploaded += l;
 
-                    int newProgress = (int) Math.round(100. * uploaded / contentLength);
+                    int newProgress = (int) Math.round(100. * uploaded / rslt.length);
                     if (newProgress > progress) {
                         progress = newProgress;
                         callback.onProgress(UploadState.TRANSFER_IN_PROGRESS, progress);
@@ -179,6 +186,11 @@ public class CorralS3Connector {
             } finally {
                 instream.close();
             }
+            if (uploaded != rslt.length) {
+                throw new IOException("content changed size during upload, sent " + uploaded +
+                        " of " + rslt.length);
+            }
+            rslt.md5 = Base64.encodeToString(md.digest(), false);
             callback.onProgress(UploadState.FINISHING_UP, 0);
         }
 
@@ -204,12 +216,22 @@ public class CorralS3Connector {
         
         @Override
         public long getContentLength() {
-            return contentLength;
+            return rslt.length;
         }
         
         @Override
         public InputStream getContent() throws IOException, IllegalStateException {
-            return mContext.getContentResolver().openInputStream(rslt.uri);
+            CryptUtil cu = new CryptUtil(rslt.key);
+            try {
+                cu.InitCiphers();
+            } catch (GeneralSecurityException e) {
+                throw new IOException("failed to set up encryption", e);
+            }
+            InputStream plaintext = mContext.getContentResolver().openInputStream(rslt.uri);
+            if (plaintext == null) {
+                throw new IOException("failed to open " + rslt.uri);
+            }
+            return cu.encryptingStream(plaintext);
         }
     };
 }
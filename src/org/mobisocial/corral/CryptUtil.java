@@ -51,8 +51,9 @@ import mobisocial.musubi.util.Base64;
 import android.util.Log;
 
 public class CryptUtil {
+    static final int BLOCK_SIZE = 16;
 
-	int blocksize = 16;
+	int blocksize = BLOCK_SIZE;
 	int bufsize   = 65536;
     Cipher encCipher = null;
     Cipher decCipher = null;
@@ -112,6 +113,22 @@ public class CryptUtil {
        decCipher.init(Cipher.DECRYPT_MODE, keyValue, IVspec);
     }
 
+    /**
+     * @return the size of the ciphertext for plaintextLength bytes.  PKCS5
+     * always pads, adding between one byte and a whole block.
+     */
+    public static long encryptedLength(long plaintextLength) {
+        return (plaintextLength / BLOCK_SIZE + 1) * BLOCK_SIZE;
+    }
+
+    /**
+     * Wraps a plaintext stream so that reading it yields the ciphertext,
+     * for sending without writing the ciphertext out first.
+     */
+    public InputStream encryptingStream(InputStream plaintext) {
+        return new CipherInputStream(new BufferedInputStream(plaintext, bufsize), encCipher);
+    }
+
     public void ResetCiphers()
     {
         encCipher=null;
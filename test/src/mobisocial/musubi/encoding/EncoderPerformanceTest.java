@@ -3,9 +3,14 @@ package mobisocial.musubi.encoding;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Random;
 
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
 import mobisocial.crypto.IBEncryptionScheme;
 import mobisocial.crypto.IBEncryptionScheme.ConversationKey;
 import mobisocial.crypto.IBEncryptionScheme.UserKey;
@@ -99,6 +104,73 @@ public class EncoderPerformanceTest extends TestBase {
 		Date end = new Date();
 		Log.w(this.getName(), "Milliseconds per lookup " + (double)(end.getTime() - start.getTime()) / (ITERATIONS));
 	}
+	public void testOutgoingLoadChannelKeyCached() {
+		DeviceManager dm = new DeviceManager(dbh);
+		MessageTransportManager mtm = new MessageTransportManager(dbh, mIdp.getEncryptionScheme(), mIdp.getSignatureScheme(), dm.getLocalDeviceName());
+		MIdentity meIdentity = new MIdentity();
+		meIdentity.id_ = 1;
+		MIdentity[] contacts = new MIdentity[200];
+		//a 200 member feed, written through the cache on insert
+		for(int i = 0; i < contacts.length; ++i) {
+			contacts[i] = new MIdentity();
+			contacts[i].id_ = i + 2;
+			MOutgoingSecret os = new MOutgoingSecret();
+			os.myIdentityId_ = meIdentity.id_;
+			os.otherIdentityId_ = contacts[i].id_;
+			os.signatureWhen_ = mMe.temporalFrame_;
+			os.encryptionWhen_ = mMe.temporalFrame_;
+			os.key_ = new byte[32];
+			os.encryptedKey_ = new byte[42];
+			os.signature_ = new byte[21];
+			mtm.insertOutgoingSecret(mMe, mMe, os);
+		}
+		Date start = new Date();
+		for(int i = 0; i < ITERATIONS; ++i) {
+			for(MIdentity contact : contacts) {
+				assertNotNull(mtm.lookupOutgoingSecret(meIdentity, contact, mMe, mMe));
+			}
+		}
+		Date end = new Date();
+		Log.w(this.getName(), "Milliseconds per post to 200 " + (double)(end.getTime() - start.getTime()) / (ITERATIONS));
+		Log.w(this.getName(), mtm.getSecretCache().toString());
+		assertEquals(0, mtm.getSecretCache().getOutgoingMisses());
+	}
+	public void testIncomingLoadChannelKeyCached() {
+		DeviceManager dm = new DeviceManager(dbh);
+		MessageTransportManager mtm = new MessageTransportManager(dbh, mIdp.getEncryptionScheme(), mIdp.getSignatureScheme(), dm.getLocalDeviceName());
+		MIdentity meIdentity = new MIdentity();
+		meIdentity.id_ = 1;
+		MIdentity other = new MIdentity();
+		other.id_ = 2;
+		MDevice otherDevice = new MDevice();
+		otherDevice.id_ = 1;
+		MIncomingSecret is = new MIncomingSecret();
+		is.deviceId_ = otherDevice.id_;
+		is.otherIdentityId_ = other.id_;
+		is.myIdentityId_ = meIdentity.id_;
+		is.signatureWhen_ = mMe.temporalFrame_;
+		is.encryptionWhen_ = mMe.temporalFrame_;
+		is.key_ = new byte[32];
+		is.encryptedKey_ = new byte[42];
+		is.signature_ = new byte[21];
+		new Random().nextBytes(is.signature_);
+		mtm.insertIncomingSecret(mMe, mMe, is);
+
+		//a fresh manager has to go to the database once, then hits
+		mtm = new MessageTransportManager(dbh, mIdp.getEncryptionScheme(), mIdp.getSignatureScheme(), dm.getLocalDeviceName());
+		Date start = new Date();
+		for(int i = 0; i < ITERATIONS; ++i) {
+			assertNotNull(mtm.lookupIncomingSecret(other, otherDevice, meIdentity, is.signature_, mMe, mMe));
+		}
+		Date end = new Date();
+		Log.w(this.getName(), "Milliseconds per lookup " + (double)(end.getTime() - start.getTime()) / (ITERATIONS));
+		Log.w(this.getName(), mtm.getSecretCache().toString());
+		assertEquals(1, mtm.getSecretCache().getIncomingMisses());
+
+		//a different signature on the same channel is not served from the cache
+		byte[] otherSignature = new byte[21];
+		assertNull(mtm.lookupIncomingSecret(other, otherDevice, meIdentity, otherSignature, mMe, mMe));
+	}
 	public void testComputeOutgoingKey() throws Signature {
 		Date start = new Date();
 		IBEncryptionScheme enc = mIdp.getEncryptionScheme();
@@ -164,6 +236,44 @@ public class EncoderPerformanceTest extends TestBase {
 		Date end = new Date();
 		Log.w(this.getName(), "Milliseconds per sign channel key " + (double)(end.getTime() - start.getTime()) / (ITERATIONS / 10));
 	}
+	public void testRecipientSecretEncryptCost() throws Exception {
+		TransientTransportDataProvider tdp = new TransientTransportDataProvider(mIdp.getEncryptionScheme(), mIdp.getSignatureScheme(), mMe, null, null, null);
+		MessageEncoder encoder = new MessageEncoder(tdp);
+		Random rnd = new Random();
+		Secret s = new Secret();
+		s.h = new byte[32];
+		rnd.nextBytes(s.h);
+		s.k = new byte[32];
+		rnd.nextBytes(s.k);
+		s.q = rnd.nextLong();
+		byte[] secret = encoder.encodeSecret(s);
+		MOutgoingSecret os = new MOutgoingSecret();
+		os.key_ = new byte[16];
+		rnd.nextBytes(os.key_);
+		byte[] iv = encoder.randomSymetricCipherBlock();
+		int blocks = ITERATIONS * R;
+
+		//the old way, a provider lookup per recipient
+		Date start = new Date();
+		byte[] before = null;
+		for(int i = 0; i < blocks; ++i) {
+			Cipher cipher = Cipher.getInstance("AES/CBC/ZeroBytePadding");
+			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(os.key_, "AES"), new IvParameterSpec(iv));
+			before = cipher.doFinal(secret);
+		}
+		Date end = new Date();
+		Log.w(this.getName(), "Milliseconds per recipient block, new cipher " + (double)(end.getTime() - start.getTime()) / blocks);
+
+		//reusing the thread's cipher
+		start = new Date();
+		byte[] after = null;
+		for(int i = 0; i < blocks; ++i) {
+			after = encoder.encryptRecipientSecret(os, secret, iv);
+		}
+		end = new Date();
+		Log.w(this.getName(), "Milliseconds per recipient block, reused cipher " + (double)(end.getTime() - start.getTime()) / blocks);
+		assertTrue(Arrays.equals(before, after));
+	}
 	public void testShaHeaders() throws Corrupted {
 		TransientTransportDataProvider tdp = new TransientTransportDataProvider(mIdp.getEncryptionScheme(), mIdp.getSignatureScheme(), mMe, null, null, null);
 		MessageEncoder encoder = new MessageEncoder(tdp);
@@ -0,0 +1,255 @@
+package mobisocial.musubi.model.helpers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+
+import mobisocial.musubi.model.MObject;
+import mobisocial.musubi.provider.ObjectRawCursorWrapper;
+import mobisocial.test.TestDatabase;
+import android.content.ContentValues;
+import android.database.CrossProcessCursor;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.ParcelFileDescriptor;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+public class BlobStoreTest extends AndroidTestCase {
+	DatabaseFile mDbh;
+	ObjectManager mObjectManager;
+	BlobStore mStore;
+	Random mRandom = new Random();
+
+	public void setUp() {
+		mDbh = new DatabaseFile(getContext(), null);
+		mObjectManager = new ObjectManager(mDbh);
+		mStore = mDbh.getBlobStore();
+	}
+	public void tearDown() {
+		mDbh.close();
+	}
+
+	MObject newObject(long feedId, byte[] raw) {
+		return TestDatabase.bareObject(feedId, "picture", "{}", raw);
+	}
+	byte[] randomBytes(int size) {
+		byte[] data = new byte[size];
+		mRandom.nextBytes(data);
+		return data;
+	}
+	void expire(byte[] ref) {
+		mStore.fileFor(ref).setLastModified(new Date().getTime() - 2 * BlobStore.GRACE_PERIOD);
+	}
+
+	public void testSmallRawStaysInline() {
+		MObject o = newObject(1, randomBytes(100));
+		mObjectManager.insertObject(o);
+		assertNull(mObjectManager.getRawHashForId(o.id_));
+		assertTrue(Arrays.equals(o.raw_, mObjectManager.getRawForId(o.id_)));
+	}
+
+	public void testLargeRawIsStoredOutOfRow() throws Exception {
+		MObject o = newObject(1, randomBytes(BlobStore.INLINE_LIMIT * 4));
+		mObjectManager.insertObject(o);
+		byte[] ref = mObjectManager.getRawHashForId(o.id_);
+		assertNotNull(ref);
+		assertTrue(mStore.contains(ref));
+
+		Cursor c = mDbh.getReadableDatabase().query(MObject.TABLE, new String[] { MObject.COL_RAW },
+				MObject.COL_ID + "=" + o.id_, null, null, null, null);
+		try {
+			assertTrue(c.moveToFirst());
+			assertTrue(c.isNull(0));
+		} finally {
+			c.close();
+		}
+
+		assertTrue(Arrays.equals(o.raw_, mObjectManager.getRawForId(o.id_)));
+		assertTrue(Arrays.equals(o.raw_, mObjectManager.getObjectForId(o.id_).raw_));
+		assertNull(mObjectManager.getObjectWithoutRawForId(o.id_).raw_);
+
+		ParcelFileDescriptor pfd = mObjectManager.openRaw(o.id_);
+		assertNotNull(pfd);
+		FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+		byte[] streamed = new byte[o.raw_.length];
+		try {
+			int read = 0;
+			while (read < streamed.length) {
+				int r = in.read(streamed, read, streamed.length - read);
+				assertTrue(r > 0);
+				read += r;
+			}
+		} finally {
+			in.close();
+		}
+		assertTrue(Arrays.equals(o.raw_, streamed));
+		assertFalse(pfd.getFileDescriptor().valid());
+	}
+
+	public void testProviderCursorResolvesPayload() {
+		MObject large = newObject(1, randomBytes(BlobStore.INLINE_LIMIT * 4));
+		MObject small = newObject(1, randomBytes(100));
+		MObject none = newObject(1, null);
+		mObjectManager.insertObject(large);
+		mObjectManager.insertObject(small);
+		mObjectManager.insertObject(none);
+
+		String[] projection = ObjectRawCursorWrapper.withRawHash(new String[] { MObject.COL_ID, MObject.COL_RAW });
+		assertEquals(MObject.COL_RAW_HASH, projection[2]);
+		assertSame(projection, ObjectRawCursorWrapper.withRawHash(projection));
+		Cursor c = ObjectRawCursorWrapper.wrap(mDbh.getReadableDatabase().query(MObject.TABLE, projection,
+				null, null, null, null, MObject.COL_ID), mStore);
+		try {
+			assertTrue(c instanceof ObjectRawCursorWrapper);
+			assertTrue(c.moveToNext());
+			assertFalse(c.isNull(1));
+			assertTrue(Arrays.equals(large.raw_, c.getBlob(1)));
+			assertTrue(c.moveToNext());
+			assertTrue(Arrays.equals(small.raw_, c.getBlob(1)));
+			assertTrue(c.moveToNext());
+			assertTrue(c.isNull(1));
+			assertNull(c.getBlob(1));
+
+			//the same rows as they would be sent to another process
+			CursorWindow window = new CursorWindow(false);
+			((CrossProcessCursor)c).fillWindow(0, window);
+			assertEquals(3, window.getNumRows());
+			assertTrue(Arrays.equals(large.raw_, window.getBlob(0, 1)));
+			assertTrue(Arrays.equals(small.raw_, window.getBlob(1, 1)));
+			assertNull(window.getBlob(2, 1));
+			window.close();
+		} finally {
+			c.close();
+		}
+	}
+
+	public void testDuplicatesShareABlob() {
+		byte[] raw = randomBytes(BlobStore.INLINE_LIMIT * 2);
+		MObject a = newObject(1, raw);
+		MObject b = newObject(2, raw);
+		mObjectManager.insertObject(a);
+		mObjectManager.insertObject(b);
+		byte[] ref = mObjectManager.getRawHashForId(a.id_);
+		assertTrue(Arrays.equals(ref, mObjectManager.getRawHashForId(b.id_)));
+		File bucket = mStore.fileFor(ref).getParentFile();
+		assertEquals(1, bucket.listFiles().length);
+
+		//still shared, so it has to stay
+		expire(ref);
+		mObjectManager.delete(a.id_);
+		assertTrue(mStore.contains(ref));
+		assertTrue(Arrays.equals(raw, mObjectManager.getRawForId(b.id_)));
+
+		mObjectManager.delete(b.id_);
+		assertFalse(mStore.contains(ref));
+	}
+
+	public void testDeleteInTransactionDefersRelease() {
+		MObject o = newObject(1, randomBytes(BlobStore.INLINE_LIMIT * 2));
+		mObjectManager.insertObject(o);
+		byte[] ref = mObjectManager.getRawHashForId(o.id_);
+		expire(ref);
+
+		SQLiteDatabase db = mDbh.getWritableDatabase();
+		db.beginTransaction();
+		try {
+			mObjectManager.delete(o.id_);
+			assertTrue(mStore.contains(ref));
+		} finally {
+			db.endTransaction();
+		}
+		//rolled back, so the row and its blob are both still there
+		assertTrue(Arrays.equals(o.raw_, mObjectManager.getRawForId(o.id_)));
+		assertEquals(0, mObjectManager.collectBlobGarbage());
+		assertTrue(mStore.contains(ref));
+	}
+
+	public void testGarbageCollection() {
+		MObject o = newObject(1, randomBytes(BlobStore.INLINE_LIMIT * 2));
+		mObjectManager.insertObject(o);
+		byte[] ref = mObjectManager.getRawHashForId(o.id_);
+		mDbh.getWritableDatabase().delete(MObject.TABLE, null, null);
+
+		//too new to be collected
+		assertEquals(0, mObjectManager.collectBlobGarbage());
+		expire(ref);
+		assertEquals(1, mObjectManager.collectBlobGarbage());
+		assertFalse(mStore.contains(ref));
+	}
+
+	/**
+	 * Pages through a feed of 50k objects, a few of which carry large
+	 * payloads, once with the payloads stored in the rows and once with
+	 * them in the blob store.
+	 */
+	public void testFeedScrollPerformance() {
+		final int count = 50000;
+		final int pageSize = 50;
+
+		DatabaseFile inline = new DatabaseFile(getContext(), null);
+		try {
+			fillFeed(inline.getWritableDatabase(), new ObjectManager(inline), count, false);
+			double ms = scrollFeed(inline.getReadableDatabase(), count, pageSize);
+			Log.w(this.getName(), "Milliseconds per page with raw in the row " + ms);
+		} finally {
+			inline.close();
+		}
+
+		fillFeed(mDbh.getWritableDatabase(), mObjectManager, count, true);
+		double ms = scrollFeed(mDbh.getReadableDatabase(), count, pageSize);
+		Log.w(this.getName(), "Milliseconds per page with raw in the blob store " + ms);
+	}
+
+	void fillFeed(SQLiteDatabase db, ObjectManager om, int count, boolean blobStore) {
+		db.beginTransaction();
+		try {
+			ContentValues cv = new ContentValues();
+			for (int i = 0; i < count; ++i) {
+				//one picture in fifty
+				byte[] raw = randomBytes(i % 50 == 0 ? 2 * BlobStore.INLINE_LIMIT : 64);
+				MObject o = newObject(1, raw);
+				o.lastModifiedTimestamp_ = (long)i;
+				if (blobStore) {
+					om.insertObject(o);
+				} else {
+					o.raw_ = null;
+					om.insertObject(o);
+					cv.clear();
+					cv.put(MObject.COL_RAW, raw);
+					db.update(MObject.TABLE, cv, MObject.COL_ID + "=" + o.id_, null);
+				}
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	double scrollFeed(SQLiteDatabase db, int count, int pageSize) {
+		String sql = "SELECT " + MObject.COL_ID + "," + MObject.COL_TYPE + "," + MObject.COL_IDENTITY_ID + "," +
+				MObject.COL_JSON + "," + MObject.COL_DELETED + "," + MObject.COL_TIMESTAMP +
+				" FROM " + MObject.TABLE + " WHERE " + MObject.COL_FEED_ID + "=1 AND " +
+				MObject.COL_PARENT_ID + " IS NULL AND " + MObject.COL_RENDERABLE + "=1" +
+				" ORDER BY " + MObject.COL_LAST_MODIFIED_TIMESTAMP + " DESC LIMIT ? OFFSET ?";
+		int pages = Math.min(count / pageSize, 200);
+		Date start = new Date();
+		for (int page = 0; page < pages; ++page) {
+			Cursor c = db.rawQuery(sql, new String[] {
+					Integer.toString(pageSize), Integer.toString(page * pageSize) });
+			try {
+				while (c.moveToNext()) {
+					c.getLong(0);
+					c.getLong(4);
+				}
+			} finally {
+				c.close();
+			}
+		}
+		Date end = new Date();
+		return (double)(end.getTime() - start.getTime()) / pages;
+	}
+}
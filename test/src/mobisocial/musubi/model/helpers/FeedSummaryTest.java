@@ -0,0 +1,193 @@
+package mobisocial.musubi.model.helpers;
+
+import java.util.Date;
+
+import mobisocial.musubi.model.MFeed;
+import mobisocial.musubi.model.MFeedSummary;
+import mobisocial.musubi.model.MObject;
+import mobisocial.musubi.objects.StatusObj;
+import mobisocial.musubi.ui.fragments.FeedListFragment.FeedSummary;
+import mobisocial.musubi.ui.fragments.FeedListFragment.FeedSummaryLoader;
+import mobisocial.test.TestDatabase;
+
+import org.json.JSONObject;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+public class FeedSummaryTest extends AndroidTestCase {
+	DatabaseFile mDbh;
+	FeedManager mFeedManager;
+	ObjectManager mObjectManager;
+
+	public void setUp() {
+		mDbh = new DatabaseFile(getContext(), null);
+		mFeedManager = new FeedManager(mDbh);
+		mObjectManager = new ObjectManager(mDbh);
+	}
+	public void tearDown() {
+		mDbh.close();
+	}
+
+	long insertFeed(String name, long latestObjId) {
+		ContentValues cv = new ContentValues();
+		cv.put(MFeed.COL_TYPE, MFeed.FeedType.FIXED.ordinal());
+		cv.put(MFeed.COL_NAME, name);
+		cv.put(MFeed.COL_NUM_UNREAD, 1);
+		cv.put(MFeed.COL_ACCEPTED, 1);
+		cv.put(MFeed.COL_LATEST_RENDERABLE_OBJ_ID, latestObjId);
+		cv.put(MFeed.COL_LATEST_RENDERABLE_OBJ_TIME, new Date().getTime());
+		return mDbh.getWritableDatabase().insert(MFeed.TABLE, null, cv);
+	}
+	MObject insertStatus(long feedId, String text) throws Exception {
+		MObject o = TestDatabase.bareObject(feedId, StatusObj.TYPE,
+				new JSONObject().put(StatusObj.TEXT, text).toString(), null);
+		mObjectManager.insertObject(o);
+		return o;
+	}
+	MFeedSummary summaryFor(long feedId, MObject o, String preview) {
+		MFeedSummary summary = new MFeedSummary();
+		summary.feedId_ = feedId;
+		summary.objectId_ = o.id_;
+		summary.type_ = o.type_;
+		summary.senderId_ = o.identityId_;
+		summary.preview_ = preview;
+		return summary;
+	}
+	FeedSummary readSummary(long feedId) {
+		Cursor c = mDbh.getReadableDatabase().rawQuery(FeedSummaryLoader.getFeedSummariesQuery(
+				MFeed.TABLE + "." + MFeed.COL_ID + "=" + feedId), null);
+		try {
+			assertTrue(c.moveToFirst());
+			FeedSummary summary = new FeedSummary(getContext());
+			summary.populate(c);
+			return summary;
+		} finally {
+			c.close();
+		}
+	}
+
+	public void testSummaryReplacesPrevious() throws Exception {
+		long feedId = insertFeed("feed", 0);
+		MObject first = insertStatus(feedId, "first");
+		mFeedManager.updateFeedSummary(summaryFor(feedId, first, "first"));
+		MObject second = insertStatus(feedId, "second");
+		mFeedManager.updateFeedSummary(summaryFor(feedId, second, "second"));
+
+		FeedSummary summary = readSummary(feedId);
+		assertEquals(StatusObj.TYPE, summary.objType);
+		assertEquals("second", summary.preview);
+		assertEquals(1, summary.identityId);
+		assertEquals(1, summary.numUnread);
+		assertNull(summary.objJsonSrc);
+	}
+
+	public void testFeedWithoutSummaryIsListed() {
+		long feedId = insertFeed("empty", 0);
+		FeedSummary summary = readSummary(feedId);
+		assertNull(summary.objType);
+		assertNull(summary.preview);
+
+		MObject o = new MObject();
+		o.id_ = 1;
+		o.type_ = "app";
+		mFeedManager.updateFeedSummary(summaryFor(feedId, o, null));
+		mFeedManager.deleteFeedSummary(feedId);
+		assertNull(readSummary(feedId).objType);
+	}
+
+	public void testDeletingFeedDropsSummary() throws Exception {
+		long feedId = insertFeed("feed", 0);
+		MObject o = insertStatus(feedId, "hi");
+		mFeedManager.updateFeedSummary(summaryFor(feedId, o, "hi"));
+		mFeedManager.deleteFeedAndMembers(mFeedManager.lookupFeed(feedId));
+		Cursor c = mDbh.getReadableDatabase().query(MFeedSummary.TABLE, null, null, null, null, null, null);
+		try {
+			assertEquals(0, c.getCount());
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Renders the text for 500 feed summaries, once by joining against
+	 * the objects table and parsing each object's json, and once from the
+	 * summary table.
+	 */
+	public void testRenderPerformance() throws Exception {
+		final int feeds = 500;
+		final int warmup = 5;
+		final int iterations = 20;
+
+		SQLiteDatabase db = mDbh.getWritableDatabase();
+		db.beginTransaction();
+		try {
+			for (int i = 0; i < feeds; ++i) {
+				long feedId = insertFeed("feed " + i, 0);
+				String text = "status update number " + i + " with a little more text to show";
+				MObject o = insertStatus(feedId, text);
+				ContentValues cv = new ContentValues();
+				cv.put(MFeed.COL_LATEST_RENDERABLE_OBJ_ID, o.id_);
+				db.update(MFeed.TABLE, cv, MFeed.COL_ID + "=" + feedId, null);
+				mFeedManager.updateFeedSummary(summaryFor(feedId, o, text));
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+
+		String joined = "SELECT " + MFeed.TABLE + "." + MFeed.COL_ID + "," + MFeed.TABLE + "." + MFeed.COL_NAME + "," +
+				MFeed.COL_NUM_UNREAD + "," + MFeed.COL_LATEST_RENDERABLE_OBJ_TIME + "," +
+				MObject.TABLE + "." + MObject.COL_TYPE + "," + MObject.TABLE + "." + MObject.COL_JSON + "," +
+				MObject.TABLE + "." + MObject.COL_IDENTITY_ID + "," +
+				MFeed.TABLE + "." + MFeed.COL_THUMBNAIL + " IS NOT NULL, NULL" +
+				" FROM " + MFeed.TABLE + " LEFT JOIN " + MObject.TABLE + " ON " +
+				MFeed.TABLE + "." + MFeed.COL_LATEST_RENDERABLE_OBJ_ID + "=" + MObject.TABLE + "." + MObject.COL_ID +
+				" WHERE " + FeedManager.VISIBLE_FEED_SELECTION +
+				" ORDER BY " + MFeed.COL_LATEST_RENDERABLE_OBJ_TIME + " desc";
+		String summarized = FeedSummaryLoader.getFeedSummariesQuery(null);
+
+		for (int i = 0; i < warmup; ++i) {
+			renderAll(db, joined, feeds);
+			renderAll(db, summarized, feeds);
+		}
+		Date start = new Date();
+		for (int i = 0; i < iterations; ++i) {
+			renderAll(db, joined, feeds);
+		}
+		Date end = new Date();
+		Log.w(this.getName(), "Milliseconds per " + feeds + " summaries joined with objects " +
+				(double)(end.getTime() - start.getTime()) / iterations);
+
+		start = new Date();
+		for (int i = 0; i < iterations; ++i) {
+			renderAll(db, summarized, feeds);
+		}
+		end = new Date();
+		Log.w(this.getName(), "Milliseconds per " + feeds + " summaries from the summary table " +
+				(double)(end.getTime() - start.getTime()) / iterations);
+	}
+
+	void renderAll(SQLiteDatabase db, String sql, int expected) {
+		FeedSummary summary = new FeedSummary(getContext());
+		int rendered = 0;
+		Cursor c = db.rawQuery(sql, null);
+		try {
+			while (c.moveToNext()) {
+				summary.populate(c);
+				String text = summary.preview;
+				if (text == null) {
+					text = summary.getJson().optString(StatusObj.TEXT);
+				}
+				assertTrue(text.length() > 0);
+				rendered++;
+			}
+		} finally {
+			c.close();
+		}
+		assertEquals(expected, rendered);
+	}
+}
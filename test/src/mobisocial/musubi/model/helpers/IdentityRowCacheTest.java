@@ -0,0 +1,91 @@
+package mobisocial.musubi.model.helpers;
+
+
+import mobisocial.musubi.model.MIdentity;
+import mobisocial.test.TestBase;
+import mobisocial.test.TestDatabase;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+public class IdentityRowCacheTest extends TestBase {
+	SQLiteOpenHelper mDbh;
+	TestDatabase mDatabase;
+	IdentitiesManager mIdentitiesManager;
+
+	public void setUp() {
+		mDbh = new DatabaseFile(getContext(), null);
+		mDatabase = new TestDatabase(getContext(), mDbh);
+		mIdentitiesManager = mDatabase.getIdentityManager();
+	}
+	public void tearDown() {
+		mDbh.close();
+	}
+
+	IdentityRowCache cache() {
+		return IdentityRowCache.forDatabase(mDbh.getWritableDatabase());
+	}
+
+	public void testCallersGetCopies() {
+		MIdentity friend = mDatabase.insertIdentity(randomIBIdentity(), false, true);
+		MIdentity first = mIdentitiesManager.getIdentityForId(friend.id_);
+		first.name_ = "changed but not saved";
+		MIdentity second = mIdentitiesManager.getIdentityForId(friend.id_);
+		assertEquals(friend.name_, second.name_);
+		assertNotSame(first, second);
+	}
+
+	public void testWritesInvalidate() {
+		MIdentity friend = mDatabase.insertIdentity(randomIBIdentity(), false, true);
+		//another manager on the same database shares the cache
+		IdentitiesManager other = new IdentitiesManager(mDbh);
+		assertEquals(friend.name_, other.getIdentityForId(friend.id_).name_);
+
+		friend.name_ = "renamed";
+		mIdentitiesManager.updateIdentity(friend);
+		assertEquals("renamed", other.getIdentityForId(friend.id_).name_);
+
+		long sequence = other.getIdentityForId(friend.id_).nextSequenceNumber_;
+		mIdentitiesManager.incrementSequenceNumber(friend);
+		assertEquals(sequence + 1, other.getIdentityForId(friend.id_).nextSequenceNumber_);
+		other.close();
+	}
+
+	public void testStaleReadIsDropped() {
+		MIdentity friend = mDatabase.insertIdentity(randomIBIdentity(), false, true);
+		IdentityRowCache cache = cache();
+		long version = cache.getVersion();
+		MIdentity stale = mIdentitiesManager.getIdentityWithThumbnailsForId(friend.id_);
+		cache.invalidate(friend.id_, false);
+		cache.put(stale, version, false);
+		assertNull(cache.get(friend.id_));
+	}
+
+	public void testRollbackIsNotCached() {
+		MIdentity friend = mDatabase.insertIdentity(randomIBIdentity(), false, true);
+		String name = friend.name_;
+		SQLiteDatabase db = mDbh.getWritableDatabase();
+		db.beginTransaction();
+		try {
+			friend.name_ = "uncommitted";
+			mIdentitiesManager.updateIdentity(friend);
+			assertEquals("uncommitted", mIdentitiesManager.getIdentityForId(friend.id_).name_);
+		} finally {
+			db.endTransaction();
+		}
+		assertEquals(name, mIdentitiesManager.getIdentityForId(friend.id_).name_);
+	}
+
+	public void testBatchKeepsOrderAndSkipsMissing() {
+		MIdentity a = mDatabase.insertIdentity(randomIBIdentity(), false, true);
+		MIdentity b = mDatabase.insertIdentity(randomIBIdentity(), false, true);
+		MIdentity c = mDatabase.insertIdentity(randomIBIdentity(), false, true);
+		mIdentitiesManager.getIdentityForId(b.id_);
+
+		MIdentity[] found = mIdentitiesManager.getIdentitiesForIds(new long[] { c.id_, -1, a.id_, b.id_ });
+		assertEquals(3, found.length);
+		assertEquals(c.id_, found[0].id_);
+		assertEquals(a.id_, found[1].id_);
+		assertEquals(b.id_, found[2].id_);
+		assertEquals(0, mIdentitiesManager.getIdentitiesForIds(new long[0]).length);
+	}
+}
@@ -0,0 +1,167 @@
+package mobisocial.musubi.model.helpers;
+
+import java.util.Date;
+import java.util.Random;
+
+import mobisocial.musubi.model.MObject;
+import mobisocial.musubi.model.MObjectSearch;
+import mobisocial.musubi.obj.ObjHelpers;
+import mobisocial.musubi.objects.StatusObj;
+import mobisocial.musubi.objects.StoryObj;
+import mobisocial.test.TestDatabase;
+
+import org.json.JSONObject;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+public class ObjectSearchTest extends AndroidTestCase {
+	static final String[] WORDS = new String[] {
+		"monkey", "business", "lunch", "today", "meet", "photo", "beach", "party",
+		"later", "tomorrow", "game", "train", "coffee", "movie", "dinner", "home"
+	};
+
+	DatabaseFile mDbh;
+	ObjectManager mObjectManager;
+	Random mRandom = new Random();
+
+	public void setUp() {
+		mDbh = new DatabaseFile(getContext(), null);
+		mObjectManager = new ObjectManager(mDbh);
+	}
+	public void tearDown() {
+		mDbh.close();
+	}
+
+	MObject insertStatus(long feedId, String text) throws Exception {
+		MObject o = TestDatabase.bareObject(feedId, StatusObj.TYPE,
+				new JSONObject().put(StatusObj.TEXT, text).toString(), null);
+		mObjectManager.insertObject(o);
+		mObjectManager.indexSearchText(o.id_, ObjHelpers.getSearchText(o.type_, new JSONObject(o.json_)));
+		return o;
+	}
+	int count(String match, String selection, String[] selectionArgs) {
+		Cursor c = mObjectManager.searchObjects(match, selection, selectionArgs, null, 0);
+		try {
+			return c.getCount();
+		} finally {
+			c.close();
+		}
+	}
+
+	public void testSearchText() throws Exception {
+		JSONObject story = new JSONObject()
+			.put(StoryObj.TITLE, "Monkeys")
+			.put(StoryObj.URL, "http://example.com/monkeys");
+		String text = ObjHelpers.getSearchText(StoryObj.TYPE, story);
+		assertTrue(text.contains("Monkeys"));
+		assertTrue(text.contains("example.com"));
+		assertNull(ObjHelpers.getSearchText("junk", new JSONObject().put("text", "hi")));
+		assertNull(ObjHelpers.getSearchText(StatusObj.TYPE, new JSONObject()));
+	}
+
+	public void testRankedMatches() throws Exception {
+		MObject once = insertStatus(1, "monkey see");
+		MObject twice = insertStatus(1, "monkey see monkey do");
+		insertStatus(1, "nothing to see");
+
+		Cursor c = mObjectManager.searchObjects("monkey", null, null, null, 0);
+		try {
+			assertEquals(2, c.getCount());
+			assertTrue(c.moveToFirst());
+			assertEquals(twice.id_, c.getLong(0));
+			assertEquals(2, c.getInt(c.getColumnIndexOrThrow(MObjectSearch.COL_RANK)));
+			assertTrue(c.getString(c.getColumnIndexOrThrow(MObjectSearch.COL_SNIPPET)).contains("<b>monkey</b>"));
+			assertTrue(c.moveToNext());
+			assertEquals(once.id_, c.getLong(0));
+		} finally {
+			c.close();
+		}
+		assertEquals(3, count("see", null, null));
+		assertEquals(1, count("see", MObject.COL_ID + "=?", new String[] { Long.toString(once.id_) }));
+	}
+
+	public void testFeedRestriction() throws Exception {
+		insertStatus(1, "lunch today");
+		insertStatus(2, "lunch tomorrow");
+		assertEquals(2, count("lunch", null, null));
+		assertEquals(1, count("lunch", MObject.TABLE + "." + MObject.COL_FEED_ID + "=?", new String[] { "2" }));
+	}
+
+	public void testDeletesLeaveTheIndex() throws Exception {
+		MObject removed = insertStatus(1, "secret plans");
+		MObject marked = insertStatus(1, "secret party");
+		assertEquals(2, count("secret", null, null));
+
+		mObjectManager.delete(removed.id_);
+		assertEquals(1, count("secret", null, null));
+
+		//objects marked deleted stay in the table but not in results
+		marked.deleted_ = true;
+		mObjectManager.updateObject(marked);
+		assertEquals(0, count("secret", null, null));
+	}
+
+	public void testReindexReplaces() throws Exception {
+		MObject o = insertStatus(1, "old words");
+		mObjectManager.indexSearchText(o.id_, "new words");
+		assertEquals(0, count("old", null, null));
+		assertEquals(1, count("words", null, null));
+	}
+
+	/**
+	 * Searches a database of 100k indexed status updates.
+	 */
+	public void testSearchPerformance() throws Exception {
+		final int objects = 100000;
+		final int queries = 50;
+
+		SQLiteDatabase db = mDbh.getWritableDatabase();
+		db.beginTransaction();
+		try {
+			for (int i = 0; i < objects; ++i) {
+				StringBuilder text = new StringBuilder();
+				for (int w = 0; w < 8; ++w) {
+					text.append(WORDS[mRandom.nextInt(WORDS.length)]).append(' ');
+				}
+				text.append("item").append(i);
+				insertStatus(i % 100, text.toString());
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+
+		Date start = new Date();
+		for (int i = 0; i < queries; ++i) {
+			Cursor c = mObjectManager.searchObjects("item" + mRandom.nextInt(objects), null, null, null, 50);
+			try {
+				assertEquals(1, c.getCount());
+			} finally {
+				c.close();
+			}
+		}
+		Date end = new Date();
+		Log.w(this.getName(), "Milliseconds per rare term search " +
+				(double)(end.getTime() - start.getTime()) / queries);
+
+		start = new Date();
+		for (int i = 0; i < queries; ++i) {
+			String match = WORDS[mRandom.nextInt(WORDS.length)] + " " + WORDS[mRandom.nextInt(WORDS.length)];
+			Cursor c = mObjectManager.searchObjects(match, MObject.TABLE + "." + MObject.COL_FEED_ID + "=?",
+					new String[] { Integer.toString(i % 100) }, null, 50);
+			try {
+				while (c.moveToNext()) {
+					c.getString(c.getColumnIndexOrThrow(MObjectSearch.COL_SNIPPET));
+				}
+			} finally {
+				c.close();
+			}
+		}
+		end = new Date();
+		Log.w(this.getName(), "Milliseconds per common term search in a feed " +
+				(double)(end.getTime() - start.getTime()) / queries);
+	}
+}
@@ -0,0 +1,115 @@
+package mobisocial.musubi.model.helpers;
+
+import java.util.Random;
+
+import mobisocial.musubi.model.MEncodedMessage;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.test.AndroidTestCase;
+
+public class PendingWorkScannerTest extends AndroidTestCase {
+	SQLiteOpenHelper mDbh;
+	EncodedMessageManager mEmm;
+	Random mRandom = new Random();
+
+	public void setUp() {
+		mDbh = new DatabaseFile(getContext(), null);
+		mEmm = new EncodedMessageManager(mDbh);
+	}
+	public void tearDown() {
+		mDbh.close();
+	}
+
+	long insertInbound() {
+		MEncodedMessage m = new MEncodedMessage();
+		m.encoded_ = new byte[8];
+		mRandom.nextBytes(m.encoded_);
+		mEmm.insertEncoded(m);
+		return m.id_;
+	}
+	void markProcessed(long id) {
+		MEncodedMessage m = mEmm.lookupMetadataById(id);
+		m.processed_ = true;
+		mEmm.updateEncodedMetadata(m);
+	}
+
+	public void testFirstPassIsFullScan() {
+		long a = insertInbound();
+		long b = insertInbound();
+		PendingWorkScanner scanner = mEmm.newDecodeScanner();
+		long[] ids = scanner.nextBatch();
+		assertEquals(2, ids.length);
+		assertEquals(a, ids[0]);
+		assertEquals(b, ids[1]);
+	}
+
+	public void testOnlyNewRowsAfterFirstPass() {
+		insertInbound();
+		insertInbound();
+		PendingWorkScanner scanner = mEmm.newDecodeScanner();
+		assertEquals(2, scanner.nextBatch().length);
+
+		//the first two are still unprocessed but were not asked to be rechecked
+		long c = insertInbound();
+		long[] ids = scanner.nextBatch();
+		assertEquals(1, ids.length);
+		assertEquals(c, ids[0]);
+		assertEquals(0, scanner.nextBatch().length);
+	}
+
+	public void testRecheckKeepsOnlyPendingRows() {
+		long a = insertInbound();
+		long b = insertInbound();
+		PendingWorkScanner scanner = mEmm.newDecodeScanner();
+		long[] ids = scanner.nextBatch();
+		markProcessed(a);
+		scanner.recheck(ids);
+
+		long c = insertInbound();
+		ids = scanner.nextBatch();
+		assertEquals(2, ids.length);
+		assertEquals(b, ids[0]);
+		assertEquals(c, ids[1]);
+	}
+
+	public void testDeletingTopRowForcesSweep() {
+		long a = insertInbound();
+		long b = insertInbound();
+		PendingWorkScanner scanner = mEmm.newDecodeScanner();
+		assertEquals(2, scanner.nextBatch().length);
+
+		//sqlite may now reuse b's id, so the scanner can't trust its high water mark
+		mEmm.delete(b);
+		long[] ids = scanner.nextBatch();
+		assertEquals(1, ids.length);
+		assertEquals(a, ids[0]);
+	}
+
+	public void testReusedTopIdForcesSweep() {
+		long a = insertInbound();
+		long b = insertInbound();
+		PendingWorkScanner scanner = mEmm.newDecodeScanner();
+		assertEquals(2, scanner.nextBatch().length);
+
+		//the new row takes b's id, so the top of the table looks unchanged
+		mEmm.delete(b);
+		long c = insertInbound();
+		assertEquals(b, c);
+		long[] ids = scanner.nextBatch();
+		assertEquals(2, ids.length);
+		assertEquals(a, ids[0]);
+		assertEquals(c, ids[1]);
+
+		//deleting below the top leaves the incremental scan alone
+		mEmm.delete(a);
+		assertEquals(0, scanner.nextBatch().length);
+	}
+
+	public void testOutboundIgnored() {
+		MEncodedMessage m = new MEncodedMessage();
+		m.encoded_ = new byte[8];
+		m.outbound_ = true;
+		mEmm.insertEncoded(m);
+		PendingWorkScanner scanner = mEmm.newDecodeScanner();
+		assertEquals(0, scanner.nextBatch().length);
+	}
+}
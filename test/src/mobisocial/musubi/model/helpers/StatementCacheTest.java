@@ -0,0 +1,161 @@
+package mobisocial.musubi.model.helpers;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import mobisocial.musubi.model.MApp;
+import mobisocial.musubi.model.MDevice;
+import mobisocial.musubi.model.MEncodedMessage;
+import mobisocial.musubi.model.MFeed;
+import mobisocial.musubi.model.MIdentity;
+import mobisocial.musubi.model.MObject;
+import mobisocial.musubi.model.helpers.ManagerBase.BoundQuery;
+import mobisocial.musubi.model.helpers.ManagerBase.RowMapper;
+import mobisocial.socialkit.obj.MemObj;
+import mobisocial.test.TestBase;
+import mobisocial.test.TestDatabase;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+public class StatementCacheTest extends TestBase {
+	static final RowMapper<Long> ID_MAPPER = new RowMapper<Long>() {
+		@Override
+		public Long map(Cursor c) {
+			return c.getLong(0);
+		}
+	};
+
+	SQLiteOpenHelper mDbh;
+	TestDatabase mDatabase;
+	MIdentity mMe;
+	MIdentity mFriend;
+	MDevice mDevice;
+	MFeed mFeed;
+	MApp mApp;
+	MObject mObject;
+	MEncodedMessage mEncoded;
+
+	public void setUp() {
+		mDbh = new DatabaseFile(getContext(), null);
+		mDatabase = new TestDatabase(getContext(), mDbh);
+		mMe = mDatabase.insertIdentity(randomIBIdentity(), true, true);
+		mFriend = mDatabase.insertIdentity(randomIBIdentity(), false, true);
+		mDevice = mDatabase.getLocalDevice();
+		mFeed = mDatabase.createFixedFeed(mMe, mFriend);
+		mApp = mDatabase.getAppManager().ensureApp("statement.cache");
+		mObject = mDatabase.insert(mFeed, mDevice, new MemObj("status", null, null, null, "text"));
+
+		mEncoded = new MEncodedMessage();
+		mEncoded.encoded_ = new byte[64];
+		r.nextBytes(mEncoded.encoded_);
+		mEncoded.hash_ = new byte[32];
+		r.nextBytes(mEncoded.hash_);
+		mDatabase.getEncodedMessageManager().insertEncoded(mEncoded);
+	}
+	public void tearDown() {
+		mDbh.close();
+	}
+
+	public void testLookups() {
+		assertEquals(mFriend.principal_, mDatabase.getIdentityManager().getIdentityForId(mFriend.id_).principal_);
+		assertNull(mDatabase.getIdentityManager().getIdentityForId(-1));
+		assertEquals(mFeed.id_, mDatabase.getFeedManager().lookupFeed(mFeed.id_).id_);
+		assertEquals(2, mDatabase.getFeedManager().getFeedMemberCount(mFeed.id_));
+		assertEquals(2, mDatabase.getFeedManager().getFeedMembers(mFeed.id_).length);
+		assertEquals(mObject.type_, mDatabase.getObjectManager().getObjectForId(mObject.id_).type_);
+		assertEquals(mDevice.deviceName_, mDatabase.getDeviceManager().getDeviceForId(mDevice.id_).deviceName_);
+		assertEquals(mDevice.id_, mDatabase.getDeviceManager()
+				.getDeviceForName(mDevice.identityId_, mDevice.deviceName_).id_);
+		assertEquals(mApp.id_, mDatabase.getAppManager().lookupApp(mApp.id_).id_);
+		assertEquals(mApp.id_, mDatabase.getAppManager().lookupAppByAppId(mApp.appId_).id_);
+		assertNull(mDatabase.getAppManager().lookupAppByAppId("no.such.app"));
+
+		EncodedMessageManager emm = mDatabase.getEncodedMessageManager();
+		assertTrue(Arrays.equals(mEncoded.encoded_, emm.lookupEncodedDataById(mEncoded.id_)));
+		assertTrue(Arrays.equals(mEncoded.encoded_, emm.lookupById(mEncoded.id_).encoded_));
+		MEncodedMessage metadata = emm.lookupMetadataById(mEncoded.id_);
+		assertEquals(mEncoded.id_, metadata.id_);
+		assertTrue(Arrays.equals(mEncoded.hash_, metadata.hash_));
+		assertNull(metadata.encoded_);
+	}
+
+	public void testCacheSurvivesClose() {
+		IdentitiesManager im = new IdentitiesManager(mDbh);
+		assertNotNull(im.getIdentityForId(mFriend.id_));
+		im.close();
+		assertNotNull(im.getIdentityForId(mFriend.id_));
+		im.close();
+	}
+
+	public void testCacheIsPerConnection() {
+		FeedManager fm = new FeedManager(mDbh);
+		BoundQuery query = fm.getQuery(FeedManager.SQL_FEED_FOR_ID);
+		assertSame(query, fm.getQuery(FeedManager.SQL_FEED_FOR_ID));
+		mDbh.close();
+		assertNotSame(query, fm.getQuery(FeedManager.SQL_FEED_FOR_ID));
+		assertEquals(mFeed.id_, fm.lookupFeed(mFeed.id_).id_);
+		fm.close();
+	}
+
+	public void testTypedBinding() {
+		IdentitiesManager im = new IdentitiesManager(mDbh);
+		BoundQuery query = im.getQuery(ManagerBase.select(new String[] { MIdentity.COL_ID },
+				MIdentity.TABLE, MIdentity.COL_PRINCIPAL_HASH + "=? AND " + MIdentity.COL_OWNED + "=?"));
+		synchronized (query) {
+			query.bindObject(1, mFriend.principalHash_);
+			query.bindLong(2, 0);
+			assertEquals(Long.valueOf(mFriend.id_), query.queryOne(im.initializeDatabase(), ID_MAPPER));
+			//bindings are dropped once the query has run
+			for (Object o : query.mObjects) {
+				assertNull(o);
+			}
+			query.bindObject(1, null);
+			query.bindLong(2, 0);
+			assertNull(query.queryOne(im.initializeDatabase(), ID_MAPPER));
+		}
+		im.close();
+	}
+
+	/**
+	 * Runs the hottest single row lookups back to back.
+	 */
+	public void testLookupPerformance() {
+		final int rounds = 2000;
+		IdentitiesManager im = mDatabase.getIdentityManager();
+		FeedManager fm = mDatabase.getFeedManager();
+		ObjectManager om = mDatabase.getObjectManager();
+		DeviceManager dm = mDatabase.getDeviceManager();
+		AppManager am = mDatabase.getAppManager();
+		EncodedMessageManager emm = mDatabase.getEncodedMessageManager();
+		MIdentity owner = im.getIdentityForId(mDevice.identityId_);
+
+		int lookups = 0;
+		Date start = new Date();
+		for (int i = 0; i < rounds; ++i) {
+			im.getIdentityForId(mFriend.id_);
+			im.getIdentityWithThumbnailsForId(mFriend.id_);
+			im.getThumbnail(mFriend);
+			im.getMusubiThumbnail(mFriend);
+			fm.lookupFeed(mFeed.id_);
+			fm.getFeedThumbnailForId(mFeed.id_);
+			fm.getFeedMembers(mFeed.id_);
+			fm.getFeedMemberCount(mFeed.id_);
+			om.getObjectForId(mObject.id_);
+			om.getObjectWithoutRawForId(mObject.id_);
+			om.getRawForId(mObject.id_);
+			om.getObjectIdForHash(mObject.universalHash_);
+			dm.getDeviceForId(mDevice.id_);
+			dm.getDeviceForName(mDevice.identityId_, mDevice.deviceName_);
+			dm.getIdForDevice(owner, mDevice.deviceName_);
+			am.lookupApp(mApp.id_);
+			am.lookupAppByAppId(mApp.appId_);
+			am.getAppIdentifier(mApp.id_);
+			emm.lookupMetadataById(mEncoded.id_);
+			emm.lookupEncodedDataById(mEncoded.id_);
+			lookups += 20;
+		}
+		Date end = new Date();
+		Log.w(this.getName(), "Milliseconds per lookup " + (double)(end.getTime() - start.getTime()) / lookups);
+	}
+}
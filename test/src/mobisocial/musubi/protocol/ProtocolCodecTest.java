@@ -0,0 +1,149 @@
+package mobisocial.musubi.protocol;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import de.undercouch.bson4jackson.BsonFactory;
+import de.undercouch.bson4jackson.BsonParser.Feature;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks that the hand written protocol codec stays byte compatible with
+ * the jackson/bson4jackson encoding that older clients put on the wire.
+ */
+public class ProtocolCodecTest extends AndroidTestCase {
+    static final int ITERATIONS = 500;
+
+    final Random mRandom = new Random(1);
+    final ObjectMapper mWriter = new ObjectMapper(new BsonFactory());
+    final ObjectMapper mReader = new ObjectMapper(
+            new BsonFactory().enable(Feature.HONOR_DOCUMENT_LENGTH));
+
+    byte[] randomBytes(int max) {
+        if (mRandom.nextInt(8) == 0) {
+            return null;
+        }
+        byte[] b = new byte[mRandom.nextInt(max)];
+        mRandom.nextBytes(b);
+        return b;
+    }
+    Message randomMessage() {
+        Message m = new Message();
+        m.v = mRandom.nextInt();
+        m.l = mRandom.nextBoolean();
+        m.i = randomBytes(32);
+        m.a = randomBytes(64);
+        m.d = randomBytes(1024);
+        if (mRandom.nextInt(5) != 0) {
+            m.s = new Sender();
+            m.s.i = randomBytes(64);
+            m.s.d = randomBytes(16);
+        }
+        if (mRandom.nextInt(6) != 0) {
+            m.r = new Recipient[mRandom.nextInt(100)];
+            for (int j = 0; j < m.r.length; ++j) {
+                //jackson allows holes in the array, so must we
+                if (mRandom.nextInt(50) == 0)
+                    continue;
+                Recipient r = new Recipient();
+                r.i = randomBytes(64);
+                r.k = randomBytes(128);
+                r.s = randomBytes(128);
+                r.d = randomBytes(64);
+                m.r[j] = r;
+            }
+        }
+        return m;
+    }
+    Secret randomSecret() {
+        Secret s = new Secret();
+        s.h = randomBytes(32);
+        s.k = randomBytes(32);
+        s.q = mRandom.nextLong();
+        return s;
+    }
+
+    public void testMessageEncodingMatchesJackson() throws Exception {
+        for (int i = 0; i < ITERATIONS; ++i) {
+            Message m = randomMessage();
+            byte[] expected = mWriter.writeValueAsBytes(m);
+            byte[] actual = ProtocolCodec.encode(m);
+            assertTrue("message " + i, Arrays.equals(expected, actual));
+            assertEquals(actual.length, ProtocolCodec.sizeOf(m));
+        }
+    }
+    public void testSecretEncodingMatchesJackson() throws Exception {
+        for (int i = 0; i < ITERATIONS; ++i) {
+            Secret s = randomSecret();
+            byte[] expected = mWriter.writeValueAsBytes(s);
+            byte[] actual = ProtocolCodec.encode(s);
+            assertTrue("secret " + i, Arrays.equals(expected, actual));
+        }
+    }
+    public void testMessageDecodingMatchesJackson() throws Exception {
+        for (int i = 0; i < ITERATIONS; ++i) {
+            byte[] raw = mWriter.writeValueAsBytes(randomMessage());
+            Message ours = ProtocolCodec.decodeMessage(raw);
+            Message theirs = mReader.readValue(raw, Message.class);
+            assertTrue("message " + i, Arrays.equals(
+                    mWriter.writeValueAsBytes(theirs), mWriter.writeValueAsBytes(ours)));
+        }
+    }
+    public void testPaddedSecretDecoding() throws Exception {
+        for (int i = 0; i < ITERATIONS; ++i) {
+            Secret s = randomSecret();
+            byte[] raw = ProtocolCodec.encode(s);
+            //the recipient blocks are zero padded up to the cipher block size
+            byte[] padded = Arrays.copyOf(raw, raw.length + mRandom.nextInt(16) + 1);
+            Secret ours = ProtocolCodec.decodeSecret(padded);
+            Secret theirs = mReader.readValue(padded, Secret.class);
+            assertEquals(theirs.q, ours.q);
+            assertTrue(Arrays.equals(theirs.h, ours.h));
+            assertTrue(Arrays.equals(theirs.k, ours.k));
+        }
+    }
+    public void testRecipientIdentityScan() throws Exception {
+        for (int i = 0; i < ITERATIONS; ++i) {
+            Message m = randomMessage();
+            byte[] raw = ProtocolCodec.encode(m);
+            byte[][] ids = ProtocolCodec.readRecipientIdentities(raw);
+            if (m.r == null) {
+                assertNull(ids);
+                continue;
+            }
+            assertEquals(m.r.length, ids.length);
+            for (int j = 0; j < ids.length; ++j) {
+                byte[] expected = m.r[j] == null ? null : m.r[j].i;
+                assertTrue("message " + i + " recipient " + j, Arrays.equals(expected, ids[j]));
+            }
+        }
+    }
+    public void testTruncatedMessageRejected() throws Exception {
+        Message m = randomMessage();
+        m.s = new Sender();
+        m.r = new Recipient[] { new Recipient() };
+        byte[] raw = ProtocolCodec.encode(m);
+        for (int n = 0; n < raw.length; ++n) {
+            try {
+                ProtocolCodec.decodeMessage(Arrays.copyOf(raw, n));
+                fail("accepted message truncated to " + n + " of " + raw.length);
+            } catch (IOException e) {
+            }
+        }
+    }
+    public void testCorruptMessageOnlyThrowsIOException() throws Exception {
+        byte[] raw = ProtocolCodec.encode(randomMessage());
+        for (int i = 0; i < 10000; ++i) {
+            byte[] bad = Arrays.copyOf(raw, raw.length);
+            bad[mRandom.nextInt(bad.length)] = (byte)mRandom.nextInt();
+            try {
+                ProtocolCodec.decodeMessage(bad);
+            } catch (IOException e) {
+            }
+        }
+    }
+}
@@ -1,14 +1,18 @@
 package mobisocial.musubi.service;
 
 import mobisocial.musubi.model.MFeed;
+import mobisocial.musubi.model.MFeedSummary;
 import mobisocial.musubi.model.MIdentity;
 import mobisocial.musubi.model.MObject;
+import mobisocial.musubi.objects.DeleteObj;
 import mobisocial.musubi.objects.StatusObj;
+import mobisocial.musubi.util.Util;
 import mobisocial.socialkit.Obj;
 import mobisocial.socialkit.obj.MemObj;
 import mobisocial.test.MockMusubiAppContext;
 import mobisocial.test.TestBase;
 import mobisocial.test.TestDatabase;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteOpenHelper;
 
 public class ObjPipelineHandlerTest extends TestBase {
@@ -105,4 +109,89 @@ public class ObjPipelineHandlerTest extends TestBase {
         ids = pipeline.getUnprocessedObjs();
         assertEquals(ids.length, 0);
     }
+
+    /**
+     * Encodes and then runs the pipeline over the given number of new objects.
+     */
+    void process(ObjPipelineProcessor pipeline, MessageEncodeProcessor encoder, int expected) {
+        encoder.onChange(false);
+        for (int i = 0; i < 150; i++) {
+            if (pipeline.getUnprocessedObjs().length == expected) {
+                break;
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {}
+        }
+        assertEquals("Timing issue likely detected.", expected, pipeline.getUnprocessedObjs().length);
+        pipeline.onChange(false);
+        assertEquals(0, pipeline.getUnprocessedObjs().length);
+    }
+
+    MFeedSummary readSummary(long feedId) {
+        Cursor c = dbh.getReadableDatabase().query(MFeedSummary.TABLE, new String[] {
+                MFeedSummary.COL_OBJECT_ID, MFeedSummary.COL_TYPE, MFeedSummary.COL_SENDER_ID,
+                MFeedSummary.COL_PREVIEW }, MFeedSummary.COL_FEED_ID + "=" + feedId, null, null, null, null);
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            MFeedSummary summary = new MFeedSummary();
+            summary.feedId_ = feedId;
+            summary.objectId_ = c.getLong(0);
+            summary.type_ = c.getString(1);
+            summary.senderId_ = c.getLong(2);
+            summary.preview_ = c.getString(3);
+            return summary;
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testRenderableUpdatesFeedSummary() throws Exception {
+        ObjPipelineProcessor pipeline = ObjPipelineProcessor.newInstance(mockContext);
+        MessageEncodeProcessor encoder = MessageEncodeProcessor.newInstance(mockContext, dbh, null, mockContext.getSettings().mAlternateIdentityProvider);
+        MFeed feed = database.createFixedFeed(me, claimedFriend);
+        assertNull(readSummary(feed.id_));
+
+        MObject first = database.insertObject(feed, me, StatusObj.from("first"));
+        process(pipeline, encoder, 1);
+        MFeedSummary summary = readSummary(feed.id_);
+        assertEquals(first.id_, summary.objectId_);
+        assertEquals("first", summary.preview_);
+
+        MObject second = database.insertObject(feed, claimedFriend, StatusObj.from("second"));
+        database.insertObject(feed, me, new MemObj("junk", null, null, 2414455, "yea yeaaa"));
+        process(pipeline, encoder, 2);
+        //the junk obj is not renderable, so it leaves the summary alone
+        summary = readSummary(feed.id_);
+        assertEquals(second.id_, summary.objectId_);
+        assertEquals(StatusObj.TYPE, summary.type_);
+        assertEquals(claimedFriend.id_, summary.senderId_);
+        assertEquals("second", summary.preview_);
+    }
+
+    public void testDeletingLatestRollsFeedSummaryBack() throws Exception {
+        ObjPipelineProcessor pipeline = ObjPipelineProcessor.newInstance(mockContext);
+        MessageEncodeProcessor encoder = MessageEncodeProcessor.newInstance(mockContext, dbh, null, mockContext.getSettings().mAlternateIdentityProvider);
+        MFeed feed = database.createFixedFeed(me, claimedFriend);
+        MObject first = database.insertObject(feed, me, StatusObj.from("first"));
+        MObject second = database.insertObject(feed, me, StatusObj.from("second"));
+        process(pipeline, encoder, 2);
+        assertEquals(second.id_, readSummary(feed.id_).objectId_);
+
+        database.insertObject(feed, me, DeleteObj.from(
+                new String[] { Util.convertToHex(second.universalHash_) }, true));
+        process(pipeline, encoder, 1);
+        assertNull(database.getObjectManager().getObjectForId(second.id_));
+        MFeedSummary summary = readSummary(feed.id_);
+        assertEquals(first.id_, summary.objectId_);
+        assertEquals("first", summary.preview_);
+
+        //deleting the only one left leaves nothing to summarize
+        database.insertObject(feed, me, DeleteObj.from(
+                new String[] { Util.convertToHex(first.universalHash_) }, true));
+        process(pipeline, encoder, 1);
+        assertNull(readSummary(feed.id_));
+    }
 }
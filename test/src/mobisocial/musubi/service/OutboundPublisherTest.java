@@ -0,0 +1,230 @@
+package mobisocial.musubi.service;
+
+import gnu.trove.list.linked.TLongLinkedList;
+import gnu.trove.procedure.TLongProcedure;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Random;
+
+import mobisocial.musubi.model.MEncodedMessage;
+import mobisocial.musubi.model.helpers.DatabaseFile;
+import mobisocial.musubi.model.helpers.EncodedMessageManager;
+import mobisocial.musubi.service.OutboundPublisher.Route;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+public class OutboundPublisherTest extends AndroidTestCase {
+	/**
+	 * Stands in for the broker: remembers what was declared and hands out
+	 * delivery tags like a channel in confirm mode.
+	 */
+	static class FakeBroker implements OutboundPublisher.Broker {
+		final HashSet<String> mExchanges = new HashSet<String>();
+		final HashSet<String> mQueues = new HashSet<String>();
+		final ArrayList<String> mOperations = new ArrayList<String>();
+		long mNextTag = 1;
+		int mPublished;
+
+		public void exchangeDeclare(String exchange, boolean durable) {
+			mOperations.add("exchangeDeclare " + exchange);
+			mExchanges.add(exchange);
+		}
+		public boolean exchangeExists(String exchange) {
+			mOperations.add("exchangeExists " + exchange);
+			return mExchanges.contains(exchange);
+		}
+		public void queueDeclare(String queue) {
+			mOperations.add("queueDeclare " + queue);
+			mQueues.add(queue);
+		}
+		public void queueBind(String queue, String exchange) {
+			mOperations.add("queueBind " + queue + " " + exchange);
+		}
+		public void exchangeBind(String destination, String source) {
+			mOperations.add("exchangeBind " + destination + " " + source);
+		}
+		public long publish(String exchange, byte[] body) throws IOException {
+			if(!mExchanges.contains(exchange))
+				throw new IOException("no exchange " + exchange);
+			mPublished++;
+			return mNextTag++;
+		}
+		int count(String prefix) {
+			int n = 0;
+			for(String op : mOperations) {
+				if(op.startsWith(prefix))
+					++n;
+			}
+			return n;
+		}
+	}
+
+	final byte[] mBody = new byte[16];
+
+	public void testDeclaresOncePerConnection() throws Exception {
+		FakeBroker broker = new FakeBroker();
+		OutboundPublisher publisher = new OutboundPublisher(broker, 100);
+		Route ab = new Route("group-ab", new String[] { "id-a", "id-b" });
+		Route ac = new Route("group-ac", new String[] { "id-a", "id-c" });
+		for(int i = 0; i < 10; ++i) {
+			publisher.publish(i, ab, mBody);
+		}
+		publisher.publish(10, ac, mBody);
+
+		assertEquals(11, broker.mPublished);
+		//one per group, plus one for each identity not yet on the broker
+		assertEquals(5, broker.count("exchangeDeclare "));
+		assertEquals(3, broker.count("exchangeExists "));
+		assertEquals(3, broker.count("queueDeclare "));
+		assertTrue(broker.mQueues.contains("initial-id-c"));
+		//but every group is bound to each of its identities
+		assertEquals(4, broker.count("exchangeBind "));
+	}
+
+	public void testKnownIdentityIsNotRedeclared() throws Exception {
+		FakeBroker broker = new FakeBroker();
+		broker.mExchanges.add("id-a");
+		OutboundPublisher publisher = new OutboundPublisher(broker, 100);
+		publisher.publish(1, new Route("group-a", new String[] { "id-a" }), mBody);
+		assertEquals(0, broker.count("queueDeclare "));
+		assertEquals(1, broker.count("exchangeExists "));
+	}
+
+	public void testWindowAndMultipleAcks() throws Exception {
+		FakeBroker broker = new FakeBroker();
+		OutboundPublisher publisher = new OutboundPublisher(broker, 8);
+		Route route = new Route("group", new String[] { "id" });
+		long id = 100;
+		while(publisher.hasCapacity()) {
+			publisher.publish(id++, route, mBody);
+		}
+		assertEquals(8, publisher.inFlight());
+		assertTrue(publisher.isInFlight(100));
+
+		//the broker acked tags 1 through 5 at once
+		long[] acked = publisher.confirm(5, true);
+		assertEquals(5, acked.length);
+		for(int i = 0; i < acked.length; ++i) {
+			assertEquals(100 + i, acked[i]);
+			assertFalse(publisher.isInFlight(acked[i]));
+		}
+		assertTrue(publisher.hasCapacity());
+		assertEquals(3, publisher.inFlight());
+
+		//single nack, then a repeat of an old ack
+		long[] nacked = publisher.confirm(7, false);
+		assertEquals(1, nacked.length);
+		assertEquals(106, nacked[0]);
+		assertEquals(0, publisher.confirm(3, false).length);
+
+		acked = publisher.confirm(8, true);
+		assertEquals(2, acked.length);
+		assertEquals(105, acked[0]);
+		assertEquals(107, acked[1]);
+		assertEquals(0, publisher.inFlight());
+	}
+
+	public void testMarkOutboundSent() throws Exception {
+		SQLiteOpenHelper dbh = new DatabaseFile(getContext(), null);
+		try {
+			EncodedMessageManager emm = new EncodedMessageManager(dbh);
+			long[] ids = insertOutbound(emm, 10);
+			long[] sent = new long[] { ids[2], ids[3], ids[7] };
+			emm.markOutboundSent(sent, 12345);
+			for(long id : ids) {
+				MEncodedMessage m = emm.lookupMetadataById(id);
+				boolean expected = id == ids[2] || id == ids[3] || id == ids[7];
+				assertEquals(expected, m.processed_);
+				if(expected)
+					assertEquals(12345, m.processedTime_);
+			}
+			assertEquals(7, emm.getUnsentOutboundIdsNotPending().size());
+		} finally {
+			dbh.close();
+		}
+	}
+
+	long[] insertOutbound(EncodedMessageManager emm, int count) {
+		Random r = new Random();
+		long[] ids = new long[count];
+		for(int i = 0; i < count; ++i) {
+			MEncodedMessage m = new MEncodedMessage();
+			m.encoded_ = new byte[512];
+			r.nextBytes(m.encoded_);
+			m.outbound_ = true;
+			emm.insertEncoded(m);
+			ids[i] = m.id_;
+		}
+		return ids;
+	}
+
+	/**
+	 * Drains a backlog of queued outbound messages through the publisher,
+	 * with the broker acknowledging a window at a time, and compares that
+	 * to confirming and updating each row individually.
+	 */
+	public void testDrainPerformance() throws Exception {
+		final int count = 10000;
+		final int window = 128;
+		SQLiteOpenHelper dbh = new DatabaseFile(getContext(), null);
+		try {
+			final EncodedMessageManager emm = new EncodedMessageManager(dbh);
+			final Route route = new Route("group", new String[] { "id-a", "id-b" });
+
+			insertOutbound(emm, count);
+			Date start = new Date();
+			final FakeBroker broker = new FakeBroker();
+			final OutboundPublisher publisher = new OutboundPublisher(broker, window);
+			for(;;) {
+				TLongLinkedList unsent = emm.getUnsentOutboundIdsNotPending();
+				if(unsent.isEmpty())
+					break;
+				unsent.forEach(new TLongProcedure() {
+					public boolean execute(long id) {
+						if(!publisher.hasCapacity()) {
+							emm.markOutboundSent(publisher.confirm(broker.mNextTag - 1, true), new Date().getTime());
+						}
+						try {
+							publisher.publish(id, route, emm.lookupEncodedDataById(id));
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+						return true;
+					}
+				});
+				emm.markOutboundSent(publisher.confirm(broker.mNextTag - 1, true), new Date().getTime());
+			}
+			Date end = new Date();
+			assertEquals(count, broker.mPublished);
+			Log.w(this.getName(), "Milliseconds per message with window of " + window + " " + (double)(end.getTime() - start.getTime()) / count);
+
+			insertOutbound(emm, count);
+			start = new Date();
+			TLongLinkedList unsent = emm.getUnsentOutboundIdsNotPending();
+			unsent.forEach(new TLongProcedure() {
+				public boolean execute(long id) {
+					try {
+						publisher.publish(id, route, emm.lookupEncodedDataById(id));
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+					long[] acked = publisher.confirm(broker.mNextTag - 1, false);
+					MEncodedMessage encoded = emm.lookupMetadataById(acked[0]);
+					encoded.processed_ = true;
+					encoded.processedTime_ = new Date().getTime();
+					emm.updateEncodedMetadata(encoded);
+					return true;
+				}
+			});
+			end = new Date();
+			assertEquals(0, emm.getUnsentOutboundIdsNotPending().size());
+			Log.w(this.getName(), "Milliseconds per message confirmed one at a time " + (double)(end.getTime() - start.getTime()) / count);
+		} finally {
+			dbh.close();
+		}
+	}
+}
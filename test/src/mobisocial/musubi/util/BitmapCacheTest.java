@@ -0,0 +1,121 @@
+package mobisocial.musubi.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Date;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.AndroidTestCase;
+
+public class BitmapCacheTest extends AndroidTestCase {
+	File mDir;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mDir = new File(getContext().getCacheDir(), "bitmap-cache-test-" + System.nanoTime());
+	}
+	@Override
+	protected void tearDown() throws Exception {
+		File[] files = mDir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		mDir.delete();
+		super.tearDown();
+	}
+
+	static Bitmap solid(int width, int height, int color) {
+		Bitmap b = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		b.eraseColor(color);
+		return b;
+	}
+	static byte[] encode(Bitmap b) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		b.compress(Bitmap.CompressFormat.JPEG, 90, out);
+		return out.toByteArray();
+	}
+
+	public void testMemoryIsBoundedByBytes() {
+		//room for two 32x32 argb bitmaps
+		BitmapCache cache = new BitmapCache(mDir, 2 * 32 * 32 * 4, 1024 * 1024);
+		cache.put("a", solid(32, 32, Color.RED));
+		cache.put("b", solid(32, 32, Color.GREEN));
+		cache.put("c", solid(32, 32, Color.BLUE));
+		assertNull(cache.get("a"));
+		assertNotNull(cache.get("b"));
+		assertNotNull(cache.get("c"));
+		assertEquals(1, cache.getEvictions());
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertTrue(cache.size() <= cache.maxSize());
+	}
+
+	public void testLoadScalesAndKeepsOnDisk() {
+		BitmapCache cache = new BitmapCache(mDir, 1024 * 1024, 1024 * 1024);
+		byte[] image = encode(solid(640, 480, Color.RED));
+		Bitmap b = cache.load("identity:1", image, 80);
+		assertNotNull(b);
+		assertTrue(b.getWidth() <= 80 && b.getHeight() <= 80);
+		assertSame(b, cache.get("identity:1"));
+
+		//a fresh memory tier still finds the scaled copy
+		BitmapCache reopened = new BitmapCache(mDir, 1024 * 1024, 1024 * 1024);
+		assertNull(reopened.get("identity:1"));
+		Bitmap again = reopened.load("identity:1", image, 80);
+		assertEquals(b.getWidth(), again.getWidth());
+		assertEquals(1, reopened.getDiskHits());
+
+		assertNull(cache.load("identity:2", null, 80));
+		assertNull(cache.load("identity:3", new byte[] { 1, 2, 3 }, 80));
+	}
+
+	public void testRemoveAllByPrefix() {
+		BitmapCache cache = new BitmapCache(mDir, 1024 * 1024, 1024 * 1024);
+		cache.put("identity:1", solid(8, 8, Color.RED));
+		cache.put("identity:2", solid(8, 8, Color.RED));
+		cache.put("feed:1", solid(8, 8, Color.RED));
+		cache.removeAll("identity:");
+		assertNull(cache.get("identity:1"));
+		assertNull(cache.get("identity:2"));
+		assertNotNull(cache.get("feed:1"));
+	}
+
+	public void testDiskIsTrimmed() {
+		Bitmap b = solid(64, 64, Color.RED);
+		new BitmapCache(mDir, 1024 * 1024, 1024 * 1024).putOnDisk("first", b);
+		File first = new File(mDir, "first");
+		first.setLastModified(new Date().getTime() - 60 * 1000);
+
+		//room for one and a half
+		BitmapCache cache = new BitmapCache(mDir, 1024 * 1024, first.length() * 3 / 2);
+		cache.putOnDisk("second", b);
+		assertNull(cache.getFromDisk("first"));
+		assertNotNull(cache.getFromDisk("second"));
+	}
+
+	public void testMemoryTierDoesNotWaitOnDisk() throws Exception {
+		final BitmapCache cache = new BitmapCache(mDir, 1024 * 1024, 1024 * 1024);
+		cache.put("a", solid(8, 8, Color.RED));
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				cache.get("a");
+				cache.get("b");
+				cache.getHits();
+				cache.toString();
+			}
+		};
+		//stands in for a trim in progress on the loader thread
+		synchronized (cache.mDiskLock) {
+			reader.start();
+			reader.join(5000);
+			assertFalse(reader.isAlive());
+		}
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+}
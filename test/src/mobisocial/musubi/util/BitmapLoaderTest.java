@@ -0,0 +1,192 @@
+package mobisocial.musubi.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import android.widget.ImageView;
+
+public class BitmapLoaderTest extends AndroidTestCase {
+	File mDir;
+	BitmapCache mCache;
+	BitmapLoader mLoader;
+	CountDownLatch mGate;
+	CountDownLatch mBlocking;
+	List<String> mDecoded;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mDir = new File(getContext().getCacheDir(), "bitmap-loader-test-" + System.nanoTime());
+		mCache = new BitmapCache(mDir, 4 * 1024 * 1024, 1024 * 1024);
+		mLoader = new BitmapLoader(mCache, 1);
+		mGate = new CountDownLatch(1);
+		mBlocking = new CountDownLatch(1);
+		mDecoded = new ArrayList<String>();
+	}
+	@Override
+	protected void tearDown() throws Exception {
+		mGate.countDown();
+		mLoader.mExecutor.shutdownNow();
+		super.tearDown();
+	}
+
+	BitmapLoader.Decoder decoder(final String name, final boolean wait) {
+		return new BitmapLoader.Decoder() {
+			@Override
+			public Bitmap decode() {
+				if (wait) {
+					mBlocking.countDown();
+					try {
+						mGate.await();
+					} catch (InterruptedException e) {
+						return null;
+					}
+				}
+				synchronized (mDecoded) {
+					mDecoded.add(name);
+				}
+				Bitmap b = Bitmap.createBitmap(4, 4, Bitmap.Config.ARGB_8888);
+				b.eraseColor(Color.RED);
+				return b;
+			}
+		};
+	}
+
+	static class Delivery implements BitmapLoader.Callback {
+		final CountDownLatch mDone;
+		final List<Bitmap> mBitmaps = new ArrayList<Bitmap>();
+		Delivery(int count) {
+			mDone = new CountDownLatch(count);
+		}
+		@Override
+		public synchronized void onBitmap(ImageView view, Bitmap bitmap) {
+			mBitmaps.add(bitmap);
+			mDone.countDown();
+		}
+		void await() throws InterruptedException {
+			assertTrue(mDone.await(5, TimeUnit.SECONDS));
+		}
+	}
+
+	/** occupies the single worker until the gate opens */
+	void block() throws InterruptedException {
+		mBlocking = new CountDownLatch(1);
+		mLoader.load(new ImageView(getContext()), "block:" + System.nanoTime(), decoder("block", true),
+				BitmapLoader.SET_IMAGE);
+		assertTrue(mBlocking.await(5, TimeUnit.SECONDS));
+	}
+
+	public void testRowsShowingTheSameImageShareADecode() throws Exception {
+		Delivery delivery = new Delivery(2);
+		ImageView a = new ImageView(getContext());
+		ImageView b = new ImageView(getContext());
+		assertFalse(mLoader.load(a, "picture", decoder("picture", true), delivery));
+		assertFalse(mLoader.load(b, "picture", decoder("picture", true), delivery));
+		mGate.countDown();
+		delivery.await();
+		assertEquals(1, mDecoded.size());
+		assertEquals(1, mLoader.getShared());
+		assertSame(delivery.mBitmaps.get(0), delivery.mBitmaps.get(1));
+
+		//now it comes straight from memory
+		Delivery cached = new Delivery(1);
+		assertTrue(mLoader.load(a, "picture", decoder("picture", false), cached));
+		assertSame(delivery.mBitmaps.get(0), cached.mBitmaps.get(0));
+		assertEquals(1, mDecoded.size());
+	}
+
+	public void testRecycledViewCancelsItsDecode() throws Exception {
+		block();
+		ImageView row = new ImageView(getContext());
+		Delivery first = new Delivery(1);
+		Delivery second = new Delivery(1);
+		mLoader.load(row, "scrolled-past", decoder("scrolled-past", false), first);
+		mLoader.load(row, "on-screen", decoder("on-screen", false), second);
+		mGate.countDown();
+		second.await();
+		assertFalse(mDecoded.contains("scrolled-past"));
+		assertTrue(first.mBitmaps.isEmpty());
+		assertEquals(1, mLoader.getCancels());
+
+		ImageView gone = new ImageView(getContext());
+		mGate = new CountDownLatch(1);
+		block();
+		mLoader.load(gone, "recycled", decoder("recycled", false), first);
+		mLoader.cancel(gone);
+		mGate.countDown();
+		Delivery after = new Delivery(1);
+		mLoader.load(gone, "after", decoder("after", false), after);
+		after.await();
+		assertFalse(mDecoded.contains("recycled"));
+	}
+
+	public void testNewestRowsDecodeFirst() throws Exception {
+		block();
+		Delivery delivery = new Delivery(3);
+		for (String key : new String[] { "top", "middle", "bottom" }) {
+			mLoader.load(new ImageView(getContext()), key, decoder(key, false), delivery);
+		}
+		mGate.countDown();
+		delivery.await();
+		assertEquals("block", mDecoded.get(0));
+		assertEquals("bottom", mDecoded.get(1));
+		assertEquals("middle", mDecoded.get(2));
+		assertEquals("top", mDecoded.get(3));
+	}
+
+	/**
+	 * Binds 200 photo rows through a handful of recycled views, as a fling
+	 * does, and compares the time spent on the binding thread against
+	 * decoding every row in place.
+	 */
+	public void testFlingPerformance() throws Exception {
+		final int rows = 200;
+		final int views = 8;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Bitmap photo = Bitmap.createBitmap(640, 480, Bitmap.Config.ARGB_8888);
+		photo.eraseColor(Color.BLUE);
+		photo.compress(Bitmap.CompressFormat.JPEG, 90, out);
+		final byte[] jpeg = out.toByteArray();
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inSampleSize = 2;
+
+		Date start = new Date();
+		for (int i = 0; i < rows; ++i) {
+			BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+		}
+		Date end = new Date();
+		Log.w(this.getName(), "Milliseconds per row decoding in place " +
+				(double)(end.getTime() - start.getTime()) / rows);
+
+		ImageView[] recycled = new ImageView[views];
+		for (int i = 0; i < views; ++i) {
+			recycled[i] = new ImageView(getContext());
+		}
+		Delivery last = new Delivery(views);
+		start = new Date();
+		for (int i = 0; i < rows; ++i) {
+			mLoader.load(recycled[i % views], "row:" + i, new BitmapLoader.Decoder() {
+				@Override
+				public Bitmap decode() {
+					return BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+				}
+			}, i >= rows - views ? last : BitmapLoader.SET_IMAGE);
+		}
+		end = new Date();
+		Log.w(this.getName(), "Milliseconds per row binding through the loader " +
+				(double)(end.getTime() - start.getTime()) / rows);
+		last.await();
+		Log.w(this.getName(), mLoader.toString());
+		assertTrue(mLoader.getDecodes() < rows);
+	}
+}
@@ -0,0 +1,72 @@
+package mobisocial.musubi.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mobisocial.musubi.provider.MusubiContentProvider;
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+public class NotificationCoalescerTest extends AndroidTestCase {
+	static class CountingObserver extends ContentObserver {
+		final AtomicInteger mChanges = new AtomicInteger();
+		public CountingObserver() {
+			super(null);
+		}
+		@Override
+		public void onChange(boolean selfChange) {
+			mChanges.incrementAndGet();
+		}
+	}
+
+	ContentResolver mResolver;
+	CountingObserver mObserver;
+	Uri mUri;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mResolver = getContext().getContentResolver();
+		mObserver = new CountingObserver();
+		mUri = MusubiContentProvider.createUri("coalescer-test-" + System.nanoTime());
+		mResolver.registerContentObserver(mUri, false, mObserver);
+	}
+	@Override
+	protected void tearDown() throws Exception {
+		mResolver.unregisterContentObserver(mObserver);
+		super.tearDown();
+	}
+
+	public void testBurstIsDeliveredOnce() throws Exception {
+		NotificationCoalescer notifier = NotificationCoalescer.forResolver(mResolver);
+		long requested = notifier.getRequestedCount();
+		long suppressed = notifier.getSuppressedCount();
+		for (int i = 0; i < 500; ++i) {
+			notifier.markDirty(mUri);
+		}
+		Thread.sleep(NotificationCoalescer.DEFAULT_DEBOUNCE_MS * 4);
+		assertEquals(1, mObserver.mChanges.get());
+		assertEquals(500, notifier.getRequestedCount() - requested);
+		assertEquals(499, notifier.getSuppressedCount() - suppressed);
+	}
+
+	public void testSeparateWindowsAreDeliveredSeparately() throws Exception {
+		NotificationCoalescer notifier = NotificationCoalescer.forResolver(mResolver);
+		notifier.markDirty(mUri);
+		Thread.sleep(NotificationCoalescer.DEFAULT_DEBOUNCE_MS * 4);
+		notifier.markDirty(mUri);
+		Thread.sleep(NotificationCoalescer.DEFAULT_DEBOUNCE_MS * 4);
+		assertEquals(2, mObserver.mChanges.get());
+	}
+
+	public void testFlushDeliversEarly() throws Exception {
+		NotificationCoalescer notifier = NotificationCoalescer.forResolver(mResolver);
+		notifier.setDebounce(mUri, 60 * 1000);
+		notifier.markDirty(mUri);
+		notifier.markDirty(mUri);
+		notifier.flush();
+		Thread.sleep(500);
+		assertEquals(1, mObserver.mChanges.get());
+	}
+}
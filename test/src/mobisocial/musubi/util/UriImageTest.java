@@ -0,0 +1,133 @@
+package mobisocial.musubi.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+public class UriImageTest extends AndroidTestCase {
+	File mFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mFile = new File(getContext().getCacheDir(), "uri-image-test-" + System.nanoTime() + ".jpg");
+	}
+	@Override
+	protected void tearDown() throws Exception {
+		mFile.delete();
+		super.tearDown();
+	}
+
+	/**
+	 * Writes a gradient with some grain, which compresses roughly like a
+	 * photo does.
+	 */
+	UriImage photo(int width, int height) throws Exception {
+		Random random = new Random(width * height);
+		int[] row = new int[width];
+		Bitmap b = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		for (int y = 0; y < height; ++y) {
+			for (int x = 0; x < width; ++x) {
+				int grain = random.nextInt(32);
+				row[x] = 0xff000000 | ((x * 255 / width) << 16) | ((y * 255 / height) << 8) | (96 + grain);
+			}
+			b.setPixels(row, 0, width, 0, y, width, 1);
+		}
+		FileOutputStream out = new FileOutputStream(mFile);
+		try {
+			b.compress(Bitmap.CompressFormat.JPEG, 95, out);
+		} finally {
+			out.close();
+		}
+		b.recycle();
+		return new UriImage(getContext(), Uri.fromFile(mFile));
+	}
+
+	/**
+	 * Writes noise with a flat band across the middle, where the quality
+	 * probe looks, so the predicted size comes out far too small.
+	 */
+	UriImage misleading(int width, int height) throws Exception {
+		Random random = new Random(width * height);
+		int[] row = new int[width];
+		Bitmap b = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		for (int y = 0; y < height; ++y) {
+			boolean flat = y > height / 3 && y < height * 2 / 3;
+			for (int x = 0; x < width; ++x) {
+				row[x] = flat ? 0xff808080 : 0xff000000 | random.nextInt(0x1000000);
+			}
+			b.setPixels(row, 0, width, 0, y, width, 1);
+		}
+		FileOutputStream out = new FileOutputStream(mFile);
+		try {
+			b.compress(Bitmap.CompressFormat.JPEG, 95, out);
+		} finally {
+			out.close();
+		}
+		b.recycle();
+		return new UriImage(getContext(), Uri.fromFile(mFile));
+	}
+
+	static BitmapFactory.Options bounds(byte[] data) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data, 0, data.length, options);
+		return options;
+	}
+
+	public void testSampleSizeIsAPowerOfTwo() {
+		assertEquals(2, UriImage.sampleSize(4000, 3000, 1280, 960));
+		assertEquals(1, UriImage.sampleSize(1280, 720, 1280, 720));
+		assertEquals(4, UriImage.sampleSize(4000, 3000, 960, 720));
+		assertEquals(1f, UriImage.fitScale(640, 480, 1280, 720));
+		assertEquals(1f, UriImage.fitScale(640, 480, 0, 0));
+		//portrait photos fit their long edge to the larger limit
+		assertEquals(0.5f, UriImage.fitScale(1440, 2560, 1280, 720));
+	}
+
+	public void testPredictedQualityFitsTheBudget() {
+		assertEquals(UriImage.IMAGE_COMPRESSION_QUALITY, UriImage.predictQuality(1000, 1000));
+		int quality = UriImage.predictQuality(1000, 800);
+		assertTrue(quality < UriImage.IMAGE_COMPRESSION_QUALITY);
+		assertTrue(1000 * UriImage.relativeSize(quality) <= 800);
+		assertEquals(-1, UriImage.predictQuality(1000, 100));
+	}
+
+	public void testResizeFitsLimits() throws Exception {
+		byte[] data = photo(2048, 1536).getResizedImageData(1280, 720, 40 * 1024);
+		assertNotNull(data);
+		assertTrue(data.length <= 40 * 1024);
+		BitmapFactory.Options options = bounds(data);
+		assertTrue(options.outWidth <= 1280);
+		assertTrue(options.outHeight <= 720);
+	}
+
+	public void testSquareCrop() throws Exception {
+		byte[] data = photo(800, 600).getResizedImageData(300, 300, 20 * 1024, true);
+		assertNotNull(data);
+		BitmapFactory.Options options = bounds(data);
+		assertEquals(options.outWidth, options.outHeight);
+		assertTrue(options.outWidth <= 300);
+	}
+
+	public void testSmallImageKeepsItsSize() throws Exception {
+		byte[] data = photo(200, 100).getResizedImageData(1280, 720, 1024 * 1024);
+		BitmapFactory.Options options = bounds(data);
+		assertEquals(200, options.outWidth);
+		assertEquals(100, options.outHeight);
+	}
+
+	public void testMispredictedResizeStillFits() throws Exception {
+		UriImage image = misleading(1024, 768);
+		for (int limit : new int[] { 64 * 1024, 16 * 1024, 4 * 1024 }) {
+			byte[] data = image.getResizedImageData(1024, 768, limit);
+			assertNotNull(data);
+			assertTrue(data.length + " > " + limit, data.length <= limit);
+		}
+	}
+}
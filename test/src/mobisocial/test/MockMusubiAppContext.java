@@ -16,6 +16,7 @@ import mobisocial.musubi.provider.MusubiProvider;
 import mobisocial.musubi.provider.TestSettingsProvider;
 import mobisocial.musubi.provider.UICacheProvider;
 import mobisocial.musubi.service.AMQPService;
+import mobisocial.musubi.util.BitmapCache;
 import mobisocial.musubi.util.IdentityCache;
 import mobisocial.socialkit.musubi.Musubi;
 import android.app.Service;
@@ -46,6 +47,7 @@ import android.util.Log;
 public class MockMusubiAppContext extends MockApplication implements DBProvider, MusubiProvider, UICacheProvider, TestSettingsProvider {
 	private Context mContext;
     private IdentityCache mContactCache;
+    private BitmapCache mBitmapCache;
 	private SQLiteOpenHelper mHelper;
 	private Musubi mMusubi;
 	private boolean mDisableAddressBookSync;
@@ -54,7 +56,8 @@ public class MockMusubiAppContext extends MockApplication implements DBProvider,
 	
 	public MockMusubiAppContext(Context context, boolean syncKeyFetchAllowed, boolean noAddressbookSync, IdentityProvider idp) {
 		mHelper = new DatabaseFile(context, null);
-		mContactCache = new IdentityCache(context, new IdentitiesManager(mHelper));
+		mBitmapCache = new BitmapCache(context);
+		mContactCache = new IdentityCache(context, new IdentitiesManager(mHelper), mBitmapCache);
 		mMusubi = new Musubi(context);
 		mContext = context;
 		mDisableAddressBookSync = noAddressbookSync;
@@ -84,6 +87,11 @@ public class MockMusubiAppContext extends MockApplication implements DBProvider,
 		return mContactCache;
 	}
 
+	@Override
+	public BitmapCache getBitmapCache() {
+		return mBitmapCache;
+	}
+
 	@Override
 	public Musubi getMusubi() {
 		return mMusubi;
@@ -145,6 +145,26 @@ public class TestDatabase extends DatabaseManager {
     }
 
 
+    /**
+     * An object row that isn't tied to a real feed, sender or encoding, for
+     * tests that only care about how rows are stored and queried.  Callers
+     * adjust it as needed and insert it themselves.
+     */
+    public static MObject bareObject(long feedId, String type, String json, byte[] raw) {
+        MObject object = new MObject();
+        object.feedId_ = feedId;
+        object.identityId_ = 1;
+        object.deviceId_ = 1;
+        object.appId_ = 1;
+        object.timestamp_ = new Date().getTime();
+        object.lastModifiedTimestamp_ = object.timestamp_;
+        object.type_ = type;
+        object.json_ = json;
+        object.raw_ = raw;
+        object.renderable_ = true;
+        return object;
+    }
+
     // testing only!
     public MObject insert(MFeed feed, MDevice sender, Obj obj) {
         MApp appRow = getAppManager().ensureApp(getContext().getPackageName());
@@ -0,0 +1,167 @@
+package org.mobisocial.corral;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Date;
+
+import mobisocial.musubi.model.MObject;
+import mobisocial.musubi.model.helpers.ObjectManager;
+import mobisocial.test.MockMusubiAppContext;
+import mobisocial.test.TestDatabase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.mobisocial.corral.ContentCorralTest.Response;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.test.AndroidTestCase;
+
+public class ContentCorralObjectsTest extends AndroidTestCase {
+	static final long FEED = 7;
+
+	MockMusubiAppContext mApp;
+	SQLiteOpenHelper mDbh;
+	ObjectManager mObjectManager;
+	ContentCorral mCorral;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mApp = new MockMusubiAppContext(getContext());
+		mDbh = mApp.getDatabaseSource();
+		mObjectManager = new ObjectManager(mDbh);
+		mCorral = new ContentCorral(mApp, 0);
+		mCorral.startHttpServer();
+	}
+	@Override
+	protected void tearDown() throws Exception {
+		mCorral.stop();
+		mDbh.close();
+		super.tearDown();
+	}
+
+	MObject insert(long feedId, int i, boolean renderable) {
+		MObject o = TestDatabase.bareObject(feedId, "status", "{\"text\":\"status \\u00e9 " + i + "\"}", null);
+		o.renderable_ = renderable;
+		mObjectManager.insertObject(o);
+		return o;
+	}
+	void fill(int count) {
+		SQLiteDatabase db = mDbh.getWritableDatabase();
+		db.beginTransaction();
+		try {
+			for (int i = 0; i < count; ++i) {
+				insert(FEED, i, true);
+				//noise the pages have to skip over
+				if (i % 10 == 0) {
+					insert(FEED, i, false);
+					insert(FEED + 1, i, true);
+				}
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	Response get(InputStream in, OutputStream out, String path, String extra) throws IOException {
+		out.write(("GET " + path + " HTTP/1.1\r\nHost: 127.0.0.1\r\n" + extra + "\r\n").getBytes());
+		out.flush();
+		return ContentCorralTest.readResponse(in);
+	}
+
+	public void testPagesCoverTheFeed() throws Exception {
+		fill(25);
+		Socket socket = new Socket("127.0.0.1", mCorral.getHttpPort());
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			String path = "/json/" + FEED + "?limit=10";
+			long last = 0;
+			int objs = 0;
+			int pages = 0;
+			while (path != null) {
+				Response response = get(in, out, path, "");
+				assertEquals("HTTP/1.1 200 OK", response.mStatus);
+				JSONObject page = new JSONObject(new String(response.mBody, "UTF-8"));
+				assertEquals(FEED, page.getLong("feed"));
+				JSONArray array = page.getJSONArray("objs");
+				for (int i = 0; i < array.length(); ++i) {
+					JSONObject obj = array.getJSONObject(i);
+					assertTrue(obj.getLong("id") > last);
+					last = obj.getLong("id");
+					assertEquals("status", obj.getString("type"));
+					assertEquals("status \u00e9 " + objs, obj.getJSONObject("json").getString("text"));
+					objs++;
+				}
+				path = page.optString("next", null);
+				pages++;
+			}
+			assertEquals(25, objs);
+			assertEquals(3, pages);
+
+			assertEquals("HTTP/1.1 400 BAD REQUEST",
+					get(in, out, "/json/" + FEED + "?after=x", "").mStatus);
+			assertEquals("HTTP/1.1 400 BAD REQUEST",
+					get(in, out, "/json/abc", "").mStatus);
+		} finally {
+			socket.close();
+		}
+	}
+
+	public void testMalformedJsonDoesNotBreakThePage() throws Exception {
+		insert(FEED, 0, true);
+		String broken = "{\"text\":\"cut short";
+		mObjectManager.insertObject(TestDatabase.bareObject(FEED, "status", broken, null));
+		Socket socket = new Socket("127.0.0.1", mCorral.getHttpPort());
+		try {
+			Response response = get(new BufferedInputStream(socket.getInputStream()),
+					socket.getOutputStream(), "/json/" + FEED, "");
+			assertEquals("HTTP/1.1 200 OK", response.mStatus);
+			JSONArray array = new JSONObject(new String(response.mBody, "UTF-8")).getJSONArray("objs");
+			assertEquals(2, array.length());
+			assertEquals("status \u00e9 0", array.getJSONObject(0).getJSONObject("json").getString("text"));
+			assertEquals(broken, array.getJSONObject(1).getString("json"));
+		} finally {
+			socket.close();
+		}
+	}
+
+	public void testUnchangedPageIsNotResent() throws Exception {
+		fill(5);
+		Socket socket = new Socket("127.0.0.1", mCorral.getHttpPort());
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			String path = "/json/" + FEED;
+			Response first = get(in, out, path, "");
+			String etag = first.mHeaders.get("etag");
+			assertNotNull(etag);
+
+			Response again = get(in, out, path, "If-None-Match: " + etag + "\r\n");
+			assertEquals("HTTP/1.1 304 NOT MODIFIED", again.mStatus);
+			assertEquals(etag, again.mHeaders.get("etag"));
+			assertEquals(0, again.mBody.length);
+
+			//an edit moves the modification time, so the page is sent again
+			ContentValues cv = new ContentValues();
+			cv.put(MObject.COL_LAST_MODIFIED_TIMESTAMP, new Date().getTime() + 1000);
+			mDbh.getWritableDatabase().update(MObject.TABLE, cv,
+					MObject.COL_FEED_ID + "=" + FEED + " AND " + MObject.COL_RENDERABLE + "=1", null);
+			Response edited = get(in, out, path, "If-None-Match: " + etag + "\r\n");
+			assertEquals("HTTP/1.1 200 OK", edited.mStatus);
+			assertFalse(etag.equals(edited.mHeaders.get("etag")));
+
+			assertTrue(ContentCorral.matchesETag("\"a\", W/" + etag, etag));
+			assertTrue(ContentCorral.matchesETag("*", etag));
+			assertFalse(ContentCorral.matchesETag(null, etag));
+		} finally {
+			socket.close();
+		}
+	}
+}
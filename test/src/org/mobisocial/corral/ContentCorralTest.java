@@ -0,0 +1,252 @@
+package org.mobisocial.corral;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.mobisocial.corral.CorralHelper.DownloadProgressCallback.DownloadChannel;
+import org.mobisocial.corral.CorralUploadTest.Progress;
+
+import android.os.Environment;
+import android.test.AndroidTestCase;
+
+public class ContentCorralTest extends AndroidTestCase {
+	ContentCorral mCorral;
+	File mAppDir;
+	String mAppPath;
+	File mDownload;
+	Random mRandom = new Random();
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mAppPath = "/app/corral-test-" + System.nanoTime();
+		mAppDir = new File(new File(Environment.getExternalStorageDirectory(), ContentCorral.APPS_SUBFOLDER),
+				mAppPath.substring("/app/".length()));
+		mAppDir.mkdirs();
+		mDownload = new File(getContext().getCacheDir(), "corral-server-test-" + System.nanoTime());
+		mCorral = new ContentCorral(getContext(), 0);
+		mCorral.startHttpServer();
+	}
+	@Override
+	protected void tearDown() throws Exception {
+		mCorral.stop();
+		FileUtils.deleteDirectory(mAppDir);
+		mDownload.delete();
+		super.tearDown();
+	}
+
+	static class Response {
+		String mStatus;
+		final Map<String, String> mHeaders = new HashMap<String, String>();
+		byte[] mBody;
+	}
+
+	byte[] writeFile(String name, int size) throws IOException {
+		byte[] data = new byte[size];
+		mRandom.nextBytes(data);
+		FileOutputStream out = new FileOutputStream(new File(mAppDir, name));
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+		return data;
+	}
+
+	Socket connect() throws IOException {
+		return new Socket("127.0.0.1", mCorral.getHttpPort());
+	}
+
+	void request(OutputStream out, String path, String extra) throws IOException {
+		out.write(("GET " + mAppPath + "/" + path + " HTTP/1.1\r\nHost: 127.0.0.1\r\n" + extra + "\r\n").getBytes());
+		out.flush();
+	}
+
+	static Response readResponse(InputStream in) throws IOException {
+		Response response = new Response();
+		response.mStatus = ContentCorral.CorralHttpRequest.readLine(in);
+		String line;
+		while ((line = ContentCorral.CorralHttpRequest.readLine(in)) != null && line.length() > 0) {
+			int colon = line.indexOf(':');
+			response.mHeaders.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+					line.substring(colon + 1).trim());
+		}
+		String length = response.mHeaders.get("content-length");
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		if (length != null) {
+			byte[] buf = new byte[Integer.parseInt(length)];
+			ChunkedDownload.readFully(in, buf);
+			body.write(buf);
+		} else if ("chunked".equals(response.mHeaders.get("transfer-encoding"))) {
+			int size;
+			while ((size = Integer.parseInt(ContentCorral.CorralHttpRequest.readLine(in), 16)) > 0) {
+				byte[] buf = new byte[size];
+				ChunkedDownload.readFully(in, buf);
+				body.write(buf);
+				ContentCorral.CorralHttpRequest.readLine(in);
+			}
+			ContentCorral.CorralHttpRequest.readLine(in);
+		}
+		response.mBody = body.toByteArray();
+		return response;
+	}
+
+	public void testParseRange() {
+		assertNull(ContentCorral.parseRange(null, 100));
+		assertNull(ContentCorral.parseRange("bytes=0-1,5-6", 100));
+		assertNull(ContentCorral.parseRange("lines=0-1", 100));
+		assertNull(ContentCorral.parseRange("bytes=x-1", 100));
+		assertNull(ContentCorral.parseRange("bytes=9-2", 100));
+		assertTrue(Arrays.equals(new long[] { 10, 10 }, ContentCorral.parseRange("bytes=10-19", 100)));
+		assertTrue(Arrays.equals(new long[] { 10, 90 }, ContentCorral.parseRange("bytes=10-", 100)));
+		assertTrue(Arrays.equals(new long[] { 90, 10 }, ContentCorral.parseRange("bytes=90-500", 100)));
+		assertTrue(Arrays.equals(new long[] { 80, 20 }, ContentCorral.parseRange("bytes=-20", 100)));
+		assertTrue(Arrays.equals(new long[] { 0, 100 }, ContentCorral.parseRange("bytes=-500", 100)));
+		assertEquals(0, ContentCorral.parseRange("bytes=100-", 100).length);
+		assertEquals(0, ContentCorral.parseRange("bytes=-0", 100).length);
+	}
+
+	public void testKeepAliveAndRanges() throws Exception {
+		byte[] data = writeFile("data.bin", 10000);
+		Socket socket = connect();
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+
+			request(out, "data.bin", "Range: bytes=10-19\r\n");
+			Response partial = readResponse(in);
+			assertTrue(partial.mStatus, partial.mStatus.contains(" 206 "));
+			assertEquals("bytes 10-19/10000", partial.mHeaders.get("content-range"));
+			byte[] expected = new byte[10];
+			System.arraycopy(data, 10, expected, 0, 10);
+			assertTrue(Arrays.equals(expected, partial.mBody));
+			assertEquals("keep-alive", partial.mHeaders.get("connection"));
+
+			//same connection
+			request(out, "data.bin", "");
+			Response whole = readResponse(in);
+			assertTrue(whole.mStatus, whole.mStatus.contains(" 200 "));
+			assertEquals("bytes", whole.mHeaders.get("accept-ranges"));
+			assertTrue(Arrays.equals(data, whole.mBody));
+
+			request(out, "data.bin", "Range: bytes=20000-\r\n");
+			Response past = readResponse(in);
+			assertTrue(past.mStatus, past.mStatus.contains(" 416 "));
+			assertEquals("bytes */10000", past.mHeaders.get("content-range"));
+
+			//a miss still answers, so the connection stays usable
+			request(out, "missing.bin", "Connection: close\r\n");
+			Response missing = readResponse(in);
+			assertTrue(missing.mStatus, missing.mStatus.contains(" 404 "));
+			assertEquals("close", missing.mHeaders.get("connection"));
+			assertEquals(-1, in.read());
+		} finally {
+			socket.close();
+		}
+	}
+
+	public void testWorkersAreBounded() throws Exception {
+		writeFile("thumb.jpg", 2000);
+		Socket[] sockets = new Socket[20];
+		try {
+			for (int i = 0; i < sockets.length; ++i) {
+				sockets[i] = connect();
+				request(sockets[i].getOutputStream(), "thumb.jpg", "Connection: close\r\n");
+			}
+			for (Socket socket : sockets) {
+				Response response = readResponse(new BufferedInputStream(socket.getInputStream()));
+				assertTrue(response.mStatus, response.mStatus.contains(" 200 "));
+				assertEquals("image/jpeg", response.mHeaders.get("content-type"));
+			}
+		} finally {
+			for (Socket socket : sockets) {
+				if (socket != null) {
+					socket.close();
+				}
+			}
+		}
+		int workers = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith("CorralHttpWorker")) {
+				workers++;
+			}
+		}
+		assertTrue("found " + workers + " workers", workers <= ContentCorral.MAX_HTTP_WORKERS);
+	}
+
+	public void testIdleKeepAliveYieldsWorker() throws Exception {
+		writeFile("thumb.jpg", 2000);
+		Socket[] idle = new Socket[ContentCorral.MAX_HTTP_WORKERS];
+		Socket waiting = null;
+		try {
+			for (int i = 0; i < idle.length; ++i) {
+				idle[i] = connect();
+				request(idle[i].getOutputStream(), "thumb.jpg", "");
+				Response response = readResponse(new BufferedInputStream(idle[i].getInputStream()));
+				assertTrue(response.mStatus, response.mStatus.contains(" 200 "));
+			}
+			// every worker now sits on an idle keep-alive connection
+			long start = System.currentTimeMillis();
+			waiting = connect();
+			request(waiting.getOutputStream(), "thumb.jpg", "Connection: close\r\n");
+			Response response = readResponse(new BufferedInputStream(waiting.getInputStream()));
+			long elapsed = System.currentTimeMillis() - start;
+			assertTrue(response.mStatus, response.mStatus.contains(" 200 "));
+			assertTrue("waited " + elapsed + "ms", elapsed < ContentCorral.KEEP_ALIVE_TIMEOUT / 2);
+		} finally {
+			for (Socket socket : idle) {
+				if (socket != null) {
+					socket.close();
+				}
+			}
+			if (waiting != null) {
+				waiting.close();
+			}
+		}
+	}
+
+	public void testChunkedFraming() throws Exception {
+		byte[] first = new byte[10000];
+		mRandom.nextBytes(first);
+		ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		wire.write("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes());
+		OutputStream chunked = new ContentCorral.ChunkedOutputStream(wire);
+		chunked.write(first, 0, 8192);
+		chunked.write(first, 8192, 0);
+		chunked.write(first, 8192, first.length - 8192);
+		chunked.close();
+		chunked.close();
+		// a second response on the same connection must frame cleanly after the first
+		wire.write("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes());
+		chunked = new ContentCorral.ChunkedOutputStream(wire);
+		chunked.write('x');
+		chunked.close();
+
+		InputStream in = new ByteArrayInputStream(wire.toByteArray());
+		assertTrue(Arrays.equals(first, readResponse(in).mBody));
+		assertTrue(Arrays.equals(new byte[] { 'x' }, readResponse(in).mBody));
+		assertEquals(-1, in.read());
+	}
+
+	public void testChunkedDownloadFromCorral() throws Exception {
+		byte[] data = writeFile("video.3gp", 100 * 1024 + 7);
+		String url = "http://127.0.0.1:" + mCorral.getHttpPort() + mAppPath + "/video.3gp";
+		ChunkedDownload download = new ChunkedDownload(url, mDownload, null, DownloadChannel.LAN);
+		download.mChunkSize = 16 * 1024;
+		download.run(null, new Progress());
+		assertTrue(Arrays.equals(data, FileUtils.readFileToByteArray(mDownload)));
+	}
+}
@@ -0,0 +1,190 @@
+package org.mobisocial.corral;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.mobisocial.corral.CorralDownloadClient.Source;
+import org.mobisocial.corral.CorralHelper.DownloadProgressCallback;
+import org.mobisocial.corral.CorralHelper.DownloadProgressCallback.DownloadChannel;
+import org.mobisocial.corral.CorralUploadTest.Progress;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+public class CorralDownloadTest extends AndroidTestCase {
+	static final int CHUNK = 4096;
+
+	S3StandIn mServer;
+	File mFile;
+	String mKey;
+	Random mRandom = new Random();
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mServer = new S3StandIn();
+		mFile = new File(getContext().getCacheDir(), "corral-download-test-" + System.nanoTime());
+		mKey = new CryptUtil().getKey();
+	}
+	@Override
+	protected void tearDown() throws Exception {
+		mServer.close();
+		mFile.delete();
+		new File(mFile.getAbsolutePath() + ".tmp").delete();
+		new File(mFile.getAbsolutePath() + ".part").delete();
+		super.tearDown();
+	}
+
+	byte[] publish(String name, int size, boolean encrypt) throws Exception {
+		byte[] data = new byte[size];
+		mRandom.nextBytes(data);
+		if (encrypt) {
+			CryptUtil cu = new CryptUtil(mKey);
+			cu.InitCiphers();
+			ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+			cu.encrypt(new ByteArrayInputStream(data), ciphertext, new Progress());
+			mServer.put(name, ciphertext.toByteArray());
+		} else {
+			mServer.put(name, data);
+		}
+		return data;
+	}
+
+	ChunkedDownload download(String name, boolean encrypted) {
+		ChunkedDownload download = new ChunkedDownload(mServer.getUrl() + name, mFile,
+				encrypted ? mKey : null, DownloadChannel.SERVER);
+		download.mChunkSize = CHUNK;
+		return download;
+	}
+
+	void assertContent(byte[] expected) throws IOException {
+		assertTrue(Arrays.equals(expected, FileUtils.readFileToByteArray(mFile)));
+		assertFalse(new File(mFile.getAbsolutePath() + ".tmp").exists());
+		assertFalse(new File(mFile.getAbsolutePath() + ".part").exists());
+	}
+
+	public void testEncryptedChunks() throws Exception {
+		//every remainder mod the block size, and an exact chunk multiple
+		int[] sizes = new int[] { 0, 1, 15, 16, 17, CHUNK - 1, CHUNK, 5 * CHUNK + 7 };
+		for (int size : sizes) {
+			byte[] data = publish("obj", size, true);
+			download("obj", true).run(null, new Progress());
+			assertContent(data);
+			mFile.delete();
+		}
+		assertEquals("bytes=" + (5 * CHUNK - 16) + "-" + (5 * CHUNK + 15), mServer.mHeaders.get("range"));
+	}
+
+	public void testDroppedChunkIsRetried() throws Exception {
+		byte[] data = publish("obj", 8 * CHUNK, true);
+		mServer.mDropAfter = CHUNK / 2;
+		download("obj", true).run(null, new Progress());
+		assertContent(data);
+		//only the broken chunk is fetched again
+		assertTrue(mServer.mServedBytes < 8 * CHUNK + 2 * CHUNK);
+	}
+
+	public void testResumesAfterFailure() throws Exception {
+		byte[] data = publish("obj", 8 * CHUNK + 100, true);
+		//three chunks make it before the connection goes
+		mServer.mDropAfter = 3 * CHUNK + CHUNK / 2;
+		ChunkedDownload first = download("obj", true);
+		first.mAttemptsPerChunk = 1;
+		try {
+			first.run(null, new Progress());
+			fail("the dropped chunk should not have been retried");
+		} catch (IOException e) {
+		}
+		assertFalse(mFile.exists());
+		assertTrue(new File(mFile.getAbsolutePath() + ".part").exists());
+		assertEquals(3 * CHUNK, new File(mFile.getAbsolutePath() + ".tmp").length());
+
+		//a new process picks up from the saved offset
+		mServer.mServedBytes = 0;
+		download("obj", true).run(null, new Progress());
+		assertContent(data);
+		assertTrue(mServer.mServedBytes < 6 * CHUNK);
+	}
+
+	public void testServerWithoutRanges() throws Exception {
+		byte[] data = publish("obj", 3 * CHUNK + 5, false);
+		mServer.mIgnoreRange = true;
+		download("obj", false).run(null, new Progress());
+		assertContent(data);
+	}
+
+	Source source(final String url, final String key, final ChunkedDownload.Race race,
+			DownloadChannel channel, final int attempts) {
+		return new Source(channel, new Progress()) {
+			@Override
+			Uri fetch(DownloadProgressCallback progress) throws IOException {
+				ChunkedDownload download = new ChunkedDownload(url, mFile, key, mChannel);
+				download.mChunkSize = CHUNK;
+				download.mAttemptsPerChunk = attempts;
+				download.mRace = race;
+				try {
+					download.run(null, progress);
+				} catch (GeneralSecurityException e) {
+					throw new IOException(e);
+				}
+				return Uri.fromFile(mFile);
+			}
+		};
+	}
+
+	public void testStalePeerIsHedged() throws Exception {
+		byte[] data = publish("obj", 4 * CHUNK, true);
+		//accepts connections but never answers
+		ServerSocket stale = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		try {
+			ChunkedDownload.Race race = new ChunkedDownload.Race();
+			List<Source> sources = new ArrayList<Source>();
+			sources.add(source("http://127.0.0.1:" + stale.getLocalPort() + "/obj", null, race,
+					DownloadChannel.LAN, 1));
+			sources.add(source(mServer.getUrl() + "obj", mKey, race, DownloadChannel.SERVER, 1));
+			long start = SystemClock.uptimeMillis();
+			Source winner = CorralDownloadClient.fetchFirst(sources, race, null, 200);
+			long elapsed = SystemClock.uptimeMillis() - start;
+			assertNotNull(winner);
+			assertEquals(DownloadChannel.SERVER, winner.mChannel);
+			assertContent(data);
+			assertTrue("took " + elapsed + "ms", elapsed < 5000);
+		} finally {
+			stale.close();
+		}
+	}
+
+	public void testSourcesHandOff() throws Exception {
+		//the peer serves the plaintext and the server the ciphertext
+		byte[] data = publish("obj", 6 * CHUNK + 3, true);
+		S3StandIn peer = new S3StandIn();
+		try {
+			peer.put("obj", data);
+			peer.mDropAfter = 2 * CHUNK + CHUNK / 2;
+			ChunkedDownload.Race race = new ChunkedDownload.Race();
+			List<Source> sources = new ArrayList<Source>();
+			sources.add(source(peer.getUrl() + "obj", null, race, DownloadChannel.LAN, 1));
+			sources.add(source(mServer.getUrl() + "obj", mKey, race, DownloadChannel.SERVER, 1));
+			//long enough that the server is only asked once the peer fails
+			Source winner = CorralDownloadClient.fetchFirst(sources, race, null, 60 * 1000);
+			assertNotNull(winner);
+			assertEquals(DownloadChannel.SERVER, winner.mChannel);
+			assertContent(data);
+			//the server only sent what the peer had not
+			assertTrue(mServer.mServedBytes < 5 * CHUNK);
+		} finally {
+			peer.close();
+		}
+	}
+}
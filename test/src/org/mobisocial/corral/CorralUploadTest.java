@@ -0,0 +1,129 @@
+package org.mobisocial.corral;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import mobisocial.musubi.util.Base64;
+
+import org.mobisocial.corral.CorralHelper.DownloadProgressCallback;
+import org.mobisocial.corral.CorralHelper.EncRslt;
+import org.mobisocial.corral.CorralHelper.UploadProgressCallback;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+public class CorralUploadTest extends AndroidTestCase {
+	S3StandIn mServer;
+	File mFile;
+	String mKey;
+	Random mRandom = new Random();
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mServer = new S3StandIn();
+		mFile = new File(getContext().getCacheDir(), "corral-upload-test-" + System.nanoTime());
+		mKey = new CryptUtil().getKey();
+	}
+	@Override
+	protected void tearDown() throws Exception {
+		mServer.close();
+		mFile.delete();
+		super.tearDown();
+	}
+
+	static class Progress implements UploadProgressCallback, DownloadProgressCallback {
+		boolean mCancelled;
+		int mLastProgress;
+		@Override
+		public void onProgress(UploadState state, int progress) {
+			if (state == UploadState.TRANSFER_IN_PROGRESS) {
+				mLastProgress = progress;
+			}
+		}
+		@Override
+		public boolean isCancelled() {
+			return mCancelled;
+		}
+		@Override
+		public void onProgress(DownloadState state, DownloadChannel channel, int progress) {
+		}
+	}
+
+	byte[] writeContent(int size) throws IOException {
+		byte[] data = new byte[size];
+		mRandom.nextBytes(data);
+		FileOutputStream out = new FileOutputStream(mFile);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+		return data;
+	}
+
+	byte[] decrypt(byte[] ciphertext) throws Exception {
+		CryptUtil cu = new CryptUtil(mKey);
+		cu.InitCiphers();
+		ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+		cu.decrypt(new ByteArrayInputStream(ciphertext), plaintext, ciphertext.length, new Progress());
+		return plaintext.toByteArray();
+	}
+
+	public void testEncryptedLength() {
+		assertEquals(16, CryptUtil.encryptedLength(0));
+		assertEquals(16, CryptUtil.encryptedLength(15));
+		assertEquals(32, CryptUtil.encryptedLength(16));
+		assertEquals(1024 + 16, CryptUtil.encryptedLength(1024));
+	}
+
+	public void testUploadEncryptsAsItSends() throws Exception {
+		byte[] plaintext = writeContent(300 * 1024 + 7);
+		EncRslt rslt = CorralHelper.prepareUpload(Uri.fromFile(mFile), getContext(), mKey);
+		assertEquals(CryptUtil.encryptedLength(plaintext.length), rslt.length);
+		assertNull(rslt.md5);
+
+		Progress progress = new Progress();
+		new CorralS3Connector(getContext(), mServer.getUrl()).uploadToServer(
+				"ticket", rslt, "date", "object", progress);
+		byte[] stored = mServer.get("object");
+		assertEquals(rslt.length, stored.length);
+		assertEquals(Long.toString(rslt.length), mServer.mHeaders.get("content-length"));
+		assertNull(mServer.mHeaders.get("transfer-encoding"));
+		assertEquals("AWS ticket", mServer.mHeaders.get("authorization"));
+		assertEquals(100, progress.mLastProgress);
+		assertEquals(S3StandIn.md5Hex(stored), CorralHelper.bin2hex(Base64.decode(rslt.md5)).toLowerCase());
+		assertTrue(Arrays.equals(plaintext, decrypt(stored)));
+	}
+
+	public void testMismatchedEtagFailsTheUpload() throws Exception {
+		writeContent(4096);
+		EncRslt rslt = CorralHelper.prepareUpload(Uri.fromFile(mFile), getContext(), mKey);
+		mServer.mBadEtag = true;
+		try {
+			new CorralS3Connector(getContext(), mServer.getUrl()).uploadToServer(
+					"ticket", rslt, "date", "object", new Progress());
+			fail("corrupted upload was accepted");
+		} catch (IOException e) {
+		}
+	}
+
+	public void testCancelledUploadStops() throws Exception {
+		writeContent(4096);
+		EncRslt rslt = CorralHelper.prepareUpload(Uri.fromFile(mFile), getContext(), mKey);
+		Progress progress = new Progress();
+		progress.mCancelled = true;
+		try {
+			new CorralS3Connector(getContext(), mServer.getUrl()).uploadToServer(
+					"ticket", rslt, "date", "object", progress);
+			fail("cancelled upload went through");
+		} catch (IOException e) {
+		}
+		assertNull(mServer.get("object"));
+	}
+}
@@ -0,0 +1,183 @@
+package org.mobisocial.corral;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A local stand-in for the corral bucket.  Objects are kept in memory, PUTs
+ * answer with the md5 of what arrived as the ETag, and GETs honour single
+ * byte ranges.  One request per connection.
+ */
+public class S3StandIn implements Runnable {
+	final ServerSocket mServer;
+	final Thread mThread;
+	final Map<String, byte[]> mObjects = new HashMap<String, byte[]>();
+
+	/* last request, for assertions */
+	volatile String mMethod;
+	volatile Map<String, String> mHeaders;
+
+	/** answer PUTs with an ETag that does not match */
+	volatile boolean mBadEtag;
+	/** answer GETs with the whole object whatever range is asked for */
+	volatile boolean mIgnoreRange;
+	/** hang up once GETs have served this many body bytes, once */
+	volatile int mDropAfter = -1;
+	/** body bytes written in answer to GETs */
+	volatile long mServedBytes;
+
+	public S3StandIn() throws IOException {
+		mServer = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+		mThread = new Thread(this, "S3StandIn");
+		mThread.start();
+	}
+
+	public String getUrl() {
+		return "http://127.0.0.1:" + mServer.getLocalPort() + "/";
+	}
+
+	public synchronized byte[] get(String name) {
+		return mObjects.get(name);
+	}
+
+	public synchronized void put(String name, byte[] data) {
+		mObjects.put(name, data);
+	}
+
+	public void close() throws IOException {
+		mServer.close();
+	}
+
+	@Override
+	public void run() {
+		while (!mServer.isClosed()) {
+			Socket s;
+			try {
+				s = mServer.accept();
+			} catch (IOException e) {
+				return;
+			}
+			try {
+				serve(s);
+			} catch (IOException e) {
+				//the client went away, wait for the next one
+			} finally {
+				try {
+					s.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	void serve(Socket s) throws IOException {
+		InputStream in = new BufferedInputStream(s.getInputStream());
+		OutputStream out = s.getOutputStream();
+		String[] request = readLine(in).split(" ");
+		Map<String, String> headers = new HashMap<String, String>();
+		String line;
+		while ((line = readLine(in)).length() > 0) {
+			int colon = line.indexOf(':');
+			headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+		}
+		mMethod = request[0];
+		mHeaders = headers;
+		String name = request[1].substring(1);
+
+		if ("PUT".equals(request[0])) {
+			if ("100-continue".equalsIgnoreCase(headers.get("expect"))) {
+				out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes());
+				out.flush();
+			}
+			int length = Integer.parseInt(headers.get("content-length"));
+			byte[] body = new byte[length];
+			int read = 0;
+			while (read < length) {
+				int r = in.read(body, read, length - read);
+				if (r < 0) {
+					throw new IOException("short body");
+				}
+				read += r;
+			}
+			put(name, body);
+			String etag = md5Hex(body);
+			if (mBadEtag) {
+				etag = md5Hex(new byte[0]);
+			}
+			respond(out, "200 OK", "ETag: \"" + etag + "\"\r\n", null, 0, 0);
+		} else if ("GET".equals(request[0])) {
+			byte[] body = get(name);
+			if (body == null) {
+				respond(out, "404 Not Found", "", null, 0, 0);
+				return;
+			}
+			String range = headers.get("range");
+			if (range == null || mIgnoreRange) {
+				respond(out, "200 OK", "", body, 0, body.length);
+				return;
+			}
+			String[] bounds = range.substring("bytes=".length()).split("-", -1);
+			int start = Integer.parseInt(bounds[0]);
+			int end = bounds[1].length() == 0 ? body.length - 1 : Math.min(body.length - 1, Integer.parseInt(bounds[1]));
+			if (start >= body.length) {
+				respond(out, "416 Requested Range Not Satisfiable", "Content-Range: bytes */" + body.length + "\r\n", null, 0, 0);
+				return;
+			}
+			respond(out, "206 Partial Content", "Content-Range: bytes " + start + "-" + end + "/" + body.length + "\r\n",
+					body, start, end + 1 - start);
+		} else {
+			respond(out, "405 Method Not Allowed", "", null, 0, 0);
+		}
+	}
+
+	void respond(OutputStream out, String status, String headers, byte[] body, int offset, int length)
+			throws IOException {
+		StringBuilder response = new StringBuilder()
+			.append("HTTP/1.1 ").append(status).append("\r\n")
+			.append(headers)
+			.append("Content-Length: ").append(body == null ? 0 : length).append("\r\n")
+			.append("Connection: close\r\n\r\n");
+		out.write(response.toString().getBytes());
+		if (body != null) {
+			long drop = mDropAfter - mServedBytes;
+			if (mDropAfter >= 0 && drop < length) {
+				mDropAfter = -1;
+				out.write(body, offset, (int)drop);
+				mServedBytes += drop;
+				out.flush();
+				throw new IOException("dropped");
+			}
+			out.write(body, offset, length);
+			mServedBytes += length;
+		}
+		out.flush();
+	}
+
+	static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int c;
+		while ((c = in.read()) != -1 && c != '\n') {
+			if (c != '\r') {
+				line.write(c);
+			}
+		}
+		return line.toString();
+	}
+
+	static String md5Hex(byte[] data) {
+		try {
+			return CorralHelper.bin2hex(MessageDigest.getInstance("MD5").digest(data)).toLowerCase(Locale.US);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+}